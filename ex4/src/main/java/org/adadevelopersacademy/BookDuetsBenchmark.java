@@ -0,0 +1,134 @@
+package org.adadevelopersacademy;
+
+// The JDK comes with a small HTTP server, which is plenty for
+// standing in for the Book Duets API.
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.List;
+
+/**
+ * Measures how many calls a second a BookDuetsClient can make, by
+ * pointing it at a stub of the Book Duets API on this machine. The
+ * stub answers at once, so what is measured is the client itself and
+ * the connections it makes. Run it with:
+ *
+ *     mvn package exec:java \
+ *         -Dexec.mainClass=org.adadevelopersacademy.BookDuetsBenchmark \
+ *         -Dexec.args="8 20000"
+ *
+ * where the arguments are the number of threads calling at once and
+ * the number of calls to time, which default to those values.
+ *
+ * The calls are made once without timing them first, so that the JIT
+ * compiler has compiled the code and the connections are open.
+ */
+public final class BookDuetsBenchmark {
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_CALLS = 20000;
+    private static final byte[] STUB_RESPONSE =
+        "{\"book_duet\":\"A stub pairing\"}".getBytes(StandardCharsets.UTF_8);
+    private static final int OK = 200;
+
+    private BookDuetsBenchmark() {
+    }
+
+    public static void main(final String[] args)
+        throws IOException, InterruptedException, ExecutionException {
+        final int threads =
+            args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_THREADS;
+        final int calls =
+            args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CALLS;
+
+        // The stub sends the headers and the body of a response
+        // separately, and without this the second waits for the
+        // client to acknowledge the first, which takes 40ms.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        // Port 0 asks the operating system for any free port.
+        final HttpServer server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new StubHandler());
+        final ExecutorService serverThreads = Executors.newFixedThreadPool(threads);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        final ExecutorService callers = Executors.newFixedThreadPool(threads);
+        final String url = "http://localhost:" + server.getAddress().getPort()
+            + "/suggested_pairing?filter_level=";
+        try (final BookDuetsClient client = new BookDuetsClient("stub", url)) {
+            run(client, callers, threads, calls);
+            final long start = System.nanoTime();
+            run(client, callers, threads, calls);
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(
+                "%d calls from %d threads in %.2fs: %.0f calls/s, %.3fms each%n",
+                calls, threads, seconds, calls / seconds,
+                seconds * 1000 * threads / calls);
+        } finally {
+            callers.shutdown();
+            server.stop(0);
+            serverThreads.shutdown();
+        }
+    }
+
+    /**
+     * Makes calls calls to client, shared between threads callers.
+     */
+    private static void run(
+        final BookDuetsClient client, final ExecutorService callers,
+        final int threads, final int calls)
+        throws InterruptedException, ExecutionException {
+        final List<Future<Void>> results = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            final int share = calls / threads + (thread < calls % threads ? 1 : 0);
+            results.add(callers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int i = 0; i < share; i++) {
+                        client.suggestedPairing(BookDuetsClient.FilterLevel.NONE);
+                    }
+                    return null;
+                }
+            }));
+        }
+        // get() throws an ExecutionException if a call failed.
+        for (final Future<Void> result : results) {
+            result.get();
+        }
+    }
+
+    /**
+     * Answers every request with the same pairing.
+     */
+    private static final class StubHandler implements HttpHandler {
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            // The request has to be read to the end for the
+            // connection to be used again.
+            try (final InputStream body = exchange.getRequestBody()) {
+                while (body.read() != -1) {
+                    continue;
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(OK, STUB_RESPONSE.length);
+            try (final OutputStream out = exchange.getResponseBody()) {
+                out.write(STUB_RESPONSE);
+            }
+        }
+    }
+}
@@ -7,21 +7,30 @@ import com.google.gson.JsonParser;
 // I'm going to pull in several standard classes. I'd recommend
 // reading about each one after you finish reading this code.
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 
 import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 
 /**
  * You'll need to talk to Loraine about getting an API key for the
@@ -44,8 +53,13 @@ import org.apache.http.message.BasicHeader;
  * your code, so you'll need to run "mvn package" first, and if you
  * attempt to make any changes to this code, you'll need to run "mvn
  * package" before you are able to see the effects of the changes.
+ *
+ * A BookDuetsClient keeps its connections open between calls, so make
+ * one, share it between as many threads as you like, and close() it
+ * when you're done with it. BookDuetsBenchmark shows how many calls a
+ * second that allows.
  */
-public class BookDuetsClient {
+public class BookDuetsClient implements Closeable {
     private static final String SECRET_KEY_ENV_VAR =
         "BOOK_DUETS_SECRET_KEY";
     private static final String SECRET_KEY_HEADER =
@@ -54,7 +68,20 @@ public class BookDuetsClient {
         "http://api.bookduets.com/suggested_pairing?filter_level=";
     private static final String BOOK_DUET_FIELD = "book_duet";
 
-    private final String secretKey;
+    // Connections kept open at once, in total and to any one server.
+    // This client only talks to one server, so the second limit is
+    // the one which matters.
+    private static final int MAX_CONNECTIONS = 64;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 32;
+    // How long an idle connection is kept open if the server doesn't
+    // say, and how long one may sit idle before it is checked before
+    // being used again.
+    private static final long KEEP_ALIVE_MILLIS = 30000;
+    private static final int VALIDATE_AFTER_MILLIS = 2000;
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private final String url;
+    private final CloseableHttpClient httpclient;
 
     /**
      * An enum is a collection of related symbolic constants. In Ruby,
@@ -71,17 +98,16 @@ public class BookDuetsClient {
     }
 
     public BookDuetsClient(final String secretKey) {
-        this.secretKey = secretKey;
+        this(secretKey, BOOK_DUET_URL);
     }
 
-    // java.io.IOException is a checked exception. I mentioned the
-    // concept of checked exceptions previously, but it means that you
-    // must declare any checked exception that is thrown from a
-    // function. In this case, suggestedPairing() doesn't directly
-    // throw IOException, but it calls several functions which happen
-    // to potentially throw an exception.
-    public String suggestedPairing(final FilterLevel filterLevel)
-        throws IOException {
+    /**
+     * @param secretKey Key to send with every request
+     * @param url URL to call, to which the filter level is appended
+     */
+    public BookDuetsClient(final String secretKey, final String url) {
+        this.url = url;
+
         // This is a very common, but subtle idiom in Java. Notice,
         // I'm constructing a BasicHeader, but assigning it to a
         // Header. In this context, BasicHeader is an implementation,
@@ -100,17 +126,57 @@ public class BookDuetsClient {
         // http://bit.ly/1NLr8wW
         final List<Header> headers = Collections.singletonList(header);
 
+        // Opening a connection takes a round trip to the server before
+        // the request can even be sent, so rather than closing each
+        // connection after one call, the connection manager keeps it
+        // in a pool and hands it to the next call. It is safe to use
+        // from many threads at once, and a call which finds every
+        // connection busy waits for one to come back.
+        final PoolingHttpClientConnectionManager connections =
+            new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(MAX_CONNECTIONS);
+        connections.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        // The server may have closed a connection which has sat in
+        // the pool for a while, so check it before using it again.
+        connections.setValidateAfterInactivity(VALIDATE_AFTER_MILLIS);
+
+        // Without timeouts, a call to a server which never answers
+        // would wait forever, and so would every call waiting for its
+        // connection.
+        final RequestConfig config = RequestConfig.custom()
+            .setConnectTimeout(TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(TIMEOUT_MILLIS)
+            .setSocketTimeout(TIMEOUT_MILLIS)
+            .build();
+
+        // The Builder pattern is how Java gets around not having
+        // keyword arguments: each setter returns the builder, and
+        // build() makes the object once everything is set.
+        this.httpclient = HttpClients.custom()
+            .setConnectionManager(connections)
+            .setKeepAliveStrategy(new KeepAliveStrategy())
+            .evictExpiredConnections()
+            .evictIdleConnections(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS)
+            .setDefaultHeaders(headers)
+            .setDefaultRequestConfig(config)
+            .build();
+    }
+
+    // java.io.IOException is a checked exception. I mentioned the
+    // concept of checked exceptions previously, but it means that you
+    // must declare any checked exception that is thrown from a
+    // function. In this case, suggestedPairing() doesn't directly
+    // throw IOException, but it calls several functions which happen
+    // to potentially throw an exception.
+    public String suggestedPairing(final FilterLevel filterLevel)
+        throws IOException {
+        final HttpGet httpget = new HttpGet(
+            url + filterLevel.toString().toLowerCase());
         // Anytime something has a close() method, it is your
         // responsibility to ensure that it is called. Most classes
         // will implement the Closeable and/or the AutoCloseable
         // interface to indicate that you need to call close().
         //
-        // You can see from the CloseableHttpClient documentation that
-        // it implements both the Closeable and AutoCloseable
-        // interface:
-        //
-        // http://bit.ly/1HyMrAm
-        //
         // In Java 7 and greater, you can use a shorthand notation,
         // for classes that are AutoCloseable this is called:
         // "try-with-resources", and you can read more about it here:
@@ -135,40 +201,38 @@ public class BookDuetsClient {
         // everyone who reads your code follow the logic very
         // closely. It's a common practice to use "final" extensively
         // in Java.
-        try (
-            final CloseableHttpClient httpclient =
-                HttpClients.custom().setDefaultHeaders(headers).build()) {
-            final HttpGet httpget = new HttpGet(
-                BOOK_DUET_URL + filterLevel.toString().toLowerCase());
-            // Notice that CloseableHttpResponse also extends
-            // Closeable. You can look up the documentation yourself
-            // as an exercise.
-            try (final CloseableHttpResponse response = httpclient.execute(httpget)) {
-                final HttpEntity entity = response.getEntity();
-                // Notice from the documentation that getContent() is
-                // an InputStream and that is also Closeable.
-                //
-                // Notice you can also have multiple resources that
-                // are controlled in the same try-with-resources
-                // block.
-                try (
-                    final InputStream content = entity.getContent();
-                    final BufferedReader reader = new BufferedReader(
-                        new InputStreamReader(content));
-                ) {
-                    // I'm specifically keeping error handling to a
-                    // minimum, but in a real program, you'd probably
-                    // want to catch JSON parse errors a few other
-                    // things as well.
-                    final JsonParser parser = new JsonParser();
-                    final JsonElement element = parser.parse(reader);
-                    final String duet =
-                        element
-                            .getAsJsonObject()
-                            .get(BOOK_DUET_FIELD)
-                            .getAsString();
-                    return duet;
-                }
+        //
+        // Closing the response gives its connection back to the
+        // pool, rather than closing the connection.
+        try (final CloseableHttpResponse response = httpclient.execute(httpget)) {
+            final HttpEntity entity = response.getEntity();
+            // Notice from the documentation that getContent() is
+            // an InputStream and that is also Closeable.
+            //
+            // Notice you can also have multiple resources that
+            // are controlled in the same try-with-resources
+            // block.
+            try (
+                final InputStream content = entity.getContent();
+                final BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(content));
+            ) {
+                // I'm specifically keeping error handling to a
+                // minimum, but in a real program, you'd probably
+                // want to catch JSON parse errors a few other
+                // things as well.
+                final JsonParser parser = new JsonParser();
+                final JsonElement element = parser.parse(reader);
+                final String duet =
+                    element
+                        .getAsJsonObject()
+                        .get(BOOK_DUET_FIELD)
+                        .getAsString();
+                // A connection can only be reused once the whole
+                // response has been read from it. The parser may
+                // stop before the end, so read whatever is left.
+                EntityUtils.consume(entity);
+                return duet;
             }
         }
 
@@ -177,6 +241,32 @@ public class BookDuetsClient {
         // all pass through.
     }
 
+    /**
+     * Closes every pooled connection. The client can't be used after
+     * this.
+     */
+    @Override
+    public void close() throws IOException {
+        httpclient.close();
+    }
+
+    /**
+     * Keeps a connection open as long as the server's Keep-Alive
+     * header says it will, or KEEP_ALIVE_MILLIS if it doesn't say.
+     * Without this, a connection is kept until the server closes it,
+     * and the next call to use it fails.
+     */
+    private static final class KeepAliveStrategy
+        implements ConnectionKeepAliveStrategy {
+        @Override
+        public long getKeepAliveDuration(
+            final HttpResponse response, final HttpContext context) {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE
+                .getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : KEEP_ALIVE_MILLIS;
+        }
+    }
+
     // So, because main() calls suggestedPairing(), and
     // suggestedPairing() throws IOException, main() must also declare
     // that it potentially throws IOException.
@@ -194,8 +284,10 @@ public class BookDuetsClient {
             System.exit(1);
         }
 
-        final String duet = new BookDuetsClient(secretKey).suggestedPairing(
-            BookDuetsClient.FilterLevel.NONE);
+        final String duet;
+        try (final BookDuetsClient client = new BookDuetsClient(secretKey)) {
+            duet = client.suggestedPairing(BookDuetsClient.FilterLevel.NONE);
+        }
 
         try (final FileWriter writer = new FileWriter(args[0])) {
             writer.write(duet);
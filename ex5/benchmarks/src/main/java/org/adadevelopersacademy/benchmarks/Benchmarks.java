@@ -0,0 +1,41 @@
+package org.adadevelopersacademy.benchmarks;
+
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * Runs the benchmarks once for each of several numbers of threads.
+ *
+ * It takes the same arguments as JMH's own main class, for example a
+ * pattern choosing which benchmarks to run:
+ *
+ *   java -jar target/benchmarks.jar StoreBenchmark.get
+ *
+ * Unless -t is given, every benchmark is run with each thread count
+ * in the benchmark.threads property, which defaults to 1,4,16.
+ */
+public final class Benchmarks {
+    private static final String THREADS_PROPERTY = "benchmark.threads";
+
+    private Benchmarks() {
+    }
+
+    public static void main(final String[] args)
+            throws CommandLineOptionException, RunnerException {
+        final CommandLineOptions options = new CommandLineOptions(args);
+        if (options.getThreads().hasValue()) {
+            new Runner(options).run();
+            return;
+        }
+        for (final String threads
+                 : System.getProperty(THREADS_PROPERTY, "1,4,16").split(",")) {
+            new Runner(new OptionsBuilder()
+                .parent(options)
+                .threads(Integer.parseInt(threads.trim()))
+                .build()).run();
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package org.adadevelopersacademy.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.adadevelopersacademy.DocumentIdAllocator;
+import org.adadevelopersacademy.DocumentStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CreateBenchmark measures creating documents the way
+ * DocumentResource.create does, with a {@link DocumentIdAllocator}
+ * and putIfAbsent.
+ *
+ * A store can create millions of documents a second, which would fill
+ * the heap within a single iteration. Each created document is
+ * therefore deleted again, so this measures a create and a delete
+ * together. The store starts with DOCUMENTS documents, so that
+ * creates don't run against an empty one.
+ *
+ * The allocator hands out ids it has been given back before new ones,
+ * so ids says where they come from. With "new", deleted ids are never
+ * released, and every create takes the next id of the thread's block,
+ * reserving a new block when it runs out. With "released", each id is
+ * released again, as a service with steady churn would, and every
+ * create takes it from the queue of released ids.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CreateBenchmark {
+    @Param({"memory", "offheap"})
+    public String store;
+
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    @Param({"new", "released"})
+    public String ids;
+
+    private DocumentStore documents;
+    private ByteBuffer document;
+    private DocumentIdAllocator allocator;
+    private boolean release;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        documents = StoreBenchmark.createStore(store);
+        document = Documents.buffer(size);
+        allocator = new DocumentIdAllocator();
+        release = "released".equals(ids);
+        for (int i = 0; i < StoreBenchmark.DOCUMENTS; i++) {
+            documents.put(allocator.allocate(), document.duplicate());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        documents.close();
+    }
+
+    @Benchmark
+    public int createAndDelete() {
+        int docId = allocator.allocate();
+        while (!documents.putIfAbsent(docId, document.duplicate())) {
+            docId = allocator.allocate();
+        }
+        documents.remove(docId);
+        if (release) {
+            allocator.release(docId);
+        }
+        return docId;
+    }
+}
@@ -0,0 +1,42 @@
+package org.adadevelopersacademy.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Documents makes JSON documents of a given size for benchmarks.
+ */
+final class Documents {
+    private Documents() {
+    }
+
+    /**
+     * Returns a JSON document of exactly size bytes, at least 32. The
+     * document is a list of short fields, which is closer to what
+     * people store than one long string, and gives compression and
+     * parsing something to do.
+     */
+    static byte[] document(final int size) {
+        final StringBuilder json = new StringBuilder(size).append("{\"fields\":[");
+        for (int i = 0; json.length() < size - 32; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"n\":").append(i).append(",\"s\":\"v").append(i % 97)
+                .append("\"}");
+        }
+        json.append("],\"pad\":\"");
+        while (json.length() < size - 2) {
+            json.append('x');
+        }
+        return json.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns document(size) in a buffer. Stores may keep the buffer
+     * they are given, so every put should pass a duplicate.
+     */
+    static ByteBuffer buffer(final int size) {
+        return ByteBuffer.wrap(document(size));
+    }
+}
@@ -0,0 +1,153 @@
+package org.adadevelopersacademy.benchmarks;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * KeyDistribution picks which of a fixed number of docIds each
+ * operation of a benchmark touches.
+ *
+ * Real traffic is rarely uniform. Under a Zipfian distribution a few
+ * documents get most of the requests, which shows up contention on
+ * hot keys that a uniform benchmark hides, and a sequential one
+ * shows off whatever locality the store has.
+ */
+public abstract class KeyDistribution {
+    // Zipf's exponent as used by YCSB, under which about 1% of the
+    // keys get half of the requests.
+    private static final double THETA = 0.99;
+    // A prime, so that multiplying by it modulo the number of keys
+    // shuffles them without sending two keys to the same place.
+    private static final long SCRAMBLE = 2654435761L;
+
+    protected final int count;
+
+    protected KeyDistribution(final int count) {
+        this.count = count;
+    }
+
+    /**
+     * Returns a distribution over docIds 0 to count - 1.
+     *
+     * @param name One of uniform, zipfian or sequential
+     */
+    public static KeyDistribution create(final String name, final int count) {
+        switch (name) {
+        case "uniform":
+            return new Uniform(count);
+        case "zipfian":
+            return new Zipfian(count);
+        case "sequential":
+            return new Sequential(count);
+        default:
+            throw new IllegalArgumentException("Unknown key distribution: " + name);
+        }
+    }
+
+    /**
+     * Returns a generator of docIds for a single thread.
+     */
+    public abstract Generator newGenerator();
+
+    /**
+     * Generates docIds for one thread. Generators aren't thread safe.
+     */
+    public interface Generator {
+        int next();
+    }
+
+    private static final class Uniform extends KeyDistribution {
+        private Uniform(final int count) {
+            super(count);
+        }
+
+        @Override
+        public Generator newGenerator() {
+            return new Generator() {
+                @Override
+                public int next() {
+                    return ThreadLocalRandom.current().nextInt(count);
+                }
+            };
+        }
+    }
+
+    /**
+     * Every thread walks through the docIds in order, each starting
+     * from a different place so that they don't all touch the same
+     * document at once.
+     */
+    private static final class Sequential extends KeyDistribution {
+        private final AtomicInteger threads = new AtomicInteger();
+
+        private Sequential(final int count) {
+            super(count);
+        }
+
+        @Override
+        public Generator newGenerator() {
+            final int start = (int) ((long) threads.getAndIncrement() * SCRAMBLE % count);
+            return new Generator() {
+                private int next = start;
+
+                @Override
+                public int next() {
+                    final int docId = next;
+                    next = next + 1 == count ? 0 : next + 1;
+                    return docId;
+                }
+            };
+        }
+    }
+
+    /**
+     * Zipfian ranks from the method in "Quickly Generating
+     * Billion-Record Synthetic Databases" by Gray et al., which YCSB
+     * also uses. The sum over every key is worked out once, and each
+     * rank then takes a single random number.
+     *
+     * Rank 0 is the most popular. Ranks are scrambled into docIds so
+     * that the hot documents are spread around the store rather than
+     * all sitting next to each other.
+     */
+    private static final class Zipfian extends KeyDistribution {
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        private Zipfian(final int count) {
+            super(count);
+            double zeta = 0;
+            for (int i = 1; i <= count; i++) {
+                zeta += 1 / Math.pow(i, THETA);
+            }
+            final double zeta2 = 1 + 1 / Math.pow(2, THETA);
+            this.zetaN = zeta;
+            this.alpha = 1 / (1 - THETA);
+            this.eta = (1 - Math.pow(2.0 / count, 1 - THETA)) / (1 - zeta2 / zeta);
+        }
+
+        @Override
+        public Generator newGenerator() {
+            return new Generator() {
+                @Override
+                public int next() {
+                    return (int) (rank() * SCRAMBLE % count);
+                }
+            };
+        }
+
+        private long rank() {
+            final double u = ThreadLocalRandom.current().nextDouble();
+            final double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, THETA)) {
+                return 1;
+            }
+            final long rank = (long) (count * Math.pow(eta * u - eta + 1, alpha));
+            return Math.min(rank, count - 1);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.adadevelopersacademy.benchmarks;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.adadevelopersacademy.DocumentResource;
+import org.adadevelopersacademy.Main;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ServerBenchmark drives the whole server, as started by
+ * Main.startServer, over HTTP on the loopback interface.
+ *
+ * Each benchmark is run twice: once for throughput, and once sampling
+ * the time taken by individual requests, for which JMH reports
+ * percentiles up to the 99.99th. The server runs in the same JVM as
+ * the clients, and is configured with the same system properties as
+ * usual, so for example
+ *
+ *   java -Ddocument.store=offheap -jar target/benchmarks.jar Server
+ *
+ * measures the off-heap store. Its admission limits and the limit on
+ * its queue are turned off unless they are set, since a benchmark
+ * whose requests are refused measures nothing useful.
+ *
+ * The client is the JDK's HttpURLConnection, which keeps connections
+ * alive between requests. It is much lighter than the Jersey client,
+ * so more of the time is spent in the server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+    static final int DOCUMENTS = 10000;
+    // Where the server listens, which is set in the same way as for
+    // the server itself.
+    private static final String BASE_URI =
+        System.getProperty(Main.URI_PROPERTY, Main.BASE_URI);
+
+    @Param({"100", "10000"})
+    public int size;
+
+    @Param({"uniform", "zipfian"})
+    public String keys;
+
+    private HttpServer server;
+    private byte[] document;
+    private KeyDistribution distribution;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        setDefault(Main.READ_LIMIT_PROPERTY, "0");
+        setDefault(Main.WRITE_LIMIT_PROPERTY, "0");
+        setDefault(Main.QUEUE_PROPERTY, "-1");
+        server = Main.startServer();
+        document = Documents.document(size);
+        distribution = KeyDistribution.create(keys, DOCUMENTS);
+        load();
+    }
+
+    /**
+     * Empties the store and loads the documents again after every
+     * iteration, so that the documents created by create() don't pile
+     * up.
+     */
+    @TearDown(Level.Iteration)
+    public void reset() throws IOException {
+        DocumentResource.clear();
+        load();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Main.stopServer(server);
+    }
+
+    private void load() throws IOException {
+        for (int docId = 0; docId < DOCUMENTS; docId++) {
+            request("PUT", Integer.toString(docId), document);
+        }
+    }
+
+    private static void setDefault(final String property, final String value) {
+        if (System.getProperty(property) == null) {
+            System.setProperty(property, value);
+        }
+    }
+
+    /**
+     * The docIds one benchmark thread touches.
+     */
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        private KeyDistribution.Generator generator;
+
+        @Setup(Level.Trial)
+        public void setUp(final ServerBenchmark benchmark) {
+            generator = benchmark.distribution.newGenerator();
+        }
+    }
+
+    @Benchmark
+    public int get(final ThreadKeys keys) throws IOException {
+        return request("GET", Integer.toString(keys.generator.next()), null);
+    }
+
+    @Benchmark
+    public int put(final ThreadKeys keys) throws IOException {
+        return request("PUT", Integer.toString(keys.generator.next()), document);
+    }
+
+    @Benchmark
+    public int create() throws IOException {
+        return request("POST", "", document);
+    }
+
+    /**
+     * Sends a request to /document/path and reads the whole response,
+     * which lets HttpURLConnection reuse the connection.
+     *
+     * @return the response status
+     * @throws IOException if the request fails or the status isn't 200
+     */
+    private static int request(final String method, final String path, final byte[] body)
+            throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection)
+            new URL(BASE_URI + "document/" + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", "application/json");
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+        }
+        final int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException(method + " " + path + " returned " + status);
+        }
+        try (InputStream in = connection.getInputStream()) {
+            final byte[] buffer = new byte[8192];
+            while (in.read(buffer) >= 0) {
+                continue;
+            }
+        }
+        return status;
+    }
+}
@@ -0,0 +1,108 @@
+package org.adadevelopersacademy.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.adadevelopersacademy.ConcurrentDocumentStore;
+import org.adadevelopersacademy.DocumentStore;
+import org.adadevelopersacademy.OffHeapDocumentStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * StoreBenchmark measures reads and writes of existing documents
+ * straight against a DocumentStore, without any HTTP in the way.
+ *
+ * The store is filled with DOCUMENTS documents before the benchmark
+ * starts, and every operation then touches one of them, picked by the
+ * key distribution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreBenchmark {
+    static final int DOCUMENTS = 100000;
+
+    @Param({"memory", "offheap"})
+    public String store;
+
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    @Param({"uniform", "zipfian", "sequential"})
+    public String keys;
+
+    private DocumentStore documents;
+    private ByteBuffer document;
+    private KeyDistribution distribution;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        documents = createStore(store);
+        document = Documents.buffer(size);
+        for (int docId = 0; docId < DOCUMENTS; docId++) {
+            documents.put(docId, document.duplicate());
+        }
+        distribution = KeyDistribution.create(keys, DOCUMENTS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        documents.close();
+    }
+
+    /**
+     * Returns a new, empty store of the given type, as named by the
+     * document.store property.
+     */
+    static DocumentStore createStore(final String type) {
+        switch (type) {
+        case "memory":
+            return new ConcurrentDocumentStore();
+        case "offheap":
+            return new OffHeapDocumentStore();
+        default:
+            throw new IllegalArgumentException("Unknown document store: " + type);
+        }
+    }
+
+    /**
+     * The docIds one benchmark thread touches.
+     */
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        private KeyDistribution.Generator generator;
+
+        @Setup(Level.Trial)
+        public void setUp(final StoreBenchmark benchmark) {
+            generator = benchmark.distribution.newGenerator();
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer get(final ThreadKeys keys) {
+        // Returning the result stops the JIT from deciding the read
+        // isn't needed.
+        return documents.get(keys.generator.next());
+    }
+
+    @Benchmark
+    public void put(final ThreadKeys keys) {
+        documents.put(keys.generator.next(), document.duplicate());
+    }
+}
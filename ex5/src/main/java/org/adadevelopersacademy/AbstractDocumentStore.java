@@ -0,0 +1,47 @@
+package org.adadevelopersacademy;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * AbstractDocumentStore implements the parts of {@link DocumentStore}
+ * which most stores make out of its other methods, so that a store
+ * only has to override them when it can do better.
+ *
+ * Java 8 would let the interface itself provide these as default
+ * methods, but this code is kept to Java 7, so they live in a base
+ * class instead, the way java.util.AbstractMap fills in Map.
+ */
+public abstract class AbstractDocumentStore implements DocumentStore {
+    /**
+     * Replaces the document, for a store which keeps whole documents
+     * and has no use for the patch.
+     */
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        return replace(docId, expected, document);
+    }
+
+    /**
+     * Applies the changes one at a time with put and remove.
+     */
+    @Override
+    public boolean[] writeAll(final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        final boolean[] results = new boolean[changes.size()];
+        for (int i = 0; i < results.length; i++) {
+            final Map.Entry<Integer, ByteBuffer> change = changes.get(i);
+            if (change.getValue() == null) {
+                results[i] = remove(change.getKey());
+            } else {
+                put(change.getKey(), change.getValue());
+                results[i] = true;
+            }
+        }
+        return results;
+    }
+}
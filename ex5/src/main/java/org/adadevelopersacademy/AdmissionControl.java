@@ -0,0 +1,129 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * AdmissionControl turns requests away with 503 Service Unavailable
+ * when the server already has as many as it can handle, instead of
+ * letting them queue in Grizzly while everyone's latency climbs.
+ *
+ * Reads and writes each have a {@link ConcurrencyLimiter} of their
+ * own. Writes wait for the log and the indexes and are usually much
+ * slower than reads, so a storm of bulk writes only cuts the write
+ * limit and reads carry on as before. GET requests and POSTs to _mget
+ * count as reads and everything else as a write. The change feed and
+ * the replication stream aren't limited, since a subscription stays
+ * open for as long as the subscriber likes. Replication streams have a
+ * limit of their own instead, see {@link Replication}.
+ *
+ * A refused request gets a Retry-After header asking the client to
+ * wait a second before trying again.
+ *
+ * The permit is taken by a request filter before Jersey even matches
+ * the request to a resource method, so refusing a request is cheap.
+ * It is given back when Jersey starts on the response, including
+ * when an async resource method resumes later on another thread.
+ * That is before the response is sent, so a client which waits for
+ * each response never finds its own last request still holding a
+ * permit. A request which ends without a response, because the
+ * connection failed say, gives it back when Jersey reports that the
+ * request has finished. By then Grizzly may already have recycled the
+ * request, so the listener picks the limiter up from the request as
+ * soon as matching starts and keeps it itself.
+ */
+@Provider
+@PreMatching
+public class AdmissionControl
+        implements ContainerRequestFilter, ApplicationEventListener {
+    // Seconds a refused client is asked to wait.
+    private static final String RETRY_AFTER = "1";
+    private static final String LIMITER = AdmissionControl.class.getName() + ".limiter";
+
+    private static volatile ConcurrencyLimiter reads;
+    private static volatile ConcurrencyLimiter writes;
+
+    /**
+     * Sets the limiters for reads and writes. Either may be null to
+     * leave those requests unlimited.
+     */
+    public static void setLimiters(
+            final ConcurrencyLimiter readLimiter, final ConcurrencyLimiter writeLimiter) {
+        reads = readLimiter;
+        writes = writeLimiter;
+    }
+
+    public static ConcurrencyLimiter getReadLimiter() {
+        return reads;
+    }
+
+    public static ConcurrencyLimiter getWriteLimiter() {
+        return writes;
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request) throws IOException {
+        final String path = request.getUriInfo().getPath();
+        if (path.endsWith("_changes") || path.endsWith("_replication")) {
+            return;
+        }
+        final ConcurrencyLimiter limiter =
+            isRead(request.getMethod(), path) ? reads : writes;
+        if (limiter == null) {
+            return;
+        }
+        if (!limiter.tryAcquire()) {
+            request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER)
+                .build());
+            return;
+        }
+        request.setProperty(LIMITER, limiter);
+    }
+
+    private static boolean isRead(final String method, final String path) {
+        return "GET".equals(method) || "HEAD".equals(method) || path.endsWith("_mget");
+    }
+
+    @Override
+    public void onEvent(final ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(final RequestEvent event) {
+        final long started = System.nanoTime();
+        return new RequestEventListener() {
+            private ConcurrencyLimiter limiter;
+
+            @Override
+            public void onEvent(final RequestEvent event) {
+                switch (event.getType()) {
+                case MATCHING_START:
+                    limiter = (ConcurrencyLimiter)
+                        event.getContainerRequest().getProperty(LIMITER);
+                    break;
+                case RESP_FILTERS_START:
+                case FINISHED:
+                    if (limiter != null) {
+                        limiter.release(System.nanoTime() - started);
+                        limiter = null;
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,115 @@
+package org.adadevelopersacademy;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BloomFilter answers whether a set of docIds might contain a given
+ * docId, in about ten bits per docId:
+ *
+ *   https://en.wikipedia.org/wiki/Bloom_filter
+ *
+ * Adding a docId sets a few bits picked by hashing it, and a docId
+ * might be in the set only if all of its bits are set. Other docIds
+ * may have set all of them, so the answer "maybe" is wrong about one
+ * time in a hundred, but "no" is always right. An {@link SSTable}
+ * keeps one in memory so that a read of a docId which isn't in the
+ * table never has to touch its file.
+ *
+ * The bits are picked by double hashing, where the i-th bit is h1 + i
+ * * h2 for two hashes of the docId, which is as good as using that
+ * many separate hashes.
+ *
+ * A filter is filled in by one thread before it is shared, and never
+ * changes after that.
+ */
+final class BloomFilter {
+    // Ten bits per docId and seven bits set for each give about 1%
+    // false positives.
+    static final int BITS_PER_ID = 10;
+    private static final int HASHES = 7;
+
+    private final long[] words;
+    private final long bits;
+
+    /**
+     * @param expectedIds Number of docIds which will be added
+     */
+    BloomFilter(final int expectedIds) {
+        this(new long[(int) ((Math.max(expectedIds, 1) * (long) BITS_PER_ID + 63)
+            / 64)]);
+    }
+
+    private BloomFilter(final long[] words) {
+        this.words = words;
+        this.bits = words.length * 64L;
+    }
+
+    /**
+     * Adds docId to the set.
+     */
+    void add(final int docId) {
+        final long hash = mix(docId);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            final long bit = ((h1 + i * h2) & 0xffffffffL) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if docId was certainly never added, and true if
+     * it probably was.
+     */
+    boolean mightContain(final int docId) {
+        final long hash = mix(docId);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASHES; i++) {
+            final long bit = ((h1 + i * h2) & 0xffffffffL) % bits;
+            if ((words[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes writeTo writes.
+     */
+    int size() {
+        return 4 + words.length * 8;
+    }
+
+    void writeTo(final DataOutputStream out) throws IOException {
+        out.writeInt(words.length);
+        for (final long word : words) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads a filter written by writeTo.
+     */
+    static BloomFilter read(final ByteBuffer in) {
+        final long[] words = new long[in.getInt()];
+        in.asLongBuffer().get(words);
+        return new BloomFilter(words);
+    }
+
+    /**
+     * The finalizer of the 64-bit MurmurHash3, which gives two
+     * independent looking 32-bit hashes from one docId.
+     */
+    private static long mix(final int docId) {
+        long h = docId;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,89 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * ByteBufferWriter lets a resource method return a ByteBuffer, whose
+ * bytes are sent as the response body exactly as they are.
+ *
+ * Jersey turns the value returned by a resource method into the bytes
+ * of the response with a MessageBodyWriter. The JSON-Processing
+ * module registers one for JsonObject, which walks the whole object
+ * and writes it out again. A stored document is already serialized
+ * JSON, so parsing it only to have it written back out is wasted
+ * work. Returning the stored bytes skips both steps.
+ *
+ * The @Provider annotation lets the package scan in Main find this
+ * class in the same way as it finds resources.
+ */
+@Provider
+public class ByteBufferWriter implements MessageBodyWriter<ByteBuffer> {
+    private static final int CHUNK_SIZE = 8192;
+
+    @Override
+    public boolean isWriteable(
+            final Class<?> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType) {
+        return ByteBuffer.class.isAssignableFrom(type);
+    }
+
+    @Override
+    public long getSize(
+            final ByteBuffer buffer,
+            final Class<?> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType) {
+        // Knowing the size up front lets Jersey send a Content-Length
+        // header instead of buffering or chunking the response.
+        return buffer.remaining();
+    }
+
+    @Override
+    public void writeTo(
+            final ByteBuffer buffer,
+            final Class<?> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType,
+            final MultivaluedMap<String, Object> httpHeaders,
+            final OutputStream entityStream) throws IOException {
+        write(buffer, entityStream);
+    }
+
+    /**
+     * Writes the remaining bytes of buffer to out without changing the
+     * position of buffer.
+     */
+    static void write(final ByteBuffer buffer, final OutputStream out)
+            throws IOException {
+        if (buffer.hasArray()) {
+            // A heap buffer is backed by an array which can be handed
+            // to the stream without copying.
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                buffer.remaining());
+            return;
+        }
+        // Direct and mapped buffers have no array, and an OutputStream
+        // only accepts arrays, so these are copied through a small
+        // chunk at a time.
+        final ByteBuffer source = buffer.duplicate();
+        final byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())];
+        while (source.hasRemaining()) {
+            final int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+}
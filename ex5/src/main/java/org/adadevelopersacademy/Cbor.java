@@ -0,0 +1,559 @@
+package org.adadevelopersacademy;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+
+/**
+ * Cbor converts documents between JSON and CBOR, the Concise Binary
+ * Object Representation:
+ *
+ *   https://tools.ietf.org/html/rfc7049
+ *
+ * CBOR has the same data model as JSON, but each item starts with a
+ * byte giving its type and, for strings and numbers, its length or
+ * value. A reader never has to scan for the end of a string or turn
+ * digits into a number, and a string is never escaped. That makes it
+ * much cheaper for a client to produce and consume than JSON text.
+ *
+ * Documents are still stored as JSON, so everything else in the
+ * server keeps working on JSON. Converting between the two is a
+ * single streaming pass which never builds a JsonObject.
+ *
+ * Objects and arrays are written with "indefinite" lengths, ended by a
+ * break byte, since the stream parser doesn't know how many members
+ * there are until it reaches the end. Integers which fit a long are
+ * written as CBOR integers and larger ones as bignums. Other numbers
+ * are written as doubles when that is exact, and otherwise as decimal
+ * fractions, so no JSON number loses precision.
+ *
+ * Like JsonBytes, this is a utility class.
+ */
+public final class Cbor {
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1;
+    private static final int BYTES = 2;
+    private static final int TEXT = 3;
+    private static final int ARRAY = 4;
+    private static final int MAP = 5;
+    private static final int TAG = 6;
+
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+    private static final int FALSE = 0xf4;
+    private static final int TRUE = 0xf5;
+    private static final int NULL = 0xf6;
+    private static final int UNDEFINED = 0xf7;
+    private static final int HALF = 0xf9;
+    private static final int FLOAT = 0xfa;
+    private static final int DOUBLE = 0xfb;
+
+    private static final int POSITIVE_BIGNUM = 2;
+    private static final int NEGATIVE_BIGNUM = 3;
+    private static final int DECIMAL_FRACTION = 4;
+
+    // Objects and arrays are read recursively, so this keeps a
+    // malicious document from overflowing the stack.
+    private static final int MAX_DEPTH = 512;
+
+    private Cbor() {}
+
+    /**
+     * Converts UTF-8 JSON bytes to CBOR. The position of json is not
+     * changed.
+     */
+    public static ByteBuffer fromJson(final ByteBuffer json) {
+        final Output out = new Output(json.remaining());
+        try (JsonParser parser = JsonBytes.createParser(json)) {
+            while (parser.hasNext()) {
+                switch (parser.next()) {
+                case START_OBJECT:
+                    out.write(MAP << 5 | INDEFINITE);
+                    break;
+                case START_ARRAY:
+                    out.write(ARRAY << 5 | INDEFINITE);
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    out.write(BREAK);
+                    break;
+                case KEY_NAME:
+                case VALUE_STRING:
+                    final byte[] text =
+                        parser.getString().getBytes(StandardCharsets.UTF_8);
+                    out.writeHead(TEXT, text.length);
+                    out.write(text, 0, text.length);
+                    break;
+                case VALUE_NUMBER:
+                    writeNumber(out, parser.getBigDecimal());
+                    break;
+                case VALUE_TRUE:
+                    out.write(TRUE);
+                    break;
+                case VALUE_FALSE:
+                    out.write(FALSE);
+                    break;
+                default:
+                    out.write(NULL);
+                    break;
+                }
+            }
+        }
+        return out.toByteBuffer();
+    }
+
+    /**
+     * Reads a CBOR map from in and returns it as UTF-8 JSON bytes.
+     *
+     * @param in Stream holding a CBOR map
+     * @param maxSize Largest document accepted, in bytes of either
+     *     CBOR or JSON
+     * @throws JsonException if in doesn't hold a CBOR map, or it holds
+     *     something which JSON can't represent
+     * @throws DocumentTooLargeException if the document is larger than
+     *     maxSize
+     */
+    public static ByteBuffer toJson(final InputStream in, final int maxSize)
+            throws IOException {
+        final Output json = new Output(256);
+        try (JsonGenerator generator = Json.createGenerator(json)) {
+            final Input input = new Input(in, maxSize, generator);
+            final int initial = input.read();
+            if (initial >>> 5 != MAP) {
+                throw new JsonException("Document must be a CBOR map");
+            }
+            input.readValue(initial, null, 0);
+            if (input.in.read() >= 0) {
+                throw new JsonException("Unexpected data after the document");
+            }
+        }
+        if (json.size() > maxSize) {
+            throw new DocumentTooLargeException(
+                "Document is larger than " + maxSize + " bytes");
+        }
+        return json.toByteBuffer();
+    }
+
+    private static void writeNumber(final Output out, final BigDecimal number) {
+        final BigDecimal integral = number.stripTrailingZeros();
+        if (integral.scale() <= 0 && integral.precision() - integral.scale() <= 19) {
+            final BigInteger value = integral.toBigIntegerExact();
+            if (value.bitLength() < 64) {
+                final long longValue = value.longValue();
+                if (longValue >= 0) {
+                    out.writeHead(UNSIGNED, longValue);
+                } else {
+                    out.writeHead(NEGATIVE, -1 - longValue);
+                }
+                return;
+            }
+        }
+        final double doubleValue = number.doubleValue();
+        if (!Double.isInfinite(doubleValue)
+                && new BigDecimal(Double.toString(doubleValue)).compareTo(number) == 0) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToLongBits(doubleValue));
+            return;
+        }
+        if (number.scale() == 0) {
+            writeBigInteger(out, number.unscaledValue());
+            return;
+        }
+        // The mantissa times ten to the power of the exponent. A huge
+        // exponent, like in 1e999999999, stays as small as it was.
+        out.writeHead(TAG, DECIMAL_FRACTION);
+        out.writeHead(ARRAY, 2);
+        writeBigInteger(out, BigInteger.valueOf(-(long) number.scale()));
+        writeBigInteger(out, number.unscaledValue());
+    }
+
+    private static void writeBigInteger(final Output out, final BigInteger value) {
+        if (value.bitLength() < 64) {
+            final long longValue = value.longValue();
+            if (longValue >= 0) {
+                out.writeHead(UNSIGNED, longValue);
+            } else {
+                out.writeHead(NEGATIVE, -1 - longValue);
+            }
+            return;
+        }
+        final BigInteger magnitude;
+        if (value.signum() >= 0) {
+            out.writeHead(TAG, POSITIVE_BIGNUM);
+            magnitude = value;
+        } else {
+            out.writeHead(TAG, NEGATIVE_BIGNUM);
+            magnitude = value.negate().subtract(BigInteger.ONE);
+        }
+        byte[] bytes = magnitude.toByteArray();
+        if (bytes[0] == 0) {
+            // toByteArray adds a sign byte, which a bignum doesn't
+            // have.
+            final byte[] unsigned = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 1, unsigned, 0, unsigned.length);
+            bytes = unsigned;
+        }
+        out.writeHead(BYTES, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * A ByteArrayOutputStream which writes CBOR heads and whose bytes
+     * can be wrapped without copying them.
+     */
+    private static final class Output extends ByteArrayOutputStream {
+        private Output(final int size) {
+            super(size);
+        }
+
+        /**
+         * Writes the first byte of an item of type major along with
+         * its argument, which is a length, a count or a value, in as
+         * few bytes as it fits.
+         */
+        private void writeHead(final int major, final long argument) {
+            if (argument < 24) {
+                write(major << 5 | (int) argument);
+            } else if (argument < 1L << 8) {
+                write(major << 5 | 24);
+                write((int) argument);
+            } else if (argument < 1L << 16) {
+                write(major << 5 | 25);
+                write((int) (argument >>> 8));
+                write((int) argument);
+            } else if (argument < 1L << 32) {
+                write(major << 5 | 26);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                    write((int) (argument >>> shift));
+                }
+            } else {
+                write(major << 5 | 27);
+                writeLong(argument);
+            }
+        }
+
+        private void writeLong(final long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                write((int) (value >>> shift));
+            }
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Reads CBOR items from a stream and writes them to a JSON
+     * generator.
+     */
+    private static final class Input {
+        private final InputStream in;
+        private final int maxSize;
+        private final JsonGenerator generator;
+        private int size;
+
+        private Input(
+                final InputStream in,
+                final int maxSize,
+                final JsonGenerator generator) {
+            this.in = new BufferedInputStream(in);
+            this.maxSize = maxSize;
+            this.generator = generator;
+        }
+
+        /**
+         * Reads the item which starts with initial and writes it as
+         * the member called name of the current object, or as the
+         * next element of the current array if name is null.
+         */
+        private void readValue(final int initial, final String name, final int depth)
+                throws IOException {
+            if (depth > MAX_DEPTH) {
+                throw new JsonException("Document is nested too deeply");
+            }
+            final int info = initial & 31;
+            switch (initial >>> 5) {
+            case UNSIGNED:
+            case NEGATIVE:
+                write(name, new BigDecimal(readInteger(initial)));
+                break;
+            case BYTES:
+                throw new JsonException("Byte strings can't be converted to JSON");
+            case TEXT:
+                write(name, readText(info));
+                break;
+            case ARRAY:
+                if (name == null) {
+                    generator.writeStartArray();
+                } else {
+                    generator.writeStartArray(name);
+                }
+                final long elements = readLength(info);
+                for (long i = 0; elements < 0 || i < elements; i++) {
+                    final int next = read();
+                    if (elements < 0 && next == BREAK) {
+                        break;
+                    }
+                    readValue(next, null, depth + 1);
+                }
+                generator.writeEnd();
+                break;
+            case MAP:
+                if (name == null) {
+                    generator.writeStartObject();
+                } else {
+                    generator.writeStartObject(name);
+                }
+                final long members = readLength(info);
+                for (long i = 0; members < 0 || i < members; i++) {
+                    final int key = read();
+                    if (members < 0 && key == BREAK) {
+                        break;
+                    }
+                    if (key >>> 5 != TEXT) {
+                        throw new JsonException("Map keys must be text strings");
+                    }
+                    final String member = readText(key & 31);
+                    readValue(read(), member, depth + 1);
+                }
+                generator.writeEnd();
+                break;
+            case TAG:
+                final long tag = readArgument(info);
+                if (tag == POSITIVE_BIGNUM || tag == NEGATIVE_BIGNUM) {
+                    write(name, new BigDecimal(readInteger(initial)));
+                } else if (tag == DECIMAL_FRACTION) {
+                    if (read() != (ARRAY << 5 | 2)) {
+                        throw new JsonException("Decimal fraction must be a pair");
+                    }
+                    final BigInteger exponent = readInteger(read());
+                    if (exponent.bitLength() > 31) {
+                        throw new JsonException("Decimal fraction is out of range");
+                    }
+                    final BigInteger mantissa = readInteger(read());
+                    write(name, new BigDecimal(mantissa, -exponent.intValue()));
+                } else {
+                    // Other tags only add meaning to the item which
+                    // follows, like a date to a string, which is
+                    // passed on as it is.
+                    readValue(read(), name, depth + 1);
+                }
+                break;
+            default:
+                // Major type 7 holds floats and the simple values.
+                readSimple(initial, name);
+                break;
+            }
+        }
+
+        private void readSimple(final int initial, final String name) throws IOException {
+            switch (initial) {
+            case FALSE:
+            case TRUE:
+                if (name == null) {
+                    generator.write(initial == TRUE);
+                } else {
+                    generator.write(name, initial == TRUE);
+                }
+                break;
+            case NULL:
+            case UNDEFINED:
+                if (name == null) {
+                    generator.writeNull();
+                } else {
+                    generator.writeNull(name);
+                }
+                break;
+            case HALF:
+                write(name, halfToDouble((int) readArgument(initial & 31)));
+                break;
+            case FLOAT:
+                write(name, Float.intBitsToFloat((int) readArgument(initial & 31)));
+                break;
+            case DOUBLE:
+                write(name, Double.longBitsToDouble(readArgument(initial & 31)));
+                break;
+            default:
+                throw new JsonException("Unsupported CBOR item " + initial);
+            }
+        }
+
+        private void write(final String name, final double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new JsonException("JSON has no " + value);
+            }
+            // A double's shortest decimal form, rather than its exact
+            // binary value, which may have many more digits.
+            write(name, new BigDecimal(Double.toString(value)));
+        }
+
+        private void write(final String name, final BigDecimal value) {
+            if (name == null) {
+                generator.write(value);
+            } else {
+                generator.write(name, value);
+            }
+        }
+
+        private void write(final String name, final String value) {
+            if (name == null) {
+                generator.write(value);
+            } else {
+                generator.write(name, value);
+            }
+        }
+
+        /**
+         * Reads an integer or a bignum, whose first byte is initial.
+         */
+        private BigInteger readInteger(final int initial) throws IOException {
+            final int major = initial >>> 5;
+            final BigInteger magnitude;
+            final boolean negative;
+            if (major == UNSIGNED || major == NEGATIVE) {
+                final long argument = readArgument(initial & 31);
+                // The argument is unsigned, so it may not fit a long.
+                magnitude = argument >= 0
+                    ? BigInteger.valueOf(argument)
+                    : BigInteger.valueOf(argument & Long.MAX_VALUE).setBit(63);
+                negative = major == NEGATIVE;
+            } else if (major == TAG
+                    && (initial & 31) < 24
+                    && ((initial & 31) == POSITIVE_BIGNUM
+                        || (initial & 31) == NEGATIVE_BIGNUM)) {
+                final int bytes = read();
+                if (bytes >>> 5 != BYTES) {
+                    throw new JsonException("Bignum must be a byte string");
+                }
+                magnitude = new BigInteger(1, readBytes(readLength(bytes & 31)));
+                negative = (initial & 31) == NEGATIVE_BIGNUM;
+            } else {
+                throw new JsonException("Expected an integer");
+            }
+            return negative ? magnitude.negate().subtract(BigInteger.ONE) : magnitude;
+        }
+
+        private String readText(final int info) throws IOException {
+            final long length = readLength(info);
+            if (length >= 0) {
+                return new String(readBytes(length), StandardCharsets.UTF_8);
+            }
+            // An indefinite-length string is a series of definite
+            // length chunks ended by a break.
+            final ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            while (true) {
+                final int chunk = read();
+                if (chunk == BREAK) {
+                    return new String(chunks.toByteArray(), StandardCharsets.UTF_8);
+                }
+                if (chunk >>> 5 != TEXT || (chunk & 31) == INDEFINITE) {
+                    throw new JsonException("Invalid text string chunk");
+                }
+                final byte[] bytes = readBytes(readLength(chunk & 31));
+                chunks.write(bytes, 0, bytes.length);
+            }
+        }
+
+        /**
+         * Returns the length given by info, or -1 if it is indefinite.
+         */
+        private long readLength(final int info) throws IOException {
+            if (info == INDEFINITE) {
+                return -1;
+            }
+            final long length = readArgument(info);
+            if (length < 0 || length > maxSize) {
+                throw new DocumentTooLargeException(
+                    "Document is larger than " + maxSize + " bytes");
+            }
+            return length;
+        }
+
+        private long readArgument(final int info) throws IOException {
+            if (info < 24) {
+                return info;
+            }
+            final int bytes;
+            switch (info) {
+            case 24:
+                bytes = 1;
+                break;
+            case 25:
+                bytes = 2;
+                break;
+            case 26:
+                bytes = 4;
+                break;
+            case 27:
+                bytes = 8;
+                break;
+            default:
+                throw new JsonException("Invalid CBOR argument " + info);
+            }
+            long argument = 0;
+            for (int i = 0; i < bytes; i++) {
+                argument = argument << 8 | read();
+            }
+            return argument;
+        }
+
+        private byte[] readBytes(final long length) throws IOException {
+            final byte[] bytes = new byte[(int) length];
+            int offset = 0;
+            while (offset < bytes.length) {
+                final int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) {
+                    throw new JsonException("Truncated CBOR document");
+                }
+                count(count);
+                offset += count;
+            }
+            return bytes;
+        }
+
+        private int read() throws IOException {
+            final int b = in.read();
+            if (b < 0) {
+                throw new JsonException("Truncated CBOR document");
+            }
+            count(1);
+            return b;
+        }
+
+        private void count(final int bytes) throws IOException {
+            size += bytes;
+            if (size > maxSize) {
+                throw new DocumentTooLargeException(
+                    "Document is larger than " + maxSize + " bytes");
+            }
+        }
+
+        /**
+         * Converts an IEEE 754 half-precision float to a double.
+         */
+        private static double halfToDouble(final int half) {
+            final int exponent = half >>> 10 & 0x1f;
+            final int mantissa = half & 0x3ff;
+            final double value;
+            if (exponent == 0) {
+                value = Math.scalb((double) mantissa, -24);
+            } else if (exponent == 31) {
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            } else {
+                value = Math.scalb((double) (mantissa + 1024), exponent - 25);
+            }
+            return (half & 0x8000) == 0 ? value : -value;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.adadevelopersacademy;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * CborCache keeps the CBOR form of recently sent documents, so that
+ * sending a document as CBOR again doesn't mean parsing its JSON and
+ * encoding it all over. See Cbor for the conversion.
+ *
+ * Documents are stored as JSON, and a client which prefers CBOR gets
+ * them converted. Converting costs more than sending the JSON as it
+ * is, which only copies bytes, so the CBOR is kept here next to the
+ * document once it has been made.
+ *
+ * Each entry is kept with the ETag of the JSON it was made from, which
+ * a GET works out anyway. An entry whose ETag no longer matches the
+ * document is stale and made again, so nothing has to tell the cache
+ * when a document changes.
+ *
+ * The entries are evicted in least recently used order once they take
+ * more than the budget. A single lock guards them, which is held only
+ * for a map lookup or update, never while converting.
+ */
+final class CborCache {
+    private final long budget;
+    // docId to entry, in least recently used order. Guarded by the
+    // map's monitor, like bytes.
+    private final LinkedHashMap<Integer, Entry> entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * @param budget Bytes of CBOR to keep. With 0, nothing is kept.
+     */
+    CborCache(final long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Returns the CBOR form of document, which is stored at docId and
+     * has the ETag tag, from the cache or else by converting it.
+     */
+    byte[] get(final int docId, final String tag, final ByteBuffer document) {
+        synchronized (entries) {
+            final Entry entry = entries.get(docId);
+            if (entry != null && entry.tag.equals(tag)) {
+                return entry.cbor;
+            }
+        }
+        final ByteBuffer converted = Cbor.fromJson(document);
+        final byte[] cbor = new byte[converted.remaining()];
+        converted.get(cbor);
+        if (cbor.length <= budget) {
+            put(docId, new Entry(tag, cbor));
+        }
+        return cbor;
+    }
+
+    /**
+     * Returns the number of bytes of CBOR kept.
+     */
+    long bytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    private void put(final int docId, final Entry entry) {
+        synchronized (entries) {
+            final Entry previous = entries.put(docId, entry);
+            if (previous != null) {
+                bytes -= previous.cbor.length;
+            }
+            bytes += entry.cbor.length;
+            final Iterator<Map.Entry<Integer, Entry>> eldest =
+                entries.entrySet().iterator();
+            while (bytes > budget && eldest.hasNext()) {
+                bytes -= eldest.next().getValue().cbor.length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * The CBOR form of one version of a document.
+     */
+    private static final class Entry {
+        private final String tag;
+        private final byte[] cbor;
+
+        private Entry(final String tag, final byte[] cbor) {
+            this.tag = tag;
+            this.cbor = cbor;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.adadevelopersacademy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.Locale;
+
+/**
+ * ChangeFeed records the most recent changes made to the documents,
+ * each with a sequence number, so that clients can learn about
+ * changes instead of polling for them. {@link ChangeStream} sends the
+ * changes to subscribers.
+ *
+ * The changes are kept in a ring buffer: a fixed-size array in which
+ * change number seq goes in slot seq % capacity, overwriting the
+ * change capacity numbers earlier. Publishing a change never waits
+ * for a reader and never allocates more than the change itself, so a
+ * slow subscriber can't hold up writers or make the feed use more
+ * memory. Instead, a reader which falls so far behind that the change
+ * it wants has been overwritten finds out, and has to start again
+ * from the current state of the documents.
+ *
+ * A change only says which document changed and how. Readers which
+ * need the document fetch it, which also means they always get the
+ * latest version.
+ *
+ * The feed is kept only in memory. Sequence numbers start from the
+ * time the feed was created in microseconds, so numbers handed out
+ * after a restart are higher than those from before it, and a client
+ * resuming with a number from before the restart is told to start
+ * again.
+ */
+public class ChangeFeed {
+    /**
+     * The kinds of change.
+     */
+    public enum Op {
+        /**
+         * A document was stored, by PUT, POST, PATCH or a batch.
+         */
+        PUT,
+        /**
+         * A document was removed.
+         */
+        REMOVE,
+        /**
+         * Every document was removed.
+         */
+        CLEAR;
+
+        /**
+         * Returns the name used for this kind of change in a stream.
+         */
+        public String eventName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * One change to the documents.
+     */
+    public static final class Change {
+        private final long seq;
+        private final int docId;
+        private final Op op;
+
+        private Change(final long seq, final int docId, final Op op) {
+            this.seq = seq;
+            this.docId = docId;
+            this.op = op;
+        }
+
+        /**
+         * Returns the sequence number of the change.
+         */
+        public long seq() {
+            return seq;
+        }
+
+        /**
+         * Returns the docId of the changed document. This is
+         * meaningless for a CLEAR.
+         */
+        public int docId() {
+            return docId;
+        }
+
+        /**
+         * Returns the kind of change.
+         */
+        public Op op() {
+            return op;
+        }
+    }
+
+    private final AtomicReferenceArray<Change> slots;
+    private final int mask;
+    private final long first;
+    // The last sequence number handed out.
+    private final AtomicLong last;
+    // The number of changes placed in their slots. A change is given
+    // its number before it is placed, so this can lag behind last.
+    private final AtomicLong published = new AtomicLong();
+    private final Object signal = new Object();
+    // The number of threads in await(). Only changed while holding
+    // signal.
+    private volatile int waiters;
+
+    /**
+     * @param capacity Number of changes kept, which is rounded up to a
+     *     power of two
+     */
+    public ChangeFeed(final int capacity) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be from 1 to 2^30");
+        }
+        // With a power of two, seq % capacity is just the low bits of
+        // seq.
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new AtomicReferenceArray<>(Math.max(size, 1));
+        mask = slots.length() - 1;
+        first = System.currentTimeMillis() * 1000;
+        last = new AtomicLong(first - 1);
+    }
+
+    /**
+     * Records a change.
+     *
+     * @return the sequence number of the change
+     */
+    public long publish(final int docId, final Op op) {
+        final long seq = last.incrementAndGet();
+        slots.set((int) seq & mask, new Change(seq, docId, op));
+        published.incrementAndGet();
+        // Waking the waiting threads takes a lock, so it's only done
+        // when a thread is actually waiting.
+        if (waiters > 0) {
+            synchronized (signal) {
+                signal.notifyAll();
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Returns the change numbered seq, or null if it hasn't been
+     * published yet or has already been overwritten.
+     */
+    public Change read(final long seq) {
+        final Change change = slots.get((int) seq & mask);
+        if (change == null || change.seq != seq) {
+            return null;
+        }
+        return change;
+    }
+
+    /**
+     * Returns the sequence number of the last change, or one less
+     * than the first sequence number if there hasn't been a change.
+     */
+    public long last() {
+        return last.get();
+    }
+
+    /**
+     * Returns the sequence number of the oldest change which may
+     * still be read. Changes before it have been overwritten.
+     */
+    public long oldest() {
+        return Math.max(first, last.get() - slots.length() + 1);
+    }
+
+    /**
+     * Waits until a change is published after the first seen changes,
+     * or until timeoutMillis have passed. Any number of threads may
+     * wait at once.
+     *
+     * @param seen Count of published changes already seen
+     * @return the count of published changes
+     */
+    public long await(final long seen, final long timeoutMillis)
+            throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (signal) {
+            // publish() increments the count before it checks
+            // waiters, and this counts itself before it checks the
+            // count, so either publish() sees that this is waiting or
+            // this sees the new count.
+            waiters++;
+            try {
+                long remaining = timeoutMillis;
+                while (published.get() == seen && remaining > 0) {
+                    signal.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } finally {
+                waiters--;
+            }
+        }
+        return published.get();
+    }
+
+    /**
+     * Returns the count of published changes.
+     */
+    public long published() {
+        return published.get();
+    }
+}
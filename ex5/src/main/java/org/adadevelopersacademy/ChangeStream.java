@@ -0,0 +1,269 @@
+package org.adadevelopersacademy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.Set;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+
+/**
+ * ChangeStream sends the changes in a {@link ChangeFeed} to any number
+ * of subscribers as Server-Sent Events:
+ *
+ *   https://html.spec.whatwg.org/multipage/server-sent-events.html
+ *
+ * Each change is sent as an event like this, followed by a blank
+ * line:
+ *
+ *   id: 1445000000000001
+ *   event: put
+ *   data: {"seq":1445000000000001,"docId":5}
+ *
+ * The event is put, remove or clear. A browser's EventSource which
+ * loses its connection reconnects by itself and sends the id of the
+ * last event it saw in a Last-Event-ID header, and the stream then
+ * carries on from the change after it. Other clients can do the same
+ * with the "since" query parameter.
+ *
+ * If the changes a subscriber needs have already been overwritten in
+ * the feed, it gets a reset event instead. Its id is the change the
+ * stream carries on after, so the subscriber should reload whatever
+ * it has cached and then keep reading.
+ *
+ * A subscriber doesn't get a thread of its own, since there could be
+ * thousands of them. Jersey's ChunkedOutput lets the resource method
+ * return at once and the response be written later from any thread.
+ * A single dispatcher thread waits for changes and hands each
+ * subscriber with something to send to a small pool of sender
+ * threads, which send everything it is missing at once. A subscriber
+ * which can't keep up holds up one sender for a while, and if it
+ * falls too far behind it is reset; the writers publishing changes
+ * never wait for any of this.
+ *
+ * When nothing happens for a while, a subscriber is sent a comment,
+ * which clients ignore. This keeps proxies from closing the idle
+ * connection and finds subscribers which have gone away.
+ */
+public class ChangeStream implements Closeable {
+    /**
+     * Media type of a stream of Server-Sent Events.
+     */
+    public static final String EVENT_STREAM = "text/event-stream";
+
+    private static final long HEARTBEAT_MILLIS = 15000;
+    // Largest number of events sent to a subscriber in one write.
+    private static final int MAX_BATCH = 256;
+
+    private final ChangeFeed feed;
+    private final Set<Subscriber> subscribers =
+        Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+    private final ExecutorService senders;
+    private final Thread dispatcher;
+    private volatile boolean closed;
+
+    /**
+     * Starts sending changes from feed.
+     *
+     * @param feed Changes to send
+     * @param senderThreads Number of threads writing to subscribers
+     */
+    public ChangeStream(final ChangeFeed feed, final int senderThreads) {
+        this.feed = feed;
+        senders = Executors.newFixedThreadPool(senderThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "change-sender");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "change-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Adds a subscriber.
+     *
+     * @param since Sequence number of the last change the subscriber
+     *     has seen, or null to send only changes from now on
+     * @return the response body, which stays open until the client
+     *     goes away or this is closed
+     */
+    public ChunkedOutput<String> subscribe(final Long since) {
+        final ChunkedOutput<String> output = new ChunkedOutput<>(String.class);
+        long next = feed.last() + 1;
+        if (since != null) {
+            // A number from the future can only come from another
+            // server, so it's reset like one which is too old.
+            next = since > feed.last() ? -1 : since + 1;
+        }
+        final Subscriber subscriber = new Subscriber(output, next);
+        subscribers.add(subscriber);
+        // The first run sends a comment at once, since none has been
+        // sent yet. Until something is written, the client doesn't
+        // even get the response headers.
+        subscriber.schedule();
+        return output;
+    }
+
+    /**
+     * Returns the number of subscribers.
+     */
+    public int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Stops sending changes and ends every subscriber's stream.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+        senders.shutdownNow();
+        for (final Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    private void dispatch() {
+        long seen = feed.published();
+        while (!closed) {
+            final long published;
+            try {
+                published = feed.await(seen, HEARTBEAT_MILLIS);
+            } catch (final InterruptedException e) {
+                return;
+            }
+            final boolean idle = published == seen;
+            seen = published;
+            for (final Subscriber subscriber : subscribers) {
+                if (idle || subscriber.pending()) {
+                    subscriber.schedule();
+                }
+            }
+        }
+    }
+
+    /**
+     * One client reading the stream.
+     */
+    private final class Subscriber implements Runnable {
+        private final ChunkedOutput<String> output;
+        // Set while the subscriber is waiting for or running on a
+        // sender, so that it never runs on two at once.
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // The sequence number of the next change to send, or -1 to
+        // send a reset. Only a running sender changes it, but the
+        // dispatcher reads it.
+        private volatile long next;
+        private long lastWrite;
+
+        private Subscriber(final ChunkedOutput<String> output, final long next) {
+            this.output = output;
+            this.next = next;
+        }
+
+        /**
+         * Returns whether there are changes to send.
+         */
+        private boolean pending() {
+            return next < feed.oldest() || feed.read(next) != null;
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    senders.execute(this);
+                } catch (final RejectedExecutionException e) {
+                    // This has been closed.
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                send();
+            } catch (final IOException e) {
+                // The client has gone away.
+                close();
+                return;
+            } finally {
+                scheduled.set(false);
+            }
+            // A change published while this was running may have
+            // failed to schedule it, so look again.
+            if (pending()) {
+                schedule();
+            }
+        }
+
+        private void send() throws IOException {
+            final StringBuilder events = new StringBuilder();
+            for (int count = 0; count < MAX_BATCH; count++) {
+                final ChangeFeed.Change change = feed.read(next);
+                if (change != null) {
+                    appendEvent(events, change.seq(), change.op().eventName(),
+                        change.op() == ChangeFeed.Op.CLEAR ? -1 : change.docId());
+                    next++;
+                } else if (next < feed.oldest()) {
+                    final long resumeAfter = feed.last();
+                    appendEvent(events, resumeAfter, "reset", -1);
+                    next = resumeAfter + 1;
+                } else {
+                    break;
+                }
+            }
+            final long now = System.currentTimeMillis();
+            if (events.length() == 0 && now - lastWrite >= HEARTBEAT_MILLIS) {
+                events.append(":\n\n");
+            }
+            if (events.length() > 0) {
+                output.write(events.toString());
+                lastWrite = now;
+            }
+        }
+
+        private void close() {
+            subscribers.remove(this);
+            try {
+                output.close();
+            } catch (final IOException e) {
+                // It's closed either way.
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends one event. docId is left out if it is negative.
+     */
+    private static void appendEvent(
+            final StringBuilder events,
+            final long seq,
+            final String name,
+            final int docId) {
+        events.append("id: ").append(seq).append('\n')
+            .append("event: ").append(name).append('\n')
+            .append("data: {\"seq\":").append(seq);
+        if (docId >= 0) {
+            events.append(",\"docId\":").append(docId);
+        }
+        events.append("}\n\n");
+    }
+}
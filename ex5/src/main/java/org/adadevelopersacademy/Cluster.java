@@ -0,0 +1,418 @@
+package org.adadevelopersacademy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ProcessingException;
+
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.HttpUrlConnectorProvider;
+
+/**
+ * Cluster splits the documents between several servers, each of which
+ * stores the docIds it owns on a {@link HashRing}. Requests for a
+ * document which lands on the wrong server are sent on to its owner by
+ * {@link ClusterRouting}, and new ids are only handed out from the
+ * ones this server owns.
+ *
+ * The nodes are named by their base URIs, like Main.BASE_URI, and
+ * every node must be given the same list. When the list changes, see
+ * {@link ClusterResource}, each node works out which of its documents
+ * now belong elsewhere and hands them off to their new owners in the
+ * background, in batches, removing each batch once its owner has
+ * stored it. An owner never lets a handed off document replace one it
+ * already has, since that one was written to it after the change.
+ *
+ * Until every node of the old ring says it has finished, a document
+ * may still be waiting on its old owner. The new owner therefore
+ * looks for a document it doesn't have on the old owner, and passes
+ * deletes on to the old owner too. A delete which races the handoff of
+ * the same document can still lose, since neither node keeps a record
+ * of deleted documents.
+ *
+ * Handing off is retried every second until it succeeds, so a node
+ * which is down holds on to its documents until it is back. Nobody
+ * waits for it that long, though. A node which has left the ring and
+ * can't be reached is taken to be gone for good, and the others stop
+ * waiting for it at once. Any other node gets ten minutes, after
+ * which its documents can't be found until it hands them off.
+ */
+public class Cluster implements DocumentIdAllocator.Partition, Closeable {
+    /**
+     * How a request for a document owned by another node is handled.
+     */
+    public enum Routing {
+        /**
+         * The node sends the request to the owner and relays the
+         * response, so the client never knows.
+         */
+        FORWARD,
+        /**
+         * The client is told to repeat the request at the owner, with
+         * 307 Temporary Redirect.
+         */
+        REDIRECT
+    }
+
+    /**
+     * Header marking a request sent on by another node, which is
+     * handled where it arrives whoever owns the document.
+     */
+    public static final String FORWARDED_HEADER = "Document-Forwarded";
+
+    private static final Logger LOGGER = Logger.getLogger(Cluster.class.getName());
+    private static final long RETRY_SECONDS = 1;
+    // Documents are handed off in batches of about this many bytes.
+    private static final int BATCH_BYTES = 1 << 20;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final long HANDOFF_TIMEOUT_SECONDS = 600;
+
+    private final String self;
+    private final int virtualNodes;
+    private final Routing routing;
+    private final Client client;
+    private final ScheduledExecutorService rebalancer;
+    // Both rings are only replaced while holding this.
+    private volatile HashRing ring;
+    // The ring before the last change, until every node on it has
+    // handed off its documents, or else null.
+    private volatile HashRing previous;
+    // The nodes of previous which haven't finished. It is only
+    // changed while holding this, but read without it.
+    private final Set<String> pending =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param self Base URI of this node
+     * @param nodes Base URIs of every node on the ring
+     * @param virtualNodes Number of points on the ring for each node
+     * @param routing How requests for other nodes are handled
+     */
+    public Cluster(
+            final String self,
+            final List<String> nodes,
+            final int virtualNodes,
+            final Routing routing) {
+        this.self = normalize(self);
+        this.virtualNodes = virtualNodes;
+        this.routing = routing;
+        ring = new HashRing(normalize(nodes), virtualNodes);
+        // Redirects from other nodes are passed back to the client as
+        // they are, and PATCH needs Jersey's workaround for
+        // HttpURLConnection.
+        client = ClientBuilder.newClient()
+            .property(ClientProperties.FOLLOW_REDIRECTS, false)
+            .property(ClientProperties.CONNECT_TIMEOUT, CONNECT_TIMEOUT_MILLIS)
+            .property(ClientProperties.READ_TIMEOUT, READ_TIMEOUT_MILLIS)
+            .property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
+        rebalancer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "rebalancer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns uri with a trailing slash, which is how nodes are named.
+     */
+    static String normalize(final String uri) {
+        return uri.endsWith("/") ? uri : uri + "/";
+    }
+
+    private static List<String> normalize(final List<String> uris) {
+        final Set<String> unique = new LinkedHashSet<>();
+        for (final String uri : uris) {
+            unique.add(normalize(uri.trim()));
+        }
+        return new ArrayList<>(unique);
+    }
+
+    /**
+     * Hands off any documents this node holds but doesn't own, such as
+     * those in a log written under another ring.
+     */
+    public void start() {
+        scheduleRebalance(ring, 0);
+    }
+
+    public String self() {
+        return self;
+    }
+
+    public Routing routing() {
+        return routing;
+    }
+
+    public HashRing ring() {
+        return ring;
+    }
+
+    /**
+     * Returns the client used to talk to the other nodes.
+     */
+    Client client() {
+        return client;
+    }
+
+    /**
+     * Returns the node which owns docId.
+     */
+    public String owner(final int docId) {
+        return ring.owner(docId);
+    }
+
+    @Override
+    public boolean owns(final int docId) {
+        return self.equals(ring.owner(docId));
+    }
+
+    /**
+     * Returns the node which owned docId before the last change to the
+     * ring, if it may not have handed the document off yet, or else
+     * null.
+     */
+    public String previousOwner(final int docId) {
+        final HashRing before = previous;
+        if (before == null) {
+            return null;
+        }
+        final String owner = before.owner(docId);
+        return pending.contains(owner) ? owner : null;
+    }
+
+    /**
+     * Returns whether documents may still be moving between nodes.
+     */
+    public boolean isRebalancing() {
+        return previous != null;
+    }
+
+    /**
+     * Replaces the nodes on the ring, and starts handing off the
+     * documents which now belong to other nodes.
+     *
+     * @return the nodes of the old ring and the new one
+     */
+    public synchronized Set<String> setNodes(final List<String> nodes) {
+        final HashRing before = ring;
+        final HashRing after = new HashRing(normalize(nodes), virtualNodes);
+        // previousOwner() reads these without the lock, so pending is
+        // filled in first and never seen empty in between.
+        pending.addAll(before.nodes());
+        pending.retainAll(before.nodes());
+        previous = before;
+        ring = after;
+        scheduleRebalance(after, 0);
+        rebalancer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                stopWaiting(after);
+            }
+        }, HANDOFF_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        final Set<String> affected = new LinkedHashSet<>(before.nodes());
+        affected.addAll(after.nodes());
+        return affected;
+    }
+
+    /**
+     * Notes that node has handed off everything it doesn't own.
+     */
+    public synchronized void handedOff(final String node) {
+        pending.remove(normalize(node));
+        if (pending.isEmpty()) {
+            previous = null;
+        }
+    }
+
+    /**
+     * Notes that node, which owned documents before the last change,
+     * couldn't be reached. If it has left the ring, it isn't waited
+     * for any longer.
+     */
+    public synchronized void unreachable(final String node) {
+        if (pending.contains(node) && !ring.nodes().contains(node)) {
+            LOGGER.warning(node + " has left and can't be reached,"
+                + " so its documents are no longer looked for");
+            handedOff(node);
+        }
+    }
+
+    /**
+     * Gives up waiting for the nodes which haven't handed off since
+     * the ring became target, unless it has changed again since.
+     */
+    private synchronized void stopWaiting(final HashRing target) {
+        if (ring == target && previous != null) {
+            LOGGER.warning("Gave up waiting for " + pending + " to hand off");
+            pending.clear();
+            previous = null;
+        }
+    }
+
+    /**
+     * Stops handing off documents and closes the connections to the
+     * other nodes.
+     */
+    @Override
+    public void close() {
+        rebalancer.shutdownNow();
+        try {
+            rebalancer.awaitTermination(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        client.close();
+    }
+
+    private void scheduleRebalance(final HashRing target, final long delaySeconds) {
+        rebalancer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                rebalance(target);
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Hands off every document which target says belongs elsewhere,
+     * unless the ring changes again in the meantime.
+     */
+    private void rebalance(final HashRing target) {
+        final DocumentStore store = DocumentResource.getStore();
+        final Map<String, Handoff> batches = new HashMap<>();
+        try {
+            final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+                store.scan(0, Integer.MAX_VALUE);
+            while (documents.hasNext()) {
+                if (ring != target) {
+                    return;
+                }
+                final Map.Entry<Integer, ByteBuffer> document = documents.next();
+                final String owner = target.owner(document.getKey());
+                if (owner.equals(self)) {
+                    continue;
+                }
+                Handoff batch = batches.get(owner);
+                if (batch == null) {
+                    batch = new Handoff();
+                    batches.put(owner, batch);
+                }
+                batch.add(document.getKey(), document.getValue());
+                if (batch.bytes.size() >= BATCH_BYTES) {
+                    batches.remove(owner).send(owner, store);
+                }
+            }
+            for (final Map.Entry<String, Handoff> batch : batches.entrySet()) {
+                batch.getValue().send(batch.getKey(), store);
+            }
+        } catch (final IOException | ProcessingException e) {
+            LOGGER.log(Level.WARNING, "Unable to hand off documents, retrying", e);
+            scheduleRebalance(target, RETRY_SECONDS);
+            return;
+        }
+        announceHandedOff(target);
+    }
+
+    /**
+     * Tells every node which may be waiting for this one that it has
+     * finished handing off.
+     */
+    private void announceHandedOff(final HashRing target) {
+        final HashRing before = previous;
+        if (before == null) {
+            // Nobody is waiting.
+            return;
+        }
+        final Set<String> nodes = new LinkedHashSet<>(target.nodes());
+        nodes.addAll(before.nodes());
+        for (final String node : nodes) {
+            if (node.equals(self)) {
+                handedOff(self);
+                continue;
+            }
+            try {
+                client.target(node).path("cluster/_done")
+                    .queryParam("node", self)
+                    .request()
+                    .header(FORWARDED_HEADER, self)
+                    .post(null)
+                    .close();
+            } catch (final ProcessingException e) {
+                // It only keeps looking for documents here for longer.
+                LOGGER.log(Level.FINE, "Unable to reach " + node, e);
+            }
+        }
+    }
+
+    /**
+     * A batch of documents for one node, in the format which
+     * ClusterResource reads: a count, and then the docId, length and
+     * bytes of each document.
+     */
+    private final class Handoff {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final List<Integer> docIds = new ArrayList<>();
+
+        private void add(final int docId, final ByteBuffer document) throws IOException {
+            out.writeInt(docId);
+            out.writeInt(document.remaining());
+            ByteBufferWriter.write(document, out);
+            docIds.add(docId);
+        }
+
+        /**
+         * Sends the batch to node, and removes the documents from store
+         * once node has them.
+         */
+        private void send(final String node, final DocumentStore store)
+                throws IOException {
+            final ByteArrayOutputStream body =
+                new ByteArrayOutputStream(bytes.size() + 4);
+            final DataOutputStream header = new DataOutputStream(body);
+            header.writeInt(docIds.size());
+            bytes.writeTo(body);
+            final Response response = client.target(node).path("cluster/_handoff")
+                .request()
+                .header(FORWARDED_HEADER, self)
+                .post(Entity.entity(
+                    body.toByteArray(), MediaType.APPLICATION_OCTET_STREAM_TYPE));
+            response.close();
+            if (response.getStatusInfo().getFamily()
+                    != Response.Status.Family.SUCCESSFUL) {
+                throw new IOException(
+                    node + " refused documents with status " + response.getStatus());
+            }
+            for (final int docId : docIds) {
+                store.remove(docId);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.adadevelopersacademy;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.POST;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.Produces;
+import javax.ws.rs.PUT;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * ClusterResource manages the {@link Cluster} this server belongs to.
+ *
+ * GET /cluster describes the ring, and whether documents may still be
+ * moving between nodes:
+ *
+ *   {"self":"http://localhost:8080/",
+ *    "nodes":["http://localhost:8080/","http://localhost:8081/"],
+ *    "rebalancing":false}
+ *
+ * A PUT of the same form, of which only "nodes" is read, changes the
+ * nodes on the ring. The node passes the change on to every node of
+ * the old ring and the new one, so it only has to be made once. The
+ * response is the new state, with "unreachable" listing any node which
+ * couldn't be told. A node which is leaving should be kept running
+ * until it is no longer rebalancing, by which time it has handed off
+ * all of its documents.
+ *
+ * The nodes hand documents to each other with POST /cluster/_handoff,
+ * and tell each other they've finished with POST /cluster/_done.
+ */
+@Path("/cluster")
+public class ClusterResource {
+    private static final String NODES = "nodes";
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public JsonObject describe() {
+        return describe(cluster(), null);
+    }
+
+    @PUT
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public JsonObject setNodes(
+            @HeaderParam(Cluster.FORWARDED_HEADER) final String forwarded,
+            final JsonObject body) {
+        final Cluster current = cluster();
+        final JsonArray array = body.getJsonArray(NODES);
+        if (array == null || array.isEmpty()) {
+            throw new WebApplicationException(
+                "nodes must list at least one node", Response.Status.BAD_REQUEST);
+        }
+        final List<String> nodes = new ArrayList<>();
+        for (final JsonString node : array.getValuesAs(JsonString.class)) {
+            nodes.add(node.getString());
+        }
+        final Set<String> affected = current.setNodes(nodes);
+        if (forwarded != null) {
+            return describe(current, null);
+        }
+        final List<String> unreachable = new ArrayList<>();
+        for (final String node : affected) {
+            if (node.equals(current.self())) {
+                continue;
+            }
+            try {
+                final Response response = current.client().target(node).path("cluster")
+                    .request()
+                    .header(Cluster.FORWARDED_HEADER, current.self())
+                    .put(Entity.json(body.toString()));
+                response.close();
+                if (response.getStatusInfo().getFamily()
+                        != Response.Status.Family.SUCCESSFUL) {
+                    unreachable.add(node);
+                }
+            } catch (final ProcessingException e) {
+                unreachable.add(node);
+            }
+        }
+        return describe(current, unreachable);
+    }
+
+    /**
+     * Stores a batch of documents handed off by another node, except
+     * those this node already has.
+     */
+    @POST @Path("_handoff")
+    @Consumes(MediaType.APPLICATION_OCTET_STREAM)
+    public void handoff(final InputStream body) throws IOException {
+        cluster();
+        final DocumentStore store = DocumentResource.getStore();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(body));
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final int docId = in.readInt();
+            final byte[] document = new byte[in.readInt()];
+            in.readFully(document);
+            store.putIfAbsent(docId, ByteBuffer.wrap(document));
+        }
+    }
+
+    /**
+     * Notes that node has handed off its documents.
+     */
+    @POST @Path("_done")
+    public void done(@QueryParam("node") final String node) {
+        if (node == null) {
+            throw new WebApplicationException(
+                "node is required", Response.Status.BAD_REQUEST);
+        }
+        cluster().handedOff(node);
+    }
+
+    private static Cluster cluster() {
+        final Cluster current = ClusterRouting.getCluster();
+        if (current == null) {
+            throw new WebApplicationException(
+                "This server isn't part of a cluster", Response.Status.NOT_FOUND);
+        }
+        return current;
+    }
+
+    private static JsonObject describe(
+            final Cluster current, final List<String> unreachable) {
+        final JsonArrayBuilder nodes = Json.createArrayBuilder();
+        for (final String node : current.ring().nodes()) {
+            nodes.add(node);
+        }
+        final JsonObjectBuilder state = Json.createObjectBuilder()
+            .add("self", current.self())
+            .add(NODES, nodes)
+            .add("rebalancing", current.isRebalancing());
+        if (unreachable != null) {
+            final JsonArrayBuilder missed = Json.createArrayBuilder();
+            for (final String node : unreachable) {
+                missed.add(node);
+            }
+            state.add("unreachable", missed);
+        }
+        return state.build();
+    }
+}
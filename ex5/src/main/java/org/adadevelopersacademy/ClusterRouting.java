@@ -0,0 +1,290 @@
+package org.adadevelopersacademy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.Set;
+
+import javax.annotation.Priority;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * ClusterRouting sends each request for a single document to the node
+ * of the {@link Cluster} which owns it, before Jersey even matches the
+ * request to a resource method.
+ *
+ * Depending on how the cluster is configured, the request is either
+ * forwarded, so that this node makes the same request of the owner
+ * and relays its response, or the client is redirected to the owner
+ * with 307 Temporary Redirect. Forwarding costs this node a round trip
+ * but works with any client, while a client which follows redirects
+ * can learn where documents live and go straight there.
+ *
+ * Requests for the whole collection, like a listing, a query or a
+ * batch, are answered from this node's own documents, and creating a
+ * document picks an id this node owns. A forwarded request carries a
+ * Document-Forwarded header and is always handled where it arrives,
+ * so two nodes with different rings can't bounce a request back and
+ * forth.
+ *
+ * While the documents are being rebalanced, a read of a document this
+ * node doesn't have yet goes to its previous owner, and a delete goes
+ * there as well as here. A PATCH, or a PUT with If-Match or
+ * If-None-Match, depends on the document as it is, so the document is
+ * first fetched from its previous owner and stored here, as if it had
+ * been handed off, and then the request is handled here. If the
+ * previous owner can't be reached, the request is handled here as
+ * though it didn't have the document, and {@link Cluster} is told.
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.HEADER_DECORATOR)
+public class ClusterRouting implements ContainerRequestFilter {
+    private static final Pattern DOCUMENT = Pattern.compile("document/([0-9]+)");
+    // Headers which only mean something on one connection, or which
+    // Jersey works out again when it sends the request on.
+    private static final Set<String> NOT_FORWARDED = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "transfer-encoding", "te", "trailer", "upgrade",
+        "host", "content-length", "content-type"));
+    private static final String DELETE = "DELETE";
+
+    private static volatile Cluster cluster;
+
+    /**
+     * Sets the cluster this server belongs to, or null if it isn't
+     * part of one.
+     */
+    public static void setCluster(final Cluster serverCluster) {
+        cluster = serverCluster;
+    }
+
+    public static Cluster getCluster() {
+        return cluster;
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request) throws IOException {
+        final Cluster current = cluster;
+        if (current == null
+                || request.getHeaderString(Cluster.FORWARDED_HEADER) != null) {
+            return;
+        }
+        final Matcher matcher = DOCUMENT.matcher(request.getUriInfo().getPath());
+        if (!matcher.matches()) {
+            return;
+        }
+        final int docId;
+        try {
+            docId = Integer.parseInt(matcher.group(1));
+        } catch (final NumberFormatException e) {
+            // Jersey answers this with 404 Not Found.
+            return;
+        }
+        final String owner = current.owner(docId);
+        if (!owner.equals(current.self())) {
+            request.abortWith(current.routing() == Cluster.Routing.REDIRECT
+                ? Response.temporaryRedirect(location(owner, request)).build()
+                : forward(current, owner, request));
+            return;
+        }
+        final String previous = current.previousOwner(docId);
+        if (previous == null || previous.equals(current.self())) {
+            return;
+        }
+        final String method = request.getMethod();
+        final DocumentStore store = DocumentResource.getStore();
+        final boolean here = store.get(docId) != null;
+        if (DELETE.equals(method)) {
+            final Response there = send(current, previous, request);
+            if (!here && there != null) {
+                request.abortWith(there);
+            }
+        } else if (here) {
+            return;
+        } else if ("GET".equals(method) || "HEAD".equals(method)) {
+            final Response there = send(current, previous, request);
+            // The document may have been handed off in the meantime.
+            if (there != null
+                    && there.getStatus() != Response.Status.NOT_FOUND.getStatusCode()) {
+                request.abortWith(there);
+            }
+        } else if ("PATCH".equals(method)
+                || request.getHeaderString(HttpHeaders.IF_MATCH) != null
+                || request.getHeaderString(HttpHeaders.IF_NONE_MATCH) != null) {
+            fetch(current, previous, docId, store);
+        }
+    }
+
+    /**
+     * Makes the same request of node, which owned the document before,
+     * and returns its response, or null if it can't be reached.
+     */
+    private static Response send(
+            final Cluster current,
+            final String node,
+            final ContainerRequestContext request) throws IOException {
+        try {
+            return relay(current, node, request);
+        } catch (final ProcessingException e) {
+            current.unreachable(node);
+            return null;
+        }
+    }
+
+    /**
+     * Copies docId from node into store, unless store already has it.
+     */
+    private static void fetch(
+            final Cluster current,
+            final String node,
+            final int docId,
+            final DocumentStore store) {
+        final Response response;
+        try {
+            response = current.client().target(node).path("document/" + docId)
+                .request(MediaType.APPLICATION_JSON)
+                .header(Cluster.FORWARDED_HEADER, current.self())
+                .get();
+        } catch (final ProcessingException e) {
+            current.unreachable(node);
+            return;
+        }
+        try {
+            if (response.getStatus() == Response.Status.OK.getStatusCode()) {
+                store.putIfAbsent(
+                    docId, ByteBuffer.wrap(response.readEntity(byte[].class)));
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private static URI location(
+            final String node, final ContainerRequestContext request) {
+        final String query = request.getUriInfo().getRequestUri().getRawQuery();
+        return URI.create(node + request.getUriInfo().getPath(false)
+            + (query == null ? "" : "?" + query));
+    }
+
+    /**
+     * Makes the same request of node, and returns its response, or 502
+     * Bad Gateway if it can't be reached.
+     */
+    static Response forward(
+            final Cluster current,
+            final String node,
+            final ContainerRequestContext request) throws IOException {
+        try {
+            return relay(current, node, request);
+        } catch (final ProcessingException e) {
+            return Response.status(Response.Status.BAD_GATEWAY)
+                .entity("Unable to reach " + node)
+                .build();
+        }
+    }
+
+    /**
+     * Makes the same request of node, and returns its response.
+     *
+     * @throws ProcessingException if node can't be reached
+     */
+    private static Response relay(
+            final Cluster current,
+            final String node,
+            final ContainerRequestContext request) throws IOException {
+        final Invocation.Builder builder =
+            current.client().target(location(node, request)).request();
+        for (final Map.Entry<String, List<String>> header
+                : request.getHeaders().entrySet()) {
+            if (!NOT_FORWARDED.contains(header.getKey().toLowerCase(Locale.ROOT))) {
+                for (final String value : header.getValue()) {
+                    builder.header(header.getKey(), value);
+                }
+            }
+        }
+        builder.header(Cluster.FORWARDED_HEADER, current.self());
+        final Response response;
+        if (request.hasEntity()) {
+            final MediaType type = request.getMediaType() == null
+                ? MediaType.APPLICATION_OCTET_STREAM_TYPE : request.getMediaType();
+            response = builder.method(request.getMethod(), Entity.entity(
+                readAll(request, DocumentResource.getMaxDocumentSize()), type));
+        } else {
+            response = builder.method(request.getMethod());
+        }
+        try {
+            final Response.ResponseBuilder relayed =
+                Response.status(response.getStatus());
+            for (final Map.Entry<String, List<Object>> header
+                    : response.getHeaders().entrySet()) {
+                final String name = header.getKey().toLowerCase(Locale.ROOT);
+                if (!NOT_FORWARDED.contains(name) || "content-type".equals(name)) {
+                    for (final Object value : header.getValue()) {
+                        relayed.header(header.getKey(), value);
+                    }
+                }
+            }
+            if (response.hasEntity()) {
+                relayed.entity(response.readEntity(byte[].class));
+            }
+            return relayed.build();
+        } finally {
+            response.close();
+        }
+    }
+
+    /**
+     * Reads the body of request, which is relayed whole.
+     *
+     * The owner would refuse a document larger than maxSize anyway,
+     * and reading one here first would let any client fill this
+     * node's heap, so it is refused here as well.
+     *
+     * @throws WebApplicationException with 413 Request Entity Too
+     *     Large if the body is larger than maxSize
+     */
+    private static byte[] readAll(
+            final ContainerRequestContext request, final int maxSize)
+            throws IOException {
+        if (request.getLength() > maxSize) {
+            throw tooLarge(maxSize);
+        }
+        final InputStream in = request.getEntityStream();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[8192];
+        int length;
+        while ((length = in.read(chunk)) != -1) {
+            if (bytes.size() + length > maxSize) {
+                throw tooLarge(maxSize);
+            }
+            bytes.write(chunk, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static WebApplicationException tooLarge(final int maxSize) {
+        return new WebApplicationException(
+            "Document is larger than " + maxSize + " bytes",
+            Response.Status.REQUEST_ENTITY_TOO_LARGE);
+    }
+}
@@ -0,0 +1,167 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CompressingDocumentStore wraps another DocumentStore and compresses
+ * the documents it stores, so that more of them fit in memory. How
+ * each document is compressed is up to a {@link DocumentCodec}, which
+ * leaves small documents alone.
+ *
+ * Documents are compressed before they reach the wrapped store and
+ * decompressed after they leave it, outside of any lock. A document
+ * kept as a gzip stream can also be had without decompressing it, to
+ * send to a client as it is.
+ *
+ * This sits directly above the in-memory store, or the tiered store
+ * if there is a memory budget, which then counts compressed bytes.
+ * Above the LSM store, which writes the compressed documents to disk,
+ * it is made without the dictionary, which is only kept in memory.
+ * The stores above, including the write-ahead log and the indexes,
+ * see documents as they were given.
+ */
+public class CompressingDocumentStore implements DocumentStore {
+    private final DocumentStore delegate;
+    private final DocumentCodec codec;
+
+    /**
+     * @param delegate Store which holds the compressed documents
+     * @param threshold Smallest document which is compressed, in bytes
+     */
+    public CompressingDocumentStore(final DocumentStore delegate, final int threshold) {
+        this(delegate, threshold, true);
+    }
+
+    /**
+     * @param delegate Store which holds the compressed documents
+     * @param threshold Smallest document which is compressed, in bytes
+     * @param dictionary Whether small documents may be compressed with
+     *     a dictionary, which is lost when the store is closed
+     */
+    public CompressingDocumentStore(
+            final DocumentStore delegate, final int threshold, final boolean dictionary) {
+        this.delegate = delegate;
+        this.codec = new DocumentCodec(threshold, dictionary);
+    }
+
+    /**
+     * Returns whether the dictionary for small documents has been
+     * trained.
+     */
+    public boolean hasDictionary() {
+        return codec.hasDictionary();
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        final ByteBuffer stored = delegate.get(docId);
+        return stored == null ? null : codec.decode(stored);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        final ByteBuffer stored = delegate.get(docId);
+        return stored == null ? null : codec.gzipped(stored);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        delegate.put(docId, codec.encode(document));
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        return delegate.putIfAbsent(docId, codec.encode(document));
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        // The same document isn't always compressed to the same bytes,
+        // since the dictionary may have been trained in between, so
+        // expected is compared with the document itself. The wrapped
+        // store then checks that the stored bytes haven't changed
+        // since.
+        final ByteBuffer stored = delegate.get(docId);
+        if (stored == null || !codec.decode(stored).equals(expected)) {
+            return false;
+        }
+        return delegate.replace(docId, stored, codec.encode(document));
+    }
+
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        final ByteBuffer stored = delegate.get(docId);
+        if (stored == null || !codec.decode(stored).equals(expected)) {
+            return false;
+        }
+        return delegate.patch(docId, stored, codec.encode(document), patch);
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        return delegate.remove(docId);
+    }
+
+    @Override
+    public boolean[] writeAll(final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        final List<Map.Entry<Integer, ByteBuffer>> encoded =
+            new ArrayList<>(changes.size());
+        for (final Map.Entry<Integer, ByteBuffer> change : changes) {
+            final ByteBuffer document = change.getValue();
+            encoded.add(new AbstractMap.SimpleImmutableEntry<>(change.getKey(),
+                document == null ? null : codec.encode(document)));
+        }
+        return delegate.writeAll(encoded);
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        final Iterator<Map.Entry<Integer, ByteBuffer>> stored =
+            delegate.scan(fromDocId, toDocId);
+        return new Iterator<Map.Entry<Integer, ByteBuffer>>() {
+            @Override
+            public boolean hasNext() {
+                return stored.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Integer, ByteBuffer> next() {
+                final Map.Entry<Integer, ByteBuffer> entry = stored.next();
+                return new AbstractMap.SimpleImmutableEntry<>(
+                    entry.getKey(), codec.decode(entry.getValue()));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int lastDocId() {
+        return delegate.lastDocId();
+    }
+
+    @Override
+    public void clear() {
+        delegate.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
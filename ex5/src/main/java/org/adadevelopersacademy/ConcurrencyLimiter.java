@@ -0,0 +1,112 @@
+package org.adadevelopersacademy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConcurrencyLimiter limits how many requests are handled at once,
+ * and adapts the limit to how quickly they are being handled.
+ *
+ * The limit grows and shrinks the way TCP's congestion window does,
+ * by additive increase and multiplicative decrease (AIMD). While
+ * requests finish within the target latency and the limit is being
+ * used, it grows by about one for every limit's worth of requests.
+ * A request which takes longer than the target is a sign that the
+ * server is doing more than it can, and cuts the limit by a tenth.
+ * The limit is cut at most once per target latency, since a whole
+ * window of requests usually slows down together.
+ *
+ * A request refused by tryAcquire should be turned away straight
+ * away. Queueing it would only add to the latency of everyone else.
+ */
+public class ConcurrencyLimiter {
+    private static final double BACKOFF = 0.9;
+
+    private final int maxLimit;
+    private final long targetNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    // The limit as a fraction, so that it can grow slowly. Guarded by
+    // this.
+    private double limit;
+    private long lastBackoffNanos;
+    // The limit which tryAcquire checks against.
+    private volatile int permits;
+
+    /**
+     * @param maxLimit Largest number of requests handled at once
+     * @param targetNanos Latency above which the limit is cut
+     */
+    public ConcurrencyLimiter(final int maxLimit, final long targetNanos) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.targetNanos = targetNanos;
+        this.limit = maxLimit;
+        this.permits = maxLimit;
+        this.lastBackoffNanos = System.nanoTime() - targetNanos;
+    }
+
+    /**
+     * Claims a place for a request if there is one. A successful call
+     * must be followed by a call to release.
+     *
+     * @return whether the request may go ahead
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= permits) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back the place of a request which took latencyNanos, and
+     * adjusts the limit.
+     */
+    public void release(final long latencyNanos) {
+        final int current = inFlight.getAndDecrement();
+        synchronized (this) {
+            if (latencyNanos > targetNanos) {
+                final long now = System.nanoTime();
+                if (now - lastBackoffNanos >= targetNanos) {
+                    lastBackoffNanos = now;
+                    limit = Math.max(1, limit * BACKOFF);
+                }
+            } else if (current * 2 >= limit) {
+                // A limit which isn't being used says nothing about
+                // whether a larger one would be safe.
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            permits = (int) limit;
+        }
+    }
+
+    /**
+     * Returns the current limit.
+     */
+    public int limit() {
+        return permits;
+    }
+
+    /**
+     * Returns the number of requests being handled.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of requests refused so far.
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,186 @@
+package org.adadevelopersacademy;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+// ConcurrentNavigableMap is the thread safe counterpart of
+// NavigableMap. It still provides ordered iteration over the keys.
+import java.util.concurrent.ConcurrentNavigableMap;
+// ConcurrentSkipListMap is a concrete ConcurrentNavigableMap. A skip
+// list is a probabilistic alternative to a balanced binary search
+// tree, and unlike a TreeMap it can be updated by many threads at
+// once without any locks.
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Iterator;
+// Java's Map is an interface similar to Ruby's Hash, but Java has
+// more than one type of Map. If you want something very similar in
+// behavior to Ruby's Hash you want either a HashMap or a
+// LinkedHashMap. By default in Ruby 2, Ruby's Hash preserves
+// insertion order. LinkedHashMap also provides this same behavior in
+// Java, but if you don't need it, you can get slightly better
+// performance by simply using HashMap, and typically you'll see
+// HashMap used in most Java programs instead of LinkedHashMap.
+import java.util.Map;
+
+/**
+ * ConcurrentDocumentStore keeps all documents in memory in a
+ * ConcurrentSkipListMap.
+ *
+ * A TreeMap is not safe to modify from more than one thread. Two
+ * concurrent puts can leave the tree in a corrupted state. The
+ * obvious fix is to wrap every call in a single lock, but then only
+ * one request can touch the store at a time no matter how many cores
+ * the machine has.
+ *
+ * A skip list avoids that. Readers never block, and writers only
+ * compete with other writers that are updating the same small part
+ * of the list. We still get keys in sorted order, which a
+ * ConcurrentHashMap would not give us.
+ */
+public class ConcurrentDocumentStore extends AbstractDocumentStore {
+    // In the prior example, I used a List and ArrayList. These
+    // classes as well as the Map classes are all part of the Java
+    // collection framework. You can read more about collections here:
+    //
+    // http://docs.oracle.com/javase/7/docs/api/java/util/Collection.html
+    //
+    // Java collections since JDK 5 are both generic and strictly
+    // typed which means you must specify what types they can contain
+    // at declaration time. You can read more about generics here:
+    //
+    // https://docs.oracle.com/javase/tutorial/java/generics/
+    //
+    // This is a mapping from Integers to ByteBuffers. Notice that
+    // Integer is not the same type as int. Integer is a
+    // java.lang.Object. The int type is not. Java generic collections
+    // can only contain Objects. Thus, we must use the Object type
+    // Integer as the key. Java does provide implicit conversions
+    // between primitive types such as int and the corresponding
+    // Object type such as Integer. This operation is called "auto
+    // boxing", and you can read more about it here:
+    //
+    // https://docs.oracle.com/javase/tutorial/java/data/autoboxing.html
+    //
+    // Autoboxing and unboxing allows you to assign to a variable or
+    // pass as an argument to a function an int where an Integer is
+    // expected and vice verse. All of the primitive types have a
+    // matching "boxed" typed. You should know that even though Java
+    // provides this automatic conversion, the conversion is not free,
+    // and a common optimization is to avoid autoboxing.
+    //
+    // The types inside the angle brackets are called "type
+    // parameters" and these declare what types are allowed to be
+    // stored inside the collection.
+    //
+    // In the following declaration, I'm also using a special syntax
+    // that was introduced in Java 7. This is commonly known as the
+    // "diamond operator", but officially, is referred to as "type
+    // inference":
+    //
+    // https://docs.oracle.com/javase/tutorial/java/generics/genTypeInference.html
+    //
+    // Type inference avoids the previously required duplicate type
+    // parameters on the right hand side of an assignment when using a
+    // new expression. The old Java 6 syntax would require that I also
+    // specify "new ConcurrentSkipListMap<Integer, ByteBuffer>();" on
+    // the right hand side as well. You may encounter code that still
+    // relies on this older syntax for compatibility reasons.
+    private final ConcurrentNavigableMap<Integer, ByteBuffer> documents =
+        new ConcurrentSkipListMap<>();
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        final ByteBuffer document = documents.get(docId);
+        if (document == null) {
+            return null;
+        }
+        // A duplicate shares the same bytes but has its own position,
+        // so one reader can't disturb another reader of the same
+        // document.
+        return document.duplicate();
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        // Documents are kept as they were given.
+        return null;
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        documents.put(docId, document);
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        return documents.putIfAbsent(docId, document) == null;
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        // ByteBuffer.equals() compares the remaining bytes of two
+        // buffers, so this only replaces a document with the same
+        // content as expected.
+        return documents.replace(docId, expected, document);
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        return documents.remove(docId) != null;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        // subMap() returns a live view of part of the map rather than a
+        // copy, so this costs nothing up front.
+        final Iterator<Map.Entry<Integer, ByteBuffer>> entries = documents
+            .subMap(fromDocId, true, toDocId, true)
+            .entrySet()
+            .iterator();
+        // This is an "anonymous class." It implements Iterator inline
+        // without having to declare a named class for it. Every value
+        // is duplicated for the same reason as in get().
+        return new Iterator<Map.Entry<Integer, ByteBuffer>>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Integer, ByteBuffer> next() {
+                final Map.Entry<Integer, ByteBuffer> entry = entries.next();
+                return new AbstractMap.SimpleImmutableEntry<>(
+                    entry.getKey(), entry.getValue().duplicate());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int lastDocId() {
+        // Calling isEmpty() and then lastKey() would be a race since
+        // another thread could clear the map in between. lastEntry()
+        // returns null instead of throwing when the map is empty.
+        final Map.Entry<Integer, ByteBuffer> last =
+            documents.lastEntry();
+        if (last == null) {
+            return -1;
+        }
+        return last.getKey();
+    }
+
+    @Override
+    public void clear() {
+        documents.clear();
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release. The documents are only in memory.
+    }
+}
@@ -0,0 +1,389 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CountingDocumentStore wraps another DocumentStore and keeps count
+ * of how many documents it holds and how many bytes they take, so
+ * that both can be reported without scanning the store.
+ *
+ * Counting a change needs the size of the document it replaces.
+ * Reading that document back from the wrapped store before every
+ * write could mean decompressing it or reading it from disk, so this
+ * keeps the size of every document it has stored in a hash table of
+ * its own, which takes 8 bytes a slot. A document loaded from a
+ * snapshot only goes in the table once it changes. Until then its
+ * size is found in the snapshot, which is mapped into memory and
+ * doesn't copy the document to say how long it is.
+ *
+ * A change and the update of its size have to happen as one step, or
+ * two changes to the same docId could each count the other's
+ * document. Like the other decorators, each docId maps onto one of a
+ * fixed number of locks, which a change holds throughout. Each lock
+ * has a table of its own, so changes on different locks don't wait
+ * on each other.
+ */
+public class CountingDocumentStore implements DocumentStore {
+    private static final int STRIPES = 64;
+    private static final int STRIPE_BITS = 6;
+    // The size of a docId which has no document.
+    private static final int ABSENT = -1;
+
+    private final DocumentStore delegate;
+    private final Snapshot snapshot;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Sizes[] sizes = new Sizes[STRIPES];
+    private final AtomicLong documents;
+    private final AtomicLong bytes;
+    // Once the store has been cleared, the snapshot no longer counts.
+    private volatile boolean cleared;
+
+    /**
+     * @param delegate Store which holds the documents
+     * @param snapshot Snapshot which delegate starts out with, or null
+     *     if it starts out empty
+     */
+    public CountingDocumentStore(final DocumentStore delegate, final Snapshot snapshot) {
+        this.delegate = delegate;
+        this.snapshot = snapshot;
+        this.documents = new AtomicLong(snapshot == null ? 0 : snapshot.size());
+        this.bytes = new AtomicLong(snapshot == null ? 0 : snapshot.bytes());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+            sizes[i] = new Sizes();
+        }
+    }
+
+    /**
+     * Returns the number of documents in the store.
+     */
+    public long documents() {
+        return documents.get();
+    }
+
+    /**
+     * Returns the total size of the documents in the store, in bytes.
+     */
+    public long bytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        return delegate.get(docId);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        return delegate.getGzipped(docId);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            delegate.put(docId, document);
+            replaced(docId, document.remaining());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.putIfAbsent(docId, document)) {
+                return false;
+            }
+            replaced(docId, document.remaining());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.replace(docId, expected, document)) {
+                return false;
+            }
+            replaced(docId, document.remaining());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.patch(docId, expected, document, patch)) {
+                return false;
+            }
+            replaced(docId, document.remaining());
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.remove(docId)) {
+                return false;
+            }
+            replaced(docId, ABSENT);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean[] writeAll(final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        // As in ExpiringDocumentStore, the batch is handed on whole
+        // while holding the locks of all of its docIds, taken in
+        // stripe order.
+        final boolean[] needed = new boolean[STRIPES];
+        for (final Map.Entry<Integer, ByteBuffer> change : changes) {
+            needed[stripeIndex(change.getKey())] = true;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            if (needed[i]) {
+                stripes[i].lock();
+            }
+        }
+        try {
+            final boolean[] results = delegate.writeAll(changes);
+            // Counting the changes in order measures a later change
+            // to a docId against the one before it in the batch.
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    final ByteBuffer document = changes.get(i).getValue();
+                    replaced(changes.get(i).getKey(),
+                        document == null ? ABSENT : document.remaining());
+                }
+            }
+            return results;
+        } finally {
+            for (int i = 0; i < STRIPES; i++) {
+                if (needed[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return delegate.scan(fromDocId, toDocId);
+    }
+
+    @Override
+    public int lastDocId() {
+        return delegate.lastDocId();
+    }
+
+    @Override
+    public void clear() {
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            delegate.clear();
+            cleared = true;
+            for (final Sizes stripe : sizes) {
+                stripe.clear();
+            }
+            documents.set(0);
+            bytes.set(0);
+        } finally {
+            for (final ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    /**
+     * Counts docId's document being replaced by one of size bytes, or
+     * with ABSENT, removed. The caller holds the lock for docId.
+     */
+    private void replaced(final int docId, final int size) {
+        final Sizes stripe = sizes[stripeIndex(docId)];
+        int previous = stripe.get(docId);
+        if (previous == Sizes.FREE) {
+            previous = snapshotSize(docId);
+        }
+        // A removed document of the snapshot has to be remembered as
+        // removed, but otherwise its slot can be reused.
+        stripe.put(docId, size, snapshot != null && !cleared);
+        long documentDelta = 0;
+        long byteDelta = 0;
+        if (previous != ABSENT) {
+            documentDelta--;
+            byteDelta -= previous;
+        }
+        if (size != ABSENT) {
+            documentDelta++;
+            byteDelta += size;
+        }
+        if (documentDelta != 0) {
+            documents.addAndGet(documentDelta);
+        }
+        bytes.addAndGet(byteDelta);
+    }
+
+    /**
+     * Returns the size of docId's document in the snapshot, or ABSENT.
+     */
+    private int snapshotSize(final int docId) {
+        if (snapshot == null || cleared) {
+            return ABSENT;
+        }
+        final ByteBuffer document = snapshot.get(docId);
+        return document == null ? ABSENT : document.remaining();
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[stripeIndex(docId)];
+    }
+
+    private static int stripeIndex(final int docId) {
+        return OffHeapDocumentStore.mix(docId) & (STRIPES - 1);
+    }
+
+    /**
+     * The sizes of the documents of one stripe, in a hash table with
+     * linear probing like the index of OffHeapDocumentStore. It is
+     * only used while holding the stripe's lock.
+     */
+    private static final class Sizes {
+        // The size in a slot which isn't in use.
+        private static final int FREE = Integer.MIN_VALUE;
+        private static final int INITIAL_CAPACITY = 64;
+
+        private int[] keys;
+        private int[] values;
+        private int used;
+
+        private Sizes() {
+            clear();
+        }
+
+        /**
+         * Returns the size recorded for docId, which may be ABSENT, or
+         * FREE if there is none.
+         */
+        private int get(final int docId) {
+            final int mask = keys.length - 1;
+            for (int slot = slotFor(docId, mask); values[slot] != FREE;
+                    slot = (slot + 1) & mask) {
+                if (keys[slot] == docId) {
+                    return values[slot];
+                }
+            }
+            return FREE;
+        }
+
+        /**
+         * Records size for docId. Unless keepAbsent is set, ABSENT
+         * sizes are dropped when the table grows.
+         */
+        private void put(final int docId, final int size, final boolean keepAbsent) {
+            int mask = keys.length - 1;
+            int slot = slotFor(docId, mask);
+            while (values[slot] != FREE) {
+                if (keys[slot] == docId) {
+                    values[slot] = size;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if ((used + 1) * 2 > keys.length) {
+                rehash(keepAbsent);
+                mask = keys.length - 1;
+                slot = slotFor(docId, mask);
+                while (values[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            keys[slot] = docId;
+            values[slot] = size;
+            used++;
+        }
+
+        private void clear() {
+            keys = new int[INITIAL_CAPACITY];
+            values = new int[INITIAL_CAPACITY];
+            Arrays.fill(values, FREE);
+            used = 0;
+        }
+
+        private void rehash(final boolean keepAbsent) {
+            final int[] oldKeys = keys;
+            final int[] oldValues = values;
+            int kept = 0;
+            for (final int value : oldValues) {
+                if (value != FREE && (keepAbsent || value != ABSENT)) {
+                    kept++;
+                }
+            }
+            int capacity = INITIAL_CAPACITY;
+            while ((kept + 1) * 4 > capacity) {
+                capacity *= 2;
+            }
+            keys = new int[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, FREE);
+            used = kept;
+            final int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] == FREE || !keepAbsent && oldValues[i] == ABSENT) {
+                    continue;
+                }
+                int slot = slotFor(oldKeys[i], mask);
+                while (values[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static int slotFor(final int docId, final int mask) {
+            // The low bits of the mixed hash pick the stripe, so every
+            // docId here has the same ones. The bits above them pick
+            // the slot.
+            return (OffHeapDocumentStore.mix(docId) >>> STRIPE_BITS) & mask;
+        }
+    }
+}
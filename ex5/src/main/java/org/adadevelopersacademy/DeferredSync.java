@@ -0,0 +1,83 @@
+package org.adadevelopersacademy;
+
+/**
+ * DeferredSync lets a request thread make changes through a
+ * {@link DurableDocumentStore} without waiting for them to reach the
+ * disk.
+ *
+ * In GROUP mode a change is only acknowledged once the write-ahead log
+ * has been forced to disk, which can take milliseconds. A worker
+ * thread which waits for that can't serve anybody else in the
+ * meantime, so the number of threads caps the number of writes in
+ * flight. Instead, a thread can begin deferring, make its changes,
+ * and then hand over a listener to be told when they are durable, and
+ * go on to the next request. DocumentResource does this in async mode
+ * and sends the response from the listener.
+ *
+ * The store finds out whether its caller is deferring through a
+ * ThreadLocal, so that none of the decorators between the resource
+ * and the log have to change. A thread which isn't deferring, or a log
+ * in another mode, waits as before.
+ *
+ * Since the store returns before the disk has been forced, the
+ * decorators above it, like the change feed, see the change a little
+ * earlier than they otherwise would. The client still only gets its
+ * response once the change is durable.
+ */
+final class DeferredSync {
+    private static final ThreadLocal<DeferredSync> CURRENT = new ThreadLocal<>();
+
+    private WriteAheadLog log;
+    private long position;
+
+    private DeferredSync() {}
+
+    /**
+     * Starts deferring waits for the log on the calling thread. The
+     * caller must call end or whenDurable afterwards, even if it
+     * fails.
+     */
+    static DeferredSync begin() {
+        final DeferredSync deferred = new DeferredSync();
+        CURRENT.set(deferred);
+        return deferred;
+    }
+
+    /**
+     * Stops deferring on the calling thread.
+     */
+    static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Records that the calling thread needs log to be durable up to
+     * position, if it is deferring and log can tell it when.
+     *
+     * @return whether the wait was deferred, or else the caller has
+     *     to wait itself
+     */
+    static boolean defer(final WriteAheadLog log, final long position) {
+        final DeferredSync deferred = CURRENT.get();
+        if (deferred == null || !log.canNotify()) {
+            return false;
+        }
+        deferred.log = log;
+        deferred.position = Math.max(deferred.position, position);
+        return true;
+    }
+
+    /**
+     * Stops deferring on the calling thread and tells listener once
+     * every change made since begin is durable, which may be straight
+     * away.
+     */
+    void whenDurable(final WriteAheadLog.Listener listener) {
+        CURRENT.remove();
+        if (log == null) {
+            listener.durable(null);
+        } else {
+            log.whenDurable(position, listener);
+        }
+    }
+}
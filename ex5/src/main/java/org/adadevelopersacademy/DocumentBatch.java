@@ -0,0 +1,416 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * DocumentBatch reads the request bodies and writes the response
+ * bodies of the batch operations in {@link DocumentResource}.
+ *
+ * A multi-get request lists the docIds to read:
+ *
+ *   {"ids":[1,2,3]}
+ *
+ * and the response holds each one in the same order, in the same
+ * format as a page from {@link DocumentRange}. A docId with no
+ * document has a null document.
+ *
+ * A bulk request uses that same format to list changes. A document
+ * is stored at its docId, and a null document removes the docId:
+ *
+ *   {"documents":[{"docId":1,"document":{...}},
+ *                 {"docId":2,"document":null}]}
+ *
+ * and the response has a status for each change, which is 200 for a
+ * stored document or a removed document and 404 for removing a docId
+ * that had no document:
+ *
+ *   {"results":[{"docId":1,"status":200},{"docId":2,"status":404}]}
+ *
+ * This is a utility class, so it can't be instantiated.
+ */
+public final class DocumentBatch {
+    private static final String DOC_ID = "docId";
+    private static final String DOCUMENT = "document";
+    private static final String DOCUMENTS = "documents";
+    private static final String NOT_ARRAY = " must be an array";
+    private static final String DOC_ID_NOT_INTEGER = "Each docId must be an integer";
+    private static final String DOCUMENT_NOT_OBJECT =
+        "Each document must be an object or null";
+    private static final BigDecimal MAX_DOC_ID = BigDecimal.valueOf(Integer.MAX_VALUE);
+
+    private DocumentBatch() {}
+
+    /**
+     * Returns the docIds listed in a multi-get request.
+     *
+     * @throws IllegalArgumentException if request is malformed
+     */
+    public static int[] readIds(final JsonObject request) {
+        final JsonArray ids = getArray(request, "ids");
+        final int[] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = docId(ids.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the changes listed in a bulk request.
+     *
+     * Each document is kept as the bytes the client sent, just as a
+     * single PUT stores them. Reading the request into a JsonObject
+     * would build a tree of every document only to serialize each
+     * one again, so instead a {@link ChangeScanner} walks the bytes
+     * and copies each document out of them.
+     *
+     * @param body Bulk request, which must already have been checked
+     *     to be valid JSON, as JsonBytes.read does
+     * @throws IllegalArgumentException if request is malformed
+     */
+    public static List<Map.Entry<Integer, ByteBuffer>> readChanges(
+            final ByteBuffer body) {
+        return new ChangeScanner(body).changes();
+    }
+
+    /**
+     * Returns the response to a multi-get request. The documents are
+     * read from store as the response is written.
+     */
+    public static StreamingOutput documents(final DocumentStore store, final int[] ids) {
+        return new StreamingOutput() {
+            @Override
+            public void write(final OutputStream out) throws IOException {
+                DocumentRange.write(out, "{\"documents\":[");
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0) {
+                        DocumentRange.write(out, ",");
+                    }
+                    DocumentRange.writeEntry(out, ids[i], store.get(ids[i]));
+                }
+                DocumentRange.write(out, "]}");
+            }
+        };
+    }
+
+    /**
+     * Returns the documents at ids, in the same format as for a
+     * multi-get request but leaving out docIds with no document.
+     */
+    public static StreamingOutput found(final DocumentStore store, final int[] ids) {
+        return new StreamingOutput() {
+            @Override
+            public void write(final OutputStream out) throws IOException {
+                DocumentRange.write(out, "{\"documents\":[");
+                boolean first = true;
+                for (final int docId : ids) {
+                    final ByteBuffer document = store.get(docId);
+                    if (document == null) {
+                        continue;
+                    }
+                    if (!first) {
+                        DocumentRange.write(out, ",");
+                    }
+                    DocumentRange.writeEntry(out, docId, document);
+                    first = false;
+                }
+                DocumentRange.write(out, "]}");
+            }
+        };
+    }
+
+    /**
+     * Returns the response to a bulk request.
+     *
+     * @param changes Changes from the request
+     * @param results Results of DocumentStore.writeAll for changes
+     */
+    public static StreamingOutput results(
+            final List<Map.Entry<Integer, ByteBuffer>> changes,
+            final boolean[] results) {
+        return new StreamingOutput() {
+            @Override
+            public void write(final OutputStream out) throws IOException {
+                DocumentRange.write(out, "{\"results\":[");
+                for (int i = 0; i < results.length; i++) {
+                    if (i > 0) {
+                        DocumentRange.write(out, ",");
+                    }
+                    int status = 200;
+                    if (!results[i]) {
+                        status = 404;
+                    }
+                    DocumentRange.write(out, "{\"docId\":" + changes.get(i).getKey()
+                        + ",\"status\":" + status + "}");
+                }
+                DocumentRange.write(out, "]}");
+            }
+        };
+    }
+
+    private static JsonArray getArray(final JsonObject request, final String name) {
+        final JsonValue value = request.get(name);
+        if (value == null || value.getValueType() != JsonValue.ValueType.ARRAY) {
+            throw new IllegalArgumentException(name + NOT_ARRAY);
+        }
+        return (JsonArray) value;
+    }
+
+    private static int docId(final JsonValue value) {
+        if (value == null || value.getValueType() != JsonValue.ValueType.NUMBER) {
+            throw new IllegalArgumentException(DOC_ID_NOT_INTEGER);
+        }
+        return docId(((JsonNumber) value).bigDecimalValue());
+    }
+
+    private static int docId(final BigDecimal value) {
+        if (value.scale() != 0) {
+            throw new IllegalArgumentException(DOC_ID_NOT_INTEGER);
+        }
+        if (value.signum() < 0 || value.compareTo(MAX_DOC_ID) > 0) {
+            throw new IllegalArgumentException("docId out of range: " + value);
+        }
+        return value.intValue();
+    }
+
+    /**
+     * Finds the changes in the bytes of a bulk request. The request
+     * has already been checked to be valid JSON, so this only has to
+     * follow its structure: it reads the keys, docIds and the start of
+     * each value, and skips over everything else by counting brackets
+     * outside of strings.
+     */
+    private static final class ChangeScanner {
+        private final ByteBuffer body;
+        private int position;
+
+        private ChangeScanner(final ByteBuffer body) {
+            this.body = body;
+            this.position = body.position();
+        }
+
+        private List<Map.Entry<Integer, ByteBuffer>> changes() {
+            List<Map.Entry<Integer, ByteBuffer>> changes = null;
+            expect('{');
+            for (String key = nextKey(); key != null; key = nextKey()) {
+                if (key.equals(DOCUMENTS)) {
+                    changes = readDocuments();
+                } else {
+                    skipValue();
+                }
+            }
+            if (changes == null) {
+                throw new IllegalArgumentException(DOCUMENTS + NOT_ARRAY);
+            }
+            return changes;
+        }
+
+        private List<Map.Entry<Integer, ByteBuffer>> readDocuments() {
+            if (peek() != '[') {
+                throw new IllegalArgumentException(DOCUMENTS + NOT_ARRAY);
+            }
+            position++;
+            final List<Map.Entry<Integer, ByteBuffer>> changes = new ArrayList<>();
+            while (nextElement(']')) {
+                if (peek() != '{') {
+                    throw new IllegalArgumentException("Each change must be an object");
+                }
+                position++;
+                Integer docId = null;
+                ByteBuffer document = null;
+                boolean hasDocument = false;
+                for (String key = nextKey(); key != null; key = nextKey()) {
+                    if (key.equals(DOC_ID)) {
+                        docId = readDocId();
+                    } else if (key.equals(DOCUMENT)) {
+                        document = readDocument();
+                        hasDocument = true;
+                    } else {
+                        skipValue();
+                    }
+                }
+                if (docId == null) {
+                    throw new IllegalArgumentException(DOC_ID_NOT_INTEGER);
+                }
+                if (!hasDocument) {
+                    throw new IllegalArgumentException(DOCUMENT_NOT_OBJECT);
+                }
+                changes.add(new AbstractMap.SimpleImmutableEntry<>(docId, document));
+            }
+            return changes;
+        }
+
+        private int readDocId() {
+            final byte first = peek();
+            if (first != '-' && (first < '0' || first > '9')) {
+                throw new IllegalArgumentException(DOC_ID_NOT_INTEGER);
+            }
+            final int start = position;
+            skipValue();
+            return docId(new BigDecimal(text(start, position)));
+        }
+
+        /**
+         * Returns a copy of the object which starts here, or null for
+         * a null. Every document gets its own array, rather than a
+         * slice of the body, so that keeping one document doesn't keep
+         * the whole request.
+         */
+        private ByteBuffer readDocument() {
+            final byte first = peek();
+            final int start = position;
+            skipValue();
+            if (first == 'n') {
+                return null;
+            }
+            if (first != '{') {
+                throw new IllegalArgumentException(DOCUMENT_NOT_OBJECT);
+            }
+            final byte[] document = new byte[position - start];
+            final ByteBuffer source = body.duplicate();
+            source.position(start);
+            source.get(document);
+            return ByteBuffer.wrap(document);
+        }
+
+        /**
+         * Moves to the next key of an object and returns it, leaving
+         * the position at its value, or returns null at the end of the
+         * object.
+         */
+        private String nextKey() {
+            if (!nextElement('}')) {
+                return null;
+            }
+            final String key = readString();
+            expect(':');
+            return key;
+        }
+
+        /**
+         * Moves past whitespace and any comma to the next element of
+         * an array or object. Returns false, after moving past close,
+         * at the end of it.
+         */
+        private boolean nextElement(final char close) {
+            skipWhitespace();
+            if (peek() == ',') {
+                position++;
+                skipWhitespace();
+            }
+            if (peek() == close) {
+                position++;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Reads the string which starts here and moves past it.
+         */
+        private String readString() {
+            expect('"');
+            final int start = position;
+            boolean escaped = false;
+            while (body.get(position) != '"') {
+                if (body.get(position) == '\\') {
+                    escaped = true;
+                    position++;
+                }
+                position++;
+            }
+            final String raw = text(start, position);
+            position++;
+            return escaped ? unescape(raw) : raw;
+        }
+
+        /**
+         * Moves past the value which starts here.
+         */
+        private void skipValue() {
+            final byte first = peek();
+            if (first == '"') {
+                readString();
+                return;
+            }
+            if (first != '{' && first != '[') {
+                // A number, true, false or null.
+                while (position < body.limit() && !isDelimiter(body.get(position))) {
+                    position++;
+                }
+                return;
+            }
+            int depth = 0;
+            do {
+                final byte next = body.get(position);
+                if (next == '"') {
+                    readString();
+                    continue;
+                }
+                if (next == '{' || next == '[') {
+                    depth++;
+                } else if (next == '}' || next == ']') {
+                    depth--;
+                }
+                position++;
+            } while (depth > 0);
+        }
+
+        private void expect(final char expected) {
+            if (peek() != expected) {
+                throw new IllegalArgumentException("Expected " + expected);
+            }
+            position++;
+        }
+
+        private byte peek() {
+            skipWhitespace();
+            return body.get(position);
+        }
+
+        private void skipWhitespace() {
+            while (position < body.limit() && isWhitespace(body.get(position))) {
+                position++;
+            }
+        }
+
+        private String text(final int start, final int end) {
+            final byte[] bytes = new byte[end - start];
+            final ByteBuffer source = body.duplicate();
+            source.position(start);
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static boolean isWhitespace(final byte b) {
+            return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+        }
+
+        private static boolean isDelimiter(final byte b) {
+            return isWhitespace(b) || b == ',' || b == '}' || b == ']';
+        }
+
+        /**
+         * Decodes the escapes in the contents of a JSON string.
+         */
+        private static String unescape(final String raw) {
+            return Json.createReader(new StringReader("[\"" + raw + "\"]"))
+                .readArray().getString(0);
+        }
+    }
+}
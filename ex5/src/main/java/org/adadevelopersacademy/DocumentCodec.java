@@ -0,0 +1,382 @@
+package org.adadevelopersacademy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * DocumentCodec decides how {@link CompressingDocumentStore} stores
+ * each document, and turns documents into their stored form and back.
+ * Which codec is used depends on the size of the document:
+ *
+ * - Documents smaller than the threshold are stored as they are.
+ *   Compressing them saves little, and reading them stays as cheap as
+ *   without compression.
+ *
+ * - Documents up to MAX_DICTIONARY_SIZE are compressed with Deflate
+ *   and a dictionary shared by all documents. A small document has
+ *   too little text of its own to repeat much, but its field names
+ *   and common values are usually the same as in other documents.
+ *   With those in the dictionary, the compressor can refer to them
+ *   from the very first byte. The dictionary is trained from the
+ *   first documents of this size which are stored. Until then they
+ *   are compressed like large documents, and so they always are if
+ *   the codec is made without a dictionary.
+ *
+ * - Larger documents are compressed with gzip and no dictionary, so
+ *   that they can be sent to a client which accepts gzip as they are,
+ *   without decompressing them.
+ *
+ * A document which doesn't get smaller is stored as it is.
+ *
+ * The stored forms can be told apart by their first byte. A JSON
+ * document starts with whitespace or an opening bracket, a gzip
+ * stream with 0x1f and a dictionary-compressed document with a
+ * DICTIONARY byte, followed by its length and a zlib stream.
+ *
+ * The dictionary is only kept in memory, so documents compressed with
+ * it can't be read back by a codec made later. A store which keeps
+ * the stored forms on disk needs a codec without a dictionary.
+ */
+final class DocumentCodec {
+    /**
+     * Largest document compressed with the shared dictionary.
+     */
+    static final int MAX_DICTIONARY_SIZE = 4096;
+
+    private static final byte DICTIONARY = 1;
+    private static final byte GZIP_MAGIC = 0x1f;
+    // ID1, ID2, CM = Deflate, no flags, no modification time, no extra
+    // flags and an unknown OS. See RFC 1952.
+    private static final byte[] GZIP_HEADER = {
+        GZIP_MAGIC, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+    // Sample documents are collected until there are this many bytes
+    // of them, and then the dictionary is trained.
+    private static final int SAMPLE_SIZE = 256 * 1024;
+    // Deflate can only refer back 32KB, and the end of the dictionary
+    // is closest to the document.
+    private static final int DICTIONARY_SIZE = 16 * 1024;
+
+    // Deflaters and Inflaters hold native memory which is costly to
+    // set up, so each thread reuses its own.
+    private static final ThreadLocal<Deflater> RAW_DEFLATER =
+        new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+        };
+    private static final ThreadLocal<Deflater> ZLIB_DEFLATER =
+        new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater();
+            }
+        };
+    private static final ThreadLocal<Inflater> RAW_INFLATER =
+        new ThreadLocal<Inflater>() {
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater(true);
+            }
+        };
+    private static final ThreadLocal<Inflater> ZLIB_INFLATER =
+        new ThreadLocal<Inflater>() {
+            @Override
+            protected Inflater initialValue() {
+                return new Inflater();
+            }
+        };
+
+    private final int threshold;
+    private final boolean useDictionary;
+    private volatile byte[] dictionary;
+    // Sample documents for training. They and sampledBytes are guarded
+    // by the list's monitor.
+    private final List<byte[]> samples = new ArrayList<>();
+    private int sampledBytes;
+    private volatile boolean trained;
+
+    /**
+     * @param threshold Smallest document which is compressed, in bytes
+     * @param useDictionary Whether to train a dictionary for small
+     *     documents
+     */
+    DocumentCodec(final int threshold, final boolean useDictionary) {
+        this.threshold = threshold;
+        this.useDictionary = useDictionary;
+    }
+
+    /**
+     * Returns the stored form of document.
+     */
+    ByteBuffer encode(final ByteBuffer document) {
+        final int size = document.remaining();
+        if (size < threshold) {
+            return document;
+        }
+        final byte[] plain = toArray(document);
+        final ByteBuffer encoded;
+        if (useDictionary && size <= MAX_DICTIONARY_SIZE) {
+            sample(plain);
+            final byte[] shared = dictionary;
+            encoded = shared == null ? gzip(plain) : deflate(plain, shared);
+        } else {
+            encoded = gzip(plain);
+        }
+        return encoded.remaining() < size ? encoded : document;
+    }
+
+    /**
+     * Returns the document whose stored form is stored.
+     */
+    ByteBuffer decode(final ByteBuffer stored) {
+        if (!stored.hasRemaining()) {
+            return stored;
+        }
+        final int start = stored.position();
+        switch (stored.get(start)) {
+        case GZIP_MAGIC:
+            return inflate(RAW_INFLATER.get(), stored, start + GZIP_HEADER.length,
+                stored.limit() - GZIP_TRAILER_SIZE, gzipSize(stored), null);
+        case DICTIONARY:
+            return inflate(ZLIB_INFLATER.get(), stored, start + 5, stored.limit(),
+                stored.duplicate().getInt(start + 1), dictionary);
+        default:
+            return stored;
+        }
+    }
+
+    /**
+     * Returns stored as a gzip stream, or null if it wasn't stored
+     * with gzip.
+     */
+    ByteBuffer gzipped(final ByteBuffer stored) {
+        if (stored.hasRemaining() && stored.get(stored.position()) == GZIP_MAGIC) {
+            return stored;
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the shared dictionary has been trained.
+     */
+    boolean hasDictionary() {
+        return dictionary != null;
+    }
+
+    /**
+     * Returns the uncompressed size from the trailer of a gzip stream.
+     */
+    private static int gzipSize(final ByteBuffer gzipped) {
+        final ByteBuffer trailer = gzipped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        return trailer.getInt(trailer.limit() - 4);
+    }
+
+    private static ByteBuffer gzip(final byte[] plain) {
+        final CRC32 crc = new CRC32();
+        crc.update(plain);
+        final Deflater deflater = RAW_DEFLATER.get();
+        deflater.reset();
+        final ByteBuffer compressed = compress(deflater, plain,
+            GZIP_HEADER.length, GZIP_TRAILER_SIZE);
+        compressed.put(GZIP_HEADER);
+        compressed.position(compressed.limit() - GZIP_TRAILER_SIZE);
+        compressed.order(ByteOrder.LITTLE_ENDIAN);
+        compressed.putInt((int) crc.getValue());
+        compressed.putInt(plain.length);
+        compressed.order(ByteOrder.BIG_ENDIAN);
+        compressed.rewind();
+        return compressed;
+    }
+
+    private static ByteBuffer deflate(final byte[] plain, final byte[] shared) {
+        final Deflater deflater = ZLIB_DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(shared);
+        final ByteBuffer compressed = compress(deflater, plain, 5, 0);
+        compressed.put(DICTIONARY);
+        compressed.putInt(plain.length);
+        compressed.rewind();
+        return compressed;
+    }
+
+    /**
+     * Compresses plain with deflater into a new heap buffer, leaving
+     * room for a header and a trailer, which the caller fills in.
+     */
+    private static ByteBuffer compress(
+            final Deflater deflater,
+            final byte[] plain,
+            final int headerSize,
+            final int trailerSize) {
+        deflater.setInput(plain);
+        deflater.finish();
+        // Deflate adds a few bytes to data which doesn't compress, so
+        // this is nearly always enough room.
+        byte[] output = new byte[headerSize + plain.length + trailerSize + 16];
+        int length = headerSize;
+        while (!deflater.finished()) {
+            if (length == output.length - trailerSize) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(
+                output, length, output.length - trailerSize - length);
+        }
+        return ByteBuffer.wrap(output, 0, length + trailerSize).slice();
+    }
+
+    private static ByteBuffer inflate(
+            final Inflater inflater,
+            final ByteBuffer stored,
+            final int from,
+            final int to,
+            final int size,
+            final byte[] shared) {
+        final byte[] input = new byte[to - from];
+        final ByteBuffer source = stored.duplicate();
+        source.position(from);
+        source.get(input);
+        final byte[] output = new byte[size];
+        inflater.reset();
+        inflater.setInput(input);
+        try {
+            int length = 0;
+            while (length < size) {
+                final int inflated = inflater.inflate(output, length, size - length);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    inflater.setDictionary(shared);
+                } else if (inflated == 0
+                        && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Stored document is truncated");
+                }
+                length += inflated;
+            }
+        } catch (final DataFormatException e) {
+            throw new IllegalStateException("Stored document is corrupt", e);
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    /**
+     * Adds a document to the samples, and trains the dictionary once
+     * there are enough of them.
+     */
+    private void sample(final byte[] plain) {
+        if (trained) {
+            return;
+        }
+        final List<byte[]> sampled;
+        synchronized (samples) {
+            if (trained) {
+                return;
+            }
+            samples.add(plain);
+            sampledBytes += plain.length;
+            if (sampledBytes < SAMPLE_SIZE) {
+                return;
+            }
+            trained = true;
+            sampled = new ArrayList<>(samples);
+            samples.clear();
+        }
+        final byte[] shared = train(sampled);
+        if (shared.length > 0) {
+            dictionary = shared;
+        }
+    }
+
+    /**
+     * Builds a dictionary from the strings which occur most often in
+     * the samples. In JSON those are mostly field names, which are
+     * counted along with their colon, and values such as enumerations
+     * or dates which only differ in a few characters.
+     *
+     * A string is worth its length for each time it occurs beyond the
+     * first. The most valuable strings go at the end of the
+     * dictionary, since nearer strings take fewer bits to refer to.
+     */
+    static byte[] train(final List<byte[]> sampled) {
+        final Map<String, int[]> counts = new HashMap<>();
+        for (final byte[] sample : sampled) {
+            int i = 0;
+            while (i < sample.length) {
+                if (sample[i] != '"') {
+                    i++;
+                    continue;
+                }
+                int end = i + 1;
+                while (end < sample.length && sample[end] != '"') {
+                    end += sample[end] == '\\' ? 2 : 1;
+                }
+                if (end >= sample.length) {
+                    break;
+                }
+                end++;
+                if (end < sample.length && sample[end] == ':') {
+                    end++;
+                }
+                // ISO-8859-1 maps each byte to one char and back.
+                final String token =
+                    new String(sample, i, end - i, StandardCharsets.ISO_8859_1);
+                final int[] count = counts.get(token);
+                if (count == null) {
+                    counts.put(token, new int[] {1});
+                } else {
+                    count[0]++;
+                }
+                i = end;
+            }
+        }
+        final List<Map.Entry<String, int[]>> tokens = new ArrayList<>(counts.entrySet());
+        Collections.sort(tokens, new Comparator<Map.Entry<String, int[]>>() {
+            @Override
+            public int compare(
+                    final Map.Entry<String, int[]> a, final Map.Entry<String, int[]> b) {
+                return Long.compare(value(b), value(a));
+            }
+        });
+        final List<String> chosen = new ArrayList<>();
+        int size = 0;
+        for (final Map.Entry<String, int[]> token : tokens) {
+            if (value(token) == 0) {
+                break;
+            }
+            if (size + token.getKey().length() <= DICTIONARY_SIZE) {
+                chosen.add(token.getKey());
+                size += token.getKey().length();
+            }
+        }
+        final StringBuilder dictionary = new StringBuilder(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            dictionary.append(chosen.get(i));
+        }
+        return dictionary.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static long value(final Map.Entry<String, int[]> token) {
+        return (long) token.getKey().length() * (token.getValue()[0] - 1);
+    }
+
+    private static byte[] toArray(final ByteBuffer document) {
+        if (document.hasArray() && document.arrayOffset() == 0 && document.position() == 0
+                && document.remaining() == document.array().length) {
+            return document.array();
+        }
+        final byte[] plain = new byte[document.remaining()];
+        document.duplicate().get(plain);
+        return plain;
+    }
+}
@@ -0,0 +1,243 @@
+package org.adadevelopersacademy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * DocumentIdAllocator hands out candidate document ids for newly
+ * created documents.
+ *
+ * The allocator never looks at the store. It only promises that it
+ * will not hand out the same candidate twice until the id space wraps
+ * around. The caller still has to claim a candidate with {@link
+ * DocumentStore#putIfAbsent} because a client may have already PUT a
+ * document at that id directly.
+ *
+ * There are three sources of ids, tried in order:
+ *
+ * 1. Ids that were released by a delete.
+ * 2. A small block of ids reserved for the calling thread.
+ * 3. A new block reserved from a shared AtomicInteger counter.
+ *
+ * Only the last step touches shared state, and it does so with a
+ * single compare-and-set, so threads creating documents almost never
+ * have to wait on each other.
+ *
+ * In a cluster each node only stores the ids it owns, so the
+ * allocator can be given a {@link Partition} and then skips the ids
+ * it doesn't own. On a ring of n nodes that costs about n candidates
+ * for each id handed out, which is still far cheaper than claiming
+ * one.
+ */
+public class DocumentIdAllocator {
+    public static final int DEFAULT_BLOCK_SIZE = 64;
+
+    /**
+     * Returned by allocate() when the partition owns none of the ids
+     * it looked at. No document can have a negative id.
+     */
+    public static final int NO_ID = -1;
+
+    // A node which owns almost nothing would otherwise look for an id
+    // of its own for a very long time.
+    private static final int MAX_SKIPPED = 1 << 16;
+
+    /**
+     * The ids one node of a cluster owns.
+     */
+    public interface Partition {
+        /**
+         * Returns whether docId belongs to this node.
+         */
+        boolean owns(int docId);
+    }
+
+    private final int blockSize;
+
+    // The ids which may be handed out, or null for all of them.
+    private volatile Partition partition;
+
+    // An AtomicInteger is an int that can be updated safely from
+    // multiple threads without a lock. It's backed by a special CPU
+    // instruction called compare-and-set.
+    private final AtomicInteger nextBlock = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<Integer> released =
+        new ConcurrentLinkedQueue<>();
+
+    // Counted for the metrics. Neither is touched for most ids.
+    private final AtomicLong reservedBlocks = new AtomicLong();
+    private final AtomicLong reusedIds = new AtomicLong();
+
+    // A ThreadLocal gives every thread its own independent copy of a
+    // value. Each Grizzly worker thread gets its own Block, so it can
+    // hand out ids from that block without any synchronization.
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+        @Override
+        protected Block initialValue() {
+            return new Block();
+        }
+    };
+
+    public DocumentIdAllocator() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public DocumentIdAllocator(final int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Limits the ids handed out to those in partition, or lifts the
+     * limit if it is null.
+     */
+    public void setPartition(final Partition ids) {
+        partition = ids;
+    }
+
+    /**
+     * Returns a candidate document id. Without a partition this never
+     * fails. Once the counter reaches Integer.MAX_VALUE it wraps back
+     * around to zero so that ids left unused in a sparse store get
+     * another chance.
+     *
+     * With a partition, the candidate is one the partition owns, or
+     * NO_ID if none has turned up after skipping tens of thousands.
+     * Handing out an id owned by another node would store a document
+     * which nobody could find.
+     */
+    public int allocate() {
+        final Partition current = partition;
+        int candidate = next();
+        if (current == null) {
+            return candidate;
+        }
+        for (int skipped = 0; !current.owns(candidate); skipped++) {
+            if (skipped == MAX_SKIPPED) {
+                return NO_ID;
+            }
+            candidate = next();
+        }
+        return candidate;
+    }
+
+    private int next() {
+        final Integer reused = released.poll();
+        if (reused != null) {
+            reusedIds.incrementAndGet();
+            return reused;
+        }
+        final Block block = blocks.get();
+        if (block.next >= block.limit) {
+            reserve(block);
+        }
+        // The block bounds are kept as longs so that a block ending
+        // at Integer.MAX_VALUE does not overflow, but every id inside
+        // a block fits in an int.
+        return (int) block.next++;
+    }
+
+    /**
+     * Makes docId available to a later call to allocate(). This is
+     * called when a document is deleted.
+     */
+    public void release(final int docId) {
+        if (docId >= 0) {
+            released.offer(docId);
+        }
+    }
+
+    /**
+     * Moves the shared counter forward so that new blocks start at or
+     * after docId. This is useful after loading existing documents so
+     * that creates don't probe through ids which are already taken.
+     */
+    public void advanceTo(final int docId) {
+        while (true) {
+            final int current = nextBlock.get();
+            if (docId <= current || nextBlock.compareAndSet(current, docId)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets every reserved block and released id and starts over
+     * from zero.
+     */
+    public void reset() {
+        released.clear();
+        nextBlock.set(0);
+        // Other threads may still hold a reserved block. That's
+        // harmless since the caller always claims ids with
+        // putIfAbsent, but we can at least drop our own.
+        blocks.remove();
+    }
+
+    /**
+     * Returns the number of blocks of new ids reserved so far.
+     */
+    public long reservedBlocks() {
+        return reservedBlocks.get();
+    }
+
+    /**
+     * Returns the number of released ids handed out again so far.
+     */
+    public long reusedIds() {
+        return reusedIds.get();
+    }
+
+    /**
+     * Returns the number of ids in a block.
+     */
+    public int blockSize() {
+        return blockSize;
+    }
+
+    private void reserve(final Block block) {
+        while (true) {
+            final int start = nextBlock.get();
+            // Something that may not be obvious coming from Ruby is
+            // that integers are fixed precision, and in Java the
+            // size of each of the primitive types is fixed. So an int
+            // in Java is exactly 32-bits and a long is 64-bits. They
+            // are also both signed, so this means the largest
+            // positive number that can be represented for an int is
+            // (2**31)-1 or 2147483647. If you try to add two numbers
+            // that exceed this value, you will roll over to the
+            // negative side. This is called integer overflow.
+            //
+            // Doing the arithmetic in long avoids the overflow, and
+            // when the block would run past the end of the id space
+            // we wrap the counter back to zero instead.
+            final long limit = Math.min(
+                (long) start + blockSize, (long) Integer.MAX_VALUE + 1);
+            final int next;
+            if (limit > Integer.MAX_VALUE) {
+                next = 0;
+            } else {
+                next = (int) limit;
+            }
+            if (nextBlock.compareAndSet(start, next)) {
+                reservedBlocks.incrementAndGet();
+                block.next = start;
+                block.limit = limit;
+                return;
+            }
+        }
+    }
+
+    /**
+     * The half open range [next, limit) of ids reserved by a single
+     * thread.
+     */
+    private static final class Block {
+        private long next;
+        private long limit;
+    }
+}
@@ -0,0 +1,145 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * DocumentRange writes one page of a range of documents as the body of
+ * a response:
+ *
+ *   {"documents":[{"docId":1,"document":{...}}, ...],"next":"..."}
+ *
+ * A StreamingOutput is Jersey's way of letting a resource write the
+ * response body itself. Jersey calls write() once the status and
+ * headers have been decided, and since the size isn't known up front
+ * the body is sent with chunked transfer encoding. The documents are
+ * read from the store one at a time as they are written, so a page
+ * never has to fit in memory all at once, and the stored bytes of
+ * each document are copied into the response as they are.
+ *
+ * "next" is a cursor token which asks for the following page. It is
+ * null on the last page. A cursor records where the next page starts,
+ * so unlike an offset it keeps working when documents are added or
+ * removed between requests, and the store can jump straight to it
+ * instead of skipping over every earlier document again.
+ */
+public class DocumentRange implements StreamingOutput {
+    private static final int CURSOR_LENGTH = 16;
+
+    private final DocumentStore store;
+    private final int fromDocId;
+    private final int toDocId;
+    private final int limit;
+
+    /**
+     * @param store Store to read the documents from
+     * @param fromDocId First docId of the page
+     * @param toDocId Last docId of the whole range
+     * @param limit Largest number of documents on the page
+     */
+    public DocumentRange(
+            final DocumentStore store,
+            final int fromDocId,
+            final int toDocId,
+            final int limit) {
+        this.store = store;
+        this.fromDocId = fromDocId;
+        this.toDocId = toDocId;
+        this.limit = limit;
+    }
+
+    /**
+     * Creates the page which a cursor returned by an earlier page asks
+     * for.
+     *
+     * @throws IllegalArgumentException if cursor is malformed
+     */
+    public static DocumentRange fromCursor(
+            final DocumentStore store,
+            final String cursor,
+            final int limit) {
+        if (cursor.length() != CURSOR_LENGTH) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+        try {
+            // parseUnsignedInt would be neater, but it was only added
+            // in Java 8.
+            final int from = (int) Long.parseLong(cursor.substring(0, 8), 16);
+            final int to = (int) Long.parseLong(cursor.substring(8), 16);
+            // A cursor comes from the client, so it gets the same
+            // checks as from and to. The store would otherwise fail
+            // only once the response had started.
+            if (from < 0 || to < from) {
+                throw new IllegalArgumentException("Malformed cursor");
+            }
+            return new DocumentRange(store, from, to, limit);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed cursor", e);
+        }
+    }
+
+    @Override
+    public void write(final OutputStream out) throws IOException {
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            store.scan(fromDocId, toDocId);
+        write(out, "{\"documents\":[");
+        int count = 0;
+        String next = null;
+        while (documents.hasNext()) {
+            final Map.Entry<Integer, ByteBuffer> entry = documents.next();
+            if (count == limit) {
+                // There's at least one more document, so the next
+                // page starts with it.
+                next = cursor(entry.getKey(), toDocId);
+                break;
+            }
+            if (count > 0) {
+                write(out, ",");
+            }
+            writeEntry(out, entry.getKey(), entry.getValue());
+            count++;
+        }
+        if (next == null) {
+            write(out, "],\"next\":null}");
+        } else {
+            write(out, "],\"next\":\"" + next + "\"}");
+        }
+    }
+
+    /**
+     * Returns a cursor for the page starting at fromDocId.
+     */
+    private static String cursor(final int from, final int to) {
+        // Clients should treat a cursor as an opaque string. It
+        // happens to be the two docIds in hexadecimal.
+        return String.format("%08x%08x", from, to);
+    }
+
+    /**
+     * Writes {"docId":docId,"document":document} where document is
+     * written as it is, or as null if it is null.
+     */
+    static void writeEntry(
+            final OutputStream out,
+            final int docId,
+            final ByteBuffer document) throws IOException {
+        write(out, "{\"docId\":" + docId + ",\"document\":");
+        if (document == null) {
+            write(out, "null");
+        } else {
+            ByteBufferWriter.write(document, out);
+        }
+        write(out, "}");
+    }
+
+    static void write(final OutputStream out, final String text)
+            throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,43 @@
+package org.adadevelopersacademy;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * DocumentReader lets a resource method take the document in a
+ * request body as a ByteBuffer of JSON, whether the client sent JSON
+ * or CBOR. See DocumentResource.readDocument for the checks made on
+ * it.
+ */
+@Provider
+@Consumes({MediaType.APPLICATION_JSON, DocumentResource.APPLICATION_CBOR})
+public class DocumentReader implements MessageBodyReader<ByteBuffer> {
+    @Override
+    public boolean isReadable(
+            final Class<?> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType) {
+        return type == ByteBuffer.class;
+    }
+
+    @Override
+    public ByteBuffer readFrom(
+            final Class<ByteBuffer> type,
+            final Type genericType,
+            final Annotation[] annotations,
+            final MediaType mediaType,
+            final MultivaluedMap<String, String> httpHeaders,
+            final InputStream entityStream) throws IOException {
+        return DocumentResource.readDocument(mediaType, entityStream);
+    }
+}
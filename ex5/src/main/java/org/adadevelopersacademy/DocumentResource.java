@@ -1,36 +1,45 @@
 package org.adadevelopersacademy;
 
-// Java's Map is an interface similar to Ruby's Hash, but Java has
-// more than one type of Map. If you want something very similar in
-// behavior to Ruby's Hash you want either a HashMap or a
-// LinkedHashMap. By default in Ruby 2, Ruby's Hash preserves
-// insertion order. LinkedHashMap also provides this same behavior in
-// Java, but if you don't need it, you can get slightly better
-// performance by simply using HashMap, and typically you'll see
-// HashMap used in most Java programs instead of LinkedHashMap.
+import java.io.InputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
-// NavigableMap is an abstract ordered Map collection which provides
-// the lastEntry() operation. I use that below to get an unused
-// document id for creating new documents.
-import java.util.NavigableMap;
-// TreeMap is a concrete implementation of a Map based on a binary
-// search tree. It's somewhat slower than a HashMap for many use
-// cases, but it provides sorted order iteration over the key space.
-import java.util.TreeMap;
 
 import javax.json.Json;
+import javax.json.JsonException;
 import javax.json.JsonObject;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Produces;
 import javax.ws.rs.PUT;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 
+import org.glassfish.jersey.server.ChunkedOutput;
+
 /**
  * Jersey maps a resource onto a portion of the URL space via
  * the @Path annotation. The argument to the @Path annotation
@@ -46,55 +55,14 @@ import javax.ws.rs.WebApplicationException;
 @Path("/document")
 public class DocumentResource {
 
-    // In the prior example, I used a List and ArrayList. These
-    // classes as well as the Map classes are all part of the Java
-    // collection framework. You can read more about collections here:
-    //
-    // http://docs.oracle.com/javase/7/docs/api/java/util/Collection.html
-    //
-    // Java collections since JDK 5 are both generic and strictly
-    // typed which means you must specify what types they can contain
-    // at declaration time. You can read more about generics here:
-    //
-    // https://docs.oracle.com/javase/tutorial/java/generics/
-    //
-    // I didn't explain the syntax below before, but I'll do so now.
-    //
-    // This is a mapping from Integers to JsonObjects. Notice that
-    // Integer is not the same type as int. Integer is a
-    // java.lang.Object. The int type is not. Java generic collections
-    // can only contain Objects. Thus, we must use the Object type
-    // Integer as the key. Java does provide implicit conversions
-    // between primitive types such as int and the corresponding
-    // Object type such as Integer. This operation is called "auto
-    // boxing", and you can read more about it here:
-    //
-    // https://docs.oracle.com/javase/tutorial/java/data/autoboxing.html
-    //
-    // Autoboxing and unboxing allows you to assign to a variable or
-    // pass as an argument to a function an int where an Integer is
-    // expected and vice verse. All of the primitive types have a
-    // matching "boxed" typed. You should know that even though Java
-    // provides this automatic conversion, the conversion is not free,
-    // and a common optimization is to avoid autoboxing.
-    //
-    // The types inside the angle brackets are called "type
-    // parameters" and these declare what types are allowed to be
-    // stored inside the collection.
-    //
-    // In the following declaration, I'm also using a special syntax
-    // that was introduced in Java 7. This is commonly known as the
-    // "diamond operator", but officially, is referred to as "type
-    // inference":
-    //
-    // https://docs.oracle.com/javase/tutorial/java/generics/genTypeInference.html
-    //
-    // Type inference avoids the previously required duplicate type
-    // parameters on the right hand side of an assignment when using a
-    // new expression. The old Java 6 syntax would require that I also
-    // specify "new TreeMap<Integer, JsonObject>();" on the right hand
-    // side as well. You may encounter code that still relies on this
-    // older syntax for compatibility reasons.
+    // In the first version of this example the documents lived in a
+    // static TreeMap declared right here. That was fine for a
+    // single client, but Grizzly calls these methods from many worker
+    // threads at once and a TreeMap is not safe to modify
+    // concurrently. The documents now live behind the DocumentStore
+    // interface so that the storage strategy can be swapped without
+    // touching any of the HTTP code below. Read ConcurrentDocumentStore
+    // for the default implementation.
     //
     // If you're wondering why this declaration is static, I recommend
     // removing the static keyword and trying to get the code to
@@ -102,15 +70,98 @@ public class DocumentResource {
     // that DocumentResource objects are not persistent across
     // different requests to the same service. Making this static
     // allows us to have a single, common document repository.
-    private static final NavigableMap<Integer, JsonObject> DOCUMENTS =
-        new TreeMap<>();
+    //
+    // The volatile keyword guarantees that once setStore() has
+    // replaced the store, every worker thread sees the new value.
+    private static volatile DocumentStore store = new ConcurrentDocumentStore();
+
+    private static final DocumentIdAllocator ALLOCATOR =
+        new DocumentIdAllocator();
+
+    // Every candidate id that create() finds already taken costs one
+    // lookup. This bounds how long a single request will keep
+    // looking before it gives up on a nearly full id space.
+    private static final int MAX_CREATE_ATTEMPTS = 1 << 16;
+
+    // A patch to a document which keeps changing underneath it starts
+    // over at most this many times before the client is asked to try
+    // again, so that a hot document can't keep a worker thread busy
+    // forever.
+    private static final int MAX_PATCH_ATTEMPTS = 16;
+
+    /**
+     * Default for the largest document accepted by PUT and POST.
+     */
+    public static final int DEFAULT_MAX_DOCUMENT_SIZE = 16 * 1024 * 1024;
+
+    private static volatile int maxDocumentSize = DEFAULT_MAX_DOCUMENT_SIZE;
+
+    /**
+     * Media type of a JSON Merge Patch.
+     */
+    public static final String MERGE_PATCH_JSON = "application/merge-patch+json";
+
+    /**
+     * Media type of CBOR, a binary equivalent of JSON. See Cbor.
+     */
+    public static final String APPLICATION_CBOR = "application/cbor";
+    private static final MediaType APPLICATION_CBOR_TYPE =
+        MediaType.valueOf(APPLICATION_CBOR);
+
+    private static final long MAX_TTL_SECONDS = 100L * 366 * 24 * 60 * 60;
+    private static final String GZIP = "gzip";
+    // End the ETags of a document sent as it is kept, gzipped, and of
+    // one sent as CBOR.
+    private static final String GZIP_TAG_SUFFIX = "-gzip";
+    private static final String CBOR_TAG_SUFFIX = "-cbor";
+    // GET responses depend on both of these request headers.
+    private static final String VARY =
+        HttpHeaders.ACCEPT + ", " + HttpHeaders.ACCEPT_ENCODING;
+
+    // Bounds on the number of documents in a page returned by list().
+    private static final String DEFAULT_PAGE_SIZE = "100";
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // The field indexes kept by the store, by field name.
+    private static volatile Map<String, FieldIndex> indexes =
+        Collections.emptyMap();
+
+    // Sends changes to subscribers, or null if there is no feed.
+    private static volatile ChangeStream changes;
+
+    // The store spilling documents to disk, or null if there is no
+    // memory budget.
+    private static volatile TieredDocumentStore tieredStore;
+
+    // Counts the documents in the store for the metrics.
+    private static volatile CountingDocumentStore countingStore;
+
+    // The log-structured store, or null if documents are kept some
+    // other way.
+    private static volatile LsmDocumentStore lsmStore;
+
+    // The store if it lets documents expire, or else null.
+    private static volatile ExpiringDocumentStore expiringStore;
+
+    // The CBOR form of documents recently sent as CBOR.
+    private static volatile CborCache cborCache = new CborCache(0);
+
+    // Sends responses to writes once they are durable, or null if
+    // worker threads wait for the log themselves.
+    private static volatile Executor responders;
+
+    /**
+     * Request header giving the number of seconds until the document
+     * in a PUT or POST expires.
+     */
+    public static final String TTL_HEADER = "Document-TTL";
 
     /**
-     * Method handling HTTP GET requests. The returned object will be
+     * Method handling HTTP GET requests. The returned bytes will be
      * sent to the client as "application/json" media type.
      *
-     * @return JsonObject returned as an application/json response and
-     *     corresponding to the document stored at docId.
+     * @return the serialized JSON of the document stored at docId,
+     *     returned as an application/json response.
      *
      * Notice that Java annotations are stackable. You can have more
      * than one on a single declaration. The whitespace between
@@ -132,89 +183,578 @@ public class DocumentResource {
      * argument. Specifically, the @PathParam annotation says that the
      * previously declared docId parameter in the URL should be passed
      * as the docId argument to this method.
+     *
+     * The store already holds every document as serialized JSON, so
+     * the stored bytes are returned as they are rather than parsed
+     * into a JsonObject only to be serialized again. Read
+     * ByteBufferWriter to see how Jersey writes them out.
+     *
+     * The response carries an ETag header identifying this version of
+     * the document. A client which already has a copy can send the
+     * ETag back in an If-None-Match header, and if the document
+     * hasn't changed it gets an empty 304 Not Modified response
+     * instead of the whole document again. The @Context annotation
+     * asks Jersey for the Request object, which knows how to check
+     * these headers.
+     *
+     * A document stored with a TTL also gets an Expires header, so
+     * that a cache knows when to let go of it.
+     *
+     * A large document may be kept compressed with gzip, see
+     * DocumentCodec. If the client says in its Accept-Encoding header
+     * that it can decompress gzip, it gets those bytes as they are,
+     * with a Content-Encoding header saying so. Otherwise the server
+     * decompresses them. Small documents are never compressed, since
+     * it isn't worth the time on either end. The Vary header tells
+     * caches that the response depends on Accept-Encoding. The gzip
+     * bytes are a different representation of the document, so they
+     * get an ETag of their own, see gzipEntityTag.
+     *
+     * A client whose Accept header prefers application/cbor gets the
+     * document as CBOR instead, see CborCache. The CBOR has an ETag of
+     * its own too, see cborEntityTag, and the Vary header tells caches
+     * that the response depends on Accept as well.
      */
     @GET @Path("{docId: [0-9]+}")
-    @Produces(MediaType.APPLICATION_JSON)
-    public JsonObject get(@PathParam("docId") final int docId) {
-        final JsonObject document = DOCUMENTS.get(docId);
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_CBOR})
+    public Response get(
+            @PathParam("docId") final int docId,
+            @Context final HttpHeaders headers,
+            @Context final Request request) {
+        final boolean cbor = prefersCbor(headers.getAcceptableMediaTypes());
+        final ByteBuffer gzipped =
+            !cbor && acceptsGzip(headers.getHeaderString(HttpHeaders.ACCEPT_ENCODING))
+                ? store.getGzipped(docId) : null;
+        final ByteBuffer document = gzipped == null ? store.get(docId) : gzipped;
         if (document == null) {
             // A more typical Java web service would probably create
             // custom exception classes for each error type, but I
             // didn't do that for this simple example.
             throw new WebApplicationException(Response.Status.NOT_FOUND);
         }
-        return document;
+        final EntityTag tag;
+        if (gzipped != null) {
+            tag = gzipEntityTag(gzipped);
+        } else if (cbor) {
+            tag = cborEntityTag(document);
+        } else {
+            tag = entityTag(document);
+        }
+        // This returns null when the request should go ahead, or
+        // else the response to send instead.
+        final Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.header(HttpHeaders.VARY, VARY).build();
+        }
+        final Response.ResponseBuilder response = (cbor
+                ? Response.ok(cborCache.get(docId, tag.getValue(), document),
+                    APPLICATION_CBOR_TYPE)
+                : Response.ok(document, MediaType.APPLICATION_JSON_TYPE))
+            .tag(tag)
+            .header(HttpHeaders.VARY, VARY);
+        if (gzipped != null) {
+            response.encoding(GZIP);
+        }
+        final ExpiringDocumentStore expiring = expiringStore;
+        if (expiring != null) {
+            // Read once, since the reaper may cancel it at any time.
+            final long deadline = expiring.deadline(docId);
+            if (deadline != Long.MAX_VALUE) {
+                response.expires(new Date(deadline));
+            }
+        }
+        return response.build();
+    }
+
+    /**
+     * Method handling HTTP GET requests for the whole collection. The
+     * documents with ids from "from" to "to" inclusive are returned in
+     * docId order, at most "limit" at a time. When there are more,
+     * the response includes a cursor which can be passed back as the
+     * "cursor" query parameter to get the next page.
+     *
+     * The @QueryParam annotation works just like @PathParam, except
+     * it refers to a parameter in the query string like
+     * "/document?from=10&limit=5". Query parameters are optional, so
+     * @DefaultValue supplies the value used when one is left out.
+     *
+     * @return the page of documents, streamed as an application/json
+     *     response. See DocumentRange for the format.
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public StreamingOutput list(
+            @QueryParam("from") @DefaultValue("0") final int from,
+            @QueryParam("to") @DefaultValue("2147483647") final int to,
+            @QueryParam("limit") @DefaultValue(DEFAULT_PAGE_SIZE) final int limit,
+            @QueryParam("cursor") final String cursor) {
+        if (from < 0 || to < from || limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new WebApplicationException(
+                "from must not be negative or greater than to, and limit must be "
+                    + "from 1 to " + MAX_PAGE_SIZE, Response.Status.BAD_REQUEST);
+        }
+        if (cursor == null) {
+            return new DocumentRange(store, from, to, limit);
+        }
+        try {
+            return DocumentRange.fromCursor(store, cursor, limit);
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(
+                e.getMessage(), Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Method handling queries on an indexed field. With "eq", this
+     * returns the documents whose field equals the value. With "from"
+     * and/or "to", which need a sorted index, it returns the
+     * documents whose field is in that range. Values are written as
+     * JSON, so 42 is a number and "42" is a string, but other strings
+     * don't need quotes.
+     *
+     * A field without an index is an error rather than a slow scan of
+     * every document.
+     *
+     * @return the matching documents, streamed as an application/json
+     *     response in the same format as a multi-get
+     */
+    @GET @Path("_query")
+    @Produces(MediaType.APPLICATION_JSON)
+    public StreamingOutput query(
+            @QueryParam("field") final String field,
+            @QueryParam("eq") final String eq,
+            @QueryParam("from") final String from,
+            @QueryParam("to") final String to,
+            @QueryParam("limit") @DefaultValue(DEFAULT_PAGE_SIZE) final int limit) {
+        final FieldIndex index = indexes.get(field);
+        if (index == null) {
+            throw new WebApplicationException(
+                "No index on field " + field, Response.Status.BAD_REQUEST);
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new WebApplicationException(
+                "limit must be from 1 to " + MAX_PAGE_SIZE,
+                Response.Status.BAD_REQUEST);
+        }
+        final int[] ids;
+        if (eq != null) {
+            ids = index.equal(FieldIndex.parseKey(eq), limit);
+        } else if (index.kind() == FieldIndex.Kind.SORTED) {
+            ids = index.range(keyOrNull(from), keyOrNull(to), limit);
+        } else {
+            throw new WebApplicationException(
+                "The index on " + field + " only supports eq",
+                Response.Status.BAD_REQUEST);
+        }
+        return DocumentBatch.found(store, ids);
+    }
+
+    /**
+     * Method handling subscriptions to the change feed. The response
+     * is a stream of Server-Sent Events, one for every change made
+     * from now on, which stays open until the client closes it. See
+     * ChangeStream for the format.
+     *
+     * A client which reconnects can resume where it left off by
+     * passing the id of the last event it saw, either as "since" or in
+     * the Last-Event-ID header which browsers send by themselves.
+     *
+     * @return the stream of events
+     */
+    @GET @Path("_changes")
+    @Produces(ChangeStream.EVENT_STREAM)
+    public ChunkedOutput<String> changes(
+            @QueryParam("since") final String since,
+            @HeaderParam("Last-Event-ID") final String lastEventId) {
+        final ChangeStream stream = changes;
+        if (stream == null) {
+            throw new WebApplicationException(
+                "There is no change feed", Response.Status.NOT_FOUND);
+        }
+        // A reconnecting browser sends the URL it first used, so the
+        // header is more recent than the query parameter.
+        final String resumeAfter = lastEventId == null ? since : lastEventId;
+        if (resumeAfter == null) {
+            return stream.subscribe(null);
+        }
+        try {
+            return stream.subscribe(Long.parseLong(resumeAfter.trim()));
+        } catch (final NumberFormatException e) {
+            throw new WebApplicationException(
+                "Malformed event id", Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Method handling a follower's replication stream. The response
+     * stays open, carrying every change from the one after "since"
+     * onwards, until the follower goes away or this server stops. See
+     * ReplicationStream for the format and Follower for the reader.
+     *
+     * Without "since", or when the changes after it are no longer
+     * kept, the stream starts with a copy of every document.
+     *
+     * Each stream has a thread of its own, so when as many are being
+     * sent as Replication allows, this fails with 503 Service
+     * Unavailable.
+     *
+     * @return the stream of changes
+     */
+    @GET @Path("_replication")
+    @Produces(ReplicationStream.MEDIA_TYPE)
+    public ChunkedOutput<byte[]> replication(@QueryParam("since") final Long since) {
+        final ChangeFeed feed = Replication.getFeed();
+        if (feed == null) {
+            throw new WebApplicationException(
+                "There is no change feed", Response.Status.NOT_FOUND);
+        }
+        final Semaphore streams = Replication.getStreams();
+        if (!streams.tryAcquire()) {
+            throw new WebApplicationException(Response
+                .status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "1")
+                .entity("Too many followers")
+                .build());
+        }
+        return new ReplicationStream(feed, store, since, streams).start();
+    }
+
+    /**
+     * Method handling requests for statistics about how well the
+     * memory budget is working: how many reads found their document
+     * in memory, and how much has been written to and read back from
+     * disk.
+     *
+     * @return the statistics as an application/json response
+     */
+    @GET @Path("_stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public JsonObject stats() {
+        final TieredDocumentStore tiered = tieredStore;
+        if (tiered == null) {
+            throw new WebApplicationException(
+                "There is no memory budget", Response.Status.NOT_FOUND);
+        }
+        return Json
+            .createObjectBuilder()
+            .add("memoryBytes", tiered.memoryBytes())
+            .add("spilledDocuments", tiered.spilledDocuments())
+            .add("hits", tiered.hits())
+            .add("faults", tiered.faults())
+            .add("hitRatio", tiered.hitRatio())
+            .add("faultBytes", tiered.faultBytes())
+            .add("spills", tiered.spills())
+            .add("spillBytes", tiered.spillBytes())
+            .build();
     }
 
     /**
      * Method handling HTTP PUT requests. The returned object will be
      * sent to the client as "application/json" media type.
      *
+     * Jersey could parse the request body into a JsonObject for us,
+     * but a large document would then sit in memory as a big tree of
+     * Java objects. Asking for a ByteBuffer instead has DocumentReader
+     * hand us the raw body, which readDocument() checks and copies as
+     * it streams by.
+     *
+     * Like GET, this also accepts and returns CBOR, which is cheaper
+     * for a client to produce and parse than JSON text. The document
+     * is converted to JSON before it is stored.
+     *
+     * A PUT with an If-Match header only replaces the document if its
+     * ETag still matches, and otherwise fails with 412 Precondition
+     * Failed. Two clients which both read a document, change it and
+     * PUT it back can't silently overwrite each other's changes this
+     * way. "If-None-Match: *" only stores the document if there isn't
+     * one yet.
+     *
+     * With a Document-TTL header, the document is removed that many
+     * seconds later. Without one, it stays until it is deleted, even
+     * if the document it replaces had a TTL.
+     *
      * @param docId Document id to insert or modify
      * @param document Content of document to be updated
-     * @return JsonObject returned as an application/json response and
-     *     containing the updated document value.
+     * @return the updated document value, returned as an
+     *     application/json or application/cbor response.
      */
     @PUT @Path("{docId: [0-9]+}")
-    @Consumes(MediaType.APPLICATION_JSON)
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_CBOR})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_CBOR})
+    public void set(
+            @PathParam("docId") final int docId,
+            @Context final HttpHeaders headers,
+            @Context final Request request,
+            final ByteBuffer document,
+            @Suspended final AsyncResponse async) {
+        final DeferredSync deferred = deferSync();
+        try {
+            resume(async, deferred, setNow(docId, headers, request, document));
+        } finally {
+            DeferredSync.end();
+        }
+    }
+
+    private static Response setNow(
+            final int docId,
+            final HttpHeaders headers,
+            final Request request,
+            final ByteBuffer document) {
+        final long deadline = deadline(headers.getHeaderString(TTL_HEADER));
+        if (headers.getHeaderString(HttpHeaders.IF_MATCH) == null
+                && headers.getHeaderString(HttpHeaders.IF_NONE_MATCH) == null) {
+            if (deadline == Long.MAX_VALUE) {
+                store.put(docId, document);
+            } else {
+                expiringStore.put(docId, document, deadline);
+            }
+        } else {
+            // Checking the ETag and then storing the document isn't
+            // atomic, so another PUT could sneak in between. Storing
+            // only succeeds if the document is still the one that
+            // was checked, which catches that.
+            final ByteBuffer current = store.get(docId);
+            final Response.ResponseBuilder failed =
+                evaluatePreconditions(docId, headers, request, current);
+            if (failed != null) {
+                return failed.build();
+            }
+            final boolean stored;
+            if (deadline != Long.MAX_VALUE) {
+                stored = current == null
+                    ? expiringStore.putIfAbsent(docId, document, deadline)
+                    : expiringStore.replace(docId, current, document, deadline);
+            } else if (current == null) {
+                stored = store.putIfAbsent(docId, document);
+            } else {
+                stored = store.replace(docId, current, document);
+            }
+            if (!stored) {
+                return Response.status(Response.Status.PRECONDITION_FAILED).build();
+            }
+        }
+        if (prefersCbor(headers.getAcceptableMediaTypes())) {
+            // Converting it now saves converting it on the next GET.
+            final EntityTag tag = cborEntityTag(document);
+            return Response
+                .ok(cborCache.get(docId, tag.getValue(), document), APPLICATION_CBOR_TYPE)
+                .tag(tag)
+                .build();
+        }
+        return Response.ok(document, MediaType.APPLICATION_JSON_TYPE)
+            .tag(entityTag(document))
+            .build();
+    }
+
+    /**
+     * Method handling HTTP PATCH requests, which change part of a
+     * document. The request body is a JSON Merge Patch. See MergePatch
+     * for how it is applied. Like PUT, this supports If-Match.
+     *
+     * The patch is applied to the document as it is now, and the
+     * result is stored only if nobody has changed the document in the
+     * meantime. Otherwise it starts over with the newer document.
+     * This is called "optimistic concurrency." Patches to the same
+     * document never lose each other's changes, and yet nothing is
+     * locked while the patch is applied. If the document changes
+     * every time, the request gives up with 409 Conflict.
+     *
+     * @param docId Document id to modify
+     * @param body Merge patch to apply
+     * @return the patched document, returned as an application/json
+     *     response.
+     */
+    @PATCH @Path("{docId: [0-9]+}")
+    @Consumes(MERGE_PATCH_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public JsonObject set(
+    public void patch(
             @PathParam("docId") final int docId,
-            final JsonObject document) {
-        DOCUMENTS.put(docId, document);
-        return document;
+            @Context final HttpHeaders headers,
+            @Context final Request request,
+            final InputStream body,
+            @Suspended final AsyncResponse async) throws IOException {
+        final ByteBuffer patch = readDocument(body);
+        final DeferredSync deferred = deferSync();
+        try {
+            resume(async, deferred, patchNow(docId, headers, request, patch));
+        } finally {
+            DeferredSync.end();
+        }
+    }
+
+    private static Response patchNow(
+            final int docId,
+            final HttpHeaders headers,
+            final Request request,
+            final ByteBuffer patch) {
+        for (int attempt = 0; attempt < MAX_PATCH_ATTEMPTS; attempt++) {
+            final ByteBuffer current = store.get(docId);
+            if (current == null) {
+                throw new WebApplicationException(Response.Status.NOT_FOUND);
+            }
+            final Response.ResponseBuilder failed =
+                evaluatePreconditions(docId, headers, request, current);
+            if (failed != null) {
+                return failed.build();
+            }
+            final ByteBuffer document = MergePatch.apply(current, patch);
+            if (store.patch(docId, current, document, patch)) {
+                return Response.ok(document).tag(entityTag(document)).build();
+            }
+        }
+        throw new WebApplicationException(
+            "The document kept changing while it was patched",
+            Response.Status.CONFLICT);
     }
 
     /**
      * Method handling HTTP POST requests. The returned object will be
      * sent to the client as "application/json" media type. Newly
-     * created documents are given a new document id greater than any
-     * existing documents.
+     * created documents are given a document id which was not in use
+     * at the time of the request. Like PUT, this accepts a
+     * Document-TTL header.
      *
-     * @return JsonObject returned as an application/json response and
-     *     containing the document id of the newly created document.
+     * @return JSON object returned as an application/json or
+     *     application/cbor response and containing the document id of
+     *     the newly created document.
      */
     @POST
+    @Consumes({MediaType.APPLICATION_JSON, APPLICATION_CBOR})
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_CBOR})
+    public void create(
+            @HeaderParam(TTL_HEADER) final String ttl,
+            final ByteBuffer bytes,
+            @Suspended final AsyncResponse async) {
+        final long deadline = deadline(ttl);
+        final DeferredSync deferred = deferSync();
+        try {
+            resume(async, deferred, createNow(deadline, bytes));
+        } finally {
+            DeferredSync.end();
+        }
+    }
+
+    private static ByteBuffer createNow(final long deadline, final ByteBuffer bytes) {
+        // An earlier version of this method took the greatest key
+        // in the store and added one to it. That was a race since two
+        // concurrent creates could pick the same id, and a single PUT
+        // at Integer.MAX_VALUE made every later create fail.
+        //
+        // Instead the allocator hands out candidate ids without
+        // looking at the store, and putIfAbsent claims a candidate
+        // only if nobody has PUT a document there in the meantime.
+        // A taken candidate is simply skipped.
+        for (int attempt = 0; attempt < MAX_CREATE_ATTEMPTS; attempt++) {
+            final int docId = ALLOCATOR.allocate();
+            if (docId == DocumentIdAllocator.NO_ID) {
+                // In a cluster, this node owns too little of the ring
+                // to find an id. That may change with the ring.
+                throw new WebApplicationException(
+                    "No docId owned by this node", Response.Status.SERVICE_UNAVAILABLE);
+            }
+            final boolean stored = deadline == Long.MAX_VALUE
+                ? store.putIfAbsent(docId, bytes)
+                : expiringStore.putIfAbsent(docId, bytes, deadline);
+            if (stored) {
+                // Chained method calls like this are very common in
+                // Java. They are sometimes called "fluent interfaces":
+                //
+                // https://en.wikipedia.org/wiki/Fluent_interface
+                return JsonBytes.serialize(Json
+                    .createObjectBuilder()
+                    .add("docId", docId)
+                    .build());
+            }
+        }
+        throw new WebApplicationException(
+            "No available docId", Response.Status.FORBIDDEN);
+    }
+
+    /**
+     * Method handling multi-get requests. Many documents can be read
+     * with a single request, which saves the cost of a round trip
+     * for each of them. See DocumentBatch for the formats.
+     *
+     * Paths starting with an underscore can never be mistaken for a
+     * docId, which is only ever made of digits.
+     *
+     * @return the documents, streamed as an application/json response
+     */
+    @POST @Path("_mget")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public JsonObject create(final JsonObject document) {
-        // This is a very naive way of finding an unallocated document
-        // id. We can just take the greatest key currently present and
-        // add one to it. For this simple example, it is sufficient,
-        // but keep in mind that it can be easily fooled into thinking
-        // the entire collection is full by first putting a value at a
-        // very large id.
-        int docId = 0;
-        final Map.Entry<Integer, JsonObject> lastEntry = DOCUMENTS.lastEntry();
-        if (lastEntry != null) {
-            docId = lastEntry.getKey() + 1;
-        }
-        // Something that may not be obvious coming from Ruby is that
-        // integers are fixed precision, and in Java the size of each
-        // of the primitive types is fixed. So an int in Java is
-        // exactly 32-bits and a long is 64-bits. They are also both
-        // signed, so this means the largest positive number that can
-        // be represented for an int is (2**31)-1 or 2147483647. If
-        // you try to add two numbers that exceed this value, you will
-        // roll over to the negative side. This is called integer
-        // overflow.
-        //
-        // If docId is less than zero, the only way it could have
-        // reached that value was due to overflow. Thus, this check
-        // prevents negative document IDs.
-        if (docId < 0) {
+    public StreamingOutput multiGet(final InputStream body) throws IOException {
+        final JsonObject request = JsonBytes.parse(readDocument(body));
+        try {
+            return DocumentBatch.documents(store, DocumentBatch.readIds(request));
+        } catch (final IllegalArgumentException e) {
             throw new WebApplicationException(
-                "No available docId", Response.Status.FORBIDDEN);
+                e.getMessage(), Response.Status.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Method handling bulk requests, which store and remove many
+     * documents at once. The changes are made in a single batch, so
+     * with a write-ahead log the whole request waits for the disk
+     * only once. See DocumentBatch for the formats.
+     *
+     * @return the result of each change, streamed as an
+     *     application/json response
+     */
+    @POST @Path("_bulk")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public void bulk(
+            final InputStream body,
+            @Suspended final AsyncResponse async) throws IOException {
+        final ByteBuffer request = readDocument(body);
+        final List<Map.Entry<Integer, ByteBuffer>> changes;
+        try {
+            changes = DocumentBatch.readChanges(request);
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(
+                e.getMessage(), Response.Status.BAD_REQUEST);
+        }
+        final DeferredSync deferred = deferSync();
+        try {
+            resume(async, deferred, bulkNow(changes));
+        } finally {
+            DeferredSync.end();
+        }
+    }
+
+    private static StreamingOutput bulkNow(
+            final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        final boolean[] results = store.writeAll(changes);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] && changes.get(i).getValue() == null) {
+                ALLOCATOR.release(changes.get(i).getKey());
+            }
+        }
+        return DocumentBatch.results(changes, results);
+    }
+
+    /**
+     * Method handling HTTP DELETE requests. The id of a deleted
+     * document may be handed out again by a later create.
+     *
+     * @param docId Document id to delete
+     */
+    @DELETE @Path("{docId: [0-9]+}")
+    public void delete(
+            @PathParam("docId") final int docId,
+            @Suspended final AsyncResponse async) {
+        final DeferredSync deferred = deferSync();
+        try {
+            if (!store.remove(docId)) {
+                throw new WebApplicationException(Response.Status.NOT_FOUND);
+            }
+            ALLOCATOR.release(docId);
+            resume(async, deferred, Response.noContent().build());
+        } finally {
+            DeferredSync.end();
         }
-        DOCUMENTS.put(docId, document);
-        // Chained method calls like this are very common in
-        // Java. They are sometimes called "fluent interfaces":
-        //
-        // https://en.wikipedia.org/wiki/Fluent_interface
-        return Json
-            .createObjectBuilder()
-            .add("docId", docId)
-            .build();
     }
 
     /**
@@ -226,6 +766,401 @@ public class DocumentResource {
      * Proceed to reading DocumentResourceTest.java
      */
     public static void clear() {
-        DOCUMENTS.clear();
+        store.clear();
+        ALLOCATOR.reset();
+    }
+
+    /**
+     * Replaces the store used by every DocumentResource. The store may
+     * already contain documents, for example after replaying a log.
+     *
+     * @param documentStore Store to use for all future requests
+     */
+    public static void setStore(final DocumentStore documentStore) {
+        if (documentStore == null) {
+            throw new IllegalArgumentException("documentStore must not be null");
+        }
+        store = documentStore;
+        if (documentStore instanceof ExpiringDocumentStore) {
+            expiringStore = (ExpiringDocumentStore) documentStore;
+        } else {
+            expiringStore = null;
+        }
+        ALLOCATOR.reset();
+        // Start allocating after the existing documents so that
+        // create() doesn't have to skip over all of them one by one.
+        final int lastDocId = documentStore.lastDocId();
+        if (lastDocId >= 0 && lastDocId < Integer.MAX_VALUE) {
+            ALLOCATOR.advanceTo(lastDocId + 1);
+        }
+    }
+
+    /**
+     * Replaces the cache of documents in CBOR form.
+     */
+    static void setCborCache(final CborCache cache) {
+        cborCache = cache;
+    }
+
+    /**
+     * Sets the largest document, in bytes, accepted by PUT and POST.
+     */
+    public static void setMaxDocumentSize(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive");
+        }
+        maxDocumentSize = size;
+    }
+
+    /**
+     * Returns the largest document, in bytes, accepted by PUT and POST.
+     */
+    static int getMaxDocumentSize() {
+        return maxDocumentSize;
+    }
+
+    /**
+     * Replaces the field indexes used by query(). They should be the
+     * indexes kept up to date by the store.
+     *
+     * @param fieldIndexes Indexes by field name
+     */
+    public static void setIndexes(final Map<String, FieldIndex> fieldIndexes) {
+        indexes = fieldIndexes;
+    }
+
+    /**
+     * Replaces the stream serving change feed subscriptions. It should
+     * send the changes published by the store.
+     *
+     * @param changeStream Stream to subscribe clients to, or null to
+     *     turn subscriptions off
+     */
+    public static void setChanges(final ChangeStream changeStream) {
+        changes = changeStream;
+    }
+
+    /**
+     * Returns the stream serving change feed subscriptions, or null
+     * if there is none.
+     */
+    static ChangeStream getChanges() {
+        return changes;
+    }
+
+    /**
+     * Sets the store whose statistics stats() returns.
+     *
+     * @param tiered Store spilling documents to disk, or null if there
+     *     is none
+     */
+    public static void setTieredStore(final TieredDocumentStore tiered) {
+        tieredStore = tiered;
+    }
+
+    static TieredDocumentStore getTieredStore() {
+        return tieredStore;
+    }
+
+    /**
+     * Sets the log-structured store whose tables are reported in the
+     * metrics, or null if there is none.
+     */
+    public static void setLsmStore(final LsmDocumentStore lsm) {
+        lsmStore = lsm;
+    }
+
+    static LsmDocumentStore getLsmStore() {
+        return lsmStore;
+    }
+
+    /**
+     * Sets the store which counts documents for the metrics.
+     */
+    public static void setCountingStore(final CountingDocumentStore counting) {
+        countingStore = counting;
+    }
+
+    static CountingDocumentStore getCountingStore() {
+        return countingStore;
+    }
+
+    /**
+     * Limits the ids handed out by create() to those in partition, or
+     * lifts the limit if it is null. See Cluster.
+     */
+    public static void setPartition(final DocumentIdAllocator.Partition partition) {
+        ALLOCATOR.setPartition(partition);
+    }
+
+    static DocumentIdAllocator getAllocator() {
+        return ALLOCATOR;
+    }
+
+    /**
+     * Sets the executor which sends the responses to writes once they
+     * are durable, or null to have worker threads wait for the log
+     * themselves. See DeferredSync.
+     *
+     * @param executor Threads which send responses
+     */
+    public static void setResponders(final Executor executor) {
+        responders = executor;
+    }
+
+    /**
+     * Starts deferring waits for the log on the calling thread if
+     * writes are asynchronous.
+     *
+     * @return the deferral, or null if the thread waits itself
+     */
+    private static DeferredSync deferSync() {
+        return responders == null ? null : DeferredSync.begin();
+    }
+
+    /**
+     * Sends response once the changes made since deferSync are
+     * durable, or straight away if the thread has already waited.
+     */
+    private static void resume(
+            final AsyncResponse async,
+            final DeferredSync deferred,
+            final Object response) {
+        if (deferred == null) {
+            async.resume(response);
+            return;
+        }
+        final Executor executor = responders;
+        deferred.whenDurable(new WriteAheadLog.Listener() {
+            @Override
+            public void durable(final IOException failure) {
+                // This may be on the log's flushing thread, which has
+                // better things to do than write out responses.
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (failure == null) {
+                            async.resume(response);
+                        } else {
+                            async.resume(new DocumentStoreException(
+                                "Unable to write log", failure));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the deadline in milliseconds for a document with the
+     * given TTL header, or Long.MAX_VALUE if there is none.
+     */
+    private static long deadline(final String ttl) {
+        if (ttl == null) {
+            return Long.MAX_VALUE;
+        }
+        if (expiringStore == null) {
+            throw new WebApplicationException(
+                "This store doesn't support " + TTL_HEADER,
+                Response.Status.BAD_REQUEST);
+        }
+        long seconds;
+        try {
+            seconds = Long.parseLong(ttl.trim());
+        } catch (final NumberFormatException e) {
+            // This is rejected below like any other bad TTL.
+            seconds = 0;
+        }
+        // A TTL of more than a hundred years is as good as none, and
+        // capping it keeps the deadline from overflowing.
+        if (seconds <= 0 || seconds > MAX_TTL_SECONDS) {
+            throw new WebApplicationException(
+                TTL_HEADER + " must be a positive number of seconds",
+                Response.Status.BAD_REQUEST);
+        }
+        return System.currentTimeMillis() + seconds * 1000;
+    }
+
+    private static Object keyOrNull(final String value) {
+        if (value == null) {
+            return null;
+        }
+        return FieldIndex.parseKey(value);
+    }
+
+    /**
+     * Returns the ETag for a document, which is a hash of its bytes.
+     *
+     * Storing a version number with every document would mean
+     * changing every store, the log and the snapshot format. A hash of
+     * the content works just as well for telling versions apart, as
+     * long as it's hard for two different documents to get the same
+     * one. A checksum like CRC-32 isn't enough for that, since a client
+     * could make a document which matches an ETag on purpose.
+     */
+    static EntityTag entityTag(final ByteBuffer document) {
+        return new EntityTag(md5(document));
+    }
+
+    /**
+     * Returns the ETag for a document kept as a gzip stream, which is
+     * a hash of the gzip bytes, so they don't have to be decompressed.
+     * A strong ETag promises the same bytes, and these are different
+     * bytes from the document itself, so the ETag ends in -gzip to
+     * keep it apart from that of the document.
+     */
+    static EntityTag gzipEntityTag(final ByteBuffer gzipped) {
+        return new EntityTag(md5(gzipped) + GZIP_TAG_SUFFIX);
+    }
+
+    /**
+     * Returns the ETag for a document sent as CBOR. The CBOR is made
+     * from the document the same way every time, so the hash of the
+     * document tells its versions apart too, but the ETag ends in
+     * -cbor to keep it apart from that of the JSON.
+     */
+    static EntityTag cborEntityTag(final ByteBuffer document) {
+        return new EntityTag(md5(document) + CBOR_TAG_SUFFIX);
+    }
+
+    private static String md5(final ByteBuffer bytes) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5.
+            throw new IllegalStateException(e);
+        }
+        digest.update(bytes.duplicate());
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    /**
+     * Checks the If-Match and If-None-Match headers of a write against
+     * current, the document as it is now, or null if there isn't one.
+     *
+     * A client may have its ETag from the gzip bytes of the document,
+     * or from its CBOR, so when an If-Match fails with the ETag of the
+     * JSON, it is tried again with the ETag of the representation it
+     * names. That is only done without If-None-Match, for which a
+     * second try could let through a write that ought to fail.
+     *
+     * @return null if the write should go ahead, or else the response
+     *     to send instead
+     */
+    private static Response.ResponseBuilder evaluatePreconditions(
+            final int docId,
+            final HttpHeaders headers,
+            final Request request,
+            final ByteBuffer current) {
+        if (current == null) {
+            return request.evaluatePreconditions();
+        }
+        final Response.ResponseBuilder failed =
+            request.evaluatePreconditions(entityTag(current));
+        final String ifMatch = headers.getHeaderString(HttpHeaders.IF_MATCH);
+        if (failed == null || ifMatch == null
+                || headers.getHeaderString(HttpHeaders.IF_NONE_MATCH) != null) {
+            return failed;
+        }
+        if (ifMatch.contains(CBOR_TAG_SUFFIX)
+                && request.evaluatePreconditions(cborEntityTag(current)) == null) {
+            return null;
+        }
+        if (ifMatch.contains(GZIP_TAG_SUFFIX)) {
+            // If the document changed since current was read, the
+            // write fails anyway, since it only replaces current.
+            final ByteBuffer gzipped = store.getGzipped(docId);
+            if (gzipped != null
+                    && request.evaluatePreconditions(gzipEntityTag(gzipped)) == null) {
+                return null;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Returns whether an Accept-Encoding header allows gzip, which it
+     * does if it lists gzip without a zero quality value. If it
+     * doesn't list gzip at all, "*" speaks for it instead.
+     */
+    static boolean acceptsGzip(final String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        boolean any = false;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] parts = coding.split(";");
+            final String name = parts[0].trim();
+            final boolean gzip = GZIP.equalsIgnoreCase(name);
+            if (!gzip && !"*".equals(name)) {
+                continue;
+            }
+            boolean refused = false;
+            for (int i = 1; i < parts.length; i++) {
+                final String parameter = parts[i].trim().replace(" ", "");
+                refused |= parameter.matches("[qQ]=0(\\.0*)?");
+            }
+            if (gzip) {
+                return !refused;
+            }
+            any = !refused;
+        }
+        return any;
+    }
+
+    /**
+     * Returns whether the first of the acceptable media types, in the
+     * client's order of preference, which the server can produce is
+     * CBOR. Any wildcard prefers JSON.
+     */
+    static boolean prefersCbor(final List<MediaType> acceptable) {
+        for (final MediaType type : acceptable) {
+            if (type.isCompatible(MediaType.APPLICATION_JSON_TYPE)) {
+                return false;
+            }
+            if (type.isCompatible(APPLICATION_CBOR_TYPE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads and checks a JSON object from a request body.
+     *
+     * @return the bytes of the document
+     */
+    private static ByteBuffer readDocument(final InputStream body) throws IOException {
+        return readDocument(MediaType.APPLICATION_JSON_TYPE, body);
+    }
+
+    /**
+     * Reads and checks a JSON object, or a CBOR map which is converted
+     * to a JSON object, from a request body.
+     *
+     * @return the bytes of the document, as JSON
+     */
+    static ByteBuffer readDocument(final MediaType mediaType, final InputStream body)
+            throws IOException {
+        try {
+            if (mediaType != null && mediaType.isCompatible(APPLICATION_CBOR_TYPE)) {
+                return Cbor.toJson(body, maxDocumentSize);
+            }
+            return JsonBytes.read(body, maxDocumentSize);
+        } catch (final JsonException e) {
+            throw new WebApplicationException(
+                e.getMessage(), Response.Status.BAD_REQUEST);
+        } catch (final DocumentTooLargeException e) {
+            throw new WebApplicationException(
+                e.getMessage(), Response.Status.REQUEST_ENTITY_TOO_LARGE);
+        }
+    }
+
+    /**
+     * Returns the store used by every DocumentResource.
+     */
+    static DocumentStore getStore() {
+        return store;
     }
 }
@@ -0,0 +1,121 @@
+package org.adadevelopersacademy;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DocumentStore is the storage abstraction behind {@link
+ * DocumentResource}. The resource only deals with HTTP concerns, and
+ * anything to do with keeping documents around is delegated to an
+ * implementation of this interface.
+ *
+ * Documents are stored as their serialized UTF-8 JSON bytes rather
+ * than as JsonObjects. A ByteBuffer is used to pass the bytes around
+ * since, unlike a byte[], it can also refer to memory outside of the
+ * Java heap. A store may keep a reference to a buffer passed to put,
+ * so callers must not modify it afterwards, and callers must not
+ * modify a buffer returned by get either.
+ *
+ * Implementations must be safe to call from many threads at once
+ * since Grizzly dispatches requests from a pool of worker threads.
+ *
+ * A DocumentStore is Closeable since some implementations hold on to
+ * files or threads which need to be released when the server stops.
+ *
+ * For the default implementation, see {@link ConcurrentDocumentStore}.
+ */
+public interface DocumentStore extends Closeable {
+    /**
+     * Returns the bytes of the document stored at docId or null if
+     * there is no such document.
+     */
+    ByteBuffer get(int docId);
+
+    /**
+     * Returns the document stored at docId as a gzip stream, if that
+     * is how the store keeps it, so that it can be sent to a client
+     * which accepts gzip without decompressing it. Returns null if
+     * there is no such document or it isn't kept compressed with
+     * gzip, and then get has to be used instead.
+     */
+    ByteBuffer getGzipped(int docId);
+
+    /**
+     * Stores document at docId replacing any existing document.
+     */
+    void put(int docId, ByteBuffer document);
+
+    /**
+     * Stores document at docId only if there is no document there
+     * yet. Checking and storing happen as a single atomic step.
+     *
+     * @return true if the document was stored
+     */
+    boolean putIfAbsent(int docId, ByteBuffer document);
+
+    /**
+     * Stores document at docId only if the document there now has
+     * exactly the same bytes as expected. Checking and storing happen
+     * as a single atomic step.
+     *
+     * @return true if the document was stored
+     */
+    boolean replace(int docId, ByteBuffer expected, ByteBuffer document);
+
+    /**
+     * Like replace, but also given the {@link MergePatch} which turns
+     * expected into document. A store which records changes can then
+     * record just the patch, which is usually much smaller than the
+     * whole document.
+     *
+     * @return true if the document was stored
+     */
+    boolean patch(int docId, ByteBuffer expected, ByteBuffer document, ByteBuffer patch);
+
+    /**
+     * Deletes the document stored at docId.
+     *
+     * @return true if there was a document to delete
+     */
+    boolean remove(int docId);
+
+    /**
+     * Applies a batch of changes in order. An entry with a document
+     * stores it at its docId like put, and an entry with a null
+     * document removes the docId like remove.
+     *
+     * Each change on its own is atomic, but the batch as a whole is
+     * not. Other threads may see some of the changes before the rest
+     * have been made. A store may be able to make a batch faster than
+     * the same changes one at a time, for example by waiting for the
+     * disk only once.
+     *
+     * @return for each change, true if it was a put or a remove of an
+     *     existing document
+     */
+    boolean[] writeAll(List<Map.Entry<Integer, ByteBuffer>> changes);
+
+    /**
+     * Returns the documents with ids from fromDocId to toDocId
+     * inclusive in increasing docId order.
+     *
+     * The iterator is "weakly consistent." It never throws a
+     * ConcurrentModificationException, and it may or may not reflect
+     * changes made while iterating.
+     */
+    Iterator<Map.Entry<Integer, ByteBuffer>> scan(int fromDocId, int toDocId);
+
+    /**
+     * Returns the greatest document id currently stored or -1 if the
+     * store is empty.
+     */
+    int lastDocId();
+
+    /**
+     * Deletes all stored documents.
+     */
+    void clear();
+}
@@ -0,0 +1,21 @@
+package org.adadevelopersacademy;
+
+/**
+ * Thrown when a DocumentStore fails for reasons outside of the
+ * caller's control, such as an IOException while writing to disk.
+ *
+ * This is an unchecked exception since the DocumentStore methods
+ * don't declare any checked exceptions. Jersey turns any unchecked
+ * exception that escapes a resource method into a 500 Internal
+ * Server Error response.
+ */
+public class DocumentStoreException extends RuntimeException {
+    // Exceptions are Serializable, and serializable classes should
+    // declare a version number. The compiler warns about it
+    // otherwise, and our build treats warnings as errors.
+    private static final long serialVersionUID = 1L;
+
+    public DocumentStoreException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,18 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading a document which turns out to be larger than
+ * the configured limit.
+ *
+ * This is an IOException since it is detected while reading the
+ * request body, part way through the stream.
+ */
+public class DocumentTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public DocumentTooLargeException(final String message) {
+        super(message);
+    }
+}
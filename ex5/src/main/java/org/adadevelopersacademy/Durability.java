@@ -0,0 +1,31 @@
+package org.adadevelopersacademy;
+
+/**
+ * Durability selects when a write to the {@link WriteAheadLog} is
+ * forced to disk relative to the response being sent.
+ *
+ * This is an "enum" type. Unlike Ruby symbols, the set of allowed
+ * values is fixed at compile time, and the compiler will reject any
+ * value that isn't listed here.
+ */
+public enum Durability {
+    /**
+     * Every request waits until its record has been forced to disk.
+     * Requests that arrive together still share one fsync.
+     */
+    SYNC,
+
+    /**
+     * Records are forced to disk by a background thread every few
+     * milliseconds, and every request waits for the next force. This
+     * is known as "group commit."
+     */
+    GROUP,
+
+    /**
+     * Records are forced to disk by a background thread, but requests
+     * don't wait for it. A crash can lose the last few milliseconds
+     * of writes.
+     */
+    ASYNC
+}
@@ -0,0 +1,381 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.Map;
+
+/**
+ * DurableDocumentStore wraps another DocumentStore and records every
+ * change to it in a {@link WriteAheadLog}.
+ *
+ * This is an example of the "decorator" pattern. The wrapped store
+ * still does all of the actual storing, and this class only adds
+ * logging around it. Any DocumentStore can be made durable this way.
+ *
+ * Two concurrent puts to the same docId must reach the log in the
+ * same order in which they reach the wrapped store, or replaying the
+ * log would bring back the wrong document. Each docId maps onto one
+ * of a fixed number of locks, and a change holds that lock while it
+ * updates the store and appends to the log. Changes to documents on
+ * different locks don't wait on each other. Waiting for the log to
+ * reach the disk happens after the lock is released, so a slow fsync
+ * never blocks other writers.
+ *
+ * Before any change is accepted, the log has to be replayed into the
+ * wrapped store by calling {@link #recover} or {@link
+ * #recoverInBackground}. While a background replay is running, reads
+ * are answered with whatever the wrapped store holds so far, which
+ * with a {@link SnapshotDocumentStore} is the state as of the last
+ * snapshot, and writes wait for the replay to finish.
+ *
+ * {@link #snapshot} saves the wrapped store as a {@link Snapshot}
+ * without stopping writers. The log is rotated first, and the
+ * snapshot is taken afterwards. A change which happens while the
+ * snapshot is being written may or may not end up in it, but either
+ * way it is in the new log segment. Replaying a put or remove twice
+ * leaves the same result, so replaying that segment on top of the
+ * snapshot always gets back to the right state.
+ */
+public class DurableDocumentStore implements DocumentStore {
+    private static final int STRIPES = 64;
+    private static final Logger LOGGER =
+        Logger.getLogger(DurableDocumentStore.class.getName());
+
+    private final DocumentStore delegate;
+    private final WriteAheadLog log;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final CountDownLatch recovered = new CountDownLatch(1);
+    private volatile boolean replayed;
+    private ScheduledExecutorService snapshotter;
+
+    /**
+     * @param delegate Store which holds the documents, including any
+     *     documents loaded from a snapshot
+     * @param log Log to record changes in. It must not have been
+     *     replayed yet.
+     */
+    public DurableDocumentStore(final DocumentStore delegate, final WriteAheadLog log) {
+        this.delegate = delegate;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Replays the log into the wrapped store, returning once it is
+     * done.
+     *
+     * @param fromGeneration First log segment to replay. Older
+     *     segments are already covered by the wrapped store.
+     */
+    public void recover(final long fromGeneration) throws IOException {
+        try {
+            log.replay(delegate, fromGeneration);
+            replayed = true;
+        } finally {
+            // Even a failed replay must release the writers waiting
+            // for it, so that they fail rather than hang.
+            recovered.countDown();
+        }
+    }
+
+    /**
+     * Replays the log into the wrapped store on a background thread
+     * and returns immediately.
+     *
+     * @param fromGeneration First log segment to replay
+     */
+    public void recoverInBackground(final long fromGeneration) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    recover(fromGeneration);
+                } catch (final IOException | DocumentStoreException e) {
+                    // Every write will fail with this from now on.
+                    LOGGER.log(Level.SEVERE, "Unable to replay log", e);
+                }
+            }
+        }, "wal-replay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits until the log has been replayed.
+     *
+     * @throws DocumentStoreException if the replay failed
+     */
+    public void awaitRecovery() {
+        try {
+            recovered.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentStoreException("Interrupted waiting for log replay", e);
+        }
+        if (!replayed) {
+            throw new DocumentStoreException("Unable to replay log", null);
+        }
+    }
+
+    /**
+     * Saves every document in the wrapped store as a new snapshot in
+     * directory, then deletes the log segments and snapshots which
+     * are no longer needed.
+     *
+     * @param directory Directory holding the snapshots
+     */
+    public synchronized void snapshot(final Path directory) throws IOException {
+        awaitRecovery();
+        final long generation = log.rotate();
+        Snapshot.write(directory, generation, delegate.scan(0, Integer.MAX_VALUE));
+        // Only once the new snapshot is safely on disk can the old
+        // data go.
+        log.deleteBefore(generation);
+        Snapshot.deleteOlderThan(directory, generation);
+    }
+
+    /**
+     * Takes a snapshot into directory every intervalSeconds on a
+     * background thread until the store is closed.
+     */
+    public synchronized void scheduleSnapshots(
+            final Path directory, final long intervalSeconds) {
+        snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "snapshotter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        snapshotter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot(directory);
+                } catch (final IOException | DocumentStoreException e) {
+                    // The log still has everything, so a failed
+                    // snapshot only means a slower restart. Try again
+                    // next time.
+                    LOGGER.log(Level.WARNING, "Unable to write snapshot", e);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        return delegate.get(docId);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        return delegate.getGzipped(docId);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        awaitRecovery();
+        final long position;
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            delegate.put(docId, document);
+            position = log.logPut(docId, document);
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        awaitRecovery();
+        final long position;
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.putIfAbsent(docId, document)) {
+                return false;
+            }
+            position = log.logPut(docId, document);
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        awaitRecovery();
+        final long position;
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.replace(docId, expected, document)) {
+                return false;
+            }
+            // Replaying a replace is just a put, since the document
+            // it replaced is replayed before it.
+            position = log.logPut(docId, document);
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        awaitRecovery();
+        final long position;
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.patch(docId, expected, document, patch)) {
+                return false;
+            }
+            // Only the patch goes in the log. Replay applies it to the
+            // document it has rebuilt up to this point, which is
+            // expected.
+            position = log.logPatch(docId, patch);
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        awaitRecovery();
+        final long position;
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.remove(docId)) {
+                return false;
+            }
+            position = log.logRemove(docId);
+        } finally {
+            lock.unlock();
+        }
+        sync(position);
+        return true;
+    }
+
+    @Override
+    public boolean[] writeAll(final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        awaitRecovery();
+        final boolean[] results = new boolean[changes.size()];
+        long position = 0;
+        for (int i = 0; i < results.length; i++) {
+            final Map.Entry<Integer, ByteBuffer> change = changes.get(i);
+            final int docId = change.getKey();
+            final ReentrantLock lock = stripeFor(docId);
+            lock.lock();
+            try {
+                if (change.getValue() == null) {
+                    if (delegate.remove(docId)) {
+                        results[i] = true;
+                        position = log.logRemove(docId);
+                    }
+                } else {
+                    delegate.put(docId, change.getValue());
+                    results[i] = true;
+                    position = log.logPut(docId, change.getValue());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        // Log positions only increase, so once the last change is on
+        // disk all of them are. The whole batch waits for the disk
+        // just once.
+        sync(position);
+        return results;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return delegate.scan(fromDocId, toDocId);
+    }
+
+    @Override
+    public int lastDocId() {
+        return delegate.lastDocId();
+    }
+
+    @Override
+    public void clear() {
+        // A clear touches every document, so it has to hold every
+        // lock. Always taking them in the same order means two
+        // concurrent clears can't deadlock.
+        awaitRecovery();
+        final long position;
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            delegate.clear();
+            position = log.logClear();
+        } finally {
+            for (final ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+        sync(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Taking the lock waits for a snapshot in progress to finish.
+        // Interrupting it instead could close the log's file channel
+        // underneath it.
+        synchronized (this) {
+            if (snapshotter != null) {
+                snapshotter.shutdown();
+            }
+        }
+        try {
+            log.close();
+        } finally {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Waits as the log requires for every record up to position to be
+     * on disk, unless the calling thread has asked to be told later
+     * instead. See DeferredSync.
+     */
+    private void sync(final long position) {
+        if (!DeferredSync.defer(log, position)) {
+            log.sync(position);
+        }
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[OffHeapDocumentStore.mix(docId) & (STRIPES - 1)];
+    }
+}
@@ -0,0 +1,476 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * ExpiringDocumentStore wraps another DocumentStore and lets documents
+ * be stored with a deadline, after which they are removed.
+ *
+ * A document whose deadline has passed is never returned, even before
+ * it has actually been removed. Every read checks the deadline, which
+ * is a single hash lookup, and one which has passed makes the
+ * document look as if it isn't there.
+ *
+ * The deadlines are kept in a {@link TimerWheel}. A reaper thread
+ * turns the wheel once per tick and removes the documents which have
+ * expired, a batch at a time, letting go of every lock between
+ * batches. Each batch is written to the wrapped store at once, so it
+ * waits for the log to reach the disk once rather than for each
+ * document. A great many documents expiring together therefore never
+ * hold up other requests for long.
+ *
+ * Storing a document without a deadline removes any deadline it had,
+ * just as it replaces the whole document. A patch keeps the deadline.
+ *
+ * Expired documents are removed through the wrapped store, so the
+ * removal is logged and published like any other. Given a {@link
+ * WriteAheadLog}, the deadlines are logged too, and the log keeps them
+ * across restarts. A deadline is logged before the change it goes
+ * with, so that the change waiting for the log to reach the disk waits
+ * for the deadline as well. If the change then doesn't happen, the
+ * earlier deadline is put back.
+ */
+public class ExpiringDocumentStore implements DocumentStore {
+    private static final int STRIPES = 64;
+    // Largest number of documents removed at once.
+    private static final int BATCH_SIZE = 256;
+
+    private final DocumentStore delegate;
+    private final TimerWheel wheel;
+    private final WriteAheadLog log;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private ScheduledExecutorService reaper;
+
+    /**
+     * @param delegate Store which holds the documents
+     * @param tickMillis Length of a tick of the timer wheel, which is
+     *     about how late an expired document may be removed
+     */
+    public ExpiringDocumentStore(final DocumentStore delegate, final long tickMillis) {
+        this(delegate, new TimerWheel(tickMillis, System.currentTimeMillis()), null);
+    }
+
+    /**
+     * @param delegate Store which holds the documents
+     * @param wheel Wheel holding the deadlines. With a log, it must be
+     *     the one given to the log's setDeadlines.
+     * @param log Log to record the deadlines in, or null
+     */
+    ExpiringDocumentStore(
+            final DocumentStore delegate,
+            final TimerWheel wheel,
+            final WriteAheadLog log) {
+        this.delegate = delegate;
+        this.wheel = wheel;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Removes expired documents every tickMillis on a background
+     * thread until the store is closed.
+     */
+    public synchronized void startReaper(final long tickMillis) {
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reap(System.currentTimeMillis());
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores a document which expires at deadlineMillis.
+     */
+    public void put(
+            final int docId, final ByteBuffer document, final long deadlineMillis) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            setDeadline(docId, deadlineMillis);
+            delegate.put(docId, document);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns when the document at docId expires, in milliseconds, or
+     * Long.MAX_VALUE if it doesn't.
+     */
+    public long deadline(final int docId) {
+        return wheel.deadline(docId);
+    }
+
+    /**
+     * Stores a document which expires at deadlineMillis if there is no
+     * document at docId.
+     *
+     * @return whether the document was stored
+     */
+    public boolean putIfAbsent(
+            final int docId, final ByteBuffer document, final long deadlineMillis) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            removeIfExpired(docId);
+            final long previous = wheel.deadline(docId);
+            setDeadline(docId, deadlineMillis);
+            if (!delegate.putIfAbsent(docId, document)) {
+                setDeadline(docId, previous);
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces a document with one which expires at deadlineMillis if
+     * it is still expected.
+     *
+     * @return whether the document was replaced
+     */
+    public boolean replace(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final long deadlineMillis) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (isExpired(docId)) {
+                return false;
+            }
+            final long previous = wheel.deadline(docId);
+            setDeadline(docId, deadlineMillis);
+            if (!delegate.replace(docId, expected, document)) {
+                setDeadline(docId, previous);
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        final ByteBuffer document = delegate.get(docId);
+        if (document == null || isExpired(docId)) {
+            return null;
+        }
+        return document;
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        final ByteBuffer document = delegate.getGzipped(docId);
+        if (document == null || isExpired(docId)) {
+            return null;
+        }
+        return document;
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        put(docId, document, Long.MAX_VALUE);
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        return putIfAbsent(docId, document, Long.MAX_VALUE);
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        return replace(docId, expected, document, Long.MAX_VALUE);
+    }
+
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            return !isExpired(docId) && delegate.patch(docId, expected, document, patch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            // An expired document is already gone as far as callers
+            // can tell.
+            final boolean expired = isExpired(docId);
+            setDeadline(docId, Long.MAX_VALUE);
+            return delegate.remove(docId) && !expired;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean[] writeAll(final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        // As in PublishingDocumentStore, the batch is handed on whole
+        // while holding the locks of all of its docIds, taken in
+        // stripe order.
+        final boolean[] needed = new boolean[STRIPES];
+        for (final Map.Entry<Integer, ByteBuffer> change : changes) {
+            needed[stripeIndex(change.getKey())] = true;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            if (needed[i]) {
+                stripes[i].lock();
+            }
+        }
+        try {
+            final boolean[] expired = new boolean[changes.size()];
+            for (int i = 0; i < expired.length; i++) {
+                expired[i] = isExpired(changes.get(i).getKey());
+                setDeadline(changes.get(i).getKey(), Long.MAX_VALUE);
+            }
+            final boolean[] results = delegate.writeAll(changes);
+            for (int i = 0; i < results.length; i++) {
+                if (changes.get(i).getValue() == null && expired[i]) {
+                    results[i] = false;
+                }
+            }
+            return results;
+        } finally {
+            for (int i = 0; i < STRIPES; i++) {
+                if (needed[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            delegate.scan(fromDocId, toDocId);
+        return new Iterator<Map.Entry<Integer, ByteBuffer>>() {
+            private Map.Entry<Integer, ByteBuffer> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && documents.hasNext()) {
+                    final Map.Entry<Integer, ByteBuffer> entry = documents.next();
+                    if (!isExpired(entry.getKey())) {
+                        next = entry;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<Integer, ByteBuffer> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Map.Entry<Integer, ByteBuffer> entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public int lastDocId() {
+        return delegate.lastDocId();
+    }
+
+    @Override
+    public void clear() {
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            // Replaying the clear removes the deadlines too.
+            synchronized (wheel) {
+                wheel.clear();
+            }
+            delegate.clear();
+        } finally {
+            for (final ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (reaper != null) {
+                reaper.shutdownNow();
+            }
+        }
+        delegate.close();
+    }
+
+    /**
+     * Turns the timer wheel to nowMillis and removes every document
+     * which has expired by then.
+     *
+     * @return the number of documents removed
+     */
+    int reap(final long nowMillis) {
+        synchronized (wheel) {
+            wheel.advance(nowMillis);
+        }
+        final List<Integer> batch = new ArrayList<>(BATCH_SIZE);
+        int removed = 0;
+        while (true) {
+            batch.clear();
+            synchronized (wheel) {
+                wheel.pollExpired(BATCH_SIZE, batch);
+            }
+            if (batch.isEmpty()) {
+                return removed;
+            }
+            removed += removeBatch(batch, nowMillis);
+        }
+    }
+
+    /**
+     * Removes the documents of batch which are still expired at
+     * nowMillis, and returns how many there were.
+     *
+     * The batch is handed to the wrapped store's writeAll, so that it
+     * is logged and waits for the disk once rather than once for each
+     * document. Its docIds' locks are held throughout, taken in stripe
+     * order like those of writeAll.
+     */
+    private int removeBatch(final List<Integer> batch, final long nowMillis) {
+        final boolean[] needed = new boolean[STRIPES];
+        for (final int docId : batch) {
+            needed[stripeIndex(docId)] = true;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            if (needed[i]) {
+                stripes[i].lock();
+            }
+        }
+        try {
+            final List<Map.Entry<Integer, ByteBuffer>> removals =
+                new ArrayList<>(batch.size());
+            for (final int docId : batch) {
+                // The document may have been stored again with a later
+                // deadline, or none, since it expired.
+                if (wheel.deadline(docId) <= nowMillis) {
+                    setDeadline(docId, Long.MAX_VALUE);
+                    removals.add(
+                        new AbstractMap.SimpleImmutableEntry<Integer, ByteBuffer>(
+                            docId, null));
+                }
+            }
+            if (removals.isEmpty()) {
+                return 0;
+            }
+            int removed = 0;
+            for (final boolean result : delegate.writeAll(removals)) {
+                if (result) {
+                    removed++;
+                }
+            }
+            return removed;
+        } finally {
+            for (int i = 0; i < STRIPES; i++) {
+                if (needed[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(final int docId) {
+        // Checking the map first saves reading the clock for the
+        // documents without a deadline, which is most of them.
+        final long deadline = wheel.deadline(docId);
+        return deadline != Long.MAX_VALUE && deadline <= System.currentTimeMillis();
+    }
+
+    /**
+     * Removes docId if its deadline has passed. The caller holds the
+     * lock for docId.
+     */
+    private void removeIfExpired(final int docId) {
+        if (isExpired(docId)) {
+            setDeadline(docId, Long.MAX_VALUE);
+            delegate.remove(docId);
+        }
+    }
+
+    /**
+     * Sets or, with Long.MAX_VALUE, removes the deadline of docId, and
+     * logs it. The caller holds the lock for docId.
+     */
+    private void setDeadline(final int docId, final long deadlineMillis) {
+        if (log != null) {
+            log.awaitReplay();
+        }
+        // Most documents have no deadline and are stored without one,
+        // and this avoids taking the wheel's lock for them.
+        if (wheel.deadline(docId) == deadlineMillis) {
+            return;
+        }
+        synchronized (wheel) {
+            if (deadlineMillis == Long.MAX_VALUE) {
+                wheel.cancel(docId);
+            } else {
+                wheel.schedule(docId, deadlineMillis);
+            }
+            // Logging while holding the wheel's lock means a rotation
+            // of the log either saves both or neither.
+            if (log != null) {
+                log.logExpire(docId, deadlineMillis);
+            }
+        }
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[stripeIndex(docId)];
+    }
+
+    private static int stripeIndex(final int docId) {
+        return OffHeapDocumentStore.mix(docId) & (STRIPES - 1);
+    }
+}
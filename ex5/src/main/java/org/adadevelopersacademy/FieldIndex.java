@@ -0,0 +1,379 @@
+package org.adadevelopersacademy;
+
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonReader;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+
+/**
+ * FieldIndex maps the values of one top-level field of the stored
+ * documents to the docIds of the documents holding them, so that
+ * documents can be found by value without looking at every one.
+ *
+ * Only strings, numbers, true and false are indexed. Numbers are
+ * compared by value, so 1 and 1.0 are the same key.
+ *
+ * There are two kinds of index. A HASH index keeps its keys in a
+ * ConcurrentHashMap and can only find documents whose field is
+ * equal to a value. A SORTED index keeps its keys in a
+ * ConcurrentSkipListMap, in the same way as ConcurrentDocumentStore
+ * keeps docIds, so it can also find every value in a range. Values of
+ * different types are ordered false, true, numbers, then strings.
+ *
+ * The docIds holding each key are kept in order in a
+ * ConcurrentSkipListSet, so a query for the first few of them costs
+ * the same however common the key is.
+ *
+ * An index is kept up to date by {@link IndexedDocumentStore}.
+ */
+public final class FieldIndex {
+    /**
+     * The kinds of index.
+     */
+    public enum Kind {
+        /**
+         * Finds documents by equality.
+         */
+        HASH,
+        /**
+         * Finds documents by equality or by range.
+         */
+        SORTED
+    }
+
+    // Orders keys of different types by type first.
+    private static final Comparator<Object> KEY_ORDER = new Comparator<Object>() {
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(final Object a, final Object b) {
+            final int byType = Integer.compare(rank(a), rank(b));
+            if (byType != 0) {
+                return byType;
+            }
+            // Both keys are of the same type, and all of the types
+            // used are Comparable with themselves.
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+
+        private int rank(final Object key) {
+            if (key instanceof Boolean) {
+                return 0;
+            } else if (key instanceof BigDecimal) {
+                return 1;
+            }
+            return 2;
+        }
+    };
+
+    private final String field;
+    private final Kind kind;
+    private final ConcurrentMap<Object, Postings> entries;
+
+    /**
+     * @param field Name of the top-level field to index
+     * @param kind Kind of index
+     */
+    public FieldIndex(final String field, final Kind kind) {
+        this.field = field;
+        this.kind = kind;
+        if (kind == Kind.SORTED) {
+            entries = new ConcurrentSkipListMap<>(KEY_ORDER);
+        } else {
+            entries = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * Parses a list of indexes such as "name,age:sorted". Each entry
+     * is a field name optionally followed by a colon and the kind,
+     * which is hash if left out.
+     *
+     * @return the indexes by field name
+     * @throws IllegalArgumentException if spec is malformed
+     */
+    public static Map<String, FieldIndex> parseAll(final String spec) {
+        final Map<String, FieldIndex> indexes = new LinkedHashMap<>();
+        for (final String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            final String[] parts = entry.trim().split(":", 2);
+            Kind kind = Kind.HASH;
+            if (parts.length == 2) {
+                kind = Kind.valueOf(parts[1].trim().toUpperCase(Locale.ROOT));
+            }
+            final String name = parts[0].trim();
+            indexes.put(name, new FieldIndex(name, kind));
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the values of the indexed fields at the top level of
+     * document which can be indexed.
+     *
+     * Only the fields are looked at, one token at a time, so this
+     * never builds a JsonObject for the whole document.
+     *
+     * @param document Serialized JSON object
+     * @param fields Names of the fields wanted
+     * @return the index key of each field found, by field name
+     */
+    static Map<String, Object> extract(
+            final ByteBuffer document, final Set<String> fields) {
+        final Map<String, Object> values = new HashMap<>();
+        if (document == null) {
+            return values;
+        }
+        try (JsonParser parser = JsonBytes.createParser(document)) {
+            int depth = 0;
+            String name = null;
+            while (parser.hasNext()) {
+                final JsonParser.Event event = parser.next();
+                switch (event) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    break;
+                case KEY_NAME:
+                    if (depth == 1) {
+                        name = parser.getString();
+                    }
+                    break;
+                case VALUE_STRING:
+                    if (depth == 1 && fields.contains(name)) {
+                        values.put(name, parser.getString());
+                    }
+                    break;
+                case VALUE_NUMBER:
+                    if (depth == 1 && fields.contains(name)) {
+                        values.put(name, number(parser.getBigDecimal()));
+                    }
+                    break;
+                case VALUE_TRUE:
+                case VALUE_FALSE:
+                    if (depth == 1 && fields.contains(name)) {
+                        values.put(name, event == JsonParser.Event.VALUE_TRUE);
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Converts a value given in a query to an index key. A value which
+     * is a JSON number, string, true or false is converted like the
+     * same value in a document, so 42 and "42" differ. Anything else
+     * is taken to be a string as it is, so that strings don't need to
+     * be quoted.
+     */
+    public static Object parseKey(final String value) {
+        try (JsonReader reader = Json.createReader(new StringReader("[" + value + "]"))) {
+            final JsonArray array = reader.readArray();
+            if (array.size() == 1) {
+                final Object key = key(array.get(0));
+                if (key != null) {
+                    return key;
+                }
+            }
+        } catch (final JsonException e) {
+            // Not JSON, so it's a plain string.
+            return value;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the name of the indexed field.
+     */
+    public String field() {
+        return field;
+    }
+
+    /**
+     * Returns the kind of index.
+     */
+    public Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Records that the document at docId holds key.
+     */
+    void add(final Object key, final int docId) {
+        while (true) {
+            Postings postings = entries.get(key);
+            if (postings == null) {
+                final Postings created = new Postings();
+                postings = entries.putIfAbsent(key, created);
+                if (postings == null) {
+                    postings = created;
+                }
+            }
+            synchronized (postings) {
+                // A remove may have just dropped these postings from
+                // the map after they were looked up. Adding to them
+                // would lose the docId, so look them up again.
+                if (!postings.dead) {
+                    postings.ids.add(docId);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the document at docId no longer holds key.
+     */
+    void remove(final Object key, final int docId) {
+        final Postings postings = entries.get(key);
+        if (postings == null) {
+            return;
+        }
+        synchronized (postings) {
+            postings.ids.remove(docId);
+            if (postings.ids.isEmpty()) {
+                // Drop keys which no document holds any more, or the
+                // map would only ever grow.
+                postings.dead = true;
+                entries.remove(key, postings);
+            }
+        }
+    }
+
+    /**
+     * Removes every key.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the ids of the documents whose field equals key, in
+     * increasing order, and at most limit of them.
+     */
+    public int[] equal(final Object key, final int limit) {
+        final Postings postings = entries.get(key);
+        if (postings == null) {
+            return new int[0];
+        }
+        return collect(Collections.singletonList(postings), limit);
+    }
+
+    /**
+     * Returns the ids of the documents whose field is from fromKey to
+     * toKey inclusive, ordered by key and then by docId, and at most
+     * limit of them. Either bound may be null to leave the range open
+     * at that end.
+     *
+     * @throws IllegalStateException if this isn't a SORTED index
+     */
+    public int[] range(final Object fromKey, final Object toKey, final int limit) {
+        if (kind != Kind.SORTED) {
+            throw new IllegalStateException("The index on " + field + " is not sorted");
+        }
+        ConcurrentNavigableMap<Object, Postings> range =
+            (ConcurrentNavigableMap<Object, Postings>) entries;
+        if (fromKey != null) {
+            range = range.tailMap(fromKey, true);
+        }
+        if (toKey != null) {
+            range = range.headMap(toKey, true);
+        }
+        return collect(range.values(), limit);
+    }
+
+    /**
+     * Returns the index key for a JSON value, or null if the value
+     * can't be indexed.
+     */
+    private static Object key(final JsonValue value) {
+        switch (value.getValueType()) {
+        case STRING:
+            return ((JsonString) value).getString();
+        case NUMBER:
+            return number(((JsonNumber) value).bigDecimalValue());
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        default:
+            return null;
+        }
+    }
+
+    private static BigDecimal number(final BigDecimal value) {
+        // BigDecimal.equals() considers 1 and 1.0 different since
+        // they have a different number of decimal places. Stripping
+        // trailing zeros makes them the same. Java 7 doesn't strip the
+        // zeros of zero itself, so that case is handled separately.
+        if (value.signum() == 0) {
+            return BigDecimal.ZERO;
+        }
+        return value.stripTrailingZeros();
+    }
+
+    /**
+     * Returns the ids of each of postings in turn, each in increasing
+     * order, and at most limit of them. The postings are kept in order,
+     * so only the ids returned are looked at, however many there are.
+     */
+    private static int[] collect(final Collection<Postings> postings, final int limit) {
+        int[] result = new int[Math.min(limit, 16)];
+        int count = 0;
+        for (final Postings each : postings) {
+            for (final Integer docId : each.ids) {
+                if (count == limit) {
+                    return result;
+                }
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, Math.min(limit, count * 2));
+                }
+                result[count++] = docId;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    /**
+     * The docIds of the documents holding one key.
+     */
+    private static final class Postings {
+        // Kept in order, so that a query can take the first few ids
+        // without copying and sorting them all.
+        private final Set<Integer> ids = new ConcurrentSkipListSet<>();
+        // Set once the postings are removed from the map. Guarded by
+        // synchronizing on the postings.
+        private boolean dead;
+    }
+}
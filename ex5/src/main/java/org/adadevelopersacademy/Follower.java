@@ -0,0 +1,252 @@
+package org.adadevelopersacademy;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.Map;
+
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * Follower keeps a copy of a leader's documents up to date by reading
+ * the leader's {@link ReplicationStream} and applying each record to
+ * its own store.
+ *
+ * The store should be the whole stack of stores the follower serves
+ * from, so that what it applies is logged, indexed and published to
+ * its own change feed just like a write would be. Writes from clients
+ * are sent to the leader instead, see {@link Replication}.
+ *
+ * The follower remembers the sequence number of the last change it
+ * applied, and when the connection drops it reconnects and carries on
+ * from there. Until the first copy of the leader's documents has
+ * arrived it hasn't applied anything, and applied() returns -1.
+ *
+ * When the leader sends a fresh copy of every document, the follower
+ * keeps serving what it has while the copy arrives, and afterwards
+ * removes whatever wasn't in the copy. A follower which restarts with
+ * its own log therefore ends up with exactly the leader's documents.
+ */
+public class Follower implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(Follower.class.getName());
+    private static final long RETRY_MILLIS = 1000;
+    // A leader sends a heartbeat every second, so a connection this
+    // quiet is dead.
+    private static final int READ_TIMEOUT_MILLIS =
+        (int) (5 * ReplicationStream.HEARTBEAT_MILLIS);
+
+    private final URI leader;
+    private final DocumentStore store;
+    private final Thread thread;
+    // Notified whenever applied changes.
+    private final Object progress = new Object();
+    private volatile long applied = -1;
+    private volatile boolean closed;
+    private volatile HttpURLConnection connection;
+    // The docIds received since a RESET, or null when the leader isn't
+    // sending a copy. Only the follower's thread uses it.
+    private BitSet copied;
+    // Whether the last attempt got as far as reading the stream. Only
+    // the follower's thread uses it.
+    private boolean connected;
+
+    /**
+     * @param leader Base URI of the leader, like Main.BASE_URI
+     * @param store Store to apply the leader's changes to
+     */
+    public Follower(final URI leader, final DocumentStore store) {
+        final String base = leader.toString();
+        this.leader = URI.create(base.endsWith("/") ? base : base + "/");
+        this.store = store;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                follow();
+            }
+        }, "follower");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts following the leader in the background.
+     */
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Returns the base URI of the leader, ending in a slash.
+     */
+    public URI leader() {
+        return leader;
+    }
+
+    /**
+     * Returns the sequence number of the last of the leader's changes
+     * which has been applied, or -1 if the follower hasn't got a copy
+     * of the leader's documents yet.
+     */
+    public long applied() {
+        return applied;
+    }
+
+    /**
+     * Waits until the leader's change numbered seq has been applied,
+     * or until timeoutMillis have passed.
+     *
+     * @return whether the change has been applied
+     */
+    public boolean awaitApplied(final long seq, final long timeoutMillis)
+            throws InterruptedException {
+        if (applied >= seq) {
+            return true;
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (progress) {
+            long remaining = timeoutMillis;
+            while (applied < seq && remaining > 0) {
+                progress.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        return applied >= seq;
+    }
+
+    /**
+     * Stops following the leader. Once this returns nothing more is
+     * applied to the store.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        thread.interrupt();
+        final HttpURLConnection current = connection;
+        if (current != null) {
+            // Closing the socket is the only way to stop a read.
+            current.disconnect();
+        }
+        try {
+            thread.join(READ_TIMEOUT_MILLIS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void follow() {
+        while (!closed) {
+            try {
+                stream();
+            } catch (final IOException e) {
+                if (closed) {
+                    return;
+                }
+                // A leader which is down would log this every second,
+                // so it's only worth a warning after losing a
+                // connection which worked.
+                LOGGER.log(connected ? Level.WARNING : Level.FINE,
+                    "Lost replication stream from " + leader, e);
+            }
+            copied = null;
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (final InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void stream() throws IOException {
+        final long since = applied;
+        final URL url = leader.resolve(
+            "document/_replication" + (since < 0 ? "" : "?since=" + since)).toURL();
+        final HttpURLConnection current = (HttpURLConnection) url.openConnection();
+        current.setReadTimeout(READ_TIMEOUT_MILLIS);
+        current.setRequestProperty(HttpHeaders.ACCEPT, ReplicationStream.MEDIA_TYPE);
+        connection = current;
+        connected = false;
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(current.getInputStream()))) {
+            connected = true;
+            while (!closed) {
+                apply(in);
+            }
+        } finally {
+            connection = null;
+            current.disconnect();
+        }
+    }
+
+    private void apply(final DataInputStream in) throws IOException {
+        final byte kind = in.readByte();
+        final long seq = in.readLong();
+        switch (kind) {
+        case ReplicationStream.PUT:
+            applyPut(in, seq);
+            break;
+        case ReplicationStream.REMOVE:
+            store.remove(in.readInt());
+            advance(seq);
+            break;
+        case ReplicationStream.CLEAR:
+            store.clear();
+            advance(seq);
+            break;
+        case ReplicationStream.RESET:
+            copied = new BitSet();
+            break;
+        case ReplicationStream.SYNCED:
+            removeUncopied();
+            copied = null;
+            advance(seq);
+            break;
+        case ReplicationStream.HEARTBEAT:
+            break;
+        default:
+            throw new IOException("Unknown replication record " + kind);
+        }
+    }
+
+    private void applyPut(final DataInputStream in, final long seq) throws IOException {
+        final int docId = in.readInt();
+        final byte[] document = new byte[in.readInt()];
+        in.readFully(document);
+        store.put(docId, ByteBuffer.wrap(document));
+        // The documents in a copy all carry the same seq, which isn't
+        // applied until the whole copy is.
+        if (copied == null) {
+            advance(seq);
+        } else {
+            copied.set(docId);
+        }
+    }
+
+    /**
+     * Removes the documents which the leader's copy didn't include.
+     */
+    private void removeUncopied() {
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            store.scan(0, Integer.MAX_VALUE);
+        while (documents.hasNext()) {
+            final int docId = documents.next().getKey();
+            if (!copied.get(docId)) {
+                store.remove(docId);
+            }
+        }
+    }
+
+    private void advance(final long seq) {
+        synchronized (progress) {
+            applied = seq;
+            progress.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.adadevelopersacademy;
+
+/**
+ * FrequencySketch estimates how often each docId has been used
+ * recently, in a small fixed amount of memory. It is a Count-Min
+ * Sketch:
+ *
+ *   https://en.wikipedia.org/wiki/Count%E2%80%93min_sketch
+ *
+ * Each docId is hashed to one counter in each of several rows. Using
+ * a docId increments its counters, and its estimated count is the
+ * smallest of them. Other docIds may share some of the counters,
+ * which can only make an estimate too high, but it's unlikely that
+ * they share all of them.
+ *
+ * The counters only go up to 15, so each takes four bits and sixteen
+ * fit in a long. Popularity only needs comparing, so that is plenty.
+ * After a number of uses every counter is halved, so that documents
+ * which were popular a long time ago don't stay popular forever.
+ *
+ * This isn't thread safe. The caller must hold a lock.
+ */
+final class FrequencySketch {
+    private static final int ROWS = 4;
+    private static final int[] SEEDS = {0x97cb3127, 0xb8e4e2a1, 0x3c6ef372, 0x5ed6c3a9};
+    private static final long MAX_COUNT = 15;
+    // Every counter's low bit, which is cleared before halving so
+    // that no bits spill into the neighbouring counter.
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedIds Roughly how many docIds are being counted
+     */
+    FrequencySketch(final int expectedIds) {
+        // Each row has one counter per expected id, rounded up to a
+        // power of two so that a hash can be reduced with a mask.
+        final int counters = Integer.highestOneBit(Math.max(expectedIds, 16) - 1) << 1;
+        table = new long[counters / 16 * ROWS];
+        sampleSize = 10 * counters;
+    }
+
+    /**
+     * Records one use of docId.
+     */
+    void increment(final int docId) {
+        boolean added = false;
+        for (int row = 0; row < ROWS; row++) {
+            final int counter = counterFor(docId, row);
+            final int shift = (counter & 15) * 4;
+            final int index = counter >>> 4;
+            if ((table[index] >>> shift & MAX_COUNT) < MAX_COUNT) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            halve();
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent uses of docId, up to 15.
+     */
+    int frequency(final int docId) {
+        long count = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            final int counter = counterFor(docId, row);
+            final long word = table[counter >>> 4];
+            count = Math.min(count, word >>> ((counter & 15) * 4) & MAX_COUNT);
+        }
+        return (int) count;
+    }
+
+    /**
+     * Forgets every use.
+     */
+    void clear() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = 0;
+        }
+        additions = 0;
+    }
+
+    private void halve() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] & ~ONE_MASK) >>> 1;
+        }
+        additions /= 2;
+    }
+
+    /**
+     * Returns the number of the counter for docId in row, counting
+     * across the whole table.
+     */
+    private int counterFor(final int docId, final int row) {
+        final int rowSize = table.length / ROWS * 16;
+        final int hash = OffHeapDocumentStore.mix(docId * SEEDS[row] + row);
+        return row * rowSize + (hash & (rowSize - 1));
+    }
+}
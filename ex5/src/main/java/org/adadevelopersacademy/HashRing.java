@@ -0,0 +1,115 @@
+package org.adadevelopersacademy;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HashRing assigns every docId to one of a set of nodes by consistent
+ * hashing:
+ *
+ *   https://en.wikipedia.org/wiki/Consistent_hashing
+ *
+ * Each node is placed at many points around a ring of 32-bit hashes,
+ * its virtual nodes, and a docId belongs to the node at the first
+ * point at or after the docId's own hash. With enough virtual nodes
+ * every node owns about the same share of the ids, and when a node
+ * joins or leaves only the ids next to its points change hands, about
+ * one node's share in all, rather than nearly all of them as with
+ * docId % nodes.
+ *
+ * The points are placed with MD5, the way ketama does, which spreads
+ * them well whatever the nodes are called. That is only done when the
+ * ring is built. A docId is hashed with the finalizer of MurmurHash3,
+ * a handful of multiplications and shifts, and found with a binary
+ * search, so looking up an owner is cheap enough for every request.
+ *
+ * A ring never changes once built, so it can be shared by any number
+ * of threads.
+ */
+public class HashRing {
+    private final List<String> nodes;
+    // The points in increasing order, and the node at each.
+    private final int[] points;
+    private final String[] owners;
+
+    /**
+     * @param nodes Names of the nodes, which must be different
+     * @param virtualNodes Number of points for each node
+     */
+    public HashRing(final List<String> nodes, final int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException(
+                "A ring needs at least one node and one virtual node each");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        final long[] placed = new long[nodes.size() * virtualNodes];
+        final MessageDigest md5 = md5();
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                final byte[] digest = md5.digest(
+                    (nodes.get(node) + "#" + i).getBytes(StandardCharsets.UTF_8));
+                final int point = (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16
+                    | (digest[2] & 0xff) << 8 | digest[3] & 0xff;
+                // The point goes in the high half and the node in the
+                // low half, so that sorting the longs sorts the points
+                // and two nodes which land on the same point are
+                // always ordered the same way.
+                placed[node * virtualNodes + i] = (long) point << 32 | node;
+            }
+        }
+        Arrays.sort(placed);
+        points = new int[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = (int) (placed[i] >> 32);
+            owners[i] = nodes.get((int) placed[i]);
+        }
+    }
+
+    /**
+     * Returns the nodes on the ring, in the order they were given.
+     */
+    public List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the node which owns docId.
+     */
+    public String owner(final int docId) {
+        int index = Arrays.binarySearch(points, hash(docId));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        // Past the last point the ring wraps around to the first.
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Spreads the bits of docId over the whole int, so that
+     * neighbouring ids land far apart on the ring.
+     */
+    static int hash(final int docId) {
+        int h = docId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5.
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * IndexedDocumentStore wraps another DocumentStore and keeps a set of
+ * {@link FieldIndex}es up to date as documents change.
+ *
+ * Like DurableDocumentStore, this is a decorator. Every change reads
+ * the fields of the old document, makes the change, and then moves
+ * the docId from the old values to the new ones in each index. All
+ * of that happens while holding the lock for the docId, or two
+ * concurrent puts to one docId could leave it indexed under the
+ * value of the document which lost.
+ *
+ * Readers of an index may see a docId a moment before or after the
+ * document itself changes, so callers should check documents they
+ * look up through an index.
+ */
+public class IndexedDocumentStore extends AbstractDocumentStore {
+    private static final int STRIPES = 64;
+
+    private final DocumentStore delegate;
+    private final Map<String, FieldIndex> indexes;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    /**
+     * Indexes every document already in delegate.
+     *
+     * @param delegate Store which holds the documents
+     * @param indexes Indexes to maintain, by field name
+     */
+    public IndexedDocumentStore(
+            final DocumentStore delegate,
+            final Map<String, FieldIndex> indexes) {
+        this.delegate = delegate;
+        this.indexes = indexes;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        for (final FieldIndex index : indexes.values()) {
+            index.clear();
+        }
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            delegate.scan(0, Integer.MAX_VALUE);
+        while (documents.hasNext()) {
+            final Map.Entry<Integer, ByteBuffer> entry = documents.next();
+            index(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        return delegate.get(docId);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        return delegate.getGzipped(docId);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            final ByteBuffer old = delegate.get(docId);
+            delegate.put(docId, document);
+            unindex(docId, old);
+            index(docId, document);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.putIfAbsent(docId, document)) {
+                return false;
+            }
+            index(docId, document);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.replace(docId, expected, document)) {
+                return false;
+            }
+            unindex(docId, expected);
+            index(docId, document);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (!delegate.patch(docId, expected, document, patch)) {
+                return false;
+            }
+            unindex(docId, expected);
+            index(docId, document);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            final ByteBuffer old = delegate.get(docId);
+            if (!delegate.remove(docId)) {
+                return false;
+            }
+            unindex(docId, old);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return delegate.scan(fromDocId, toDocId);
+    }
+
+    @Override
+    public int lastDocId() {
+        return delegate.lastDocId();
+    }
+
+    @Override
+    public void clear() {
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            delegate.clear();
+            for (final FieldIndex index : indexes.values()) {
+                index.clear();
+            }
+        } finally {
+            for (final ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    private void index(final int docId, final ByteBuffer document) {
+        final Map<String, Object> values = FieldIndex.extract(document, indexes.keySet());
+        for (final Map.Entry<String, Object> value : values.entrySet()) {
+            indexes.get(value.getKey()).add(value.getValue(), docId);
+        }
+    }
+
+    private void unindex(final int docId, final ByteBuffer document) {
+        final Map<String, Object> values = FieldIndex.extract(document, indexes.keySet());
+        for (final Map.Entry<String, Object> value : values.entrySet()) {
+            indexes.get(value.getKey()).remove(value.getValue(), docId);
+        }
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[OffHeapDocumentStore.mix(docId) & (STRIPES - 1)];
+    }
+}
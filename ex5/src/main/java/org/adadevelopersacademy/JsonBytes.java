@@ -0,0 +1,229 @@
+package org.adadevelopersacademy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonParser;
+
+/**
+ * JsonBytes converts between JsonObjects and the UTF-8 bytes that a
+ * {@link DocumentStore} keeps.
+ *
+ * This is a "utility class." It only has static methods, so there's
+ * no reason to ever create an instance of it. Declaring a private
+ * constructor prevents anyone from doing so by accident, and the
+ * class is declared final since it can't be usefully extended.
+ */
+public final class JsonBytes {
+    private JsonBytes() {}
+
+    /**
+     * Serializes document as UTF-8 JSON.
+     */
+    public static ByteBuffer serialize(final JsonObject document) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // JsonWriter always writes UTF-8 when given an OutputStream.
+        try (JsonWriter writer = Json.createWriter(out)) {
+            writer.writeObject(document);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Parses UTF-8 JSON bytes back into a JsonObject. The position of
+     * bytes is not changed.
+     */
+    public static JsonObject parse(final ByteBuffer bytes) {
+        // Given an InputStream, JsonReader detects the encoding from
+        // the first few bytes, which for our documents is UTF-8.
+        try (JsonReader reader =
+                 Json.createReader(new ByteBufferInputStream(bytes.duplicate()))) {
+            return reader.readObject();
+        }
+    }
+
+    /**
+     * Returns a stream parser over UTF-8 JSON bytes. The position of
+     * bytes is not changed.
+     */
+    public static JsonParser createParser(final ByteBuffer bytes) {
+        return Json.createParser(new ByteBufferInputStream(bytes.duplicate()));
+    }
+
+    /**
+     * Reads a JSON object from in and returns its bytes exactly as
+     * they were read.
+     *
+     * Reading the object into a JsonObject would build a tree of Java
+     * objects several times the size of the document only to throw
+     * it away once the document is serialized again. Instead, the
+     * stream parser checks that the JSON is valid one token at a time
+     * as the bytes go by, and the bytes themselves are copied aside
+     * to be stored as they are. No more than maxSize bytes are ever
+     * held in memory.
+     *
+     * Since the bytes are stored and served as they are, they must be
+     * UTF-8. Given a stream, the parser would guess the encoding and
+     * quietly replace bytes which aren't valid in it, so it is given a
+     * strict UTF-8 decoder instead.
+     *
+     * @param in Stream holding a JSON object
+     * @param maxSize Largest document accepted, in bytes
+     * @throws JsonException if the JSON is invalid, isn't UTF-8 or isn't
+     *     an object
+     * @throws DocumentTooLargeException if in holds more than maxSize
+     *     bytes
+     */
+    public static ByteBuffer read(final InputStream in, final int maxSize)
+            throws IOException {
+        final CopyingInputStream copying = new CopyingInputStream(in, maxSize);
+        final CharsetDecoder utf8 = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try (JsonParser parser =
+                 Json.createParser(new InputStreamReader(copying, utf8))) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
+                throw new JsonException("Document must be a JSON object");
+            }
+            // Only the nesting depth needs to be tracked. The parser
+            // itself rejects anything which isn't valid JSON.
+            int depth = 1;
+            while (depth > 0) {
+                switch (parser.next()) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    depth++;
+                    break;
+                case END_OBJECT:
+                case END_ARRAY:
+                    depth--;
+                    break;
+                default:
+                    break;
+                }
+            }
+            // This fails if anything other than whitespace follows the
+            // object.
+            parser.hasNext();
+        } catch (final JsonException e) {
+            // The parser wraps the IOExceptions of the stream it
+            // reads from.
+            if (e.getCause() instanceof DocumentTooLargeException) {
+                throw (DocumentTooLargeException) e.getCause();
+            }
+            throw e;
+        }
+        return copying.copied();
+    }
+
+    /**
+     * Passes bytes through from another stream while keeping a copy
+     * of them, and fails once more than a limit have been read.
+     */
+    private static final class CopyingInputStream extends FilterInputStream {
+        private final int maxSize;
+        private final Copy copy = new Copy();
+
+        private CopyingInputStream(final InputStream in, final int maxSize) {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                checkSize(1);
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] dest, final int offset, final int length)
+                throws IOException {
+            final int count = super.read(dest, offset, length);
+            if (count > 0) {
+                checkSize(count);
+                copy.write(dest, offset, count);
+            }
+            return count;
+        }
+
+        private void checkSize(final int more) throws IOException {
+            if (copy.size() + more > maxSize) {
+                throw new DocumentTooLargeException(
+                    "Document is larger than " + maxSize + " bytes");
+            }
+        }
+
+        private ByteBuffer copied() {
+            return copy.toByteBuffer();
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream whose bytes can be wrapped without
+     * making another copy of them. buf and count are protected fields
+     * of ByteArrayOutputStream, so a subclass can get at them.
+     */
+    private static final class Copy extends ByteArrayOutputStream {
+        private ByteBuffer toByteBuffer() {
+            // The array doubles as it grows, so up to half of it may
+            // be unused. A stored document keeps its array for as
+            // long as it lives, so it's worth one copy to trim a lot
+            // of waste.
+            if (buf.length - count > count / 4) {
+                return ByteBuffer.wrap(Arrays.copyOf(buf, count));
+            }
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * An InputStream over the remaining bytes of a ByteBuffer. The
+     * standard library has ByteArrayInputStream, but nothing
+     * equivalent for a ByteBuffer which may not be backed by an
+     * array at all.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            // Java bytes are signed, but read() must return a value
+            // between 0 and 255, so mask off the sign extension.
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] dest, final int offset, final int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.remaining());
+            buffer.get(dest, offset, count);
+            return count;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.adadevelopersacademy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram counts how long something took, in nanoseconds, in
+ * buckets laid out the way HdrHistogram lays them out, so that
+ * percentiles can be read back with a bounded relative error.
+ *
+ * Values below 32 each get a bucket of their own. Above that, every
+ * power of two is split into 32 equal buckets, so a value is never
+ * more than about 3% away from the bucket it is counted in, whether
+ * it is a microsecond or a minute. Values of 2^40 nanoseconds, about
+ * eighteen minutes, and beyond are counted in the last bucket.
+ *
+ * Finding the bucket takes a couple of shifts, and recording is two
+ * atomic additions. Nothing is allocated and no lock is taken, so
+ * this is cheap enough to record every request.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = (MAX_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+
+    /**
+     * Counts a value, in nanoseconds.
+     */
+    public void record(final long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketFor(value));
+        sum.addAndGet(value);
+    }
+
+    /**
+     * Returns the sum of every value recorded, in nanoseconds.
+     */
+    public long sum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the number of values recorded.
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the values at each of the given quantiles, between 0 and
+     * 1, in nanoseconds. Each is the largest value which could have
+     * been counted in the bucket the quantile falls in, or 0 if
+     * nothing has been recorded.
+     *
+     * The counts are read once for all of the quantiles, so they agree
+     * with each other even while values are being recorded.
+     */
+    public long[] valuesAt(final double... quantiles) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        final long[] values = new long[quantiles.length];
+        for (int q = 0; q < quantiles.length; q++) {
+            if (total == 0) {
+                continue;
+            }
+            // The rank of the value at the quantile, counting from 1.
+            final long rank = Math.max(1, (long) Math.ceil(quantiles[q] * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    values[q] = highestValueIn(i);
+                    break;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the bucket in which value is counted.
+     */
+    static int bucketFor(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        // The top SUB_BUCKET_BITS + 1 bits of the value, less the
+        // leading one, pick the bucket within its power of two.
+        final int group = exponent - SUB_BUCKET_BITS + 1;
+        final int sub =
+            (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return group * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the largest value counted in bucket.
+     */
+    static long highestValueIn(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int group = bucket / SUB_BUCKETS;
+        final long next = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (group - 1);
+        return next - 1;
+    }
+}
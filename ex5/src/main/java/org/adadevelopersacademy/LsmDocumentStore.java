@@ -0,0 +1,1590 @@
+package org.adadevelopersacademy;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * LsmDocumentStore keeps documents on disk in a log-structured merge
+ * tree, so that there can be far more of them than fit in memory
+ * while writes stay as cheap as writes to memory:
+ *
+ *   https://en.wikipedia.org/wiki/Log-structured_merge-tree
+ *
+ * Every change goes to the memtable, a ConcurrentSkipListMap like the
+ * one in ConcurrentDocumentStore, where a removed document is kept as
+ * a tombstone. Once the memtable holds memtableBytes it is swapped for
+ * an empty one, and a background thread writes the full one out as an
+ * {@link SSTable}, a sorted file which is never changed again. Reads
+ * look in the memtable, then in the tables from the newest to the
+ * oldest, and stop at the first entry for the docId. A table's bloom
+ * filter answers most lookups of docIds it doesn't hold without
+ * reading its file, so a read of a missing docId usually touches no
+ * disk at all.
+ *
+ * Left alone, the tables would pile up and every read would have to
+ * look in more of them. Another thread compacts them, merging tables
+ * and keeping only the newest entry for each docId, with leveled
+ * compaction as in LevelDB:
+ *
+ *   https://github.com/google/leveldb/blob/main/doc/impl.md
+ *
+ * Freshly written tables go to level 0, where they may overlap. Once
+ * there are L0_TABLES of them they are merged with the tables they
+ * overlap in level 1. In every other level the tables are about
+ * tableBytes each and cover separate ranges of docIds, so a read
+ * looks in at most one table per level. Each level may hold ten times
+ * as many bytes as the one before, and when a level is over, one of
+ * its tables is merged into the next, taking the tables in turn. A
+ * tombstone is dropped once no deeper level has a table it could be
+ * hiding something in. When flushing or compaction can't keep up,
+ * writers wait for it whenever the memtable fills.
+ *
+ * The tables which make up the store at any moment are a Version,
+ * which never changes. Readers take the current version and count
+ * themselves in, so a table which compaction replaces is only closed
+ * and deleted once the last reader which could see it has finished.
+ * A scan takes a fresh version for every SCAN_BATCH documents, so a
+ * scan which is never finished doesn't keep old tables around.
+ *
+ * The MANIFEST file lists the tables of each level, and is replaced
+ * whenever they change. On its own the store loses the memtable in a
+ * crash, although close() writes it out. Given a {@link
+ * WriteAheadLog}, which the DurableDocumentStore around it records
+ * every change in, the log is rotated whenever the memtable is
+ * swapped, and once the memtable is in a table the segments before
+ * it are deleted. The manifest names the first segment which isn't in
+ * a table yet, and replaying the log from there brings back the
+ * memtable. That takes the place of snapshots.
+ *
+ * The store counts its documents and their bytes itself, since a put
+ * doesn't look for the document it replaces. The manifest holds the
+ * totals for the tables. When a memtable is written out, each of its
+ * docIds is looked up in the tables to see what it replaces, and the
+ * difference goes into the new totals. The memtables not written out
+ * yet are measured the same way when the counts are asked for. All of
+ * that happens on other threads than the writers'.
+ */
+public final class LsmDocumentStore extends AbstractDocumentStore {
+    static final int MAX_LEVELS = 7;
+    // Level 0 is compacted once it has this many tables.
+    static final int L0_TABLES = 4;
+    static final long TABLE_BYTES = 2L << 20;
+    static final long LEVEL_ONE_BYTES = 10L << 20;
+
+    private static final Logger LOGGER =
+        Logger.getLogger(LsmDocumentStore.class.getName());
+    private static final int LEVEL_MULTIPLIER = 10;
+    // Writers wait while there are this many full memtables or level 0
+    // tables waiting.
+    private static final int MAX_IMMUTABLE = 2;
+    private static final int L0_STOP_TABLES = 12;
+    private static final int SCAN_BATCH = 1024;
+    private static final int STRIPES = 64;
+    // Roughly what the skip list spends on each entry besides the
+    // document.
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final long RETRY_SECONDS = 1;
+    private static final String MANIFEST = "MANIFEST";
+    private static final String MANIFEST_TEMP = MANIFEST + ".tmp";
+    private static final String GENERATION = "generation";
+    private static final String NEXT = "next";
+    private static final String DOCUMENTS = "documents";
+    private static final String BYTES = "bytes";
+    private static final String SEPARATOR = " ";
+    private static final String NEWLINE = "\n";
+
+    private final Path directory;
+    private final long memtableBytes;
+    private final long tableBytes;
+    private final long levelOneBytes;
+    private final WriteAheadLog log;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    // Writers to the memtable share this, and swapping it takes it
+    // exclusively.
+    private final ReentrantReadWriteLock switchLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService flusher;
+    private final ScheduledExecutorService compactor;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final AtomicLong nextNumber;
+    // Where the next compaction of each level starts, so that each
+    // table gets its turn. Only used by the compactor.
+    private final long[] compactFrom = new long[MAX_LEVELS];
+    // Only replaced while holding this.
+    private volatile Version current;
+    private volatile boolean closed;
+
+    private final AtomicLong bloomSkips = new AtomicLong();
+    private final AtomicLong blockReads = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong compactedBytes = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+
+    private LsmDocumentStore(
+            final Path directory,
+            final long memtableBytes,
+            final long tableBytes,
+            final long levelOneBytes,
+            final WriteAheadLog log,
+            final Version version,
+            final long nextNumber) {
+        this.directory = directory;
+        this.memtableBytes = memtableBytes;
+        this.tableBytes = tableBytes;
+        this.levelOneBytes = levelOneBytes;
+        this.log = log;
+        this.current = version;
+        this.nextNumber = new AtomicLong(nextNumber);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        Arrays.fill(compactFrom, Long.MIN_VALUE);
+        flusher = Executors.newSingleThreadScheduledExecutor(threads("lsm-flusher"));
+        compactor = Executors.newSingleThreadScheduledExecutor(threads("lsm-compactor"));
+        scheduleCompaction();
+    }
+
+    /**
+     * Opens the store in directory, creating it if it doesn't exist.
+     *
+     * @param directory Directory holding the tables and the manifest
+     * @param memtableBytes Bytes of documents the memtable holds before
+     *     it is written out
+     * @param log Log which the changes to the store are recorded in,
+     *     or null if there isn't one. It must be replayed into the store
+     *     from {@link #generation} before any other change is made.
+     * @return the store
+     * @throws IOException if the tables can't be opened
+     */
+    public static LsmDocumentStore open(
+            final Path directory,
+            final long memtableBytes,
+            final WriteAheadLog log) throws IOException {
+        return open(directory, memtableBytes, TABLE_BYTES, LEVEL_ONE_BYTES, log);
+    }
+
+    static LsmDocumentStore open(
+            final Path directory,
+            final long memtableBytes,
+            final long tableBytes,
+            final long levelOneBytes,
+            final WriteAheadLog log) throws IOException {
+        Files.createDirectories(directory);
+        long generation = 0;
+        long next = 1;
+        // A manifest written before the store counted its documents
+        // has no totals, and the counts then start from zero.
+        long documents = 0;
+        long bytes = 0;
+        final List<List<SSTable>> levels = emptyLevels();
+        // The manifest lists the tables of each level in order.
+        final Map<Long, Integer> listed = new LinkedHashMap<>();
+        final Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (final String line
+                    : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                final String[] fields = line.split(SEPARATOR);
+                if (GENERATION.equals(fields[0])) {
+                    generation = Long.parseLong(fields[1]);
+                } else if (NEXT.equals(fields[0])) {
+                    next = Long.parseLong(fields[1]);
+                } else if (DOCUMENTS.equals(fields[0])) {
+                    documents = Long.parseLong(fields[1]);
+                } else if (BYTES.equals(fields[0])) {
+                    bytes = Long.parseLong(fields[1]);
+                } else {
+                    listed.put(Long.parseLong(fields[1]), Integer.parseInt(fields[0]));
+                }
+            }
+        }
+        // Anything else was left behind by a crash, either before the
+        // manifest named it or after it stopped naming it.
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (final Path file : files) {
+                final long number = SSTable.number(file);
+                if (SSTable.isTemporary(file)
+                        || number >= 0 && !listed.containsKey(number)
+                        || file.getFileName().toString().equals(MANIFEST_TEMP)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        try {
+            for (final Map.Entry<Long, Integer> table : listed.entrySet()) {
+                levels.get(table.getValue())
+                    .add(SSTable.open(directory, table.getKey()));
+            }
+        } catch (final IOException e) {
+            for (final List<SSTable> level : levels) {
+                for (final SSTable table : level) {
+                    table.ref();
+                    table.unref();
+                }
+            }
+            throw e;
+        }
+        return new LsmDocumentStore(directory, memtableBytes, tableBytes,
+            levelOneBytes, log,
+            new Version(new Memtable(), new ArrayList<Memtable>(), levels, generation,
+                new Counts(documents, bytes)),
+            next);
+    }
+
+    /**
+     * Returns the first log segment whose changes may not be in the
+     * tables yet.
+     */
+    public long generation() {
+        return current.generation;
+    }
+
+    /**
+     * Returns the number of documents in the store.
+     */
+    public long documents() {
+        return count().documents;
+    }
+
+    /**
+     * Returns the total size of the documents in the store as they
+     * are kept, which is compressed if there is compression above.
+     */
+    public long bytes() {
+        return count().bytes;
+    }
+
+    /**
+     * Returns the number of reads of a table which its bloom filter
+     * saved.
+     */
+    public long bloomSkips() {
+        return bloomSkips.get();
+    }
+
+    /**
+     * Returns the number of blocks read from tables to answer a read of
+     * a single document.
+     */
+    public long blockReads() {
+        return blockReads.get();
+    }
+
+    public long flushes() {
+        return flushes.get();
+    }
+
+    public long compactions() {
+        return compactions.get();
+    }
+
+    /**
+     * Returns the number of bytes of tables written by compaction.
+     */
+    public long compactedBytes() {
+        return compactedBytes.get();
+    }
+
+    /**
+     * Returns the number of times a writer waited for flushing or
+     * compaction to catch up.
+     */
+    public long stalls() {
+        return stalls.get();
+    }
+
+    /**
+     * Returns the number of tables in level.
+     */
+    public int tables(final int level) {
+        return current.levels.get(level).size();
+    }
+
+    /**
+     * Returns the size of the tables in level, in bytes.
+     */
+    public long levelBytes(final int level) {
+        return bytes(current.levels.get(level));
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        final Version version = acquire();
+        try {
+            final ByteBuffer document = find(version, docId);
+            return document == null || document == SSTable.TOMBSTONE
+                ? null : document.duplicate();
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to read document " + docId, e);
+        } finally {
+            version.unref();
+        }
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        // Documents are kept as they were given.
+        return null;
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            write(docId, document);
+        } finally {
+            lock.unlock();
+        }
+        maybeSwitch();
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (get(docId) != null) {
+                return false;
+            }
+            write(docId, document);
+        } finally {
+            lock.unlock();
+        }
+        maybeSwitch();
+        return true;
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            final ByteBuffer existing = get(docId);
+            if (existing == null || !existing.equals(expected)) {
+                return false;
+            }
+            write(docId, document);
+        } finally {
+            lock.unlock();
+        }
+        maybeSwitch();
+        return true;
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (get(docId) == null) {
+                return false;
+            }
+            write(docId, SSTable.TOMBSTONE);
+        } finally {
+            lock.unlock();
+        }
+        maybeSwitch();
+        return true;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return new ScanIterator(fromDocId, toDocId);
+    }
+
+    @Override
+    public int lastDocId() {
+        final Version version = acquire();
+        try {
+            // The greatest docId with an entry may be a tombstone, in
+            // which case the search carries on below it.
+            long bound = Integer.MAX_VALUE;
+            while (bound >= Integer.MIN_VALUE) {
+                final long candidate = floor(version, (int) bound);
+                if (candidate == Long.MIN_VALUE) {
+                    return -1;
+                }
+                final ByteBuffer document = find(version, (int) candidate);
+                if (document != null && document != SSTable.TOMBSTONE) {
+                    return (int) candidate;
+                }
+                bound = candidate - 1;
+            }
+            return -1;
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to read tables", e);
+        } finally {
+            version.unref();
+        }
+    }
+
+    @Override
+    public void clear() {
+        switchLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                final Version next = new Version(new Memtable(),
+                    new ArrayList<Memtable>(), emptyLevels(), current.generation,
+                    new Counts(0, 0));
+                writeManifest(next);
+                for (final List<SSTable> level : current.levels) {
+                    for (final SSTable table : level) {
+                        table.markObsolete();
+                    }
+                }
+                install(next);
+            }
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to clear tables", e);
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes out the memtable and waits for the tables to be closed.
+     * The log, if there is one, may already be closed, and isn't
+     * rotated again.
+     */
+    @Override
+    public void close() throws IOException {
+        switchLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            synchronized (this) {
+                final Memtable last = current.memtable;
+                last.generation = current.generation;
+                install(current.withMemtable(new Memtable(), last));
+                closed = true;
+            }
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+        scheduleFlush(0);
+        flusher.shutdown();
+        compactor.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (!current.immutables.isEmpty()) {
+                LOGGER.severe("Unable to write out the memtable");
+            }
+            current.unref();
+        }
+    }
+
+    /**
+     * Writes the memtable out as a table, and waits until it has been.
+     */
+    void flush() {
+        switchMemtable(true);
+        synchronized (this) {
+            while (!current.immutables.isEmpty()) {
+                awaitChange();
+            }
+        }
+    }
+
+    /**
+     * Waits until no table needs compacting.
+     */
+    void awaitCompaction() {
+        synchronized (this) {
+            while (compacting.get() || !current.immutables.isEmpty()
+                    || pick(current) != null) {
+                awaitChange();
+            }
+        }
+    }
+
+    private void awaitChange() {
+        try {
+            wait();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentStoreException("Interrupted waiting for tables", e);
+        }
+    }
+
+    /**
+     * Returns the current version, counted in so that none of its
+     * tables are closed until it is released with unref.
+     */
+    private Version acquire() {
+        while (true) {
+            final Version version = current;
+            if (version.tryRef()) {
+                return version;
+            }
+            if (closed) {
+                throw new DocumentStoreException("The store is closed", null);
+            }
+        }
+    }
+
+    /**
+     * Makes next the current version. The caller must hold this.
+     */
+    private void install(final Version next) {
+        final Version previous = current;
+        current = next;
+        previous.unref();
+        notifyAll();
+    }
+
+    /**
+     * Returns the newest entry for docId, which may be a tombstone, or
+     * null if there is none.
+     */
+    private ByteBuffer find(final Version version, final int docId) throws IOException {
+        final ByteBuffer document = version.memtable.documents.get(docId);
+        if (document != null) {
+            return document;
+        }
+        return findOlder(version, version.memtable, docId);
+    }
+
+    /**
+     * Returns the newest entry for docId older than those in memtable,
+     * which may be a tombstone, or null if there is none.
+     */
+    private ByteBuffer findOlder(
+            final Version version, final Memtable memtable, final int docId)
+            throws IOException {
+        ByteBuffer document;
+        boolean older = memtable == version.memtable;
+        for (final Memtable immutable : version.immutables) {
+            if (!older) {
+                older = immutable == memtable;
+                continue;
+            }
+            document = immutable.documents.get(docId);
+            if (document != null) {
+                return document;
+            }
+        }
+        for (final SSTable table : version.levels.get(0)) {
+            document = find(table, docId);
+            if (document != null) {
+                return document;
+            }
+        }
+        for (int level = 1; level < MAX_LEVELS; level++) {
+            final SSTable table = tableFor(version.levels.get(level), docId);
+            if (table != null) {
+                document = find(table, docId);
+                if (document != null) {
+                    return document;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer find(final SSTable table, final int docId) throws IOException {
+        if (!table.overlaps(docId, docId)) {
+            return null;
+        }
+        if (!table.mightContain(docId)) {
+            bloomSkips.incrementAndGet();
+            return null;
+        }
+        blockReads.incrementAndGet();
+        return table.get(docId);
+    }
+
+    /**
+     * Returns the table of a level other than 0 which may hold docId,
+     * or null if there is none.
+     */
+    private static SSTable tableFor(final List<SSTable> level, final int docId) {
+        // The tables are in order and don't overlap, so the first one
+        // which ends at or after docId is the only one which may hold
+        // it.
+        int low = 0;
+        int high = level.size() - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (level.get(middle).maxDocId() < docId) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (low == level.size() || level.get(low).minDocId() > docId) {
+            return null;
+        }
+        return level.get(low);
+    }
+
+    /**
+     * Returns the greatest docId with an entry which is no greater than
+     * bound, or Long.MIN_VALUE if there is none.
+     */
+    private static long floor(final Version version, final int bound)
+            throws IOException {
+        long floor = floor(version.memtable, bound);
+        for (final Memtable memtable : version.immutables) {
+            floor = Math.max(floor, floor(memtable, bound));
+        }
+        for (final List<SSTable> level : version.levels) {
+            for (final SSTable table : level) {
+                if (table.minDocId() > bound || table.maxDocId() <= floor) {
+                    continue;
+                }
+                floor = Math.max(floor,
+                    table.maxDocId() <= bound ? table.maxDocId() : table.floor(bound));
+            }
+        }
+        return floor;
+    }
+
+    private static long floor(final Memtable memtable, final int bound) {
+        final Integer floor = memtable.documents.floorKey(bound);
+        return floor == null ? Long.MIN_VALUE : floor;
+    }
+
+    /**
+     * Returns the counts of the current version, including the
+     * memtables which haven't been written out yet.
+     */
+    private Counts count() {
+        final Version version = acquire();
+        try {
+            long documents = version.counts.documents;
+            long bytes = version.counts.bytes;
+            final List<Memtable> memtables = new ArrayList<>(version.immutables);
+            memtables.add(version.memtable);
+            for (final Memtable memtable : memtables) {
+                final Counts change = change(version, memtable);
+                documents += change.documents;
+                bytes += change.bytes;
+            }
+            return new Counts(documents, bytes);
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to read tables", e);
+        } finally {
+            version.unref();
+        }
+    }
+
+    /**
+     * Returns how much memtable changes the counts of the entries
+     * older than it. The answer for a full memtable never changes, so
+     * it is only worked out once.
+     */
+    private Counts change(final Version version, final Memtable memtable)
+            throws IOException {
+        if (memtable.change != null) {
+            return memtable.change;
+        }
+        long documents = 0;
+        long bytes = 0;
+        for (final Map.Entry<Integer, ByteBuffer> entry : memtable.documents.entrySet()) {
+            final ByteBuffer previous = findOlder(version, memtable, entry.getKey());
+            if (previous != null && previous != SSTable.TOMBSTONE) {
+                documents--;
+                bytes -= previous.remaining();
+            }
+            if (entry.getValue() != SSTable.TOMBSTONE) {
+                documents++;
+                bytes += entry.getValue().remaining();
+            }
+        }
+        final Counts change = new Counts(documents, bytes);
+        if (memtable != version.memtable) {
+            memtable.change = change;
+        }
+        return change;
+    }
+
+    private void write(final int docId, final ByteBuffer document) {
+        switchLock.readLock().lock();
+        try {
+            if (closed) {
+                throw new DocumentStoreException("The store is closed", null);
+            }
+            current.memtable.put(docId, document);
+        } finally {
+            switchLock.readLock().unlock();
+        }
+    }
+
+    private void maybeSwitch() {
+        if (current.memtable.bytes.get() >= memtableBytes) {
+            switchMemtable(false);
+        }
+    }
+
+    /**
+     * Swaps the memtable for an empty one, if it is full or force is
+     * set, and has the full one written out.
+     */
+    private void switchMemtable(final boolean force) {
+        synchronized (this) {
+            while (!closed && (current.immutables.size() >= MAX_IMMUTABLE
+                    || current.levels.get(0).size() >= L0_STOP_TABLES)) {
+                stalls.incrementAndGet();
+                awaitChange();
+            }
+        }
+        switchLock.writeLock().lock();
+        try {
+            final Memtable full = current.memtable;
+            if (closed || full.documents.isEmpty()
+                    || !force && full.bytes.get() < memtableBytes) {
+                return;
+            }
+            // Every change in the full memtable was applied before it
+            // was logged, so it is in a segment before the new one.
+            full.generation = log == null ? current.generation : log.rotate();
+            synchronized (this) {
+                install(current.withMemtable(new Memtable(), full));
+            }
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to rotate the log", e);
+        } finally {
+            switchLock.writeLock().unlock();
+        }
+        scheduleFlush(0);
+    }
+
+    private void scheduleFlush(final long delaySeconds) {
+        try {
+            flusher.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushOldest();
+                }
+            }, delaySeconds, TimeUnit.SECONDS);
+        } catch (final RejectedExecutionException e) {
+            // The store is closing, and close() reports anything left
+            // unwritten.
+            return;
+        }
+    }
+
+    /**
+     * Writes the oldest full memtable out as a level 0 table. Tables
+     * are always written oldest first, so that newer tables come first
+     * in level 0.
+     */
+    private void flushOldest() {
+        final Memtable memtable;
+        synchronized (this) {
+            if (current.immutables.isEmpty()) {
+                return;
+            }
+            memtable = current.immutables.get(current.immutables.size() - 1);
+        }
+        SSTable table = null;
+        boolean installed = false;
+        final long generation;
+        try {
+            // This is the oldest memtable, so everything older than it
+            // is in the tables, whichever version they are taken from.
+            final Version version = acquire();
+            final Counts change;
+            try {
+                change = change(version, memtable);
+            } finally {
+                version.unref();
+            }
+            table = write(memtable);
+            synchronized (this) {
+                if (!current.immutables.contains(memtable)) {
+                    // The store was cleared meanwhile.
+                    return;
+                }
+                generation = Math.max(current.generation, memtable.generation);
+                final Version next = current.flushed(memtable, table, generation, change);
+                writeManifest(next);
+                install(next);
+                installed = true;
+            }
+            flushes.incrementAndGet();
+            if (log != null) {
+                log.deleteBefore(generation);
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.SEVERE, "Unable to write out the memtable, retrying", e);
+            if (!installed) {
+                scheduleFlush(RETRY_SECONDS);
+            }
+            return;
+        } finally {
+            if (table != null && !installed) {
+                discard(table);
+            }
+        }
+        scheduleCompaction();
+    }
+
+    /**
+     * Writes memtable out as a new table, or returns null if it only
+     * has tombstones for documents which were never written out.
+     */
+    private SSTable write(final Memtable memtable) throws IOException {
+        try (SSTable.Writer writer =
+                 new SSTable.Writer(directory, nextNumber.getAndIncrement())) {
+            for (final Map.Entry<Integer, ByteBuffer> entry
+                    : memtable.documents.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            return writer.isEmpty() ? null : writer.finish();
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (closed || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactAll();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            compacting.set(false);
+        }
+    }
+
+    private void compactAll() {
+        boolean failed = false;
+        try {
+            while (!closed) {
+                final Version version = acquire();
+                try {
+                    final Compaction compaction = pick(version);
+                    if (compaction == null) {
+                        break;
+                    }
+                    compact(version, compaction);
+                } finally {
+                    version.unref();
+                }
+            }
+        } catch (final IOException | DocumentStoreException e) {
+            LOGGER.log(Level.WARNING, "Unable to compact tables, retrying", e);
+            failed = true;
+        } finally {
+            synchronized (this) {
+                compacting.set(false);
+                notifyAll();
+            }
+        }
+        if (failed) {
+            try {
+                compactor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        scheduleCompaction();
+                    }
+                }, RETRY_SECONDS, TimeUnit.SECONDS);
+            } catch (final RejectedExecutionException e) {
+                return;
+            }
+        } else if (pick(current) != null) {
+            // A table was flushed just as this finished.
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Returns the compaction the level most over its limit needs, or
+     * null if none is.
+     */
+    private Compaction pick(final Version version) {
+        double worst = 1;
+        int level = -1;
+        final double l0Score = version.levels.get(0).size() / (double) L0_TABLES;
+        if (l0Score >= worst) {
+            worst = l0Score;
+            level = 0;
+        }
+        for (int i = 1; i < MAX_LEVELS - 1; i++) {
+            final double score = bytes(version.levels.get(i)) / (double) maxBytes(i);
+            if (score >= worst) {
+                worst = score;
+                level = i;
+            }
+        }
+        if (level < 0) {
+            return null;
+        }
+        final List<SSTable> inputs = new ArrayList<>();
+        if (level == 0) {
+            inputs.addAll(version.levels.get(0));
+        } else {
+            // Take the tables in turn, so that every part of the level
+            // is compacted.
+            SSTable next = version.levels.get(level).get(0);
+            for (final SSTable table : version.levels.get(level)) {
+                if (table.minDocId() > compactFrom[level]) {
+                    next = table;
+                    break;
+                }
+            }
+            inputs.add(next);
+        }
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (final SSTable table : inputs) {
+            min = Math.min(min, table.minDocId());
+            max = Math.max(max, table.maxDocId());
+        }
+        final List<SSTable> overlapping = new ArrayList<>();
+        for (final SSTable table : version.levels.get(level + 1)) {
+            if (table.overlaps(min, max)) {
+                overlapping.add(table);
+            }
+        }
+        // The overlapping tables may reach beyond the inputs, and the
+        // whole of them is merged.
+        for (final SSTable table : overlapping) {
+            min = Math.min(min, table.minDocId());
+            max = Math.max(max, table.maxDocId());
+        }
+        return new Compaction(level, inputs, overlapping, min, max);
+    }
+
+    private long maxBytes(final int level) {
+        long max = levelOneBytes;
+        for (int i = 1; i < level; i++) {
+            max *= LEVEL_MULTIPLIER;
+        }
+        return max;
+    }
+
+    /**
+     * Merges the tables of compaction into the next level.
+     */
+    private void compact(final Version version, final Compaction compaction)
+            throws IOException {
+        if (compaction.level > 0) {
+            compactFrom[compaction.level] = compaction.inputs.get(0).maxDocId();
+        }
+        final int output = compaction.level + 1;
+        if (compaction.level > 0 && compaction.overlapping.isEmpty()) {
+            // Nothing to merge with, so the table can simply move down
+            // without being rewritten.
+            synchronized (this) {
+                if (current.contains(compaction)) {
+                    final Version next = current.compacted(
+                        compaction, compaction.inputs);
+                    writeManifest(next);
+                    install(next);
+                }
+            }
+            return;
+        }
+        boolean dropTombstones = true;
+        for (int level = output + 1; level < MAX_LEVELS; level++) {
+            for (final SSTable table : version.levels.get(level)) {
+                if (table.overlaps(compaction.min, compaction.max)) {
+                    dropTombstones = false;
+                }
+            }
+        }
+        final List<Cursor> sources = new ArrayList<>();
+        int rank = 0;
+        for (final SSTable table : compaction.inputs) {
+            sources.add(table.cursor(compaction.min, rank++));
+        }
+        if (!compaction.overlapping.isEmpty()) {
+            sources.add(new LevelCursor(compaction.overlapping, compaction.min, rank));
+        }
+        final List<SSTable> outputs = new ArrayList<>();
+        boolean installed = false;
+        SSTable.Writer writer = null;
+        try {
+            final Cursor merged = new MergingCursor(sources);
+            for (; merged.valid(); merged.next()) {
+                if (closed) {
+                    return;
+                }
+                if (dropTombstones && merged.document() == SSTable.TOMBSTONE) {
+                    continue;
+                }
+                if (writer == null) {
+                    writer = new SSTable.Writer(directory, nextNumber.getAndIncrement());
+                }
+                writer.add(merged.docId(), merged.document());
+                if (writer.size() >= tableBytes) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+                writer = null;
+            }
+            synchronized (this) {
+                if (!current.contains(compaction)) {
+                    // The store was cleared meanwhile.
+                    return;
+                }
+                final Version next = current.compacted(compaction, outputs);
+                writeManifest(next);
+                for (final SSTable table : compaction.inputs) {
+                    table.markObsolete();
+                }
+                for (final SSTable table : compaction.overlapping) {
+                    table.markObsolete();
+                }
+                install(next);
+                installed = true;
+            }
+            compactions.incrementAndGet();
+            compactedBytes.addAndGet(bytes(outputs));
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+            if (!installed) {
+                for (final SSTable table : outputs) {
+                    discard(table);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes and deletes a table which never made it into a version.
+     */
+    private static void discard(final SSTable table) {
+        table.markObsolete();
+        table.ref();
+        table.unref();
+    }
+
+    /**
+     * Replaces the manifest with one listing the tables of version.
+     * The caller must hold this.
+     */
+    private void writeManifest(final Version version) throws IOException {
+        final Path temp = directory.resolve(MANIFEST_TEMP);
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             Writer out = new OutputStreamWriter(file, StandardCharsets.UTF_8)) {
+            out.write(GENERATION + SEPARATOR + version.generation + NEWLINE);
+            out.write(NEXT + SEPARATOR + nextNumber.get() + NEWLINE);
+            out.write(DOCUMENTS + SEPARATOR + version.counts.documents + NEWLINE);
+            out.write(BYTES + SEPARATOR + version.counts.bytes + NEWLINE);
+            for (int level = 0; level < MAX_LEVELS; level++) {
+                for (final SSTable table : version.levels.get(level)) {
+                    out.write(level + SEPARATOR + table.number() + NEWLINE);
+                }
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+        Snapshot.syncDirectory(directory);
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[OffHeapDocumentStore.mix(docId) & (STRIPES - 1)];
+    }
+
+    private static long bytes(final List<SSTable> tables) {
+        long bytes = 0;
+        for (final SSTable table : tables) {
+            bytes += table.bytes();
+        }
+        return bytes;
+    }
+
+    private static List<List<SSTable>> emptyLevels() {
+        final List<List<SSTable>> levels = new ArrayList<>();
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levels.add(new ArrayList<SSTable>());
+        }
+        return levels;
+    }
+
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * The documents written since the last swap.
+     */
+    private static final class Memtable {
+        private final ConcurrentSkipListMap<Integer, ByteBuffer> documents =
+            new ConcurrentSkipListMap<>();
+        private final AtomicLong bytes = new AtomicLong();
+        // Once the memtable is full, the first log segment with
+        // changes which aren't in it or an older memtable.
+        private volatile long generation;
+        // Once the memtable is full, how it changes the counts, if
+        // that has been worked out.
+        private volatile Counts change;
+
+        private void put(final int docId, final ByteBuffer document) {
+            final ByteBuffer previous = documents.put(docId, document);
+            long change = document.remaining() + ENTRY_OVERHEAD;
+            if (previous != null) {
+                change -= previous.remaining() + ENTRY_OVERHEAD;
+            }
+            bytes.addAndGet(change);
+        }
+    }
+
+    /**
+     * Everything which makes up the store at one moment: the memtable,
+     * full memtables waiting to be written out, newest first, and the
+     * tables of each level. Level 0 is newest first, and the other
+     * levels are in docId order.
+     */
+    private static final class Version {
+        private final Memtable memtable;
+        private final List<Memtable> immutables;
+        private final List<List<SSTable>> levels;
+        private final long generation;
+        // The documents in the tables, not counting the memtables.
+        private final Counts counts;
+        // The store's own reference, and one for each reader.
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Version(
+                final Memtable memtable,
+                final List<Memtable> immutables,
+                final List<List<SSTable>> levels,
+                final long generation,
+                final Counts counts) {
+            this.memtable = memtable;
+            this.immutables = Collections.unmodifiableList(immutables);
+            final List<List<SSTable>> copies = new ArrayList<>();
+            for (final List<SSTable> level : levels) {
+                copies.add(Collections.unmodifiableList(level));
+                for (final SSTable table : level) {
+                    table.ref();
+                }
+            }
+            this.levels = Collections.unmodifiableList(copies);
+            this.generation = generation;
+            this.counts = counts;
+        }
+
+        private boolean tryRef() {
+            while (true) {
+                final int count = refs.get();
+                if (count == 0) {
+                    // Already released, so its tables may be closed.
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void unref() {
+            if (refs.decrementAndGet() > 0) {
+                return;
+            }
+            for (final List<SSTable> level : levels) {
+                for (final SSTable table : level) {
+                    table.unref();
+                }
+            }
+        }
+
+        /**
+         * Returns this with next as the memtable, and full waiting to be
+         * written out.
+         */
+        private Version withMemtable(final Memtable next, final Memtable full) {
+            final List<Memtable> waiting = new ArrayList<>();
+            waiting.add(full);
+            waiting.addAll(immutables);
+            return new Version(next, waiting, copyLevels(), generation, counts);
+        }
+
+        /**
+         * Returns this with full written out as table, which may be
+         * null if there was nothing to write, and change added to the
+         * counts.
+         */
+        private Version flushed(
+                final Memtable full,
+                final SSTable table,
+                final long flushed,
+                final Counts change) {
+            final List<Memtable> waiting = new ArrayList<>(immutables);
+            waiting.remove(full);
+            final List<List<SSTable>> copies = copyLevels();
+            if (table != null) {
+                copies.get(0).add(0, table);
+            }
+            return new Version(memtable, waiting, copies, flushed, new Counts(
+                counts.documents + change.documents, counts.bytes + change.bytes));
+        }
+
+        /**
+         * Returns this with the tables of compaction replaced by
+         * outputs.
+         */
+        private Version compacted(
+                final Compaction compaction, final List<SSTable> outputs) {
+            final List<List<SSTable>> copies = copyLevels();
+            copies.get(compaction.level).removeAll(compaction.inputs);
+            final List<SSTable> next = copies.get(compaction.level + 1);
+            next.removeAll(compaction.overlapping);
+            next.addAll(outputs);
+            Collections.sort(next, new Comparator<SSTable>() {
+                @Override
+                public int compare(final SSTable a, final SSTable b) {
+                    return Integer.compare(a.minDocId(), b.minDocId());
+                }
+            });
+            return new Version(
+                memtable, new ArrayList<>(immutables), copies, generation, counts);
+        }
+
+        /**
+         * Returns whether every table of compaction is still here.
+         */
+        private boolean contains(final Compaction compaction) {
+            return levels.get(compaction.level).containsAll(compaction.inputs)
+                && levels.get(compaction.level + 1).containsAll(compaction.overlapping);
+        }
+
+        private List<List<SSTable>> copyLevels() {
+            final List<List<SSTable>> copies = new ArrayList<>();
+            for (final List<SSTable> level : levels) {
+                copies.add(new ArrayList<>(level));
+            }
+            return copies;
+        }
+    }
+
+    /**
+     * A number of documents and their bytes, or a change to them.
+     */
+    private static final class Counts {
+        private final long documents;
+        private final long bytes;
+
+        private Counts(final long documents, final long bytes) {
+            this.documents = documents;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Tables of one level to merge with the overlapping tables of the
+     * next.
+     */
+    private static final class Compaction {
+        private final int level;
+        private final List<SSTable> inputs;
+        private final List<SSTable> overlapping;
+        private final int min;
+        private final int max;
+
+        private Compaction(
+                final int level,
+                final List<SSTable> inputs,
+                final List<SSTable> overlapping,
+                final int min,
+                final int max) {
+            this.level = level;
+            this.inputs = inputs;
+            this.overlapping = overlapping;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Walks the entries of a memtable, a table or several of them in
+     * docId order, tombstones included.
+     *
+     * When cursors are merged, each docId is taken from the cursor with
+     * the lowest rank which has it, so newer sources get lower ranks.
+     */
+    abstract static class Cursor {
+        private final int rank;
+
+        Cursor(final int rank) {
+            this.rank = rank;
+        }
+
+        /**
+         * Returns false once the cursor has gone past the last entry.
+         */
+        abstract boolean valid();
+
+        abstract int docId();
+
+        /**
+         * Returns the document of the entry, or SSTable.TOMBSTONE.
+         */
+        abstract ByteBuffer document();
+
+        abstract void next() throws IOException;
+    }
+
+    private static final class MemtableCursor extends Cursor {
+        private final Iterator<Map.Entry<Integer, ByteBuffer>> entries;
+        private Map.Entry<Integer, ByteBuffer> entry;
+
+        private MemtableCursor(
+                final Memtable memtable, final int fromDocId, final int rank) {
+            super(rank);
+            entries = memtable.documents.tailMap(fromDocId).entrySet().iterator();
+            next();
+        }
+
+        @Override
+        boolean valid() {
+            return entry != null;
+        }
+
+        @Override
+        int docId() {
+            return entry.getKey();
+        }
+
+        @Override
+        ByteBuffer document() {
+            return entry.getValue();
+        }
+
+        @Override
+        void next() {
+            entry = entries.hasNext() ? entries.next() : null;
+        }
+    }
+
+    /**
+     * Walks the tables of a level other than 0 one after the other,
+     * opening each only once it is reached.
+     */
+    private static final class LevelCursor extends Cursor {
+        private final List<SSTable> tables;
+        private int index;
+        private Cursor table;
+
+        private LevelCursor(
+                final List<SSTable> tables, final int fromDocId, final int rank)
+                throws IOException {
+            super(rank);
+            this.tables = tables;
+            while (index < tables.size() && tables.get(index).maxDocId() < fromDocId) {
+                index++;
+            }
+            if (index < tables.size()) {
+                table = tables.get(index).cursor(fromDocId, rank);
+            }
+        }
+
+        @Override
+        boolean valid() {
+            return table != null && table.valid();
+        }
+
+        @Override
+        int docId() {
+            return table.docId();
+        }
+
+        @Override
+        ByteBuffer document() {
+            return table.document();
+        }
+
+        @Override
+        void next() throws IOException {
+            table.next();
+            if (!table.valid()) {
+                index++;
+                table = index < tables.size()
+                    ? tables.get(index).cursor(Integer.MIN_VALUE, super.rank) : null;
+            }
+        }
+    }
+
+    /**
+     * Merges several cursors into one, which has the newest entry for
+     * each docId.
+     */
+    private static final class MergingCursor extends Cursor {
+        private final PriorityQueue<Cursor> queue;
+
+        private MergingCursor(final List<Cursor> sources) {
+            super(0);
+            queue = new PriorityQueue<>(Math.max(sources.size(), 1),
+                new Comparator<Cursor>() {
+                    @Override
+                    public int compare(final Cursor a, final Cursor b) {
+                        final int byDocId = Integer.compare(a.docId(), b.docId());
+                        return byDocId != 0 ? byDocId : Integer.compare(a.rank, b.rank);
+                    }
+                });
+            for (final Cursor source : sources) {
+                if (source.valid()) {
+                    queue.add(source);
+                }
+            }
+        }
+
+        @Override
+        boolean valid() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        int docId() {
+            return queue.peek().docId();
+        }
+
+        @Override
+        ByteBuffer document() {
+            return queue.peek().document();
+        }
+
+        @Override
+        void next() throws IOException {
+            final int docId = docId();
+            // Older entries for the same docId are skipped along with
+            // the newest.
+            while (!queue.isEmpty() && queue.peek().docId() == docId) {
+                final Cursor source = queue.poll();
+                source.next();
+                if (source.valid()) {
+                    queue.add(source);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns documents from a fresh version every SCAN_BATCH entries.
+     */
+    private final class ScanIterator
+            implements Iterator<Map.Entry<Integer, ByteBuffer>> {
+        private final int toDocId;
+        private final Deque<Map.Entry<Integer, ByteBuffer>> batch = new ArrayDeque<>();
+        private long nextDocId;
+
+        private ScanIterator(final int fromDocId, final int toDocId) {
+            this.toDocId = toDocId;
+            nextDocId = fromDocId;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (batch.isEmpty() && nextDocId <= toDocId) {
+                fill();
+            }
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<Integer, ByteBuffer> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batch.poll();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill() {
+            final Version version = acquire();
+            try {
+                final List<Cursor> sources = new ArrayList<>();
+                final int from = (int) nextDocId;
+                int rank = 0;
+                sources.add(new MemtableCursor(version.memtable, from, rank++));
+                for (final Memtable memtable : version.immutables) {
+                    sources.add(new MemtableCursor(memtable, from, rank++));
+                }
+                for (final SSTable table : version.levels.get(0)) {
+                    if (table.overlaps(from, toDocId)) {
+                        sources.add(table.cursor(from, rank));
+                    }
+                    rank++;
+                }
+                for (int level = 1; level < MAX_LEVELS; level++) {
+                    sources.add(new LevelCursor(version.levels.get(level), from, rank++));
+                }
+                final Cursor merged = new MergingCursor(sources);
+                int entries = 0;
+                while (merged.valid() && merged.docId() <= toDocId
+                        && entries < SCAN_BATCH) {
+                    entries++;
+                    nextDocId = merged.docId() + 1L;
+                    if (merged.document() != SSTable.TOMBSTONE) {
+                        batch.add(new AbstractMap.SimpleImmutableEntry<>(
+                            merged.docId(), merged.document().duplicate()));
+                    }
+                    merged.next();
+                }
+                if (!merged.valid() || merged.docId() > toDocId) {
+                    nextDocId = toDocId + 1L;
+                }
+            } catch (final IOException e) {
+                throw new DocumentStoreException("Unable to read tables", e);
+            } finally {
+                version.unref();
+            }
+        }
+    }
+}
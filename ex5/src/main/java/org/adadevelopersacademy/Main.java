@@ -2,8 +2,21 @@ package org.adadevelopersacademy;
 
 import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.Locale;
+import java.util.Map;
 
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpServerFactory;
 import org.glassfish.jersey.server.ResourceConfig;
 
@@ -13,21 +26,484 @@ import org.glassfish.jersey.server.ResourceConfig;
 public class Main {
     // Base URI the Grizzly HTTP server will listen on
     public static final String BASE_URI = "http://localhost:8080/";
+    // Base URI to listen on instead, so that several servers can run
+    // on one machine, for example "http://localhost:8081/".
+    public static final String URI_PROPERTY = "document.server.uri";
+
+    // System property which selects the DocumentStore
+    // implementation, for example:
+    //
+    //   mvn exec:java -Ddocument.store=offheap
+    public static final String STORE_PROPERTY = "document.store";
+    // Directory holding the tables of the lsm store.
+    public static final String LSM_PROPERTY = "document.lsm";
+    // Bytes of documents the lsm store keeps in its memtable before
+    // writing them out as a table.
+    public static final String MEMTABLE_PROPERTY = "document.lsm.memtable";
+
+    // When set, every change is recorded in a write-ahead log in this
+    // directory, and the log is replayed at startup. Snapshots are
+    // kept in the same directory.
+    public static final String WAL_PROPERTY = "document.wal";
+    // One of sync, group or async. See Durability.
+    public static final String DURABILITY_PROPERTY = "document.wal.durability";
+    // How often, in milliseconds, the log is forced to disk in group
+    // and async modes.
+    public static final String INTERVAL_PROPERTY = "document.wal.interval";
+    // How often, in seconds, a snapshot is taken. 0 turns snapshots
+    // off.
+    public static final String SNAPSHOT_PROPERTY = "document.snapshot.interval";
+    // Largest document, in bytes, accepted by PUT and POST.
+    public static final String MAX_SIZE_PROPERTY = "document.max.size";
+    // Fields to index, for example "name,age:sorted". See
+    // FieldIndex.parseAll.
+    public static final String INDEX_PROPERTY = "document.index";
+    // Number of recent changes kept for change feed subscribers.
+    public static final String CHANGES_PROPERTY = "document.changes.capacity";
+    // When set, at most this many bytes of documents are kept in
+    // memory, and the rest are spilled to a file.
+    public static final String BUDGET_PROPERTY = "document.memory.budget";
+    // Directory for the spill file. It defaults to the temporary
+    // directory.
+    public static final String SPILL_PROPERTY = "document.spill";
+    // Bytes of documents to keep in CBOR form for clients which ask
+    // for it. See CborCache.
+    public static final String CBOR_CACHE_PROPERTY = "document.cbor.cache";
+    // When set, documents of at least this many bytes are kept
+    // compressed. See DocumentCodec.
+    public static final String COMPRESS_PROPERTY = "document.compress.threshold";
+    // Either sync, where a worker thread waits for each write to be
+    // durable, or async, where it moves on to the next request and the
+    // response is sent once the log has been forced. Async only makes
+    // a difference with a log in group mode. See DeferredSync.
+    public static final String MODE_PROPERTY = "document.server.mode";
+    // Number of worker threads which handle requests. It defaults to
+    // Grizzly's own choice.
+    public static final String WORKERS_PROPERTY = "document.server.workers";
+    // Number of selector threads which accept connections and read
+    // requests. It defaults to the number of processors.
+    public static final String SELECTORS_PROPERTY = "document.server.selectors";
+    // Largest number of requests waiting for a worker thread. Further
+    // requests are refused. It defaults to 64 for each worker, and -1
+    // turns the limit off.
+    public static final String QUEUE_PROPERTY = "document.server.queue";
+
+    // Largest number of reads, and of writes, handled at once. The
+    // limits shrink below these while requests are slower than the
+    // target latency, and requests over them are refused with 503.
+    // They default to the number of workers for reads and half of it
+    // for writes. 0 turns the limit off. See AdmissionControl.
+    public static final String READ_LIMIT_PROPERTY = "document.limit.reads";
+    public static final String WRITE_LIMIT_PROPERTY = "document.limit.writes";
+    // Latency, in milliseconds, above which the limits are cut.
+    public static final String LATENCY_PROPERTY = "document.limit.latency";
+
+    // When set, the server is a follower of the leader at this base
+    // URI. It keeps a copy of the leader's documents and sends writes
+    // there. See Replication.
+    public static final String LEADER_PROPERTY = "document.replication.leader";
+    // Either read-your-writes, where a read passing a Document-Seq
+    // waits for the follower to catch up with that change, or
+    // eventual, where it doesn't.
+    public static final String CONSISTENCY_PROPERTY = "document.replication.consistency";
+    // How long, in milliseconds, a read waits for the follower before
+    // it is redirected to the leader.
+    public static final String REPLICA_WAIT_PROPERTY = "document.replication.wait";
+    // Largest number of followers sent changes at once.
+    public static final String STREAMS_PROPERTY = "document.replication.streams";
+
+    // When set, the server is one node of a cluster of these base
+    // URIs, separated by commas, and only stores the documents it
+    // owns. See Cluster.
+    public static final String CLUSTER_PROPERTY = "document.cluster.nodes";
+    // Number of points on the hash ring for each node.
+    public static final String VNODES_PROPERTY = "document.cluster.vnodes";
+    // Either forward, where a request for another node's document is
+    // sent on to that node, or redirect, where the client is sent
+    // there.
+    public static final String ROUTING_PROPERTY = "document.cluster.routing";
+
+    // Sends the responses to writes in async mode, or null.
+    private static ExecutorService responders;
+
+    // Documents which expire are removed at about this interval.
+    private static final long TTL_TICK_MILLIS = 1000;
 
     /**
      * Starts Grizzly HTTP server exposing JAX-RS resources defined in
      * this application.
      * @return Grizzly HTTP server.
+     * @throws IOException if the configured log can't be opened
      */
-    public static HttpServer startServer() {
+    public static HttpServer startServer() throws IOException {
+        final Map<String, FieldIndex> indexes =
+            FieldIndex.parseAll(System.getProperty(INDEX_PROPERTY, ""));
+        final ChangeFeed feed =
+            new ChangeFeed(Integer.getInteger(CHANGES_PROPERTY, 65536));
+        final String walPath = System.getProperty(WAL_PROPERTY);
+        final WriteAheadLog log = walPath == null ? null : openLog(Paths.get(walPath));
+        // The log keeps the deadlines as well, so it has to know where
+        // to replay them to before createStore replays it.
+        final TimerWheel deadlines =
+            new TimerWheel(TTL_TICK_MILLIS, System.currentTimeMillis());
+        if (log != null) {
+            log.setDeadlines(deadlines);
+        }
+        // Expired documents are removed through the other layers, so
+        // that their removal is logged and published.
+        final ExpiringDocumentStore expiring = new ExpiringDocumentStore(
+            new PublishingDocumentStore(createStore(indexes, log), feed), deadlines, log);
+        expiring.startReaper(TTL_TICK_MILLIS);
+        DocumentResource.setStore(expiring);
+        DocumentResource.setIndexes(indexes);
+        DocumentResource.setChanges(
+            new ChangeStream(feed, Runtime.getRuntime().availableProcessors()));
+        DocumentResource.setMaxDocumentSize(Integer.getInteger(
+            MAX_SIZE_PROPERTY, DocumentResource.DEFAULT_MAX_DOCUMENT_SIZE));
+        Replication.setFeed(feed);
+        DocumentResource.setCborCache(
+            new CborCache(Long.getLong(CBOR_CACHE_PROPERTY, 16L << 20)));
+        Replication.setMaxStreams(Integer.getInteger(STREAMS_PROPERTY, 4));
+        startReplication(expiring);
+        startCluster();
+
         // create a resource config that scans for JAX-RS resources
         // and providers in org.adadevelopersacademy package
         final ResourceConfig rc =
             new ResourceConfig().packages("org.adadevelopersacademy");
 
-        // create and start a new instance of grizzly http server
-        // exposing the Jersey application at BASE_URI
-        return GrizzlyHttpServerFactory.createHttpServer(URI.create(BASE_URI), rc);
+        final String mode = System.getProperty(MODE_PROPERTY, "sync");
+        switch (mode) {
+        case "sync":
+            responders = null;
+            break;
+        case "async":
+            responders = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "responder");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown server mode: " + mode);
+        }
+        DocumentResource.setResponders(responders);
+        MetricsResource.setMetrics(new Metrics());
+
+        // create a new instance of grizzly http server exposing the
+        // Jersey application at BASE_URI, and start it once its
+        // threads have been configured
+        final HttpServer server = GrizzlyHttpServerFactory.createHttpServer(
+            URI.create(System.getProperty(URI_PROPERTY, BASE_URI)), rc, false);
+        int workers = 1;
+        for (final NetworkListener listener : server.getListeners()) {
+            workers = Math.max(workers, configure(listener.getTransport()));
+        }
+        // A request only reaches AdmissionControl once a worker thread
+        // has taken it off the queue, so a limit above the number of
+        // workers would never be reached, and requests would queue
+        // instead of being refused. Writes get half of the workers so
+        // that reads always have some left.
+        final long latency =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(LATENCY_PROPERTY, 100));
+        AdmissionControl.setLimiters(
+            limiter(Integer.getInteger(READ_LIMIT_PROPERTY, workers), latency),
+            limiter(Integer.getInteger(WRITE_LIMIT_PROPERTY,
+                Math.max(1, workers / 2)), latency));
+        server.start();
+        return server;
+    }
+
+    /**
+     * Makes the server a follower if a leader is configured, applying
+     * the leader's changes to store, or else a leader.
+     */
+    private static void startReplication(final DocumentStore store) {
+        final String leader = System.getProperty(LEADER_PROPERTY);
+        final String consistency =
+            System.getProperty(CONSISTENCY_PROPERTY, "read-your-writes");
+        final boolean readYourWrites;
+        switch (consistency) {
+        case "read-your-writes":
+            readYourWrites = true;
+            break;
+        case "eventual":
+            readYourWrites = false;
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown consistency: " + consistency);
+        }
+        if (leader == null) {
+            Replication.setFollower(null, readYourWrites, 0);
+            return;
+        }
+        final Follower follower = new Follower(URI.create(leader), store);
+        follower.start();
+        Replication.setFollower(
+            follower, readYourWrites, Long.getLong(REPLICA_WAIT_PROPERTY, 1000));
+    }
+
+    /**
+     * Joins the configured cluster, if there is one.
+     */
+    private static void startCluster() {
+        final String nodes = System.getProperty(CLUSTER_PROPERTY);
+        if (nodes == null) {
+            ClusterRouting.setCluster(null);
+            DocumentResource.setPartition(null);
+            return;
+        }
+        final String routing = System.getProperty(ROUTING_PROPERTY, "forward");
+        final Cluster cluster = new Cluster(
+            System.getProperty(URI_PROPERTY, BASE_URI),
+            Arrays.asList(nodes.split(",")),
+            Integer.getInteger(VNODES_PROPERTY, 128),
+            Cluster.Routing.valueOf(routing.toUpperCase(Locale.ROOT)));
+        ClusterRouting.setCluster(cluster);
+        DocumentResource.setPartition(cluster);
+        cluster.start();
+    }
+
+    private static ConcurrencyLimiter limiter(final int maxLimit, final long latency) {
+        return maxLimit == 0 ? null : new ConcurrencyLimiter(maxLimit, latency);
+    }
+
+    /**
+     * Sizes the thread pools of a transport as configured by system
+     * properties, leaving Grizzly's defaults for the rest.
+     *
+     * Grizzly's own worker queue has no limit, so the time a request
+     * spends waiting in it could grow without bound, and without
+     * AdmissionControl seeing any of it. Grizzly answers a request it
+     * can't queue with 500 rather than 503, though, so the limit is a
+     * last resort against running out of memory rather than a way to
+     * shed load, which AdmissionControl does. Unless configured
+     * otherwise, the queue is limited to 64 requests for each worker,
+     * which leaves room for many more clients than workers.
+     *
+     * @return the number of worker threads
+     */
+    private static int configure(final TCPNIOTransport transport) {
+        final Integer selectors = Integer.getInteger(SELECTORS_PROPERTY);
+        if (selectors != null) {
+            transport.setSelectorRunnersCount(selectors);
+        }
+        final Integer workers = Integer.getInteger(WORKERS_PROPERTY);
+        final ThreadPoolConfig config = transport.getWorkerThreadPoolConfig() == null
+            ? ThreadPoolConfig.defaultConfig()
+            : transport.getWorkerThreadPoolConfig().copy();
+        if (workers != null) {
+            config.setCorePoolSize(workers).setMaxPoolSize(workers);
+        }
+        config.setQueueLimit(Integer.getInteger(
+            QUEUE_PROPERTY, config.getMaxPoolSize() * 64));
+        transport.setWorkerThreadPoolConfig(config.setPoolName("document-worker"));
+        return config.getMaxPoolSize();
+    }
+
+    /**
+     * Stops the server and closes the DocumentStore it was using so
+     * that anything buffered is written out.
+     * @param server Grizzly HTTP server returned by startServer.
+     * @throws IOException if the store fails to close cleanly
+     */
+    public static void stopServer(final HttpServer server) throws IOException {
+        // Change feed subscriptions and replication streams never end
+        // by themselves.
+        DocumentResource.getChanges().close();
+        Replication.setFeed(null);
+        // Nothing may be applied to the store once it is closed.
+        final Follower follower = Replication.getFollower();
+        if (follower != null) {
+            follower.close();
+        }
+        final Cluster cluster = ClusterRouting.getCluster();
+        if (cluster != null) {
+            cluster.close();
+        }
+        server.shutdownNow();
+        DocumentResource.getStore().close();
+        // Every write has been answered by now, since closing the
+        // store flushed the log.
+        if (responders != null) {
+            responders.shutdown();
+        }
+    }
+
+    /**
+     * Creates the DocumentStore configured by system properties.
+     *
+     * If there is a snapshot, it is mapped and the server can answer
+     * reads straight away while the rest of the log is replayed in the
+     * background. Otherwise the whole log is replayed before this
+     * returns.
+     *
+     * The stores are layered like this, from the inside out, with the
+     * optional ones in brackets:
+     *
+     *   memory store, [tiers], [compression], [snapshot], counts,
+     *   [indexes], [log]
+     *
+     * The indexes sit inside the log so that replaying the log keeps
+     * them up to date too. startServer() adds a PublishingDocumentStore
+     * and then an ExpiringDocumentStore around the lot, outside the
+     * log, so that replaying the log doesn't publish anything to the
+     * change feed.
+     *
+     * @param indexes Field indexes for the store to maintain
+     * @param log Log opened in the configured directory, or null if
+     *     there isn't one
+     * @return a new DocumentStore.
+     * @throws IOException if the log can't be replayed
+     */
+    static DocumentStore createStore(
+            final Map<String, FieldIndex> indexes, final WriteAheadLog log)
+            throws IOException {
+        if ("lsm".equals(System.getProperty(STORE_PROPERTY))) {
+            return createLsmStore(indexes, log);
+        }
+        DocumentResource.setLsmStore(null);
+        final DocumentStore store = createMemoryStore();
+        if (log == null) {
+            return withIndexes(counting(store, null), indexes);
+        }
+        final long snapshotInterval = Long.getLong(SNAPSHOT_PROPERTY, 300);
+        final Path directory = Paths.get(System.getProperty(WAL_PROPERTY));
+        final Snapshot snapshot = Snapshot.openLatest(directory);
+        final DurableDocumentStore durable;
+        if (snapshot == null) {
+            durable = new DurableDocumentStore(
+                withIndexes(counting(store, null), indexes), log);
+            durable.recover(0);
+        } else {
+            durable = new DurableDocumentStore(withIndexes(counting(
+                new SnapshotDocumentStore(store, snapshot), snapshot), indexes), log);
+            durable.recoverInBackground(snapshot.generation());
+        }
+        if (snapshotInterval > 0) {
+            durable.scheduleSnapshots(directory, snapshotInterval);
+        }
+        return durable;
+    }
+
+    /**
+     * Creates the log-structured store, which keeps the documents on
+     * disk itself. The layers are like those of createStore, without
+     * the memory budget or snapshots, and without the counts, which
+     * the LSM store keeps itself:
+     *
+     *   lsm store, [compression], [indexes], [log]
+     *
+     * The tables keep documents as they were compressed, so they are
+     * compressed without the shared dictionary, which is only kept in
+     * memory and would be gone when the store is reopened.
+     *
+     * With a log, writing out the memtable takes the place of a
+     * snapshot, and only the log written since is replayed.
+     *
+     * @param indexes Field indexes for the store to maintain
+     * @param log Log to record changes in, or null
+     * @return a new DocumentStore.
+     * @throws IOException if the tables can't be opened or the log
+     *     can't be replayed
+     */
+    private static DocumentStore createLsmStore(
+            final Map<String, FieldIndex> indexes, final WriteAheadLog log)
+            throws IOException {
+        final LsmDocumentStore lsm = LsmDocumentStore.open(
+            Paths.get(System.getProperty(LSM_PROPERTY, "documents.lsm")),
+            Long.getLong(MEMTABLE_PROPERTY, 4L << 20),
+            log);
+        DocumentResource.setLsmStore(lsm);
+        DocumentResource.setTieredStore(null);
+        DocumentResource.setCountingStore(null);
+        final DocumentStore store = withIndexes(compressing(lsm, false), indexes);
+        if (log == null) {
+            return store;
+        }
+        final DurableDocumentStore durable = new DurableDocumentStore(store, log);
+        durable.recover(lsm.generation());
+        return durable;
+    }
+
+    private static WriteAheadLog openLog(final Path directory) throws IOException {
+        final Durability durability = Durability.valueOf(
+            System.getProperty(DURABILITY_PROPERTY, "group").toUpperCase(Locale.ROOT));
+        return WriteAheadLog.open(
+            directory, durability, Long.getLong(INTERVAL_PROPERTY, 10));
+    }
+
+    /**
+     * Wraps store in a CountingDocumentStore for the metrics, starting
+     * from the documents in snapshot if there is one.
+     */
+    private static DocumentStore counting(
+            final DocumentStore store, final Snapshot snapshot) {
+        final CountingDocumentStore counting = new CountingDocumentStore(store, snapshot);
+        DocumentResource.setCountingStore(counting);
+        return counting;
+    }
+
+    private static DocumentStore withIndexes(
+            final DocumentStore store,
+            final Map<String, FieldIndex> indexes) {
+        if (indexes.isEmpty()) {
+            return store;
+        }
+        return new IndexedDocumentStore(store, indexes);
+    }
+
+    /**
+     * Creates the in-memory DocumentStore selected by the
+     * document.store system property, limited to the memory budget if
+     * there is one and compressing documents if asked to.
+     * @return a new, empty DocumentStore.
+     * @throws IOException if the spill file can't be created
+     */
+    private static DocumentStore createMemoryStore() throws IOException {
+        final String type = System.getProperty(STORE_PROPERTY, "memory");
+        final DocumentStore store;
+        switch (type) {
+        case "memory":
+            store = new ConcurrentDocumentStore();
+            break;
+        case "offheap":
+            store = new OffHeapDocumentStore();
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown document store: " + type);
+        }
+        final Long budget = Long.getLong(BUDGET_PROPERTY);
+        final DocumentStore limited;
+        if (budget == null) {
+            DocumentResource.setTieredStore(null);
+            limited = store;
+        } else {
+            final Path spillDirectory = Paths.get(System.getProperty(
+                SPILL_PROPERTY, System.getProperty("java.io.tmpdir")));
+            final TieredDocumentStore tiered = new TieredDocumentStore(store, budget,
+                Files.createTempFile(spillDirectory, "documents-", ".spill"));
+            DocumentResource.setTieredStore(tiered);
+            limited = tiered;
+        }
+        return compressing(limited, true);
+    }
+
+    /**
+     * Wraps store in a CompressingDocumentStore if asked to, which
+     * uses a dictionary for small documents if dictionary is set.
+     */
+    private static DocumentStore compressing(
+            final DocumentStore store, final boolean dictionary) {
+        final Integer threshold = Integer.getInteger(COMPRESS_PROPERTY);
+        if (threshold == null) {
+            return store;
+        }
+        return new CompressingDocumentStore(store, threshold, dictionary);
     }
 
     /**
@@ -38,8 +514,9 @@ public class Main {
     public static void main(final String[] args) throws IOException {
         final HttpServer server = startServer();
         System.out.println(String.format("Jersey app started with WADL available at "
-                + "%sapplication.wadl\nHit enter to stop it...", BASE_URI));
+                + "%sapplication.wadl\nHit enter to stop it...",
+                System.getProperty(URI_PROPERTY, BASE_URI)));
         System.in.read();
-        server.shutdownNow();
+        stopServer(server);
     }
 }
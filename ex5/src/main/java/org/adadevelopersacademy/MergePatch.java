@@ -0,0 +1,85 @@
+package org.adadevelopersacademy;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * MergePatch applies a JSON Merge Patch, as described by RFC 7386:
+ *
+ * https://tools.ietf.org/html/rfc7386
+ *
+ * A merge patch looks like the document it changes, but only holds
+ * the fields to change. A field set to null is removed, an object is
+ * merged into the object already there in the same way, and anything
+ * else replaces the old value. For example, applying
+ *
+ *   {"a":null,"b":{"c":1}}
+ *
+ * to {"a":1,"b":{"d":2},"e":3} gives {"b":{"d":2,"c":1},"e":3}.
+ *
+ * Newer versions of JSON-P have this built in, but the version this
+ * project uses doesn't. JsonObjects can't be changed once they are
+ * built, so the result is built as a new object.
+ *
+ * Applying the same patch twice gives the same result as applying it
+ * once, which is what makes it safe to replay a patch from the log.
+ *
+ * This is a utility class, so it can't be instantiated.
+ */
+public final class MergePatch {
+    private MergePatch() {}
+
+    /**
+     * Returns the result of applying patch to target.
+     *
+     * @param target Value to patch, or null if there is none
+     * @param patch Merge patch
+     */
+    public static JsonValue apply(final JsonValue target, final JsonValue patch) {
+        if (patch.getValueType() != JsonValue.ValueType.OBJECT) {
+            return patch;
+        }
+        final JsonObject changes = (JsonObject) patch;
+        final JsonObjectBuilder result = Json.createObjectBuilder();
+        JsonObject original = Json.createObjectBuilder().build();
+        if (target != null && target.getValueType() == JsonValue.ValueType.OBJECT) {
+            original = (JsonObject) target;
+        }
+        // Fields the patch doesn't mention are kept as they are.
+        for (final Map.Entry<String, JsonValue> field : original.entrySet()) {
+            if (!changes.containsKey(field.getKey())) {
+                result.add(field.getKey(), field.getValue());
+            }
+        }
+        for (final Map.Entry<String, JsonValue> change : changes.entrySet()) {
+            if (change.getValue().getValueType() != JsonValue.ValueType.NULL) {
+                result.add(change.getKey(),
+                    apply(original.get(change.getKey()), change.getValue()));
+            }
+        }
+        return result.build();
+    }
+
+    /**
+     * Returns the result of applying patch to a document. Both are
+     * serialized JSON objects.
+     *
+     * @param document Document to patch, or null if there is none
+     * @param patch Merge patch, which must be an object
+     */
+    public static ByteBuffer apply(
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        JsonValue target = null;
+        if (document != null) {
+            target = JsonBytes.parse(document);
+        }
+        return JsonBytes.serialize(
+            (JsonObject) apply(target, JsonBytes.parse(patch)));
+    }
+}
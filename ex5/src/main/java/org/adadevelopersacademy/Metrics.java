@@ -0,0 +1,264 @@
+package org.adadevelopersacademy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Metrics records how long each kind of request takes and how each
+ * one ended, and writes them out along with the state of the store in
+ * the text format which Prometheus scrapes:
+ *
+ *   https://prometheus.io/docs/instrumenting/exposition_formats/
+ *
+ * Request latencies are kept in a {@link LatencyHistogram} per
+ * resource method and exported as summaries with a few quantiles.
+ * Prometheus histograms need their bucket boundaries chosen up front,
+ * and exporting every bucket of an HDR-style histogram would make each
+ * scrape enormous, so the quantiles are worked out here instead.
+ *
+ * Recording a request takes a hash lookup and a few atomic additions,
+ * and allocates nothing. Everything else is read only when the
+ * metrics are scraped.
+ */
+public class Metrics {
+    /**
+     * Media type of the Prometheus text format.
+     */
+    public static final String TEXT_FORMAT = "text/plain; version=0.0.4";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final int MIN_STATUS = 100;
+    private static final int MAX_STATUS = 599;
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+
+    // The DocumentResource methods whose latency is recorded. The
+    // change feed is left out since a subscription lasts as long as
+    // the subscriber likes.
+    private static final String[] OPERATIONS = {
+        "get", "list", "query", "stats", "set", "patch", "create", "multiGet", "bulk",
+        "delete",
+    };
+
+    // Filled in by the constructor and never changed afterwards, so
+    // it is safe to read from any thread.
+    private final Map<String, LatencyHistogram> latencies = new HashMap<>();
+    private final AtomicLongArray statuses =
+        new AtomicLongArray(MAX_STATUS - MIN_STATUS + 1);
+
+    public Metrics() {
+        for (final String operation : OPERATIONS) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records a request which took nanos and ended with status.
+     *
+     * @param operation Name of the resource method which handled the
+     *     request, or null if there was none
+     */
+    public void record(final String operation, final int status, final long nanos) {
+        if (operation != null) {
+            final LatencyHistogram latency = latencies.get(operation);
+            if (latency != null) {
+                latency.record(nanos);
+            }
+        }
+        if (status >= MIN_STATUS && status <= MAX_STATUS) {
+            statuses.incrementAndGet(status - MIN_STATUS);
+        }
+    }
+
+    /**
+     * Returns the latency histogram of operation, or null if it isn't
+     * recorded.
+     */
+    public LatencyHistogram latency(final String operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * Returns every metric in the Prometheus text format.
+     */
+    public String scrape() {
+        final StringBuilder out = new StringBuilder();
+        writeRequests(out);
+        writeStore(out);
+        writeAdmission(out);
+        writeTiers(out);
+        writeTables(out);
+        return out.toString();
+    }
+
+    private void writeRequests(final StringBuilder out) {
+        final String latency = "document_request_seconds";
+        header(out, latency, "summary", "Time taken to handle requests.");
+        for (final String operation : OPERATIONS) {
+            final LatencyHistogram histogram = latencies.get(operation);
+            final long[] values = histogram.valuesAt(QUANTILES);
+            final String labels = label("operation", operation);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                sample(out, latency,
+                    labels + "," + label("quantile", QUANTILES[i]), seconds(values[i]));
+            }
+            sample(out, latency + "_sum", labels, seconds(histogram.sum()));
+            sample(out, latency + "_count", labels, histogram.count());
+        }
+
+        final String responses = "document_responses_total";
+        header(out, responses, COUNTER, "Responses sent, by status code.");
+        for (int i = 0; i < statuses.length(); i++) {
+            final long count = statuses.get(i);
+            if (count > 0) {
+                sample(out, responses, label("status", MIN_STATUS + i), count);
+            }
+        }
+    }
+
+    private static void writeCounts(
+            final StringBuilder out, final long documents, final long bytes) {
+        gauge(out, "document_documents", "Documents in the store.", documents);
+        gauge(out, "document_bytes", "Bytes of documents in the store.", bytes);
+    }
+
+    private static void writeStore(final StringBuilder out) {
+        final CountingDocumentStore counting = DocumentResource.getCountingStore();
+        final LsmDocumentStore lsm = DocumentResource.getLsmStore();
+        if (counting != null) {
+            writeCounts(out, counting.documents(), counting.bytes());
+        } else if (lsm != null) {
+            // The LSM store counts its own documents.
+            writeCounts(out, lsm.documents(), lsm.bytes());
+        }
+        final DocumentIdAllocator allocator = DocumentResource.getAllocator();
+        counter(out, "document_id_blocks_reserved_total",
+            "Blocks of " + allocator.blockSize() + " new ids reserved for creates.",
+            allocator.reservedBlocks());
+        counter(out, "document_ids_reused_total",
+            "Ids of deleted documents handed out again.", allocator.reusedIds());
+    }
+
+    private static void writeAdmission(final StringBuilder out) {
+        final String[] kinds = {label("class", "read"), label("class", "write")};
+        final ConcurrencyLimiter[] limiters = {
+            AdmissionControl.getReadLimiter(), AdmissionControl.getWriteLimiter(),
+        };
+        final String limit = "document_admission_limit";
+        header(out, limit, GAUGE, "Requests admitted at once.");
+        for (int i = 0; i < kinds.length; i++) {
+            if (limiters[i] != null) {
+                sample(out, limit, kinds[i], limiters[i].limit());
+            }
+        }
+        final String inFlight = "document_admission_in_flight";
+        header(out, inFlight, GAUGE, "Requests being handled.");
+        for (int i = 0; i < kinds.length; i++) {
+            if (limiters[i] != null) {
+                sample(out, inFlight, kinds[i], limiters[i].inFlight());
+            }
+        }
+        final String rejected = "document_admission_rejected_total";
+        header(out, rejected, COUNTER, "Requests refused with 503.");
+        for (int i = 0; i < kinds.length; i++) {
+            if (limiters[i] != null) {
+                sample(out, rejected, kinds[i], limiters[i].rejected());
+            }
+        }
+    }
+
+    private static String label(final String name, final Object value) {
+        return name + "=\"" + value + "\"";
+    }
+
+    private static void writeTiers(final StringBuilder out) {
+        final TieredDocumentStore tiered = DocumentResource.getTieredStore();
+        if (tiered == null) {
+            return;
+        }
+        gauge(out, "document_memory_bytes", "Bytes of documents kept in memory.",
+            tiered.memoryBytes());
+        gauge(out, "document_spilled_documents", "Documents spilled to disk.",
+            tiered.spilledDocuments());
+        counter(out, "document_memory_hits_total",
+            "Reads answered from memory.", tiered.hits());
+        counter(out, "document_memory_faults_total",
+            "Reads which had to fetch a document from disk.", tiered.faults());
+        counter(out, "document_fault_bytes_total",
+            "Bytes read back from disk.", tiered.faultBytes());
+        counter(out, "document_spills_total",
+            "Documents written out to disk.", tiered.spills());
+        counter(out, "document_spill_bytes_total",
+            "Bytes written out to disk.", tiered.spillBytes());
+    }
+
+    private static void writeTables(final StringBuilder out) {
+        final LsmDocumentStore lsm = DocumentResource.getLsmStore();
+        if (lsm == null) {
+            return;
+        }
+        final String tables = "document_lsm_tables";
+        header(out, tables, GAUGE, "Tables in each level.");
+        for (int level = 0; level < LsmDocumentStore.MAX_LEVELS; level++) {
+            sample(out, tables, label("level", level), lsm.tables(level));
+        }
+        final String bytes = "document_lsm_level_bytes";
+        header(out, bytes, GAUGE, "Bytes of tables in each level.");
+        for (int level = 0; level < LsmDocumentStore.MAX_LEVELS; level++) {
+            sample(out, bytes, label("level", level), lsm.levelBytes(level));
+        }
+        counter(out, "document_lsm_bloom_skips_total",
+            "Table reads a bloom filter saved.", lsm.bloomSkips());
+        counter(out, "document_lsm_block_reads_total",
+            "Blocks read to find a document.", lsm.blockReads());
+        counter(out, "document_lsm_flushes_total",
+            "Memtables written out as tables.", lsm.flushes());
+        counter(out, "document_lsm_compactions_total",
+            "Compactions which merged tables.", lsm.compactions());
+        counter(out, "document_lsm_compacted_bytes_total",
+            "Bytes of tables written by compaction.", lsm.compactedBytes());
+        counter(out, "document_lsm_stalls_total",
+            "Writes which waited for flushing or compaction.", lsm.stalls());
+    }
+
+    private static void gauge(
+            final StringBuilder out, final String name, final String help,
+            final long value) {
+        header(out, name, GAUGE, help);
+        sample(out, name, null, value);
+    }
+
+    private static void counter(
+            final StringBuilder out, final String name, final String help,
+            final long value) {
+        header(out, name, COUNTER, help);
+        sample(out, name, null, value);
+    }
+
+    private static void header(
+            final StringBuilder out, final String name, final String type,
+            final String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(
+            final StringBuilder out, final String name, final String labels,
+            final Object value) {
+        out.append(name);
+        if (labels != null) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(final long nanos) {
+        // Prometheus parses numbers the way Go does, which accepts
+        // both plain and exponent notation, but plain is easier to
+        // read.
+        return String.format(Locale.ROOT, "%.9f", nanos / NANOS_PER_SECOND);
+    }
+}
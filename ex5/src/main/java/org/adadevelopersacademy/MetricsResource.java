@@ -0,0 +1,37 @@
+package org.adadevelopersacademy;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * MetricsResource serves the {@link Metrics} at /metrics, where
+ * Prometheus expects to find them.
+ */
+@Path("/metrics")
+public class MetricsResource {
+    private static volatile Metrics metrics;
+
+    /**
+     * Sets the metrics which are recorded and served.
+     */
+    public static void setMetrics(final Metrics serverMetrics) {
+        metrics = serverMetrics;
+    }
+
+    static Metrics getMetrics() {
+        return metrics;
+    }
+
+    @GET
+    @Produces(Metrics.TEXT_FORMAT)
+    public String scrape() {
+        final Metrics current = metrics;
+        if (current == null) {
+            throw new WebApplicationException(Response.Status.NOT_FOUND);
+        }
+        return current.scrape();
+    }
+}
@@ -0,0 +1,620 @@
+package org.adadevelopersacademy;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * OffHeapDocumentStore keeps both its index and the document bytes
+ * outside of the Java heap in direct ByteBuffers.
+ *
+ * The garbage collector has to visit every object on the heap, so a
+ * store holding tens of millions of small objects makes every
+ * collection slow. Memory allocated with ByteBuffer.allocateDirect()
+ * is a single opaque block as far as the collector is concerned. No
+ * matter how many documents are stored, the heap only holds a handful
+ * of ByteBuffer objects per shard.
+ *
+ * The documents are split across a fixed number of shards by docId.
+ * Each shard has:
+ *
+ * - an open addressing hash table mapping int docIds to the location
+ *   of the document bytes, stored in a direct ByteBuffer, and
+ * - a list of large direct "segments" which document bytes are
+ *   appended to.
+ *
+ * Each shard is guarded by its own read/write lock, so writers only
+ * contend with other writers on the same shard and readers never wait
+ * on each other. This is known as "lock striping."
+ *
+ * Overwriting or deleting a document leaves its old bytes behind as
+ * garbage in a segment. Once a shard has more garbage than live data,
+ * it compacts by copying the live documents into fresh segments.
+ *
+ * Probing the index allocates nothing at all, and get() hands back a
+ * small read-only ByteBuffer view of the segment rather than a copy.
+ * A view keeps its segment alive after compaction until it is
+ * dropped.
+ */
+public class OffHeapDocumentStore extends AbstractDocumentStore {
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Number of ids a scan gathers at first, and at most, at a time.
+    private static final int FIRST_SCAN_CHUNK = 128;
+    private static final int MAX_SCAN_CHUNK = 8192;
+
+    private final Shard[] shards;
+
+    public OffHeapDocumentStore() {
+        this(DEFAULT_SHARDS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param shardCount Number of independently locked shards. Must
+     *     be a power of two.
+     * @param segmentSize Size in bytes of each direct memory segment
+     */
+    public OffHeapDocumentStore(final int shardCount, final int segmentSize) {
+        if (shardCount < 1 || Integer.bitCount(shardCount) != 1) {
+            throw new IllegalArgumentException("shardCount must be a power of two");
+        }
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(segmentSize);
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        return shardFor(docId).get(docId);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        // Documents are kept as they were given.
+        return null;
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        shardFor(docId).put(docId, document, true);
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        return shardFor(docId).put(docId, document, false);
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        return shardFor(docId).replace(docId, expected, document);
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        return shardFor(docId).remove(docId);
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        // A hash table has no ordering, so the ids are gathered from
+        // every shard a chunk at a time: the smallest ones in range,
+        // sorted, and then the smallest ones after those. Each chunk
+        // walks every index, but only ever holds a chunk of ids, so a
+        // page of a listing costs no more memory however many
+        // documents there are. The first chunk is enough for a page
+        // of the default size, and later ones grow so that a long
+        // scan doesn't walk the indexes too often.
+        return new Iterator<Map.Entry<Integer, ByteBuffer>>() {
+            private int[] ids = new int[0];
+            private int index;
+            private int chunkSize = FIRST_SCAN_CHUNK;
+            private int nextFrom = fromDocId;
+            private boolean exhausted = fromDocId > toDocId;
+            private Map.Entry<Integer, ByteBuffer> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    if (index == ids.length) {
+                        if (exhausted) {
+                            break;
+                        }
+                        nextChunk();
+                        continue;
+                    }
+                    // A document may have been removed since its id was
+                    // collected, so skip over any which have disappeared.
+                    final int docId = ids[index++];
+                    final ByteBuffer document = get(docId);
+                    if (document != null) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(docId, document);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<Integer, ByteBuffer> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Map.Entry<Integer, ByteBuffer> entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private void nextChunk() {
+                ids = smallestIds(nextFrom, toDocId, chunkSize);
+                index = 0;
+                // Comparing with toDocId rather than adding one to the
+                // last id keeps Integer.MAX_VALUE from wrapping around.
+                if (ids.length < chunkSize || ids[ids.length - 1] == toDocId) {
+                    exhausted = true;
+                } else {
+                    nextFrom = ids[ids.length - 1] + 1;
+                    chunkSize = Math.min(chunkSize * 2, MAX_SCAN_CHUNK);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the smallest count docIds from fromDocId to toDocId
+     * inclusive, in order.
+     */
+    private int[] smallestIds(final int fromDocId, final int toDocId, final int count) {
+        // The smallest count of all are among the smallest count of
+        // each shard.
+        final int[][] perShard = new int[shards.length][];
+        int total = 0;
+        for (int i = 0; i < shards.length; i++) {
+            perShard[i] = shards[i].smallestIdsBetween(fromDocId, toDocId, count);
+            total += perShard[i].length;
+        }
+        final int[] merged = new int[total];
+        int position = 0;
+        for (final int[] ids : perShard) {
+            System.arraycopy(ids, 0, merged, position, ids.length);
+            position += ids.length;
+        }
+        Arrays.sort(merged);
+        return merged.length <= count ? merged : Arrays.copyOf(merged, count);
+    }
+
+    @Override
+    public int lastDocId() {
+        // A hash table has no ordering, so this has to look at every
+        // shard. That's fine since it is only used at startup.
+        int last = -1;
+        for (final Shard shard : shards) {
+            last = Math.max(last, shard.lastDocId());
+        }
+        return last;
+    }
+
+    @Override
+    public void clear() {
+        for (final Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        // Direct memory is released when the ByteBuffers holding it
+        // are garbage collected, so dropping our references is
+        // enough.
+        clear();
+    }
+
+    private Shard shardFor(final int docId) {
+        // The low bits of the mixed hash pick a slot inside the shard,
+        // so use the high bits to pick the shard.
+        return shards[(mix(docId) >>> 16) & (shards.length - 1)];
+    }
+
+    /**
+     * Scrambles the bits of docId. Sequential ids would otherwise land
+     * in sequential slots, which makes linear probing degrade badly.
+     * This is the finalization step of the MurmurHash3 algorithm.
+     */
+    static int mix(final int docId) {
+        int h = docId;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Adds key to the max-heap in heap[0, length), which has room for
+     * it.
+     */
+    private static void siftUp(final int[] heap, final int length, final int key) {
+        int child = length;
+        while (child > 0) {
+            final int parent = (child - 1) / 2;
+            if (heap[parent] >= key) {
+                break;
+            }
+            heap[child] = heap[parent];
+            child = parent;
+        }
+        heap[child] = key;
+    }
+
+    /**
+     * Replaces the root of the max-heap in heap[0, length) with key.
+     */
+    private static void siftDown(final int[] heap, final int length, final int key) {
+        int parent = 0;
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= length) {
+                break;
+            }
+            if (child + 1 < length && heap[child + 1] > heap[child]) {
+                child++;
+            }
+            if (heap[child] <= key) {
+                break;
+            }
+            heap[parent] = heap[child];
+            parent = child;
+        }
+        heap[parent] = key;
+    }
+
+    /**
+     * A single shard of the store. See the class comment above.
+     *
+     * Each index slot is 16 bytes laid out as:
+     *
+     *   int key | int length | long location
+     *
+     * where location holds the segment number in the high 32 bits and
+     * the offset within the segment in the low 32 bits.
+     */
+    private static final class Shard {
+        private static final int SLOT_SIZE = 16;
+        private static final int LENGTH_OFFSET = 4;
+        private static final int LOCATION_OFFSET = 8;
+        private static final int EMPTY = -1;
+        private static final int DELETED = -2;
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final int segmentSize;
+        private final List<ByteBuffer> segments = new ArrayList<>();
+
+        private ByteBuffer index;
+        private int capacity;
+        private int size;
+        // Slots which are either occupied or marked DELETED. Deleted
+        // slots still lengthen probe sequences, so they count towards
+        // the load factor.
+        private int used;
+        private long liveBytes;
+        private long deadBytes;
+
+        private Shard(final int segmentSize) {
+            this.segmentSize = segmentSize;
+            reset();
+        }
+
+        private ByteBuffer get(final int docId) {
+            lock.readLock().lock();
+            try {
+                final int slot = find(docId);
+                if (slot < 0) {
+                    return null;
+                }
+                final int length = index.getInt(slot + LENGTH_OFFSET);
+                final long location = index.getLong(slot + LOCATION_OFFSET);
+                // The document is handed out as a view of the segment
+                // rather than copied. Segments are only ever appended
+                // to, and compaction copies into fresh ones, so the
+                // bytes in view never change. Several readers can hold
+                // the read lock at once, so they must not move the
+                // position of the shared segment, and the view is
+                // read-only so that callers can't write into it.
+                final ByteBuffer document =
+                    segments.get(segmentOf(location)).asReadOnlyBuffer();
+                document.limit(offsetOf(location) + length);
+                document.position(offsetOf(location));
+                return document.slice();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private boolean put(
+                final int docId, final ByteBuffer document, final boolean overwrite) {
+            lock.writeLock().lock();
+            try {
+                final int existing = find(docId);
+                if (existing >= 0) {
+                    if (!overwrite) {
+                        return false;
+                    }
+                    release(existing);
+                    write(existing, document);
+                    return true;
+                }
+                if ((used + 1) * 2 > capacity) {
+                    rehash();
+                }
+                final int slot = insertionSlot(docId);
+                if (index.getInt(slot) == EMPTY) {
+                    used++;
+                }
+                index.putInt(slot, docId);
+                size++;
+                write(slot, document);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private boolean replace(
+                final int docId, final ByteBuffer expected, final ByteBuffer document) {
+            lock.writeLock().lock();
+            try {
+                final int slot = find(docId);
+                if (slot < 0) {
+                    return false;
+                }
+                final int length = index.getInt(slot + LENGTH_OFFSET);
+                final long location = index.getLong(slot + LOCATION_OFFSET);
+                final ByteBuffer current = segments.get(segmentOf(location)).duplicate();
+                current.position(offsetOf(location));
+                current.limit(offsetOf(location) + length);
+                // Comparing in place saves copying the document out.
+                if (!current.equals(expected)) {
+                    return false;
+                }
+                release(slot);
+                write(slot, document);
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private boolean remove(final int docId) {
+            lock.writeLock().lock();
+            try {
+                final int slot = find(docId);
+                if (slot < 0) {
+                    return false;
+                }
+                release(slot);
+                index.putInt(slot, DELETED);
+                size--;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Returns the smallest count docIds in the shard from
+         * fromDocId to toDocId inclusive, in order.
+         */
+        private int[] smallestIdsBetween(
+                final int fromDocId, final int toDocId, final int count) {
+            lock.readLock().lock();
+            try {
+                // A max-heap of the smallest ids seen so far, whose
+                // root is the first to go when a smaller one turns up.
+                final int[] heap = new int[Math.min(count, size)];
+                int length = 0;
+                for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+                    final int key = index.getInt(slot);
+                    // EMPTY and DELETED are negative, so they are never
+                    // in range of a valid docId.
+                    if (key < 0 || key < fromDocId || key > toDocId) {
+                        continue;
+                    }
+                    if (length < heap.length) {
+                        siftUp(heap, length++, key);
+                    } else if (length > 0 && key < heap[0]) {
+                        siftDown(heap, length, key);
+                    }
+                }
+                final int[] ids = Arrays.copyOf(heap, length);
+                Arrays.sort(ids);
+                return ids;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private int lastDocId() {
+            lock.readLock().lock();
+            try {
+                int last = -1;
+                for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+                    last = Math.max(last, index.getInt(slot));
+                }
+                return last;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private void clear() {
+            lock.writeLock().lock();
+            try {
+                reset();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void reset() {
+            capacity = INITIAL_CAPACITY;
+            index = newIndex(capacity);
+            segments.clear();
+            size = 0;
+            used = 0;
+            liveBytes = 0;
+            deadBytes = 0;
+        }
+
+        /**
+         * Returns the byte offset of the slot holding docId or -1.
+         */
+        private int find(final int docId) {
+            final int mask = capacity - 1;
+            int i = mix(docId) & mask;
+            while (true) {
+                final int slot = i * SLOT_SIZE;
+                final int key = index.getInt(slot);
+                if (key == docId) {
+                    return slot;
+                }
+                if (key == EMPTY) {
+                    return -1;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        /**
+         * Returns the byte offset of the first empty or deleted slot
+         * in the probe sequence of docId. The caller has already
+         * checked that docId is not present.
+         */
+        private int insertionSlot(final int docId) {
+            final int mask = capacity - 1;
+            int i = mix(docId) & mask;
+            while (true) {
+                final int slot = i * SLOT_SIZE;
+                final int key = index.getInt(slot);
+                if (key == EMPTY || key == DELETED) {
+                    return slot;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void write(final int slot, final ByteBuffer document) {
+            final int length = document.remaining();
+            ByteBuffer segment = null;
+            if (!segments.isEmpty()) {
+                segment = segments.get(segments.size() - 1);
+            }
+            if (segment == null || segment.remaining() < length) {
+                segment = ByteBuffer.allocateDirect(Math.max(segmentSize, length));
+                segments.add(segment);
+            }
+            final int offset = segment.position();
+            segment.put(document.duplicate());
+            index.putInt(slot + LENGTH_OFFSET, length);
+            index.putLong(slot + LOCATION_OFFSET,
+                location(segments.size() - 1, offset));
+            liveBytes += length;
+            if (deadBytes > liveBytes && deadBytes > segmentSize) {
+                compact();
+            }
+        }
+
+        /**
+         * Marks the bytes referenced by slot as garbage.
+         */
+        private void release(final int slot) {
+            final int length = index.getInt(slot + LENGTH_OFFSET);
+            liveBytes -= length;
+            deadBytes += length;
+        }
+
+        /**
+         * Doubles the index, or rebuilds it at the same size if most
+         * of the used slots are just deleted markers.
+         */
+        private void rehash() {
+            final ByteBuffer oldIndex = index;
+            final int oldCapacity = capacity;
+            if (size * 4 >= capacity) {
+                capacity *= 2;
+            }
+            index = newIndex(capacity);
+            used = 0;
+            for (int slot = 0; slot < oldCapacity * SLOT_SIZE; slot += SLOT_SIZE) {
+                final int key = oldIndex.getInt(slot);
+                if (key >= 0) {
+                    final int newSlot = insertionSlot(key);
+                    index.putInt(newSlot, key);
+                    index.putInt(newSlot + LENGTH_OFFSET,
+                        oldIndex.getInt(slot + LENGTH_OFFSET));
+                    index.putLong(newSlot + LOCATION_OFFSET,
+                        oldIndex.getLong(slot + LOCATION_OFFSET));
+                    used++;
+                }
+            }
+        }
+
+        /**
+         * Copies every live document into new segments so that the
+         * memory held by garbage can be released.
+         */
+        private void compact() {
+            final List<ByteBuffer> oldSegments = new ArrayList<>(segments);
+            segments.clear();
+            liveBytes = 0;
+            deadBytes = 0;
+            for (int slot = 0; slot < capacity * SLOT_SIZE; slot += SLOT_SIZE) {
+                if (index.getInt(slot) >= 0) {
+                    final int length = index.getInt(slot + LENGTH_OFFSET);
+                    final long location = index.getLong(slot + LOCATION_OFFSET);
+                    final ByteBuffer document =
+                        oldSegments.get(segmentOf(location)).duplicate();
+                    document.position(offsetOf(location));
+                    document.limit(offsetOf(location) + length);
+                    write(slot, document);
+                }
+            }
+        }
+
+        private static ByteBuffer newIndex(final int slots) {
+            final ByteBuffer newIndex = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+            for (int slot = 0; slot < slots * SLOT_SIZE; slot += SLOT_SIZE) {
+                newIndex.putInt(slot, EMPTY);
+            }
+            return newIndex;
+        }
+
+        private static long location(final int segment, final int offset) {
+            return ((long) segment << 32) | offset;
+        }
+
+        private static int segmentOf(final long location) {
+            return (int) (location >>> 32);
+        }
+
+        private static int offsetOf(final long location) {
+            return (int) location;
+        }
+    }
+}
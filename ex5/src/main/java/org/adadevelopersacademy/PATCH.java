@@ -0,0 +1,23 @@
+package org.adadevelopersacademy;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.ws.rs.HttpMethod;
+
+/**
+ * JAX-RS has annotations for GET, PUT, POST and DELETE, but the PATCH
+ * method came along later and was left out. An annotation for any
+ * other HTTP method can be declared like this.
+ *
+ * @interface declares a new annotation type. The annotations on it
+ * say that it can be placed on methods and that Jersey can see it
+ * while the program runs.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@HttpMethod("PATCH")
+public @interface PATCH {
+}
@@ -0,0 +1,202 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PublishingDocumentStore wraps another DocumentStore and publishes
+ * every change made through it to a {@link ChangeFeed}.
+ *
+ * Like IndexedDocumentStore, this is a decorator with its own locks.
+ * A change is published while the lock for its docId is held, so the
+ * changes to one document appear in the feed in the order they were
+ * made. Otherwise a put and a remove of the same document could be
+ * numbered the other way round, and a subscriber would think the
+ * document still exists.
+ *
+ * This sits outside DurableDocumentStore, so a change is published
+ * only once it has been logged, and replaying the log at startup
+ * publishes nothing.
+ */
+public class PublishingDocumentStore implements DocumentStore {
+    private static final int STRIPES = 64;
+
+    private final DocumentStore delegate;
+    private final ChangeFeed feed;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    /**
+     * @param delegate Store which holds the documents
+     * @param feed Feed to publish changes to
+     */
+    public PublishingDocumentStore(final DocumentStore delegate, final ChangeFeed feed) {
+        this.delegate = delegate;
+        this.feed = feed;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        return delegate.get(docId);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        return delegate.getGzipped(docId);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            delegate.put(docId, document);
+            feed.publish(docId, ChangeFeed.Op.PUT);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            return published(docId, ChangeFeed.Op.PUT,
+                delegate.putIfAbsent(docId, document));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            return published(docId, ChangeFeed.Op.PUT,
+                delegate.replace(docId, expected, document));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean patch(
+            final int docId,
+            final ByteBuffer expected,
+            final ByteBuffer document,
+            final ByteBuffer patch) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            return published(docId, ChangeFeed.Op.PUT,
+                delegate.patch(docId, expected, document, patch));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            return published(docId, ChangeFeed.Op.REMOVE, delegate.remove(docId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean[] writeAll(final List<Map.Entry<Integer, ByteBuffer>> changes) {
+        // The batch is handed to the delegate in one piece, so that a
+        // log still waits for the disk only once. That means holding
+        // the locks of every docId in it at once. Taking them in
+        // stripe order means two batches can never each hold a lock
+        // the other is waiting for.
+        final boolean[] needed = new boolean[STRIPES];
+        for (final Map.Entry<Integer, ByteBuffer> change : changes) {
+            needed[stripeIndex(change.getKey())] = true;
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            if (needed[i]) {
+                stripes[i].lock();
+            }
+        }
+        try {
+            final boolean[] results = delegate.writeAll(changes);
+            for (int i = 0; i < results.length; i++) {
+                if (results[i]) {
+                    final Map.Entry<Integer, ByteBuffer> change = changes.get(i);
+                    feed.publish(change.getKey(), change.getValue() == null
+                        ? ChangeFeed.Op.REMOVE : ChangeFeed.Op.PUT);
+                }
+            }
+            return results;
+        } finally {
+            for (int i = 0; i < STRIPES; i++) {
+                if (needed[i]) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return delegate.scan(fromDocId, toDocId);
+    }
+
+    @Override
+    public int lastDocId() {
+        return delegate.lastDocId();
+    }
+
+    @Override
+    public void clear() {
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            delegate.clear();
+            feed.publish(0, ChangeFeed.Op.CLEAR);
+        } finally {
+            for (final ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    /**
+     * Publishes a change if it was made, and returns whether it was.
+     */
+    private boolean published(
+            final int docId, final ChangeFeed.Op op, final boolean made) {
+        if (made) {
+            feed.publish(docId, op);
+        }
+        return made;
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[stripeIndex(docId)];
+    }
+
+    private static int stripeIndex(final int docId) {
+        return OffHeapDocumentStore.mix(docId) & (STRIPES - 1);
+    }
+}
@@ -0,0 +1,197 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Priority;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.container.PreMatching;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import javax.ws.rs.Priorities;
+
+/**
+ * Replication lets one server, the leader, take every write while
+ * any number of followers serve reads from copies of its documents.
+ * See {@link ReplicationStream} for how the leader sends its changes
+ * and {@link Follower} for how a follower applies them.
+ *
+ * Every response to a request for /document carries a Document-Seq
+ * header. On the leader it is the sequence number of the last change,
+ * so after a write it is at least the number of that write. On a
+ * follower it is the number of the last of the leader's changes
+ * applied.
+ *
+ * A follower sends every write to the leader with 307 Temporary
+ * Redirect, which tells the client to repeat the request there,
+ * method and body included. A read is answered by the follower
+ * itself, which may be a little behind the leader. A client which
+ * wants to read its own writes passes the Document-Seq of its last
+ * write back in the read. Unless the follower is configured for
+ * eventual consistency, the read then waits for the follower to
+ * catch up with that change, and if it hasn't within the configured
+ * wait the client is redirected to the leader instead. A wait of 0
+ * redirects a read from a follower which is behind straight away.
+ *
+ * A follower which hasn't had its first copy of the documents yet
+ * refuses reads with 503 Service Unavailable, since everything would
+ * seem to be missing.
+ *
+ * A replication stream copies every document and then stays open, so
+ * only a few are sent at once, and a follower asking for one more is
+ * refused with 503 Service Unavailable until another goes away.
+ *
+ * This filter runs before {@link AdmissionControl}, so that a request
+ * which is redirected or waiting for the follower doesn't hold one of
+ * the permits meant for requests being handled.
+ */
+@Provider
+@PreMatching
+@Priority(Priorities.HEADER_DECORATOR)
+public class Replication implements ContainerRequestFilter, ContainerResponseFilter {
+    /**
+     * Header carrying a sequence number of the leader's changes.
+     */
+    public static final String SEQ_HEADER = "Document-Seq";
+
+    private static final String RETRY_AFTER = "1";
+    private static final String DOCUMENT_PATH = "document";
+
+    // The server's own change feed, or null once it has stopped.
+    private static volatile ChangeFeed feed;
+    // The follower if this server is one, or else null.
+    private static volatile Follower follower;
+    private static volatile boolean readYourWrites;
+    private static volatile long waitMillis;
+    // A permit for each replication stream which may be sent at once.
+    private static volatile Semaphore streams = new Semaphore(0);
+
+    /**
+     * Sets the change feed which leads the replication streams this
+     * server sends. Replacing it ends them.
+     */
+    public static void setFeed(final ChangeFeed changeFeed) {
+        feed = changeFeed;
+    }
+
+    static ChangeFeed getFeed() {
+        return feed;
+    }
+
+    /**
+     * Makes this server a follower, or the leader if follower is null.
+     *
+     * @param consistent Whether reads passing a Document-Seq wait for
+     *     that change
+     * @param wait Milliseconds a read waits before it is redirected
+     *     to the leader
+     */
+    public static void setFollower(
+            final Follower serverFollower, final boolean consistent, final long wait) {
+        follower = serverFollower;
+        readYourWrites = consistent;
+        waitMillis = wait;
+    }
+
+    public static Follower getFollower() {
+        return follower;
+    }
+
+    /**
+     * Sets the largest number of replication streams sent at once.
+     */
+    public static void setMaxStreams(final int maxStreams) {
+        streams = new Semaphore(maxStreams);
+    }
+
+    /**
+     * Returns the permits for replication streams. Each stream takes
+     * one and gives it back to the same Semaphore when it ends.
+     */
+    static Semaphore getStreams() {
+        return streams;
+    }
+
+    @Override
+    public void filter(final ContainerRequestContext request) throws IOException {
+        final Follower current = follower;
+        final String path = request.getUriInfo().getPath();
+        if (current == null || !path.startsWith(DOCUMENT_PATH)) {
+            return;
+        }
+        final String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method) && !path.endsWith("_mget")) {
+            request.abortWith(redirect(current, request));
+            return;
+        }
+        // The streams are served whatever state the follower is in.
+        if (path.endsWith("_changes") || path.endsWith("_replication")) {
+            return;
+        }
+        if (current.applied() < 0) {
+            request.abortWith(Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, RETRY_AFTER)
+                .build());
+            return;
+        }
+        final String seq = request.getHeaderString(SEQ_HEADER);
+        if (!readYourWrites || seq == null) {
+            return;
+        }
+        final long written;
+        try {
+            written = Long.parseLong(seq.trim());
+        } catch (final NumberFormatException e) {
+            request.abortWith(Response.status(Response.Status.BAD_REQUEST)
+                .entity("Malformed " + SEQ_HEADER)
+                .build());
+            return;
+        }
+        try {
+            if (current.awaitApplied(written, waitMillis)) {
+                return;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        request.abortWith(redirect(current, request));
+    }
+
+    private static Response redirect(
+            final Follower current, final ContainerRequestContext request) {
+        final String query = request.getUriInfo().getRequestUri().getRawQuery();
+        final URI location = current.leader().resolve(
+            request.getUriInfo().getPath(false) + (query == null ? "" : "?" + query));
+        return Response.temporaryRedirect(location).build();
+    }
+
+    @Override
+    public void filter(
+            final ContainerRequestContext request,
+            final ContainerResponseContext response) throws IOException {
+        // A response relayed from another node of a cluster already
+        // has the number from that node.
+        if (!request.getUriInfo().getPath().startsWith(DOCUMENT_PATH)
+                || response.getHeaders().containsKey(SEQ_HEADER)) {
+            return;
+        }
+        final Follower current = follower;
+        final ChangeFeed changes = feed;
+        final long seq;
+        if (current != null) {
+            seq = current.applied();
+        } else if (changes != null) {
+            seq = changes.last();
+        } else {
+            return;
+        }
+        if (seq >= 0) {
+            response.getHeaders().putSingle(SEQ_HEADER, seq);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.adadevelopersacademy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.glassfish.jersey.server.ChunkedOutput;
+
+/**
+ * ReplicationStream sends a follower everything it needs to keep an
+ * exact copy of the leader's documents, see {@link Follower}.
+ *
+ * The stream is the leader's {@link ChangeFeed} with each change
+ * carrying the document as it is when the change is sent, so that the
+ * follower doesn't have to come back and fetch it. Like a change feed
+ * subscriber which fetches a changed document, the follower may get a
+ * newer version than the change itself made, but never an older one.
+ * Once the follower has applied the change numbered seq, each of its
+ * documents is at least as new as the leader's was at seq, which is
+ * what read-your-writes needs.
+ *
+ * The stream is a sequence of binary records, each starting with a
+ * kind byte and the sequence number it belongs to:
+ *
+ *   PUT        seq, docId, length, document bytes
+ *   REMOVE     seq, docId
+ *   CLEAR      seq
+ *   RESET      seq
+ *   SYNCED     seq
+ *   HEARTBEAT  seq
+ *
+ * A change to a document which no longer exists is sent as a REMOVE,
+ * whatever the change was.
+ *
+ * A follower which starts out, or whose next change has already been
+ * overwritten in the feed, is sent a copy of every document instead:
+ * a RESET, a PUT for each document, and a SYNCED. The copy is taken
+ * while writes carry on, so it isn't a consistent snapshot, but every
+ * change made during it is in the feed after the RESET's seq and is
+ * sent afterwards.
+ *
+ * Followers are few, so unlike a {@link ChangeStream} subscriber each
+ * stream simply gets a thread of its own, which writes to a Jersey
+ * ChunkedOutput until the follower goes away or the server stops.
+ * {@link Replication} limits how many streams there are at once.
+ * Each batch of records is sent as a chunk as soon as it is ready.
+ * When nothing changes for a second the follower is sent a heartbeat,
+ * which lets both ends notice a dead connection.
+ */
+public class ReplicationStream implements Runnable {
+    /**
+     * Media type of the stream.
+     */
+    public static final String MEDIA_TYPE = "application/vnd.document-replication";
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+    static final byte RESET = 4;
+    static final byte SYNCED = 5;
+    static final byte HEARTBEAT = 6;
+
+    static final long HEARTBEAT_MILLIS = 1000;
+    // Records are sent once this many bytes are waiting.
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final ChangeFeed feed;
+    private final DocumentStore store;
+    private final Long since;
+    private final Semaphore permits;
+    private final ChunkedOutput<byte[]> output = new ChunkedOutput<>(byte[].class);
+    private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE);
+    private final DataOutputStream out = new DataOutputStream(chunk);
+
+    /**
+     * @param feed Changes to send
+     * @param store Store to read the documents from
+     * @param since Sequence number of the last change the follower has
+     *     applied, or null if it has nothing yet
+     * @param permits Semaphore which the caller took a permit of for
+     *     this stream, and which gets it back when the stream ends
+     */
+    public ReplicationStream(
+            final ChangeFeed feed,
+            final DocumentStore store,
+            final Long since,
+            final Semaphore permits) {
+        this.feed = feed;
+        this.store = store;
+        this.since = since;
+        this.permits = permits;
+    }
+
+    /**
+     * Starts sending changes on a thread of its own.
+     *
+     * @return the response body
+     */
+    public ChunkedOutput<byte[]> start() {
+        final Thread thread = new Thread(this, "replication-sender");
+        thread.setDaemon(true);
+        thread.start();
+        return output;
+    }
+
+    @Override
+    public void run() {
+        try {
+            send();
+        } catch (final IOException e) {
+            // The follower has gone away.
+            return;
+        } finally {
+            close();
+        }
+    }
+
+    private void close() {
+        permits.release();
+        try {
+            output.close();
+        } catch (final IOException e) {
+            // It's closed either way.
+            return;
+        }
+    }
+
+    private void send() throws IOException {
+        // A number from the future can only come from another leader,
+        // so it's copied afresh like one which is too old.
+        long next = since == null || since > feed.last() ? -1 : since + 1;
+        long seen = feed.published();
+        long lastWrite = 0;
+        // The stream ends when the server stops, which replaces the
+        // feed.
+        while (Replication.getFeed() == feed) {
+            if (next < feed.oldest()) {
+                next = copy() + 1;
+            }
+            ChangeFeed.Change change;
+            while ((change = feed.read(next)) != null) {
+                write(change);
+                next++;
+            }
+            final long now = System.currentTimeMillis();
+            if (chunk.size() == 0 && now - lastWrite >= HEARTBEAT_MILLIS) {
+                out.writeByte(HEARTBEAT);
+                out.writeLong(next - 1);
+            }
+            if (chunk.size() > 0) {
+                flush();
+                lastWrite = now;
+            }
+            try {
+                seen = feed.await(seen, HEARTBEAT_MILLIS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends every document, and returns the sequence number the
+     * follower carries on after.
+     */
+    private long copy() throws IOException {
+        final long start = feed.last();
+        out.writeByte(RESET);
+        out.writeLong(start);
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            store.scan(0, Integer.MAX_VALUE);
+        while (documents.hasNext()) {
+            final Map.Entry<Integer, ByteBuffer> document = documents.next();
+            writePut(start, document.getKey(), document.getValue());
+        }
+        out.writeByte(SYNCED);
+        out.writeLong(start);
+        flush();
+        return start;
+    }
+
+    private void write(final ChangeFeed.Change change) throws IOException {
+        if (change.op() == ChangeFeed.Op.CLEAR) {
+            out.writeByte(CLEAR);
+            out.writeLong(change.seq());
+            return;
+        }
+        final ByteBuffer document = store.get(change.docId());
+        if (document == null) {
+            out.writeByte(REMOVE);
+            out.writeLong(change.seq());
+            out.writeInt(change.docId());
+        } else {
+            writePut(change.seq(), change.docId(), document);
+        }
+    }
+
+    private void writePut(final long seq, final int docId, final ByteBuffer document)
+            throws IOException {
+        out.writeByte(PUT);
+        out.writeLong(seq);
+        out.writeInt(docId);
+        out.writeInt(document.remaining());
+        ByteBufferWriter.write(document, out);
+        if (chunk.size() >= CHUNK_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the records written so far.
+     */
+    private void flush() throws IOException {
+        output.write(chunk.toByteArray());
+        chunk.reset();
+    }
+}
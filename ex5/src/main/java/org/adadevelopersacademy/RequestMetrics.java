@@ -0,0 +1,52 @@
+package org.adadevelopersacademy;
+
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.ext.Provider;
+
+import org.glassfish.jersey.server.model.ResourceMethod;
+import org.glassfish.jersey.server.monitoring.ApplicationEvent;
+import org.glassfish.jersey.server.monitoring.ApplicationEventListener;
+import org.glassfish.jersey.server.monitoring.RequestEvent;
+import org.glassfish.jersey.server.monitoring.RequestEventListener;
+
+/**
+ * RequestMetrics times every request and records it in the server's
+ * {@link Metrics} once Jersey reports that it has finished, along
+ * with the resource method which handled it and its status.
+ *
+ * A request which escapes with an exception Jersey couldn't map has
+ * no response, and is counted as a 500 like the one the client gets.
+ */
+@Provider
+public class RequestMetrics implements ApplicationEventListener {
+
+    @Override
+    public void onEvent(final ApplicationEvent event) {
+    }
+
+    @Override
+    public RequestEventListener onRequest(final RequestEvent event) {
+        final Metrics metrics = MetricsResource.getMetrics();
+        if (metrics == null) {
+            return null;
+        }
+        final long started = System.nanoTime();
+        return new RequestEventListener() {
+            @Override
+            public void onEvent(final RequestEvent event) {
+                if (event.getType() != RequestEvent.Type.FINISHED) {
+                    return;
+                }
+                final ContainerResponseContext response = event.getContainerResponse();
+                final ResourceMethod method =
+                    event.getUriInfo().getMatchedResourceMethod();
+                metrics.record(
+                    method == null
+                        ? null
+                        : method.getInvocable().getDefinitionMethod().getName(),
+                    response == null ? 500 : response.getStatus(),
+                    System.nanoTime() - started);
+            }
+        };
+    }
+}
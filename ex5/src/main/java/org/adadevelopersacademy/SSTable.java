@@ -0,0 +1,499 @@
+package org.adadevelopersacademy;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SSTable is a sorted string table, one immutable file of documents in
+ * docId order written by an {@link LsmDocumentStore}. The file is laid
+ * out as:
+ *
+ *   data blocks | block index | bloom filter | footer
+ *
+ * Each data block holds about BLOCK_SIZE bytes of entries, and each
+ * entry is an int docId and an int length followed by that many bytes
+ * of document. A length of -1 marks a tombstone, which records that
+ * the docId was removed so that an older table's document for it
+ * stays hidden.
+ *
+ * The block index has the first docId, offset and length of every
+ * block, and it is kept in memory along with the {@link BloomFilter}
+ * of every docId in the table. A read of a docId the filter rules out
+ * never touches the file, and any other read finds the one block
+ * which could hold the docId with a binary search of the index and
+ * reads just that block.
+ *
+ * The footer holds where the index and filter start, the range of
+ * docIds in the table, and a magic number:
+ *
+ *   long indexOffset | int blocks | long bloomOffset |
+ *   int minDocId | int maxDocId | int entries | long magic
+ *
+ * A table is written to a temporary file which is forced to disk and
+ * then renamed, so a crash never leaves half a table behind.
+ *
+ * Reads use positional reads on a shared FileChannel, so any number of
+ * threads can read a table at once. The store counts references to
+ * each table, and its file is only closed, and deleted if compaction
+ * has replaced it, once nobody can be reading it.
+ */
+final class SSTable {
+    /**
+     * Stands for a removed document. It is compared by identity, so it
+     * can't be mistaken for an empty document.
+     */
+    static final ByteBuffer TOMBSTONE = ByteBuffer.allocate(0);
+    static final int BLOCK_SIZE = 4096;
+
+    private static final Logger LOGGER = Logger.getLogger(SSTable.class.getName());
+    private static final String SUFFIX = ".sst";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long MAGIC = 0x4c534d5441424c45L;
+    private static final int FOOTER_SIZE = 40;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final long number;
+    private final Path path;
+    private final FileChannel channel;
+    private final long bytes;
+    private final int[] firstDocIds;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final BloomFilter bloom;
+    private final int minDocId;
+    private final int maxDocId;
+    private final int entries;
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean obsolete;
+
+    private SSTable(final long number, final Path path) throws IOException {
+        this.number = number;
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            bytes = channel.size();
+            if (bytes < FOOTER_SIZE) {
+                throw new IOException(path + " is too short to be a table");
+            }
+            final ByteBuffer footer = read(bytes - FOOTER_SIZE, FOOTER_SIZE);
+            final long indexOffset = footer.getLong();
+            final int blocks = footer.getInt();
+            final long bloomOffset = footer.getLong();
+            minDocId = footer.getInt();
+            maxDocId = footer.getInt();
+            entries = footer.getInt();
+            if (footer.getLong() != MAGIC) {
+                throw new IOException(path + " is not a table");
+            }
+            final ByteBuffer index = read(indexOffset, blocks * INDEX_ENTRY_SIZE);
+            firstDocIds = new int[blocks];
+            offsets = new long[blocks];
+            lengths = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                firstDocIds[i] = index.getInt();
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+            bloom = BloomFilter.read(
+                read(bloomOffset, (int) (bytes - FOOTER_SIZE - bloomOffset)));
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the table numbered number in directory.
+     */
+    static SSTable open(final Path directory, final long number) throws IOException {
+        return new SSTable(number, path(directory, number));
+    }
+
+    static Path path(final Path directory, final long number) {
+        return directory.resolve(number + SUFFIX);
+    }
+
+    /**
+     * Returns the number of the table named file, or -1 if it isn't
+     * the name of a table.
+     */
+    static long number(final Path file) {
+        final String name = file.getFileName().toString();
+        if (!name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns whether file is a table left half written by a crash.
+     */
+    static boolean isTemporary(final Path file) {
+        return file.getFileName().toString().endsWith(SUFFIX + TEMP_SUFFIX);
+    }
+
+    long number() {
+        return number;
+    }
+
+    /**
+     * Returns the size of the file, in bytes.
+     */
+    long bytes() {
+        return bytes;
+    }
+
+    int minDocId() {
+        return minDocId;
+    }
+
+    int maxDocId() {
+        return maxDocId;
+    }
+
+    int entries() {
+        return entries;
+    }
+
+    /**
+     * Returns whether the table may hold docIds from fromDocId to
+     * toDocId inclusive.
+     */
+    boolean overlaps(final int fromDocId, final int toDocId) {
+        return fromDocId <= maxDocId && toDocId >= minDocId;
+    }
+
+    /**
+     * Returns false if the table certainly has no entry for docId,
+     * without touching the file.
+     */
+    boolean mightContain(final int docId) {
+        return docId >= minDocId && docId <= maxDocId && bloom.mightContain(docId);
+    }
+
+    /**
+     * Returns the document stored at docId, TOMBSTONE if the table
+     * records that it was removed, or null if the table has no entry
+     * for it.
+     */
+    ByteBuffer get(final int docId) throws IOException {
+        final int block = blockFor(docId);
+        if (block < 0) {
+            return null;
+        }
+        final ByteBuffer buffer = readBlock(block);
+        while (buffer.hasRemaining()) {
+            final int entryDocId = buffer.getInt();
+            final int length = buffer.getInt();
+            if (entryDocId == docId) {
+                return readDocument(buffer, length);
+            }
+            if (entryDocId > docId) {
+                return null;
+            }
+            buffer.position(buffer.position() + Math.max(length, 0));
+        }
+        return null;
+    }
+
+    /**
+     * Returns the greatest docId with an entry in the table which is
+     * no greater than bound, or Long.MIN_VALUE if there is none.
+     */
+    long floor(final int bound) throws IOException {
+        final int block = blockFor(bound);
+        if (block < 0) {
+            return Long.MIN_VALUE;
+        }
+        // The first entry of the block is no greater than bound.
+        final ByteBuffer buffer = readBlock(block);
+        long floor = Long.MIN_VALUE;
+        while (buffer.hasRemaining()) {
+            final int entryDocId = buffer.getInt();
+            if (entryDocId > bound) {
+                break;
+            }
+            floor = entryDocId;
+            final int length = buffer.getInt();
+            buffer.position(buffer.position() + Math.max(length, 0));
+        }
+        return floor;
+    }
+
+    /**
+     * Returns a cursor over the entries from fromDocId on, tombstones
+     * included.
+     *
+     * @param rank Rank of the cursor, see LsmDocumentStore.Cursor
+     */
+    LsmDocumentStore.Cursor cursor(final int fromDocId, final int rank)
+            throws IOException {
+        return new TableCursor(fromDocId, rank);
+    }
+
+    /**
+     * Notes that one more version of the store includes this table.
+     */
+    void ref() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Notes that a version of the store which included this table has
+     * been released, and closes the table if it was the last.
+     */
+    void unref() {
+        if (refs.decrementAndGet() > 0) {
+            return;
+        }
+        try {
+            channel.close();
+            if (obsolete) {
+                Files.deleteIfExists(path);
+            }
+        } catch (final IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to close " + path, e);
+        }
+    }
+
+    /**
+     * Notes that compaction has replaced the table, so its file can be
+     * deleted once it is closed.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /**
+     * Returns the last block whose first docId is no greater than
+     * docId, or -1 if docId is before the first block.
+     */
+    private int blockFor(final int docId) {
+        if (docId < minDocId || docId > maxDocId) {
+            return docId > maxDocId ? firstDocIds.length - 1 : -1;
+        }
+        final int index = Arrays.binarySearch(firstDocIds, docId);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private ByteBuffer readBlock(final int block) throws IOException {
+        return read(offsets[block], lengths[block]);
+    }
+
+    private ByteBuffer read(final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(path + " ends early");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns the document of length bytes at the position of buffer,
+     * and moves past it.
+     */
+    private static ByteBuffer readDocument(final ByteBuffer buffer, final int length) {
+        if (length < 0) {
+            return TOMBSTONE;
+        }
+        final ByteBuffer document = buffer.slice();
+        document.limit(length);
+        buffer.position(buffer.position() + length);
+        return document;
+    }
+
+    /**
+     * Reads the table one block at a time.
+     */
+    private final class TableCursor extends LsmDocumentStore.Cursor {
+        private int block;
+        private ByteBuffer buffer;
+        private int docId;
+        private ByteBuffer document;
+
+        private TableCursor(final int fromDocId, final int rank) throws IOException {
+            super(rank);
+            block = Math.max(blockFor(fromDocId), 0);
+            buffer = readBlock(block);
+            next();
+            while (document != null && docId < fromDocId) {
+                next();
+            }
+        }
+
+        @Override
+        boolean valid() {
+            return document != null;
+        }
+
+        @Override
+        int docId() {
+            return docId;
+        }
+
+        @Override
+        ByteBuffer document() {
+            return document;
+        }
+
+        @Override
+        void next() throws IOException {
+            if (!buffer.hasRemaining()) {
+                if (block + 1 == offsets.length) {
+                    document = null;
+                    return;
+                }
+                block++;
+                buffer = readBlock(block);
+            }
+            docId = buffer.getInt();
+            document = readDocument(buffer, buffer.getInt());
+        }
+    }
+
+    /**
+     * Writes a new table, whose entries must be added in increasing
+     * docId order.
+     */
+    static final class Writer implements Closeable {
+        private final Path directory;
+        private final long number;
+        private final Path temp;
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream block =
+            new ByteArrayOutputStream(2 * BLOCK_SIZE);
+        private final DataOutputStream blockOut = new DataOutputStream(block);
+        private final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        private final DataOutputStream indexOut = new DataOutputStream(index);
+        private int[] docIds = new int[1024];
+        private int entries;
+        private int blocks;
+        private int blockFirstDocId;
+        private long position;
+        private boolean finished;
+
+        /**
+         * @param directory Directory of the store
+         * @param number Number of the new table
+         */
+        Writer(final Path directory, final long number) throws IOException {
+            this.directory = directory;
+            this.number = number;
+            temp = directory.resolve(number + SUFFIX + TEMP_SUFFIX);
+            file = new FileOutputStream(temp.toFile());
+            out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+        }
+
+        /**
+         * Adds document, or TOMBSTONE, at docId.
+         */
+        void add(final int docId, final ByteBuffer document) throws IOException {
+            if (block.size() == 0) {
+                blockFirstDocId = docId;
+            }
+            blockOut.writeInt(docId);
+            if (document == TOMBSTONE) {
+                blockOut.writeInt(-1);
+            } else {
+                blockOut.writeInt(document.remaining());
+                ByteBufferWriter.write(document, blockOut);
+            }
+            if (entries == docIds.length) {
+                docIds = Arrays.copyOf(docIds, entries * 2);
+            }
+            docIds[entries++] = docId;
+            if (block.size() >= BLOCK_SIZE) {
+                writeBlock();
+            }
+        }
+
+        boolean isEmpty() {
+            return entries == 0;
+        }
+
+        /**
+         * Returns about how big the table is so far, in bytes.
+         */
+        long size() {
+            return position + block.size();
+        }
+
+        /**
+         * Writes out the index, filter and footer, makes the table
+         * durable, and opens it. There must be at least one entry.
+         */
+        SSTable finish() throws IOException {
+            writeBlock();
+            final long indexOffset = position;
+            index.writeTo(out);
+            final BloomFilter filter = new BloomFilter(entries);
+            for (int i = 0; i < entries; i++) {
+                filter.add(docIds[i]);
+            }
+            final long bloomOffset = indexOffset + index.size();
+            filter.writeTo(out);
+            out.writeLong(indexOffset);
+            out.writeInt(blocks);
+            out.writeLong(bloomOffset);
+            out.writeInt(docIds[0]);
+            out.writeInt(docIds[entries - 1]);
+            out.writeInt(entries);
+            out.writeLong(MAGIC);
+            out.flush();
+            file.getFD().sync();
+            out.close();
+            finished = true;
+            final Path path = path(directory, number);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+            return new SSTable(number, path);
+        }
+
+        /**
+         * Abandons the table unless it has been finished.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!finished) {
+                out.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (block.size() == 0) {
+                return;
+            }
+            indexOut.writeInt(blockFirstDocId);
+            indexOut.writeLong(position);
+            indexOut.writeInt(block.size());
+            block.writeTo(out);
+            position += block.size();
+            blocks++;
+            block.reset();
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package org.adadevelopersacademy;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Snapshot is a read-only, point-in-time copy of every document in a
+ * store, saved in a compact binary format.
+ *
+ * Replaying a long {@link WriteAheadLog} means parsing every record
+ * ever written. A snapshot instead holds only the latest version of
+ * each document, sorted by docId, so it can be used directly without
+ * loading it at all. Opening a snapshot "memory maps" its files. The
+ * operating system makes the file contents appear as a ByteBuffer and
+ * reads pages from disk on demand the first time they are touched,
+ * so the server can answer reads from the snapshot immediately.
+ *
+ * A snapshot is a directory named after the log segment from which
+ * replay has to start, holding one or more part files. A single
+ * mapped buffer can be at most 2GB, so large snapshots are split into
+ * parts. Each part is laid out as:
+ *
+ *   records: int length | document bytes, sorted by docId
+ *   index:   int docId[count]
+ *            int recordOffset[count]
+ *   footer:  int count | int indexOffset | int magic
+ *
+ * A snapshot is written into a temporary directory which is renamed
+ * once it is complete, so a crash never leaves a partial snapshot
+ * behind that could be mistaken for a good one.
+ */
+public final class Snapshot {
+    static final int DEFAULT_PART_SIZE = 1 << 30;
+
+    private static final String PREFIX = "snapshot-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PART_SUFFIX = ".part";
+    private static final int MAGIC = 0x534e4150;
+    private static final int FOOTER_SIZE = 12;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final long generation;
+    private final Part[] parts;
+
+    private Snapshot(final long generation, final Part[] parts) {
+        this.generation = generation;
+        this.parts = parts;
+    }
+
+    /**
+     * Maps the most recent complete snapshot in directory.
+     *
+     * @return the snapshot, or null if there is none
+     */
+    public static Snapshot openLatest(final Path directory) throws IOException {
+        final List<Long> generations = generations(directory);
+        if (generations.isEmpty()) {
+            return null;
+        }
+        final long generation = generations.get(generations.size() - 1);
+        final List<Part> parts = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(
+                 snapshotPath(directory, generation), "*" + PART_SUFFIX)) {
+            for (final Path file : files) {
+                parts.add(Part.map(file));
+            }
+        }
+        // Directory listings come back in no particular order, but the
+        // part names sort in docId order.
+        Collections.sort(parts);
+        return new Snapshot(generation, parts.toArray(new Part[parts.size()]));
+    }
+
+    /**
+     * Writes every document from documents, which must be in
+     * increasing docId order, as a new snapshot in directory.
+     *
+     * @param directory Directory holding the snapshots
+     * @param generation First log segment not covered by this snapshot
+     * @param documents Documents to save
+     */
+    public static void write(
+            final Path directory,
+            final long generation,
+            final Iterator<Map.Entry<Integer, ByteBuffer>> documents)
+            throws IOException {
+        write(directory, generation, documents, DEFAULT_PART_SIZE);
+    }
+
+    static void write(
+            final Path directory,
+            final long generation,
+            final Iterator<Map.Entry<Integer, ByteBuffer>> documents,
+            final int partSize) throws IOException {
+        final Path temp = directory.resolve(PREFIX + generation + TEMP_SUFFIX);
+        deleteRecursively(temp);
+        Files.createDirectories(temp);
+        int partNumber = 0;
+        do {
+            // Even an empty snapshot gets one (empty) part.
+            final String name = String.format("%05d%s", partNumber, PART_SUFFIX);
+            writePart(temp.resolve(name), documents, partSize);
+            partNumber++;
+        } while (documents.hasNext());
+        syncDirectory(temp);
+        Files.move(temp, snapshotPath(directory, generation),
+            StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+    }
+
+    /**
+     * Deletes every snapshot in directory older than generation, and
+     * any temporary snapshot left behind by a crash.
+     */
+    public static void deleteOlderThan(final Path directory, final long generation)
+            throws IOException {
+        try (DirectoryStream<Path> files =
+                 Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)
+                        || Long.parseLong(name.substring(PREFIX.length())) < generation) {
+                    // Deleting the files of a snapshot which is still
+                    // mapped is fine. The mapping stays valid until it
+                    // is garbage collected.
+                    deleteRecursively(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the first log segment which is not covered by this
+     * snapshot.
+     */
+    public long generation() {
+        return generation;
+    }
+
+    /**
+     * Returns a read-only view of the document at docId, or null.
+     * No bytes are copied. The view points straight into the mapped
+     * file.
+     */
+    public ByteBuffer get(final int docId) {
+        final Part part = partFor(docId);
+        if (part == null) {
+            return null;
+        }
+        final int index = part.lowerBound(docId);
+        if (index == part.count || part.idAt(index) != docId) {
+            return null;
+        }
+        return part.documentAt(index);
+    }
+
+    /**
+     * Returns whether there is a document at docId.
+     */
+    public boolean contains(final int docId) {
+        final Part part = partFor(docId);
+        if (part == null) {
+            return false;
+        }
+        final int index = part.lowerBound(docId);
+        return index < part.count && part.idAt(index) == docId;
+    }
+
+    /**
+     * Returns the documents with ids from fromDocId to toDocId
+     * inclusive, in increasing docId order.
+     */
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return new Scan(fromDocId, toDocId);
+    }
+
+    /**
+     * Returns the greatest docId in the snapshot, or -1.
+     */
+    public int lastDocId() {
+        for (int i = parts.length - 1; i >= 0; i--) {
+            if (parts[i].count > 0) {
+                return parts[i].idAt(parts[i].count - 1);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of documents in the snapshot.
+     */
+    public long size() {
+        long size = 0;
+        for (final Part part : parts) {
+            size += part.count;
+        }
+        return size;
+    }
+
+    /**
+     * Returns the total size of the documents in the snapshot, in
+     * bytes.
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (final Part part : parts) {
+            // Each record is the document's length followed by the
+            // document, and the records fill the part up to its index.
+            bytes += part.indexOffset - 4L * part.count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the part which would hold docId, or null.
+     */
+    private Part partFor(final int docId) {
+        final int index = partIndexFor(docId);
+        if (index == parts.length) {
+            return null;
+        }
+        return parts[index];
+    }
+
+    /**
+     * Returns the index of the part which would hold docId, or the
+     * number of parts if docId is past the end of the snapshot.
+     */
+    private int partIndexFor(final int docId) {
+        // Binary search for the first part whose last id is at least
+        // docId.
+        int low = 0;
+        int high = parts.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final Part part = parts[mid];
+            if (part.count == 0 || part.idAt(part.count - 1) < docId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void writePart(
+            final Path file,
+            final Iterator<Map.Entry<Integer, ByteBuffer>> documents,
+            final int partSize) throws IOException {
+        int[] ids = new int[1024];
+        int[] offsets = new int[1024];
+        int count = 0;
+        int position = 0;
+        try (FileOutputStream stream = new FileOutputStream(file.toFile())) {
+            final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+            final byte[] scratch = new byte[BUFFER_SIZE];
+            while (position < partSize && documents.hasNext()) {
+                final Map.Entry<Integer, ByteBuffer> entry = documents.next();
+                final ByteBuffer document = entry.getValue().duplicate();
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, count * 2);
+                    offsets = Arrays.copyOf(offsets, count * 2);
+                }
+                ids[count] = entry.getKey();
+                offsets[count] = position;
+                count++;
+                out.writeInt(document.remaining());
+                position += 4 + document.remaining();
+                while (document.hasRemaining()) {
+                    final int chunk = Math.min(scratch.length, document.remaining());
+                    document.get(scratch, 0, chunk);
+                    out.write(scratch, 0, chunk);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(ids[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                out.writeInt(offsets[i]);
+            }
+            out.writeInt(count);
+            out.writeInt(position);
+            out.writeInt(MAGIC);
+            out.flush();
+            // flush() only hands the bytes to the operating system.
+            // sync() waits until they are actually on disk.
+            stream.getFD().sync();
+        }
+    }
+
+    static void syncDirectory(final Path directory) throws IOException {
+        // Renaming a file only becomes durable once the directory
+        // itself is forced to disk. Not every platform allows opening
+        // a directory, so this is best effort.
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final IOException e) {
+            return;
+        }
+    }
+
+    private static void deleteRecursively(final Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (final Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    private static Path snapshotPath(final Path directory, final long generation) {
+        return directory.resolve(PREFIX + generation);
+    }
+
+    /**
+     * Returns the generations of the complete snapshots in directory
+     * in increasing order.
+     */
+    private static List<Long> generations(final Path directory) throws IOException {
+        final List<Long> generations = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        try (DirectoryStream<Path> files =
+                 Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (!name.endsWith(TEMP_SUFFIX)) {
+                    generations.add(Long.parseLong(name.substring(PREFIX.length())));
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * A single mapped part file.
+     */
+    private static final class Part implements Comparable<Part> {
+        private final String name;
+        private final ByteBuffer data;
+        private final int count;
+        private final int indexOffset;
+
+        private Part(
+                final String name,
+                final ByteBuffer data,
+                final int count,
+                final int indexOffset) {
+            this.name = name;
+            this.data = data;
+            this.count = count;
+            this.indexOffset = indexOffset;
+        }
+
+        private static Part map(final Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // The mapping stays valid after the channel is closed.
+                final ByteBuffer data =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                final int footer = data.limit() - FOOTER_SIZE;
+                if (footer < 0 || data.getInt(footer + 8) != MAGIC) {
+                    throw new IOException("Corrupt snapshot part " + file);
+                }
+                return new Part(file.getFileName().toString(), data,
+                    data.getInt(footer), data.getInt(footer + 4));
+            }
+        }
+
+        private int idAt(final int index) {
+            return data.getInt(indexOffset + 4 * index);
+        }
+
+        private ByteBuffer documentAt(final int index) {
+            final int offset = data.getInt(indexOffset + 4 * count + 4 * index);
+            final int length = data.getInt(offset);
+            final ByteBuffer document = data.duplicate();
+            document.position(offset + 4);
+            document.limit(offset + 4 + length);
+            return document.slice();
+        }
+
+        /**
+         * Returns the index of the first id at least docId.
+         */
+        private int lowerBound(final int docId) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (idAt(mid) < docId) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public int compareTo(final Part other) {
+            return name.compareTo(other.name);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Part && name.equals(((Part) other).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+    }
+
+    /**
+     * Iterates over a range of docIds across all of the parts.
+     */
+    private final class Scan implements Iterator<Map.Entry<Integer, ByteBuffer>> {
+        private final int toDocId;
+        private int partIndex;
+        private int index;
+
+        private Scan(final int fromDocId, final int toDocId) {
+            this.toDocId = toDocId;
+            partIndex = partIndexFor(fromDocId);
+            if (partIndex < parts.length) {
+                index = parts[partIndex].lowerBound(fromDocId);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (partIndex < parts.length && index >= parts[partIndex].count) {
+                partIndex++;
+                index = 0;
+            }
+            return partIndex < parts.length && parts[partIndex].idAt(index) <= toDocId;
+        }
+
+        @Override
+        public Map.Entry<Integer, ByteBuffer> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Part part = parts[partIndex];
+            final Map.Entry<Integer, ByteBuffer> entry =
+                new AbstractMap.SimpleImmutableEntry<>(
+                    part.idAt(index), part.documentAt(index));
+            index++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * SnapshotDocumentStore layers a writable DocumentStore on top of a
+ * read-only {@link Snapshot}.
+ *
+ * Every change goes to the live store. A read looks in the live store
+ * first and falls back to the snapshot, so documents which haven't
+ * changed since the snapshot are served straight from the mapped file
+ * without ever being copied onto the heap. A removed document may
+ * still be in the snapshot, so the ids of removed snapshot documents
+ * are remembered to hide them. After a clear the snapshot is ignored
+ * entirely.
+ *
+ * Checking the live store and then the removed ids isn't a single
+ * atomic step. Two changes to the same docId must not run at the
+ * same time, which {@link DurableDocumentStore} already guarantees
+ * with its locks. Reads may run at any time.
+ */
+public class SnapshotDocumentStore extends AbstractDocumentStore {
+    private final DocumentStore live;
+    private final Snapshot snapshot;
+    // Java has no concurrent set class. Instead, a set can be made
+    // from the keys of a concurrent map.
+    private final Set<Integer> removed =
+        Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile boolean cleared;
+
+    /**
+     * @param live Store which receives every change
+     * @param snapshot Documents as of the last snapshot
+     */
+    public SnapshotDocumentStore(final DocumentStore live, final Snapshot snapshot) {
+        this.live = live;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        final ByteBuffer document = live.get(docId);
+        if (document != null || !inSnapshot(docId)) {
+            return document;
+        }
+        return snapshot.get(docId);
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        // Documents in the snapshot are never compressed.
+        return live.getGzipped(docId);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        live.put(docId, document);
+        removed.remove(docId);
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        if (inSnapshot(docId)) {
+            return false;
+        }
+        return live.putIfAbsent(docId, document);
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        final ByteBuffer current = get(docId);
+        if (current == null || !current.equals(expected)) {
+            return false;
+        }
+        put(docId, document);
+        return true;
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final boolean hidden = inSnapshot(docId);
+        if (hidden) {
+            removed.add(docId);
+        }
+        return live.remove(docId) || hidden;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        final Iterator<Map.Entry<Integer, ByteBuffer>> changed =
+            live.scan(fromDocId, toDocId);
+        if (cleared) {
+            return changed;
+        }
+        return new Merge(changed, snapshot.scan(fromDocId, toDocId));
+    }
+
+    @Override
+    public int lastDocId() {
+        // The last document in the snapshot may have been removed, in
+        // which case this is too high. That only means an id is
+        // skipped, which is harmless.
+        if (cleared) {
+            return live.lastDocId();
+        }
+        return Math.max(live.lastDocId(), snapshot.lastDocId());
+    }
+
+    @Override
+    public void clear() {
+        cleared = true;
+        live.clear();
+        removed.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        live.close();
+    }
+
+    /**
+     * Returns whether the snapshot holds a document at docId which
+     * hasn't been removed or cleared since.
+     */
+    private boolean inSnapshot(final int docId) {
+        return !cleared && !removed.contains(docId) && snapshot.contains(docId);
+    }
+
+    /**
+     * Merges two iterators in increasing docId order. Where both hold
+     * the same docId, the live document wins.
+     */
+    private final class Merge implements Iterator<Map.Entry<Integer, ByteBuffer>> {
+        private final Iterator<Map.Entry<Integer, ByteBuffer>> changed;
+        private final Iterator<Map.Entry<Integer, ByteBuffer>> saved;
+        private Map.Entry<Integer, ByteBuffer> nextChanged;
+        private Map.Entry<Integer, ByteBuffer> nextSaved;
+
+        private Merge(
+                final Iterator<Map.Entry<Integer, ByteBuffer>> changed,
+                final Iterator<Map.Entry<Integer, ByteBuffer>> saved) {
+            this.changed = changed;
+            this.saved = saved;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (nextChanged == null && changed.hasNext()) {
+                nextChanged = changed.next();
+            }
+            while (nextSaved == null && saved.hasNext()) {
+                final Map.Entry<Integer, ByteBuffer> entry = saved.next();
+                if (!cleared && !removed.contains(entry.getKey())) {
+                    nextSaved = entry;
+                }
+            }
+            return nextChanged != null || nextSaved != null;
+        }
+
+        @Override
+        public Map.Entry<Integer, ByteBuffer> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<Integer, ByteBuffer> entry;
+            if (nextSaved == null || nextChanged != null
+                    && nextChanged.getKey() <= nextSaved.getKey()) {
+                entry = nextChanged;
+                if (nextSaved != null
+                        && nextSaved.getKey().equals(nextChanged.getKey())) {
+                    nextSaved = null;
+                }
+                nextChanged = null;
+            } else {
+                entry = nextSaved;
+                nextSaved = null;
+            }
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.adadevelopersacademy;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+
+/**
+ * SpillFile holds documents which have been pushed out of memory by
+ * {@link TieredDocumentStore}.
+ *
+ * Documents are appended to the end of a scratch file, and where each
+ * one is kept is remembered in memory. Reading one back is a single
+ * positional read, which many threads can do at once. The space of a
+ * document which is read back into memory, replaced or removed is
+ * only reclaimed when more than half of the file is unused, by
+ * copying the documents still in use to a new file.
+ *
+ * The file only extends memory. It isn't meant to survive a restart,
+ * which is what the write-ahead log is for, so it is never forced to
+ * disk, and it is deleted when it is closed.
+ */
+final class SpillFile implements Closeable {
+    // Files smaller than this are never compacted.
+    private static final long MIN_COMPACT_SIZE = 16 * 1024 * 1024;
+
+    private final Path path;
+    // docId to location, in docId order for scans.
+    private final ConcurrentSkipListMap<Integer, Location> locations =
+        new ConcurrentSkipListMap<>();
+    // Reads share this lock. Appending takes it exclusively, since it
+    // moves the end of the file, and so does compacting, since it
+    // replaces the file and moves every document.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private long end;
+    private long unusedBytes;
+
+    /**
+     * Creates an empty spill file at path, replacing any file there.
+     */
+    SpillFile(final Path path) throws IOException {
+        this.path = path;
+        channel = open(path);
+    }
+
+    /**
+     * Appends a document, replacing any earlier copy of it.
+     *
+     * @return the number of bytes written
+     */
+    int write(final int docId, final ByteBuffer document) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final ByteBuffer source = document.duplicate();
+            final int length = source.remaining();
+            long position = end;
+            while (source.hasRemaining()) {
+                position += channel.write(source, position);
+            }
+            forget(locations.put(docId, new Location(end, length)));
+            end = position;
+            return length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Reads a document back onto the heap.
+     *
+     * @return the document, or null if it isn't in the file
+     */
+    ByteBuffer read(final int docId) throws IOException {
+        lock.readLock().lock();
+        try {
+            final Location location = locations.get(docId);
+            if (location == null) {
+                return null;
+            }
+            final ByteBuffer document = ByteBuffer.allocate(location.length);
+            long position = location.offset;
+            while (document.hasRemaining()) {
+                final int read = channel.read(document, position);
+                if (read < 0) {
+                    throw new EOFException("Spill file is truncated");
+                }
+                position += read;
+            }
+            document.flip();
+            return document;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns whether the document is in the file.
+     */
+    boolean contains(final int docId) {
+        return locations.containsKey(docId);
+    }
+
+    /**
+     * Removes a document from the file.
+     *
+     * @return whether it was in the file
+     */
+    boolean remove(final int docId) throws IOException {
+        lock.writeLock().lock();
+        try {
+            final Location location = locations.remove(docId);
+            forget(location);
+            if (end > MIN_COMPACT_SIZE && unusedBytes > end / 2) {
+                compact();
+            }
+            return location != null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the docIds in the file from fromDocId to toDocId
+     * inclusive, in increasing order. The result is a live view.
+     */
+    ConcurrentNavigableMap<Integer, ?> between(final int fromDocId, final int toDocId) {
+        return locations.subMap(fromDocId, true, toDocId, true);
+    }
+
+    /**
+     * Returns the greatest docId in the file, or -1 if it is empty.
+     */
+    int lastDocId() {
+        final Map.Entry<Integer, Location> last = locations.lastEntry();
+        return last == null ? -1 : last.getKey();
+    }
+
+    /**
+     * Returns the number of documents in the file.
+     */
+    int size() {
+        return locations.size();
+    }
+
+    /**
+     * Removes every document.
+     */
+    void clear() throws IOException {
+        lock.writeLock().lock();
+        try {
+            locations.clear();
+            channel.truncate(0);
+            end = 0;
+            unusedBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void forget(final Location location) {
+        if (location != null) {
+            unusedBytes += location.length;
+        }
+    }
+
+    /**
+     * Copies the documents still in use to a new file, which then
+     * replaces this one. The caller holds the write lock.
+     */
+    private void compact() throws IOException {
+        final Path compacted = path.resolveSibling(path.getFileName() + ".compact");
+        long position = 0;
+        try (FileChannel target = open(compacted)) {
+            for (final Map.Entry<Integer, Location> entry : locations.entrySet()) {
+                final Location location = entry.getValue();
+                long copied = 0;
+                while (copied < location.length) {
+                    copied += channel.transferTo(location.offset + copied,
+                        location.length - copied, target.position(position + copied));
+                }
+                // Nothing else can change the map while the write lock
+                // is held, so the entry can be replaced as it's
+                // iterated over.
+                locations.put(entry.getKey(), new Location(position, location.length));
+                position += location.length;
+            }
+        }
+        channel.close();
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(
+            path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        end = position;
+        unusedBytes = 0;
+    }
+
+    private static FileChannel open(final Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Where a document is kept in the file.
+     */
+    private static final class Location {
+        private final long offset;
+        private final int length;
+
+        private Location(final long offset, final int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package org.adadevelopersacademy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * TieredDocumentStore keeps as many documents in memory as fit in a
+ * budget, and spills the rest to a {@link SpillFile} on disk.
+ *
+ * Every document starts out in the memory store, which may be either
+ * of the in-memory stores. When the documents in memory add up to
+ * more than the budget, {@link WindowTinyLfu} picks the ones to
+ * spill, so that the ones used most stay in memory. Reading a spilled
+ * document reads it back into memory, which may spill others in turn.
+ * Callers can't tell where a document is, except by how long it
+ * takes.
+ *
+ * A document is only ever moved while the lock for its docId is
+ * held, so a change can't be lost by being made to a copy which is
+ * just being moved. Deciding what to move is done under a separate
+ * lock, which is always taken after the docId's lock if both are
+ * needed. The documents picked are then moved one at a time after
+ * letting go of that lock, so memory use can be over the budget for a
+ * moment while that happens.
+ *
+ * Reads of documents in memory take no lock, but the policy needs to
+ * know about them. A read which finds the policy's lock busy doesn't
+ * wait for it and simply isn't counted. A few missed reads make
+ * little difference to which documents are popular, and this way
+ * reads never queue up behind one another. A read which doesn't find
+ * the document in memory takes the docId's lock to look again, since
+ * the document may be on its way between the two.
+ */
+public class TieredDocumentStore extends AbstractDocumentStore {
+    private static final int STRIPES = 64;
+    // Documents are assumed to be about this size when sizing the
+    // policy's frequency sketch.
+    private static final int EXPECTED_SIZE = 1024;
+
+    private final DocumentStore memory;
+    private final SpillFile spill;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final WindowTinyLfu policy;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong faults = new AtomicLong();
+    private final AtomicLong faultBytes = new AtomicLong();
+    private final AtomicLong spills = new AtomicLong();
+    private final AtomicLong spillBytes = new AtomicLong();
+
+    /**
+     * @param memory Empty store to keep documents in memory
+     * @param budget Bytes of documents to keep in memory
+     * @param spillPath File to spill documents to. It is deleted when
+     *     the store is closed.
+     */
+    public TieredDocumentStore(
+            final DocumentStore memory,
+            final long budget,
+            final Path spillPath) throws IOException {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("budget must be positive");
+        }
+        this.memory = memory;
+        this.spill = new SpillFile(spillPath);
+        this.policy = new WindowTinyLfu(budget, EXPECTED_SIZE);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public ByteBuffer get(final int docId) {
+        final ByteBuffer document = memory.get(docId);
+        if (document != null) {
+            hits.incrementAndGet();
+            if (policyLock.tryLock()) {
+                try {
+                    policy.touch(docId);
+                } finally {
+                    policyLock.unlock();
+                }
+            }
+            return document;
+        }
+        // The document may still be in the spill file, or it may have
+        // moved back into memory since memory was checked: a fault or a
+        // put of the same docId puts it in memory and then takes it out
+        // of the spill file. Without the lock, checking the spill file
+        // now could miss it in both places, so both are checked again
+        // under the lock, which every move holds.
+        final List<Integer> evicted = new ArrayList<>();
+        final ByteBuffer faulted;
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            final ByteBuffer current = memory.get(docId);
+            if (current != null) {
+                return current;
+            }
+            faulted = spill.read(docId);
+            if (faulted == null) {
+                return null;
+            }
+            faults.incrementAndGet();
+            faultBytes.addAndGet(faulted.remaining());
+            memory.put(docId, faulted);
+            spill.remove(docId);
+            admit(docId, faulted, evicted);
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to read spilled document", e);
+        } finally {
+            lock.unlock();
+        }
+        spill(evicted);
+        return faulted;
+    }
+
+    @Override
+    public ByteBuffer getGzipped(final int docId) {
+        // A spilled document has to be read back in with get.
+        return memory.getGzipped(docId);
+    }
+
+    @Override
+    public void put(final int docId, final ByteBuffer document) {
+        final List<Integer> evicted = new ArrayList<>();
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            memory.put(docId, document);
+            spill.remove(docId);
+            admit(docId, document, evicted);
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to update spill file", e);
+        } finally {
+            lock.unlock();
+        }
+        spill(evicted);
+    }
+
+    @Override
+    public boolean putIfAbsent(final int docId, final ByteBuffer document) {
+        final List<Integer> evicted = new ArrayList<>();
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            if (spill.contains(docId) || !memory.putIfAbsent(docId, document)) {
+                return false;
+            }
+            admit(docId, document, evicted);
+        } finally {
+            lock.unlock();
+        }
+        spill(evicted);
+        return true;
+    }
+
+    @Override
+    public boolean replace(
+            final int docId, final ByteBuffer expected, final ByteBuffer document) {
+        final List<Integer> evicted = new ArrayList<>();
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            ByteBuffer current = memory.get(docId);
+            if (current == null) {
+                current = spill.read(docId);
+            }
+            if (current == null || !current.equals(expected)) {
+                return false;
+            }
+            memory.put(docId, document);
+            spill.remove(docId);
+            admit(docId, document, evicted);
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to update spill file", e);
+        } finally {
+            lock.unlock();
+        }
+        // This can't happen while holding the lock, since spilling
+        // takes the locks of other docIds.
+        spill(evicted);
+        return true;
+    }
+
+    @Override
+    public boolean remove(final int docId) {
+        final ReentrantLock lock = stripeFor(docId);
+        lock.lock();
+        try {
+            policyLock.lock();
+            try {
+                policy.remove(docId);
+            } finally {
+                policyLock.unlock();
+            }
+            // Unlike ||, | evaluates both sides.
+            return memory.remove(docId) | spill.remove(docId);
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to update spill file", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Map.Entry<Integer, ByteBuffer>> scan(
+            final int fromDocId, final int toDocId) {
+        return new Merge(memory.scan(fromDocId, toDocId),
+            spill.between(fromDocId, toDocId).keySet().iterator());
+    }
+
+    @Override
+    public int lastDocId() {
+        return Math.max(memory.lastDocId(), spill.lastDocId());
+    }
+
+    @Override
+    public void clear() {
+        for (final ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            memory.clear();
+            spill.clear();
+            policyLock.lock();
+            try {
+                policy.clear();
+            } finally {
+                policyLock.unlock();
+            }
+        } catch (final IOException e) {
+            throw new DocumentStoreException("Unable to clear spill file", e);
+        } finally {
+            for (final ReentrantLock lock : stripes) {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            memory.close();
+        } finally {
+            spill.close();
+        }
+    }
+
+    /**
+     * Returns the bytes of documents in memory.
+     */
+    public long memoryBytes() {
+        policyLock.lock();
+        try {
+            return policy.bytes();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of documents on disk.
+     */
+    public int spilledDocuments() {
+        return spill.size();
+    }
+
+    /**
+     * Returns the number of reads of documents found in memory.
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of reads of documents which had to be read
+     * back from disk.
+     */
+    public long faults() {
+        return faults.get();
+    }
+
+    /**
+     * Returns the number of bytes read back from disk.
+     */
+    public long faultBytes() {
+        return faultBytes.get();
+    }
+
+    /**
+     * Returns the number of documents written to disk.
+     */
+    public long spills() {
+        return spills.get();
+    }
+
+    /**
+     * Returns the number of bytes written to disk.
+     */
+    public long spillBytes() {
+        return spillBytes.get();
+    }
+
+    /**
+     * Returns the fraction of reads of existing documents which were
+     * found in memory, or 1 if there haven't been any.
+     */
+    public double hitRatio() {
+        final long found = hits.get();
+        final long total = found + faults.get();
+        return total == 0 ? 1 : (double) found / total;
+    }
+
+    /**
+     * Tells the policy that document is in memory. The caller holds
+     * the lock for docId.
+     */
+    private void admit(
+            final int docId, final ByteBuffer document, final List<Integer> evicted) {
+        policyLock.lock();
+        try {
+            policy.add(docId, document.remaining(), evicted);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the documents the policy has evicted from memory to disk.
+     */
+    private void spill(final List<Integer> evicted) {
+        for (final int docId : evicted) {
+            final ReentrantLock lock = stripeFor(docId);
+            lock.lock();
+            try {
+                // The document may have been removed, or stored again
+                // and so let back in, since it was picked.
+                final ByteBuffer document = memory.get(docId);
+                if (document == null || isAdmitted(docId)) {
+                    continue;
+                }
+                // It's written out before it is removed, so a reader
+                // which takes no lock always finds it in one place or
+                // the other.
+                spillBytes.addAndGet(spill.write(docId, document));
+                spills.incrementAndGet();
+                memory.remove(docId);
+            } catch (final IOException e) {
+                throw new DocumentStoreException("Unable to spill document", e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private boolean isAdmitted(final int docId) {
+        policyLock.lock();
+        try {
+            return policy.contains(docId);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    private ReentrantLock stripeFor(final int docId) {
+        return stripes[OffHeapDocumentStore.mix(docId) & (STRIPES - 1)];
+    }
+
+    /**
+     * Merges the documents in memory with the docIds of those on disk
+     * in increasing docId order. Spilled documents are read when they
+     * are reached, without bringing them back into memory, so that a
+     * scan doesn't push out the documents which are actually in use.
+     */
+    private final class Merge implements Iterator<Map.Entry<Integer, ByteBuffer>> {
+        private final Iterator<Map.Entry<Integer, ByteBuffer>> inMemory;
+        private final Iterator<Integer> spilled;
+        private Map.Entry<Integer, ByteBuffer> nextInMemory;
+        private Integer nextSpilled;
+        private Map.Entry<Integer, ByteBuffer> next;
+
+        private Merge(
+                final Iterator<Map.Entry<Integer, ByteBuffer>> inMemory,
+                final Iterator<Integer> spilled) {
+            this.inMemory = inMemory;
+            this.spilled = spilled;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (nextInMemory == null && inMemory.hasNext()) {
+                    nextInMemory = inMemory.next();
+                }
+                if (nextSpilled == null && spilled.hasNext()) {
+                    nextSpilled = spilled.next();
+                }
+                if (nextInMemory == null && nextSpilled == null) {
+                    return false;
+                }
+                if (nextSpilled == null || nextInMemory != null
+                        && nextInMemory.getKey() <= nextSpilled) {
+                    // A document being moved can be in both places
+                    // for a moment. The copy in memory is current.
+                    if (nextInMemory.getKey().equals(nextSpilled)) {
+                        nextSpilled = null;
+                    }
+                    next = nextInMemory;
+                    nextInMemory = null;
+                } else {
+                    next = readSpilled(nextSpilled);
+                    nextSpilled = null;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<Integer, ByteBuffer> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Map.Entry<Integer, ByteBuffer> entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Returns the entry for a spilled document, or null if it is
+         * no longer on disk and isn't in memory either.
+         */
+        private Map.Entry<Integer, ByteBuffer> readSpilled(final int docId) {
+            ByteBuffer document;
+            try {
+                document = spill.read(docId);
+            } catch (final IOException e) {
+                throw new DocumentStoreException("Unable to read spilled document", e);
+            }
+            if (document == null) {
+                // It was read back into memory after the scan passed
+                // it there.
+                document = memory.get(docId);
+            }
+            if (document == null) {
+                return null;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(docId, document);
+        }
+    }
+}
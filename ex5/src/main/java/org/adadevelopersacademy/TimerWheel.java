@@ -0,0 +1,289 @@
+package org.adadevelopersacademy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TimerWheel keeps track of when documents expire, so that expired
+ * documents can be found without looking at every document.
+ *
+ * Time is divided into ticks. The bottom level of the wheel is a ring
+ * of 64 buckets, one per tick, holding the documents which expire in
+ * the next 64 ticks. Each level above has 64 buckets too, but each of
+ * them covers all 64 buckets of the level below, so four levels cover
+ * 64^4 ticks. A document is put in the bucket for its deadline on the
+ * lowest level that reaches that far. As time passes the wheel turns:
+ * when a bottom bucket's tick has passed, its documents have expired,
+ * and when the bottom level comes round to its start again, the next
+ * bucket of the level above is emptied and its documents spread over
+ * the level below, which now reaches far enough for them. Like the
+ * hands of a clock, each level turns once per step of the one above.
+ *
+ * Scheduling and cancelling a document only links it into or out of
+ * a bucket's list, whatever the number of documents, and a document
+ * moves down at most three times before it expires. Expired
+ * documents are collected in a list of their own, which the caller
+ * empties a batch at a time.
+ *
+ * Deadlines can be looked up without taking a lock. Everything else
+ * must be called while holding the wheel's lock, which is the wheel
+ * itself, apart from the methods a {@link WriteAheadLog} calls, which
+ * take it themselves.
+ */
+final class TimerWheel implements WriteAheadLog.Deadlines {
+    private static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int BUCKETS = 1 << BITS;
+
+    private final long tickMillis;
+    // The bucket lists have a sentinel node at their head, so that
+    // linking and unlinking never has to check for an empty list.
+    private final Node[][] wheel = new Node[LEVELS][BUCKETS];
+    private final Node expired = Node.sentinel();
+    private final ConcurrentMap<Integer, Node> nodes = new ConcurrentHashMap<>();
+    // Every tick before this one has been processed.
+    private long currentTick;
+
+    /**
+     * @param tickMillis Length of a tick
+     * @param nowMillis Current time
+     */
+    TimerWheel(final long tickMillis, final long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.currentTick = nowMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                wheel[level][bucket] = Node.sentinel();
+            }
+        }
+    }
+
+    /**
+     * Returns the deadline of docId in milliseconds, or Long.MAX_VALUE
+     * if it has none. This may be called without the lock.
+     */
+    long deadline(final int docId) {
+        final Node node = nodes.get(docId);
+        return node == null ? Long.MAX_VALUE : node.deadline;
+    }
+
+    /**
+     * Returns whether any document has a deadline. This may be called
+     * without the lock.
+     */
+    boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    /**
+     * Sets the deadline of docId, replacing any earlier one.
+     */
+    void schedule(final int docId, final long deadlineMillis) {
+        cancel(docId);
+        final Node node = new Node(docId, deadlineMillis);
+        nodes.put(docId, node);
+        place(node);
+    }
+
+    /**
+     * Removes the deadline of docId, if it has one.
+     */
+    void cancel(final int docId) {
+        final Node node = nodes.remove(docId);
+        if (node != null) {
+            node.unlink();
+        }
+    }
+
+    @Override
+    public synchronized void replayDeadline(final int docId, final long deadlineMillis) {
+        if (deadlineMillis == Long.MAX_VALUE) {
+            cancel(docId);
+        } else {
+            schedule(docId, deadlineMillis);
+        }
+    }
+
+    @Override
+    public synchronized void replayClear() {
+        clear();
+    }
+
+    @Override
+    public synchronized Map<Integer, Long> copyDeadlines() {
+        final Map<Integer, Long> copy = new HashMap<>();
+        for (final Node node : nodes.values()) {
+            copy.put(node.docId, node.deadline);
+        }
+        return copy;
+    }
+
+    /**
+     * Turns the wheel to nowMillis, moving the documents which have
+     * expired by then to the expired list.
+     *
+     * The tick nowMillis falls in has usually only partly passed. Its
+     * bucket is gone through document by document, and the documents
+     * which are not due yet stay in it until the next turn.
+     */
+    void advance(final long nowMillis) {
+        final long nowTick = nowMillis / tickMillis;
+        while (currentTick <= nowTick) {
+            // Coming round to the start of a level means its next
+            // bucket up has to be spread out first. Higher levels go
+            // first, since they spread their documents into the
+            // buckets of the levels below.
+            int top = 0;
+            while (top < LEVELS - 1
+                    && (currentTick & (1L << BITS * (top + 1)) - 1) == 0) {
+                top++;
+            }
+            for (int level = top; level > 0; level--) {
+                cascade(level, bucketIndex(currentTick, level));
+            }
+            final Node bucket = wheel[0][bucketIndex(currentTick, 0)];
+            if (currentTick == nowTick) {
+                // Spreading out the buckets above again on the next
+                // turn finds them empty, so currentTick stays here.
+                expireDue(bucket, nowMillis);
+                return;
+            }
+            expired.spliceAll(bucket);
+            currentTick++;
+        }
+    }
+
+    /**
+     * Takes up to max docIds from the expired list. Their deadlines
+     * are left in place until the caller cancels them, so that reads
+     * keep treating them as expired until they are gone.
+     *
+     * @param batch Receives the docIds
+     */
+    void pollExpired(final int max, final List<Integer> batch) {
+        for (int i = 0; i < max && expired.next != expired; i++) {
+            final Node node = expired.next;
+            node.unlink();
+            batch.add(node.docId);
+        }
+    }
+
+    /**
+     * Removes every deadline.
+     */
+    void clear() {
+        nodes.clear();
+        for (int level = 0; level < LEVELS; level++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                wheel[level][bucket] = Node.sentinel();
+            }
+        }
+        expired.next = expired;
+        expired.prev = expired;
+    }
+
+    /**
+     * Moves the documents in the bucket headed by head which are due
+     * by nowMillis to the expired list.
+     */
+    private void expireDue(final Node head, final long nowMillis) {
+        Node node = head.next;
+        while (node != head) {
+            final Node next = node.next;
+            if (node.deadline <= nowMillis) {
+                node.unlink();
+                expired.linkBefore(node);
+            }
+            node = next;
+        }
+    }
+
+    private void cascade(final int level, final int bucket) {
+        final Node head = wheel[level][bucket];
+        while (head.next != head) {
+            final Node node = head.next;
+            node.unlink();
+            place(node);
+        }
+    }
+
+    /**
+     * Links node into the bucket for its deadline.
+     */
+    private void place(final Node node) {
+        final long tick = Math.max(node.deadline / tickMillis, currentTick);
+        final long delta = tick - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << BITS * (level + 1)) {
+            level++;
+        }
+        // A deadline beyond the top level goes in the top level's
+        // furthest bucket, and is placed again when that comes round.
+        final long furthest = currentTick + (1L << BITS * LEVELS) - (1L << BITS * level);
+        wheel[level][bucketIndex(Math.min(tick, furthest), level)].linkBefore(node);
+    }
+
+    private static int bucketIndex(final long tick, final int level) {
+        return (int) (tick >>> BITS * level) & (BUCKETS - 1);
+    }
+
+    /**
+     * A node in a circular doubly linked list.
+     */
+    private static final class Node {
+        private final int docId;
+        private final long deadline;
+        private Node prev = this;
+        private Node next = this;
+
+        private Node(final int docId, final long deadline) {
+            this.docId = docId;
+            this.deadline = deadline;
+        }
+
+        private static Node sentinel() {
+            return new Node(-1, Long.MAX_VALUE);
+        }
+
+        /**
+         * Links node in at the end of the list this is the head of.
+         */
+        private void linkBefore(final Node node) {
+            node.prev = prev;
+            node.next = this;
+            prev.next = node;
+            prev = node;
+        }
+
+        /**
+         * Removes this from its list. Doing it twice is harmless.
+         */
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = this;
+            next = this;
+        }
+
+        /**
+         * Moves every node of the list headed by other to the end of
+         * the list this is the head of, in one step.
+         */
+        private void spliceAll(final Node other) {
+            if (other.next == other) {
+                return;
+            }
+            final Node first = other.next;
+            final Node last = other.prev;
+            first.prev = prev;
+            prev.next = first;
+            last.next = this;
+            prev = last;
+            other.next = other;
+            other.prev = other;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.adadevelopersacademy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * WindowTinyLfu decides which documents to keep in memory when there
+ * isn't room for all of them. It is a simplified version of the
+ * W-TinyLFU policy used by the Caffeine cache:
+ *
+ *   https://arxiv.org/abs/1512.00727
+ *
+ * Evicting the least recently used document works badly when a scan
+ * reads many documents once each, since they push out documents which
+ * are used all the time. Counting uses instead works badly for a
+ * document which is suddenly popular, since it starts with no uses.
+ * W-TinyLFU combines the two.
+ *
+ * A new document goes into a small window, which holds 1% of the
+ * budget in least recently used order. A document pushed out of the
+ * window only gets into the main area, which holds the rest, if it
+ * has been used more often than the document the main area would
+ * evict to make room for it. How often is estimated with a
+ * {@link FrequencySketch}. So a burst of new documents passes through
+ * the window without disturbing the main area, but one which keeps
+ * being used gets in.
+ *
+ * Caffeine's main area is split into two segments, and it adapts the
+ * size of the window to the workload. This keeps a single least
+ * recently used main area and a fixed window, which gets most of the
+ * benefit.
+ *
+ * Only sizes and docIds are kept here, not the documents. This isn't
+ * thread safe. The caller must hold a lock.
+ */
+final class WindowTinyLfu {
+    private static final int WINDOW_PERCENT = 1;
+
+    private final long windowBudget;
+    private final long mainBudget;
+    private final FrequencySketch sketch;
+    // docId to size, in least recently used order. LinkedHashMap
+    // moves an entry to the end whenever it is used when it is
+    // created with accessOrder set.
+    private final LinkedHashMap<Integer, Integer> window =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Integer, Integer> main =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long mainBytes;
+
+    /**
+     * @param budget Bytes of documents to keep
+     * @param expectedSize Rough size of a document in bytes
+     */
+    WindowTinyLfu(final long budget, final int expectedSize) {
+        windowBudget = Math.max(1, budget * WINDOW_PERCENT / 100);
+        mainBudget = budget - windowBudget;
+        sketch = new FrequencySketch(
+            (int) Math.min(1 << 24, Math.max(1, budget / expectedSize)));
+    }
+
+    /**
+     * Records that docId is now in memory with the given size, which
+     * may push other documents out.
+     *
+     * @param evicted Receives the docIds of the documents which no
+     *     longer fit, which may include docId itself
+     */
+    void add(final int docId, final int size, final List<Integer> evicted) {
+        sketch.increment(docId);
+        remove(docId);
+        window.put(docId, size);
+        windowBytes += size;
+        final Iterator<Map.Entry<Integer, Integer>> eldest = window.entrySet().iterator();
+        while (windowBytes > windowBudget && eldest.hasNext()) {
+            final Map.Entry<Integer, Integer> candidate = eldest.next();
+            eldest.remove();
+            windowBytes -= candidate.getValue();
+            admit(candidate.getKey(), candidate.getValue(), evicted);
+        }
+    }
+
+    /**
+     * Records a use of docId.
+     */
+    void touch(final int docId) {
+        sketch.increment(docId);
+        // get() moves the entry to the most recently used end.
+        if (window.get(docId) == null) {
+            main.get(docId);
+        }
+    }
+
+    /**
+     * Returns whether docId is in memory.
+     */
+    boolean contains(final int docId) {
+        return window.containsKey(docId) || main.containsKey(docId);
+    }
+
+    /**
+     * Records that docId is no longer in memory.
+     */
+    void remove(final int docId) {
+        Integer size = window.remove(docId);
+        if (size != null) {
+            windowBytes -= size;
+            return;
+        }
+        size = main.remove(docId);
+        if (size != null) {
+            mainBytes -= size;
+        }
+    }
+
+    /**
+     * Returns the bytes of documents in memory.
+     */
+    long bytes() {
+        return windowBytes + mainBytes;
+    }
+
+    /**
+     * Forgets every document, and every use.
+     */
+    void clear() {
+        window.clear();
+        main.clear();
+        windowBytes = 0;
+        mainBytes = 0;
+        sketch.clear();
+    }
+
+    private void admit(final int docId, final int size, final List<Integer> evicted) {
+        if (size > mainBudget) {
+            evicted.add(docId);
+            return;
+        }
+        final Iterator<Map.Entry<Integer, Integer>> eldest = main.entrySet().iterator();
+        while (mainBytes + size > mainBudget) {
+            final Map.Entry<Integer, Integer> victim = eldest.next();
+            // A tie goes to the document already there. Otherwise a
+            // steady stream of documents used once each would keep
+            // replacing each other and everything else.
+            if (sketch.frequency(docId) <= sketch.frequency(victim.getKey())) {
+                evicted.add(docId);
+                return;
+            }
+            eldest.remove();
+            mainBytes -= victim.getValue();
+            evicted.add(victim.getKey());
+        }
+        main.put(docId, size);
+        mainBytes += size;
+    }
+}
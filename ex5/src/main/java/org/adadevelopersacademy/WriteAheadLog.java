@@ -0,0 +1,739 @@
+package org.adadevelopersacademy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+/**
+ * WriteAheadLog is an append-only log recording every change made to
+ * a {@link DocumentStore}. Replaying the log from the beginning
+ * rebuilds the store after a restart.
+ *
+ * The log lives in a directory and is split into numbered "segment"
+ * files. New records are always appended to the segment with the
+ * highest number. Starting a new segment is called "rotating" the
+ * log, and it allows a {@link Snapshot} to make all of the older
+ * segments unnecessary so that they can be deleted.
+ *
+ * Each record is laid out as:
+ *
+ *   int length | int crc32 | byte op | int docId | document bytes
+ *
+ * where length and the checksum cover everything after the checksum.
+ * A patch record holds the bytes of a {@link MergePatch} instead of
+ * the whole document, and an expire record holds the long deadline of
+ * the document in milliseconds, Long.MAX_VALUE meaning none.
+ * A crash can leave a partially written record at the end of the
+ * newest segment. The checksum lets replay detect that, and the torn
+ * tail is cut off before anything new is appended.
+ *
+ * Forcing data to disk with fsync is by far the slowest part of
+ * writing. Appending a record only copies it into an in-memory
+ * buffer. The buffer is written and forced to disk later, and every
+ * record which arrived in the meantime shares that single force. When
+ * that happens, and whether callers wait for it, depends on the
+ * {@link Durability} mode.
+ *
+ * The positions returned by the log* methods count bytes across all
+ * segments ever written by this instance, so they keep increasing
+ * when the log is rotated.
+ *
+ * Deadlines are not kept by the stores a snapshot is taken of, so the
+ * log keeps them itself when it is given a {@link Deadlines}. Every
+ * time it rotates, it saves all of them in a file beside the new
+ * segment. A replay starting at that segment loads the file first, and
+ * then the expire records in the segment bring it up to date, just as
+ * the segment does for the snapshot.
+ */
+public final class WriteAheadLog implements Closeable {
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+    static final byte PATCH = 4;
+    static final byte EXPIRE = 5;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String DEADLINES_SUFFIX = ".deadlines";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int DEADLINE_SIZE = 8;
+    private static final int HEADER_SIZE = 8;
+    private static final int PAYLOAD_HEADER_SIZE = 5;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final Path directory;
+    private final Durability durability;
+    private final long intervalMillis;
+    private ScheduledExecutorService flusher;
+    private Deadlines deadlines;
+    private final CountDownLatch replayed = new CountDownLatch(1);
+
+    // Records are appended to pending while the flushing thread
+    // writes out the other buffer. The two are swapped on every
+    // flush. This is called "double buffering."
+    private final Object appendLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long appendedPosition;
+
+    private final Object flushLock = new Object();
+    private ByteBuffer writing = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private FileChannel channel;
+    private long generation;
+
+    private final Object durableLock = new Object();
+    private long durablePosition;
+    private IOException failure;
+    // Listeners waiting for a position, nearest first.
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+
+    private WriteAheadLog(
+            final Path directory,
+            final Durability durability,
+            final long intervalMillis) {
+        this.directory = directory;
+        this.durability = durability;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Opens the log in directory, creating the directory if
+     * necessary. Nothing can be appended until {@link #replay} has
+     * been called.
+     *
+     * @param directory Directory holding the log segments
+     * @param durability When appended records are forced to disk
+     * @param intervalMillis How often the background thread forces
+     *     records to disk in GROUP and ASYNC modes
+     */
+    public static WriteAheadLog open(
+            final Path directory,
+            final Durability durability,
+            final long intervalMillis) throws IOException {
+        Files.createDirectories(directory);
+        return new WriteAheadLog(directory, durability, intervalMillis);
+    }
+
+    /**
+     * Has the log keep the deadlines of documents, replaying them into
+     * deadlines and saving them from it. This must be called before
+     * {@link #replay}.
+     */
+    public void setDeadlines(final Deadlines deadlines) {
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * Applies every complete record in segments numbered
+     * fromGeneration or higher to store, then prepares the newest
+     * segment for appending.
+     *
+     * @param store Store to replay existing records into
+     * @param fromGeneration Lowest segment to replay. Older segments
+     *     are covered by a snapshot.
+     */
+    public void replay(final DocumentStore store, final long fromGeneration)
+            throws IOException {
+        try {
+            replayAll(store, fromGeneration);
+        } finally {
+            replayed.countDown();
+        }
+    }
+
+    /**
+     * Waits until {@link #replay} has finished, whether or not it
+     * succeeded. Until then, a deadline set in memory could be
+     * overwritten by an older one being replayed.
+     */
+    public void awaitReplay() {
+        try {
+            replayed.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DocumentStoreException("Interrupted waiting for log replay", e);
+        }
+    }
+
+    private void replayAll(final DocumentStore store, final long fromGeneration)
+            throws IOException {
+        if (deadlines != null) {
+            readDeadlines(fromGeneration);
+        }
+        final List<Long> generations = generations(directory);
+        long newest = 0;
+        if (!generations.isEmpty()) {
+            newest = generations.get(generations.size() - 1);
+        }
+        long last = Math.max(fromGeneration, 1);
+        long lastEnd = 0;
+        for (final long segment : generations) {
+            if (segment < fromGeneration) {
+                continue;
+            }
+            try (FileChannel input = FileChannel.open(segmentPath(segment),
+                     StandardOpenOption.READ)) {
+                final long end = replay(input, store, deadlines);
+                if (end < input.size() && segment != newest) {
+                    // Only the newest segment can be cut short by a
+                    // crash. Older segments were forced to disk in full
+                    // before the log rotated past them.
+                    throw new IOException("Corrupt log segment " + segmentPath(segment));
+                }
+                last = segment;
+                lastEnd = end;
+            }
+        }
+        final FileChannel output = FileChannel.open(segmentPath(last),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        try {
+            // Cut off any torn record at the end before appending.
+            output.truncate(lastEnd);
+            output.position(lastEnd);
+        } catch (final IOException e) {
+            output.close();
+            throw e;
+        }
+        synchronized (flushLock) {
+            channel = output;
+            generation = last;
+        }
+        startFlusher();
+    }
+
+    /**
+     * Appends a record of a put.
+     *
+     * @return the log position which must be durable before the put is
+     */
+    public long logPut(final int docId, final ByteBuffer document) {
+        return append(PUT, docId, document);
+    }
+
+    /**
+     * Appends a record of a merge patch applied to a document.
+     */
+    public long logPatch(final int docId, final ByteBuffer patch) {
+        return append(PATCH, docId, patch);
+    }
+
+    /**
+     * Appends a record of a remove.
+     */
+    public long logRemove(final int docId) {
+        return append(REMOVE, docId, null);
+    }
+
+    /**
+     * Appends a record of a clear.
+     */
+    public long logClear() {
+        return append(CLEAR, -1, null);
+    }
+
+    /**
+     * Appends a record of a document's deadline being set or, with
+     * Long.MAX_VALUE, removed. The caller must have made the change in
+     * its Deadlines already, and hold the lock which copyDeadlines
+     * takes, so that a rotation saves either neither or both.
+     */
+    public long logExpire(final int docId, final long deadlineMillis) {
+        final ByteBuffer deadline = ByteBuffer.allocate(DEADLINE_SIZE);
+        deadline.putLong(0, deadlineMillis);
+        return append(EXPIRE, docId, deadline);
+    }
+
+    /**
+     * Waits, as required by the durability mode, for every record up
+     * to position to be forced to disk.
+     */
+    public void sync(final long position) {
+        switch (durability) {
+        case SYNC:
+            try {
+                flush(position);
+            } catch (final IOException e) {
+                throw new DocumentStoreException("Unable to write log", e);
+            }
+            break;
+        case GROUP:
+            awaitDurable(position);
+            break;
+        default:
+            // ASYNC callers never wait.
+            break;
+        }
+    }
+
+    /**
+     * Returns whether whenDurable can be used. That is only in GROUP
+     * mode, where the background thread forces records to disk while
+     * callers wait.
+     */
+    public boolean canNotify() {
+        return durability == Durability.GROUP;
+    }
+
+    /**
+     * Tells listener once every record up to position has been forced
+     * to disk, instead of waiting for it like sync. That may be
+     * straight away, and otherwise it is on the background thread, so
+     * the listener must return quickly. Only for GROUP mode.
+     */
+    public void whenDurable(final long position, final Listener listener) {
+        final IOException failed;
+        synchronized (durableLock) {
+            if (durablePosition < position && failure == null) {
+                waiters.add(new Waiter(position, listener));
+                return;
+            }
+            failed = durablePosition < position ? failure : null;
+        }
+        listener.durable(failed);
+    }
+
+    /**
+     * Forces everything appended so far to disk and starts a new
+     * segment. Every record appended before this call is in a segment
+     * numbered lower than the returned generation.
+     *
+     * @return the number of the new segment
+     */
+    public long rotate() throws IOException {
+        final long rotated;
+        synchronized (flushLock) {
+            flush(Long.MAX_VALUE);
+            final FileChannel next = FileChannel.open(segmentPath(generation + 1),
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+            channel.close();
+            channel = next;
+            generation++;
+            rotated = generation;
+        }
+        // Every deadline logged in the older segments is in the copy,
+        // and any change since is logged in the new one as well.
+        // Writing them outside the lock lets writers carry on.
+        if (deadlines != null) {
+            writeDeadlines(rotated, deadlines.copyDeadlines());
+        }
+        return rotated;
+    }
+
+    /**
+     * Deletes every segment, and every file of deadlines, numbered
+     * lower than generation.
+     */
+    public void deleteBefore(final long oldest) throws IOException {
+        for (final long segment : generations(directory)) {
+            if (segment < oldest) {
+                Files.delete(segmentPath(segment));
+                Files.deleteIfExists(deadlinesPath(segment));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (flushLock) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                flush(Long.MAX_VALUE);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void startFlusher() {
+        if (durability == Durability.SYNC) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "wal-flusher");
+                // A daemon thread doesn't keep the JVM alive on its
+                // own.
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushQuietly();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private long append(final byte op, final int docId, final ByteBuffer document) {
+        int documentLength = 0;
+        if (document != null) {
+            documentLength = document.remaining();
+        }
+        final int length = PAYLOAD_HEADER_SIZE + documentLength;
+        synchronized (appendLock) {
+            ensureCapacity(HEADER_SIZE + length);
+            final int start = pending.position();
+            pending.putInt(length);
+            // The checksum is filled in below once the payload has
+            // been copied in.
+            pending.putInt(0);
+            pending.put(op);
+            pending.putInt(docId);
+            if (document != null) {
+                pending.put(document.duplicate());
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(pending.array(), start + HEADER_SIZE, length);
+            pending.putInt(start + 4, (int) crc.getValue());
+            appendedPosition += HEADER_SIZE + length;
+            return appendedPosition;
+        }
+    }
+
+    private void ensureCapacity(final int needed) {
+        if (pending.remaining() >= needed) {
+            return;
+        }
+        final ByteBuffer larger = ByteBuffer.allocate(
+            Math.max(pending.capacity() * 2, pending.position() + needed));
+        pending.flip();
+        larger.put(pending);
+        pending = larger;
+    }
+
+    /**
+     * Writes out and forces every appended record unless position is
+     * already durable.
+     *
+     * If that fails, the log is failed for good. Some of the records
+     * may or may not have reached the disk, and after a failed force
+     * the operating system may have dropped its dirty pages, so
+     * retrying could tell callers that records are durable when they
+     * aren't. Every waiter is told about the failure, and so is every
+     * later flush.
+     */
+    private void flush(final long position) throws IOException {
+        synchronized (flushLock) {
+            final long target;
+            synchronized (durableLock) {
+                if (durablePosition >= position) {
+                    return;
+                }
+                if (failure != null) {
+                    throw new IOException("The log failed earlier", failure);
+                }
+            }
+            synchronized (appendLock) {
+                final ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                target = appendedPosition;
+            }
+            if (target == durablePosition) {
+                return;
+            }
+            writing.flip();
+            try {
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+            } catch (final IOException e) {
+                fail(e);
+                throw e;
+            }
+            writing.clear();
+            final List<Waiter> ready = new ArrayList<>();
+            synchronized (durableLock) {
+                durablePosition = target;
+                durableLock.notifyAll();
+                while (!waiters.isEmpty() && waiters.peek().position <= target) {
+                    ready.add(waiters.poll());
+                }
+            }
+            for (final Waiter waiter : ready) {
+                waiter.listener.durable(null);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            final long target;
+            synchronized (appendLock) {
+                target = appendedPosition;
+            }
+            flush(target);
+        } catch (final IOException e) {
+            // There's nobody to throw this to on the background
+            // thread, but flush has already told everybody waiting.
+        }
+    }
+
+    /**
+     * Remembers failure for everybody waiting in sync() and every
+     * later flush, and tells every listener.
+     */
+    private void fail(final IOException e) {
+        final List<Waiter> failed;
+        synchronized (durableLock) {
+            if (failure == null) {
+                failure = e;
+            }
+            durableLock.notifyAll();
+            failed = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        for (final Waiter waiter : failed) {
+            waiter.listener.durable(e);
+        }
+    }
+
+    private void awaitDurable(final long position) {
+        synchronized (durableLock) {
+            while (durablePosition < position && failure == null) {
+                try {
+                    durableLock.wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DocumentStoreException("Interrupted waiting for log", e);
+                }
+            }
+            if (durablePosition < position) {
+                throw new DocumentStoreException("Unable to write log", failure);
+            }
+        }
+    }
+
+    private Path segmentPath(final long segment) {
+        // Zero padding makes the file names sort in numeric order in a
+        // directory listing.
+        return directory.resolve(String.format("%016d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    private Path deadlinesPath(final long segment) {
+        return directory.resolve(String.format("%016d%s", segment, DEADLINES_SUFFIX));
+    }
+
+    /**
+     * Saves every deadline as of the start of segment. The file is
+     * written under another name and then renamed, so a crash never
+     * leaves half of one behind.
+     */
+    private void writeDeadlines(final long segment, final Map<Integer, Long> all)
+            throws IOException {
+        final Path file = deadlinesPath(segment);
+        final Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        try (FileOutputStream stream = new FileOutputStream(temp.toFile())) {
+            final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(all.size());
+            for (final Map.Entry<Integer, Long> entry : all.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        Snapshot.syncDirectory(directory);
+    }
+
+    /**
+     * Loads the deadlines saved when segment was started, if any.
+     */
+    private void readDeadlines(final long segment) throws IOException {
+        final Path file = deadlinesPath(segment);
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(Files.newInputStream(file)))) {
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                deadlines.replayDeadline(in.readInt(), in.readLong());
+            }
+        }
+    }
+
+    /**
+     * Returns the numbers of the segments in directory in increasing
+     * order.
+     */
+    private static List<Long> generations(final Path directory) throws IOException {
+        final List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> files =
+                 Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                generations.add(Long.parseLong(
+                    name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Applies every complete record in channel to store, and the
+     * deadlines to deadlines if it isn't null.
+     *
+     * @return the position just after the last complete record
+     */
+    private static long replay(
+            final FileChannel channel,
+            final DocumentStore store,
+            final Deadlines deadlines) throws IOException {
+        final long size = channel.size();
+        // We deliberately don't close this stream since that would
+        // also close the channel, which the caller may still need.
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel.position(0)), READ_BUFFER_SIZE));
+        final CRC32 crc = new CRC32();
+        long position = 0;
+        while (position + HEADER_SIZE <= size) {
+            final int length = in.readInt();
+            final int checksum = in.readInt();
+            if (length < PAYLOAD_HEADER_SIZE
+                    || length > size - position - HEADER_SIZE) {
+                break;
+            }
+            // Every record gets its own array since the store may keep
+            // a reference to the document bytes.
+            final byte[] payload = new byte[length];
+            try {
+                in.readFully(payload);
+            } catch (final EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(payload, store, deadlines);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void apply(
+            final byte[] payload, final DocumentStore store, final Deadlines deadlines) {
+        final ByteBuffer record = ByteBuffer.wrap(payload);
+        final byte op = record.get();
+        final int docId = record.getInt();
+        switch (op) {
+        case PUT:
+            store.put(docId, record.slice());
+            break;
+        case REMOVE:
+            store.remove(docId);
+            break;
+        case CLEAR:
+            store.clear();
+            if (deadlines != null) {
+                deadlines.replayClear();
+            }
+            break;
+        case PATCH:
+            store.put(docId, MergePatch.apply(store.get(docId), record.slice()));
+            break;
+        case EXPIRE:
+            if (deadlines != null) {
+                deadlines.replayDeadline(docId, record.getLong());
+            }
+            break;
+        default:
+            throw new DocumentStoreException(
+                "Unknown log record type " + op, null);
+        }
+    }
+
+    /**
+     * Told when records have been forced to disk. See whenDurable.
+     */
+    public interface Listener {
+        /**
+         * @param failure Why the records couldn't be written, or null
+         *     if they are on disk
+         */
+        void durable(IOException failure);
+    }
+
+    /**
+     * Holds the deadlines of documents for the log. See setDeadlines.
+     */
+    public interface Deadlines {
+        /**
+         * Sets the deadline of docId as the log is replayed, or with
+         * Long.MAX_VALUE removes it.
+         */
+        void replayDeadline(int docId, long deadlineMillis);
+
+        /**
+         * Removes every deadline as a clear is replayed.
+         */
+        void replayClear();
+
+        /**
+         * Returns every deadline by docId, taking the same lock as
+         * callers of logExpire hold.
+         */
+        Map<Integer, Long> copyDeadlines();
+    }
+
+    /**
+     * A listener waiting for a position.
+     */
+    private static final class Waiter implements Comparable<Waiter> {
+        private final long position;
+        private final Listener listener;
+
+        private Waiter(final long position, final Listener listener) {
+            this.position = position;
+            this.listener = listener;
+        }
+
+        @Override
+        public int compareTo(final Waiter other) {
+            return Long.compare(position, other.position);
+        }
+    }
+}
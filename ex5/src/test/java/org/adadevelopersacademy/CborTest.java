@@ -0,0 +1,124 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import javax.json.JsonException;
+
+import org.junit.Test;
+
+public class CborTest {
+
+    private static final int MAX_SIZE = 1024;
+
+    /**
+     * Converting to CBOR and back gives the same JSON, including
+     * numbers which don't fit a long or a double.
+     */
+    @Test
+    public void roundTrips() throws IOException {
+        final String json = "{\"text\":\"h\u00e9llo \\\"you\\\"\",\"small\":7,"
+            + "\"negative\":-300,\"long\":-9223372036854775808,"
+            + "\"big\":123456789012345678901234567890,\"half\":0.5,"
+            + "\"exact\":0.1000000000000000000000001,\"huge\":1E+999999999,"
+            + "\"list\":[true,false,null,[],{}],\"nested\":{\"a\":{\"b\":[1]}}}";
+        assertThat(toJson(Cbor.fromJson(bytes(json))), equalTo(json));
+    }
+
+    /**
+     * Integers and short strings take a single byte.
+     */
+    @Test
+    public void encodesCompactly() {
+        final ByteBuffer cbor = Cbor.fromJson(bytes("{\"a\":1}"));
+        assertThat(cbor.remaining(), equalTo(5));
+        assertThat(cbor.get(0) & 0xff, equalTo(0xbf));
+        assertThat(cbor.get(1) & 0xff, equalTo(0x61));
+        assertThat(cbor.get(3) & 0xff, equalTo(0x01));
+        assertThat(cbor.get(4) & 0xff, equalTo(0xff));
+    }
+
+    /**
+     * Definite lengths, half floats and unknown tags are read too.
+     */
+    @Test
+    public void readsOtherEncodings() throws IOException {
+        // {"a": [1.5, 0("x")]} with a two-element array, a half float
+        // and a tagged date string.
+        final byte[] cbor = {
+            (byte) 0xa1, 0x61, 'a', (byte) 0x82, (byte) 0xf9, 0x3e, 0x00,
+            (byte) 0xc0, 0x61, 'x'};
+        assertThat(
+            toJson(ByteBuffer.wrap(cbor)),
+            equalTo("{\"a\":[1.5,\"x\"]}"));
+    }
+
+    /**
+     * Anything JSON can't represent is rejected, as is a document
+     * which isn't a map.
+     */
+    @Test
+    public void rejectsInvalidDocuments() throws IOException {
+        final byte[][] invalid = {
+            {(byte) 0x9f, (byte) 0xff},
+            {(byte) 0xa1, 0x01, 0x01},
+            {(byte) 0xa1, 0x61, 'a', 0x41, 0x00},
+            {(byte) 0xa1, 0x61, 'a', (byte) 0xf9, 0x7c, 0x00},
+            {(byte) 0xa1, 0x61, 'a'},
+            {(byte) 0xa0, 0x00},
+        };
+        for (final byte[] cbor : invalid) {
+            try {
+                toJson(ByteBuffer.wrap(cbor));
+                throw new AssertionError("Accepted an invalid document");
+            } catch (final JsonException e) {
+                assertThat(e.getMessage(), notNullValue());
+            }
+        }
+    }
+
+    /**
+     * A string longer than the limit is rejected before it is read.
+     */
+    @Test(expected = DocumentTooLargeException.class)
+    public void rejectsLargeDocuments() throws IOException {
+        final byte[] cbor = {(byte) 0xa1, 0x61, 'a', 0x7a, 0x7f, 0, 0, 0};
+        toJson(ByteBuffer.wrap(cbor));
+    }
+
+    /**
+     * The cache hands out the same CBOR until the document's ETag
+     * changes, and lets the least recently used go beyond its budget.
+     */
+    @Test
+    public void cachesConversions() throws IOException {
+        final CborCache cache = new CborCache(10);
+        final byte[] first = cache.get(1, "a", bytes("{\"a\":1}"));
+        assertThat(cache.get(1, "a", bytes("{\"a\":1}")), sameInstance(first));
+        final byte[] changed = cache.get(1, "b", bytes("{\"a\":2}"));
+        assertThat(toJson(ByteBuffer.wrap(changed)), equalTo("{\"a\":2}"));
+        assertThat(cache.bytes(), equalTo(5L));
+        cache.get(2, "c", bytes("{\"b\":1}"));
+        cache.get(3, "d", bytes("{\"c\":1}"));
+        assertThat(cache.bytes(), equalTo(10L));
+        assertThat(cache.get(1, "b", bytes("{\"a\":2}")), not(sameInstance(changed)));
+    }
+
+    private static String toJson(final ByteBuffer cbor) throws IOException {
+        final byte[] bytes = new byte[cbor.remaining()];
+        cbor.duplicate().get(bytes);
+        final ByteBuffer json = Cbor.toJson(new ByteArrayInputStream(bytes), MAX_SIZE);
+        final byte[] text = new byte[json.remaining()];
+        json.get(text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer bytes(final String json) {
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,80 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChangeFeedTest {
+
+    private static final int CAPACITY = 4;
+    private static final ByteBuffer EMPTY =
+        ByteBuffer.wrap("{}".getBytes(StandardCharsets.UTF_8));
+
+    private ChangeFeed feed;
+    private DocumentStore store;
+
+    @Before
+    public void setUp() {
+        feed = new ChangeFeed(CAPACITY);
+        store = new PublishingDocumentStore(new ConcurrentDocumentStore(), feed);
+    }
+
+    /**
+     * Every change made through the store is published in order, and
+     * changes which don't happen aren't.
+     */
+    @Test
+    public void publishesChanges() {
+        final long before = feed.last();
+        store.put(1, EMPTY);
+        assertThat(store.putIfAbsent(1, EMPTY), is(false));
+        assertThat(store.remove(1), is(true));
+        assertThat(store.remove(1), is(false));
+        assertThat(feed.last(), equalTo(before + 2));
+
+        final ChangeFeed.Change put = feed.read(before + 1);
+        assertThat(put.docId(), equalTo(1));
+        assertThat(put.op(), equalTo(ChangeFeed.Op.PUT));
+        assertThat(feed.read(before + 2).op(), equalTo(ChangeFeed.Op.REMOVE));
+        assertThat(feed.read(before + 3), nullValue());
+    }
+
+    /**
+     * Once the ring is full, new changes overwrite the oldest ones.
+     */
+    @Test
+    public void overwritesOldestChanges() {
+        final long before = feed.last();
+        for (int docId = 0; docId < CAPACITY + 2; docId++) {
+            store.put(docId, EMPTY);
+        }
+        assertThat(feed.oldest(), equalTo(before + 3));
+        assertThat(feed.read(before + 2), nullValue());
+        assertThat(feed.read(before + 3).docId(), equalTo(2));
+        assertThat(feed.read(feed.last()).docId(), equalTo(CAPACITY + 1));
+    }
+
+    /**
+     * A waiting reader returns once there is a change, or after the
+     * timeout if there isn't.
+     */
+    @Test
+    public void awaitsChanges() throws InterruptedException {
+        final long seen = feed.published();
+        assertThat(feed.await(seen, 1), equalTo(seen));
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.put(1, EMPTY);
+            }
+        });
+        writer.start();
+        assertThat(feed.await(seen, 10000), equalTo(seen + 1));
+        writer.join();
+    }
+}
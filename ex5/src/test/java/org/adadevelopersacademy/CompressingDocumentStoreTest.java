@@ -0,0 +1,111 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressingDocumentStoreTest {
+
+    private static final int THRESHOLD = 128;
+
+    private ConcurrentDocumentStore compressed;
+    private CompressingDocumentStore store;
+
+    @Before
+    public void setUp() {
+        compressed = new ConcurrentDocumentStore();
+        store = new CompressingDocumentStore(compressed, THRESHOLD);
+    }
+
+    /**
+     * Documents below the threshold are stored as they are.
+     */
+    @Test
+    public void leavesSmallDocumentsAlone() {
+        final ByteBuffer document = document(0, 1);
+        store.put(0, document);
+        assertThat(compressed.get(0), equalTo(document));
+        assertThat(store.get(0), equalTo(document));
+        assertThat(store.getGzipped(0), nullValue());
+    }
+
+    /**
+     * Large documents are stored as gzip streams, which decompress to
+     * the original document.
+     */
+    @Test
+    public void gzipsLargeDocuments() throws IOException {
+        final ByteBuffer document = document(0, 500);
+        store.put(0, document);
+        assertThat(compressed.get(0).remaining(), lessThan(document.remaining() / 4));
+        assertThat(store.get(0), equalTo(document));
+        assertThat(gunzip(store.getGzipped(0)), equalTo(document));
+        assertThat(store.scan(0, 0).next().getValue(), equalTo(document));
+        assertThat(store.replace(0, document, document(1, 500)), equalTo(true));
+        assertThat(store.get(0), equalTo(document(1, 500)));
+    }
+
+    /**
+     * Once enough documents have been stored to train the dictionary,
+     * medium-sized documents are compressed with it, better than
+     * without it.
+     */
+    @Test
+    public void trainsDictionary() {
+        final ByteBuffer untrained = document(0, 8);
+        store.put(0, untrained);
+        final int gzipSize = compressed.get(0).remaining();
+        for (int docId = 1; !store.hasDictionary(); docId++) {
+            store.put(docId, document(docId, 8));
+        }
+        store.put(0, document(0, 8));
+        assertThat(compressed.get(0).remaining(), lessThan(gzipSize));
+        assertThat(store.get(0), equalTo(untrained));
+        assertThat(store.getGzipped(0), nullValue());
+        assertThat(store.replace(0, untrained, document(1, 8)), equalTo(true));
+        assertThat(store.get(0), equalTo(document(1, 8)));
+    }
+
+    private static ByteBuffer gunzip(final ByteBuffer gzipped) throws IOException {
+        final byte[] bytes = new byte[gzipped.remaining()];
+        gzipped.duplicate().get(bytes);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Returns a document with a list of items, each with the same
+     * fields as the items of other documents.
+     */
+    private static ByteBuffer document(final int docId, final int items) {
+        final StringBuilder json =
+            new StringBuilder("{\"docId\":" + docId + ",\"items\":[");
+        for (int i = 0; i < items; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"sku\":\"item-").append(docId * 31 + i)
+                .append("\",\"status\":\"in-stock\",\"warehouse\":\"north\",\"price\":")
+                .append(i % 97).append('}');
+        }
+        json.append("]}");
+        return ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
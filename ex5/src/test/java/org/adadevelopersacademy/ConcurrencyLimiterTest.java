@@ -0,0 +1,67 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConcurrencyLimiterTest {
+
+    private static final int MAX_LIMIT = 4;
+    private static final long TARGET = TimeUnit.SECONDS.toNanos(1);
+    private static final long FAST = 0;
+    private static final long SLOW = 2 * TARGET;
+
+    /**
+     * Requests beyond the limit are refused until one finishes.
+     */
+    @Test
+    public void refusesBeyondLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(MAX_LIMIT, TARGET);
+        for (int i = 0; i < MAX_LIMIT; i++) {
+            assertThat(limiter.tryAcquire(), equalTo(true));
+        }
+        assertThat(limiter.tryAcquire(), equalTo(false));
+        limiter.release(FAST);
+        assertThat(limiter.tryAcquire(), equalTo(true));
+        assertThat(limiter.inFlight(), equalTo(MAX_LIMIT));
+    }
+
+    /**
+     * A slow request cuts the limit, but only once for a whole window
+     * of slow requests.
+     */
+    @Test
+    public void backsOffWhenSlow() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(MAX_LIMIT, TARGET);
+        for (int i = 0; i < MAX_LIMIT; i++) {
+            limiter.tryAcquire();
+        }
+        limiter.release(SLOW);
+        assertThat(limiter.limit(), equalTo(MAX_LIMIT - 1));
+        assertThat(limiter.tryAcquire(), equalTo(false));
+        limiter.release(SLOW);
+        assertThat(limiter.limit(), equalTo(MAX_LIMIT - 1));
+    }
+
+    /**
+     * Fast requests grow a cut limit back, but never beyond the
+     * largest.
+     */
+    @Test
+    public void growsWhenFast() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(MAX_LIMIT, TARGET);
+        limiter.tryAcquire();
+        limiter.release(SLOW);
+        assertThat(limiter.limit(), lessThan(MAX_LIMIT));
+        limiter.tryAcquire();
+        limiter.tryAcquire();
+        for (int i = 0; i < 100; i++) {
+            assertThat(limiter.tryAcquire(), equalTo(true));
+            limiter.release(FAST);
+        }
+        assertThat(limiter.limit(), equalTo(MAX_LIMIT));
+    }
+}
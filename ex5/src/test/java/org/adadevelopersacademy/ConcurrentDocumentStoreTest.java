@@ -0,0 +1,89 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.List;
+
+import javax.json.Json;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentDocumentStoreTest {
+
+    private static final String KEY = "key";
+    private static final int THREADS = 8;
+    private static final int DOCUMENTS_PER_THREAD = 1000;
+
+    private ConcurrentDocumentStore store;
+
+    @Before
+    public void setUp() {
+        store = new ConcurrentDocumentStore();
+    }
+
+    /**
+     * An empty store has no last document id.
+     */
+    @Test
+    public void lastDocIdOfEmptyStore() {
+        assertThat(store.lastDocId(), equalTo(-1));
+    }
+
+    /**
+     * The last document id is the greatest key regardless of
+     * insertion order.
+     */
+    @Test
+    public void lastDocIdIsGreatestKey() {
+        store.put(7, document(7));
+        store.put(3, document(3));
+        assertThat(store.lastDocId(), equalTo(7));
+    }
+
+    /**
+     * Many threads writing disjoint ids at the same time must not
+     * lose any documents.
+     */
+    @Test
+    public void concurrentPutsAreAllVisible() throws InterruptedException {
+        // A CountDownLatch lets us release all of the threads at the
+        // same moment so that they really do run concurrently.
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t * DOCUMENTS_PER_THREAD;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = first; i < first + DOCUMENTS_PER_THREAD; i++) {
+                        store.put(i, document(i));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < THREADS * DOCUMENTS_PER_THREAD; i++) {
+            assertThat(store.get(i), equalTo(document(i)));
+        }
+        assertThat(store.lastDocId(), equalTo(THREADS * DOCUMENTS_PER_THREAD - 1));
+    }
+
+    private static ByteBuffer document(final int value) {
+        return JsonBytes.serialize(Json.createObjectBuilder().add(KEY, value).build());
+    }
+}
@@ -0,0 +1,119 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DocumentIdAllocatorTest {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 10000;
+
+    /**
+     * A single thread gets consecutive ids starting at zero.
+     */
+    @Test
+    public void allocatesSequentially() {
+        final DocumentIdAllocator allocator = new DocumentIdAllocator(4);
+        for (int i = 0; i < 10; i++) {
+            assertThat(allocator.allocate(), equalTo(i));
+        }
+    }
+
+    /**
+     * Released ids are handed out again before new ones.
+     */
+    @Test
+    public void reusesReleasedIds() {
+        final DocumentIdAllocator allocator = new DocumentIdAllocator();
+        allocator.allocate();
+        allocator.allocate();
+        allocator.release(0);
+        assertThat(allocator.allocate(), equalTo(0));
+        assertThat(allocator.allocate(), equalTo(2));
+    }
+
+    /**
+     * The counter wraps around to zero instead of overflowing into
+     * negative ids.
+     */
+    @Test
+    public void wrapsAroundAtMaxValue() {
+        final DocumentIdAllocator allocator = new DocumentIdAllocator(4);
+        allocator.advanceTo(Integer.MAX_VALUE - 1);
+        assertThat(allocator.allocate(), equalTo(Integer.MAX_VALUE - 1));
+        assertThat(allocator.allocate(), equalTo(Integer.MAX_VALUE));
+        assertThat(allocator.allocate(), equalTo(0));
+    }
+
+    /**
+     * With a partition, ids it doesn't own are skipped, including
+     * released ones.
+     */
+    @Test
+    public void skipsIdsOutsidePartition() {
+        final DocumentIdAllocator allocator = new DocumentIdAllocator(4);
+        allocator.setPartition(new DocumentIdAllocator.Partition() {
+            @Override
+            public boolean owns(final int docId) {
+                return docId % 3 == 0;
+            }
+        });
+        allocator.release(7);
+        assertThat(allocator.allocate(), equalTo(0));
+        assertThat(allocator.allocate(), equalTo(3));
+        assertThat(allocator.allocate(), equalTo(6));
+        allocator.setPartition(null);
+        assertThat(allocator.allocate(), equalTo(7));
+    }
+
+    /**
+     * A partition which owns none of the ids gets NO_ID rather than
+     * an id it doesn't own.
+     */
+    @Test
+    public void noIdOutsideEmptyPartition() {
+        final DocumentIdAllocator allocator = new DocumentIdAllocator();
+        allocator.setPartition(new DocumentIdAllocator.Partition() {
+            @Override
+            public boolean owns(final int docId) {
+                return false;
+            }
+        });
+        assertThat(allocator.allocate(), equalTo(DocumentIdAllocator.NO_ID));
+    }
+
+    /**
+     * Concurrent threads never receive the same id.
+     */
+    @Test
+    public void concurrentAllocationsAreUnique() throws InterruptedException {
+        final DocumentIdAllocator allocator = new DocumentIdAllocator();
+        final ConcurrentMap<Integer, Boolean> seen = new ConcurrentHashMap<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < IDS_PER_THREAD; i++) {
+                        if (seen.putIfAbsent(allocator.allocate(), true) != null) {
+                            throw new AssertionError("duplicate id");
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(seen.size(), equalTo(THREADS * IDS_PER_THREAD));
+    }
+}
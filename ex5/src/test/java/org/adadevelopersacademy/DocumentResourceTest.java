@@ -4,32 +4,67 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.HttpUrlConnectorProvider;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import org.junit.Test;
 
 public class DocumentResourceTest {
 
-    private static final String DOCUMENT_PATH = "document/";
+    private static final String DOCUMENT = "document";
+    private static final String COLLECTION_PATH = DOCUMENT;
+    private static final String DOCUMENT_PATH = COLLECTION_PATH + "/";
+    private static final String DOC_ID = "docId";
+    private static final String DOCUMENTS = "documents";
     private static final String KEY = "key";
     private static final String VALUE = "value";
+    private static final String EMPTY = "{}";
+    private static final int TIMEOUT_MILLIS = 10000;
+    // Nothing listens here.
+    private static final String OTHER_NODE = "http://localhost:8089/";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     private HttpServer server;
     private WebTarget target;
 
     @Before
     public void setUp() throws Exception {
+        // start the example server
+        server = Main.startServer();
+
         // Clearing any existing documents between tests ensures that
         // we have a consistent starting point for our unit
         // tests. Ensuring proper isolation for unit tests is an
@@ -39,12 +74,17 @@ public class DocumentResourceTest {
         // in a random order, but I haven't currently enabled
         // that. You may want to see if you can look up how to do that
         // and enable it for this project.
+        //
+        // The server installs a fresh DocumentStore when it starts, so
+        // this has to happen afterwards. A store backed by a log may
+        // still hold documents from a previous run.
         DocumentResource.clear();
 
-        // start the example server
-        server = Main.startServer();
-        // create a client for testing
-        final Client c = ClientBuilder.newClient();
+        // create a client for testing. The JDK's HttpURLConnection,
+        // which the client uses by default, refuses to send PATCH
+        // requests unless Jersey is told to work around that.
+        final Client c = ClientBuilder.newClient()
+            .property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
 
         // This test fixture creates a Jersey-based HTTP client for
         // testing the server. This gives you yet another way to write
@@ -52,11 +92,49 @@ public class DocumentResourceTest {
         target = c.target(Main.BASE_URI);
     }
 
+    /**
+     * Opens the change feed, resuming after the event with id
+     * lastEventId unless it is null.
+     */
+    private BufferedReader subscribe(final String lastEventId) {
+        final InputStream stream = target
+            .path(DOCUMENT_PATH + "_changes")
+            .property(ClientProperties.READ_TIMEOUT, TIMEOUT_MILLIS)
+            .request(ChangeStream.EVENT_STREAM)
+            .header("Last-Event-ID", lastEventId)
+            .get(InputStream.class);
+        return new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the next event, checks its name and that it is about
+     * docId 7, and returns its id.
+     */
+    private static String nextEvent(final BufferedReader events, final String name)
+            throws IOException {
+        String line = events.readLine();
+        while (line.isEmpty() || line.startsWith(":")) {
+            line = events.readLine();
+        }
+        assertThat(line, startsWith("id: "));
+        final String id = line.substring("id: ".length());
+        assertThat(events.readLine(), equalTo("event: " + name));
+        assertThat(events.readLine(),
+            equalTo("data: {\"seq\":" + id + ",\"docId\":7}"));
+        return id;
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
     @After
     public void tearDown() throws Exception {
         // Clean up the server after each test. Again this ensures
         // proper test isolation.
-        server.shutdownNow();
+        Main.stopServer(server);
     }
 
     /**
@@ -118,6 +196,25 @@ public class DocumentResourceTest {
         assertThat(responseObject, equalTo(document));
     }
 
+    /**
+     * GET sends the stored bytes as they are, without parsing and
+     * reformatting them.
+     */
+    @Test
+    public void getReturnsStoredBytes() {
+        // Keys in the wrong order and extra whitespace would both be
+        // lost if the document went through a JsonObject.
+        final String stored = "{\"z\": 1,  \"a\": [true]}";
+        DocumentResource.getStore().put(
+            0, ByteBuffer.wrap(stored.getBytes(StandardCharsets.UTF_8)));
+        final Response response = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(response.getMediaType(), equalTo(MediaType.APPLICATION_JSON_TYPE));
+        assertThat(response.readEntity(String.class), equalTo(stored));
+    }
+
     /**
      * Can overwrite a document and get the new document back.
      */
@@ -163,12 +260,12 @@ public class DocumentResourceTest {
             .add(KEY, VALUE)
             .build();
         final Response response = target
-            .path("document")
+            .path(COLLECTION_PATH)
             .request(MediaType.APPLICATION_JSON)
             .post(Entity.json(document.toString()));
         final JsonObject responseObject =
             response.readEntity(JsonObject.class);
-        assertTrue(responseObject.containsKey("docId"));
+        assertTrue(responseObject.containsKey(DOC_ID));
     }
 
     /**
@@ -182,11 +279,11 @@ public class DocumentResourceTest {
             .add(KEY, VALUE)
             .build();
         final Response createResponse = target
-            .path("document")
+            .path(COLLECTION_PATH)
             .request(MediaType.APPLICATION_JSON)
             .post(Entity.json(expected.toString()));
         final int docId =
-            createResponse.readEntity(JsonObject.class).getInt("docId");
+            createResponse.readEntity(JsonObject.class).getInt(DOC_ID);
         final Response getResponse = target
             .path(DOCUMENT_PATH + docId)
             .request(MediaType.APPLICATION_JSON)
@@ -196,35 +293,1094 @@ public class DocumentResourceTest {
     }
 
     /**
-     * Refuses to create a document when the document ID space is
-     * exhausted.
+     * Can still create documents after a document is stored at the
+     * largest possible document ID.
      */
     @Test
-    public void refusesToCreate() {
-        // This test demonstrates the issue with using the maximum ID
-        // as a proxy for finding an unoccupied ID in the document
-        // storage.
+    public void canCreateAfterMaxDocId() {
+        // This test used to demonstrate the issue with using the
+        // maximum ID as a proxy for finding an unoccupied ID in the
+        // document storage. The allocator no longer looks at the
+        // maximum ID, so the POST succeeds.
         final JsonObject document = Json
             .createObjectBuilder()
             .add(KEY, VALUE)
             .build();
         // Notice Integer.MAX_VALUE represents the maximum possible
         // positive integer. Thus this is the largest possible
-        // document ID. By storing a document at this location, we
-        // will no longer be able to create new documents via POST.
+        // document ID.
         target
             .path(DOCUMENT_PATH + Integer.MAX_VALUE)
             .request(MediaType.APPLICATION_JSON)
             .put(Entity.json(document.toString()));
         final Response response = target
-            .path("document")
+            .path(COLLECTION_PATH)
             .request(MediaType.APPLICATION_JSON)
             .post(Entity.json(document.toString()));
         assertThat(
             response.getStatus(),
-            equalTo(Response.Status.FORBIDDEN.getStatusCode()));
-        // Technically, you can still PUT documents to arbitrary IDs,
-        // but the DocumentResource is unaware that those IDs are
-        // unused.
+            equalTo(Response.Status.OK.getStatusCode()));
+    }
+
+    /**
+     * Create skips ids which were already claimed by a PUT.
+     */
+    @Test
+    public void createDoesNotOverwriteSetDocument() {
+        final JsonObject existing = Json
+            .createObjectBuilder()
+            .add(KEY, "existing")
+            .build();
+        target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json(existing.toString()));
+        final Response createResponse = target
+            .path(COLLECTION_PATH)
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json(Json.createObjectBuilder().build().toString()));
+        final int docId =
+            createResponse.readEntity(JsonObject.class).getInt(DOC_ID);
+        assertThat(docId, not(equalTo(0)));
+        final JsonObject actual = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get(JsonObject.class);
+        assertThat(actual, equalTo(existing));
+    }
+
+    /**
+     * Can delete a document, after which it is no longer found.
+     */
+    @Test
+    public void canDelete() {
+        final JsonObject document = Json
+            .createObjectBuilder()
+            .add(KEY, VALUE)
+            .build();
+        target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json(document.toString()));
+        final Response deleteResponse = target
+            .path(DOCUMENT_PATH + 0)
+            .request()
+            .delete();
+        assertThat(
+            deleteResponse.getStatus(),
+            equalTo(Response.Status.NO_CONTENT.getStatusCode()));
+        final Response getResponse = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(
+            getResponse.getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
+    }
+
+    /**
+     * Rejects bodies which aren't a single valid JSON object.
+     */
+    @Test
+    public void badRequestForInvalidDocuments() {
+        for (final String body : new String[] {"{\"key\":", "[1, 2]", "{} {}", ""}) {
+            final Response response = target
+                .path(DOCUMENT_PATH + 0)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(body));
+            assertThat(
+                body,
+                response.getStatus(),
+                equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+        }
+        assertThat(DocumentResource.getStore().get(0), nullValue());
+    }
+
+    /**
+     * Rejects bodies which aren't UTF-8, since documents are stored and
+     * served as the bytes they were sent as.
+     */
+    @Test
+    public void badRequestForBodiesWhichArentUtf8() {
+        final byte[][] bodies = {
+            {'{', '"', 'k', '"', ':', '"', (byte) 0xff, '"', '}'},
+            "{\"k\":\"v\"}".getBytes(StandardCharsets.UTF_16),
+        };
+        for (final byte[] body : bodies) {
+            final Response response = target
+                .path(DOCUMENT_PATH + 0)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.entity(body, MediaType.APPLICATION_JSON_TYPE));
+            assertThat(
+                response.getStatus(),
+                equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+        }
+        assertThat(DocumentResource.getStore().get(0), nullValue());
+    }
+
+    /**
+     * Rejects documents larger than the configured limit.
+     */
+    @Test
+    public void tooLargeForBigDocuments() {
+        // The server resets the limit when it starts, so this doesn't
+        // affect other tests.
+        DocumentResource.setMaxDocumentSize(16);
+        final JsonObject document = Json
+            .createObjectBuilder()
+            .add(KEY, "a value which is far too long to fit")
+            .build();
+        final Response response = target
+            .path(COLLECTION_PATH)
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json(document.toString()));
+        assertThat(
+            response.getStatus(),
+            equalTo(Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode()));
+    }
+
+    /**
+     * Lists a range of documents in docId order, a page at a time.
+     */
+    @Test
+    public void canListInPages() {
+        for (int docId = 0; docId < 10; docId++) {
+            DocumentResource.getStore().put(docId, ByteBuffer.wrap(
+                ("{\"n\":" + docId + "}").getBytes(StandardCharsets.UTF_8)));
+        }
+        JsonObject page = target
+            .path(COLLECTION_PATH)
+            .queryParam("from", 2)
+            .queryParam("to", 8)
+            .queryParam("limit", 4)
+            .request(MediaType.APPLICATION_JSON)
+            .get(JsonObject.class);
+        JsonArray documents = page.getJsonArray(DOCUMENTS);
+        assertThat(documents.size(), equalTo(4));
+        for (int i = 0; i < 4; i++) {
+            final JsonObject entry = documents.getJsonObject(i);
+            assertThat(entry.getInt(DOC_ID), equalTo(i + 2));
+            assertThat(entry.getJsonObject(DOCUMENT).getInt("n"), equalTo(i + 2));
+        }
+
+        page = target
+            .path(COLLECTION_PATH)
+            .queryParam("cursor", page.getString("next"))
+            .queryParam("limit", 4)
+            .request(MediaType.APPLICATION_JSON)
+            .get(JsonObject.class);
+        documents = page.getJsonArray(DOCUMENTS);
+        assertThat(documents.size(), equalTo(3));
+        assertThat(documents.getJsonObject(0).getInt(DOC_ID), equalTo(6));
+        assertThat(documents.getJsonObject(2).getInt(DOC_ID), equalTo(8));
+        assertThat(page.isNull("next"), is(true));
+    }
+
+    /**
+     * Rejects malformed cursors, inverted ranges and out of range
+     * limits.
+     */
+    @Test
+    public void badRequestForInvalidListing() {
+        // The last two are well formed, but decode to an inverted and
+        // a negative range.
+        for (final String cursor
+                : new String[] {"nonsense", "0000000a00000005", "ffffffff00000005"}) {
+            final Response badCursor = target
+                .path(COLLECTION_PATH)
+                .queryParam("cursor", cursor)
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+            assertThat(
+                cursor,
+                badCursor.getStatus(),
+                equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+        }
+        final Response badRange = target
+            .path(COLLECTION_PATH)
+            .queryParam("from", 10)
+            .queryParam("to", 5)
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(
+            badRange.getStatus(),
+            equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+        final Response badLimit = target
+            .path(COLLECTION_PATH)
+            .queryParam("limit", 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(
+            badLimit.getStatus(),
+            equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    /**
+     * Can write and remove many documents with one bulk request, then
+     * read them back with one multi-get request.
+     */
+    @Test
+    public void canBulkAndMultiGet() {
+        target
+            .path(DOCUMENT_PATH + 5)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json(EMPTY));
+        final String bulk = "{\"documents\":["
+            + "{\"docId\":1,\"document\":{\"n\":1}},"
+            + "{\"docId\":2,\"document\":{\"n\":2}},"
+            + "{\"docId\":5,\"document\":null},"
+            + "{\"docId\":6,\"document\":null}]}";
+        final JsonArray results = target
+            .path(DOCUMENT_PATH + "_bulk")
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json(bulk), JsonObject.class)
+            .getJsonArray("results");
+        assertThat(results.size(), equalTo(4));
+        assertThat(results.getJsonObject(0).getInt("status"), equalTo(200));
+        assertThat(results.getJsonObject(2).getInt("status"), equalTo(200));
+        assertThat(results.getJsonObject(3).getInt(DOC_ID), equalTo(6));
+        assertThat(results.getJsonObject(3).getInt("status"), equalTo(404));
+
+        final JsonArray documents = target
+            .path(DOCUMENT_PATH + "_mget")
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json("{\"ids\":[2,5,1]}"), JsonObject.class)
+            .getJsonArray(DOCUMENTS);
+        assertThat(documents.size(), equalTo(3));
+        assertThat(documents.getJsonObject(0).getInt(DOC_ID), equalTo(2));
+        assertThat(
+            documents.getJsonObject(0).getJsonObject(DOCUMENT).getInt("n"),
+            equalTo(2));
+        assertThat(documents.getJsonObject(1).isNull(DOCUMENT), is(true));
+        assertThat(
+            documents.getJsonObject(2).getJsonObject(DOCUMENT).getInt("n"),
+            equalTo(1));
+    }
+
+    /**
+     * Rejects malformed batch requests.
+     */
+    @Test
+    public void badRequestForInvalidBatches() {
+        final Response mget = target
+            .path(DOCUMENT_PATH + "_mget")
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json("{\"ids\":[\"one\"]}"));
+        assertThat(
+            mget.getStatus(),
+            equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+        final String[] bulks = {
+            "{\"documents\":[{\"docId\":1,\"document\":3}]}",
+            "{\"documents\":[{\"docId\":\"1\",\"document\":null}]}",
+            "{\"documents\":[{\"docId\":1.5,\"document\":null}]}",
+            "{\"documents\":[{\"docId\":-1,\"document\":null}]}",
+            "{\"documents\":[{\"document\":null}]}",
+            "{\"documents\":[1]}",
+            "{\"documents\":{}}",
+            "{\"changes\":[]}",
+        };
+        for (final String body : bulks) {
+            final Response bulk = target
+                .path(DOCUMENT_PATH + "_bulk")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(body));
+            assertThat(
+                body,
+                bulk.getStatus(),
+                equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+        }
+    }
+
+    /**
+     * A bulk request stores each document as the bytes it was sent as,
+     * like a PUT does.
+     */
+    @Test
+    public void bulkStoresDocumentsAsSent() {
+        final String document =
+            "{ \"b\" : [1, \"]}\\\"{\"],\n  \"a\":\"\\u00e9 \u00e9\" }";
+        final String bulk = "{\"other\":{\"documents\":1},\"documents\":[ "
+            + "{\"\\u0064ocument\":" + document + ", \"docId\" : 7 } ]}";
+        final Response response = target
+            .path(DOCUMENT_PATH + "_bulk")
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json(bulk));
+        assertThat(response.getStatus(), equalTo(Response.Status.OK.getStatusCode()));
+        assertThat(
+            DocumentResource.getStore().get(7),
+            equalTo(ByteBuffer.wrap(document.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    /**
+     * Can find documents by an indexed field.
+     */
+    @Test
+    public void canQuery() {
+        final Map<String, FieldIndex> indexes = FieldIndex.parseAll("age:sorted");
+        DocumentResource.setStore(
+            new IndexedDocumentStore(new ConcurrentDocumentStore(), indexes));
+        DocumentResource.setIndexes(indexes);
+        for (int docId = 0; docId < 5; docId++) {
+            target
+                .path(DOCUMENT_PATH + docId)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json("{\"age\":" + (docId * 10) + "}"));
+        }
+        final JsonArray equal = target
+            .path(DOCUMENT_PATH + "_query")
+            .queryParam("field", "age")
+            .queryParam("eq", 20)
+            .request(MediaType.APPLICATION_JSON)
+            .get(JsonObject.class)
+            .getJsonArray(DOCUMENTS);
+        assertThat(equal.size(), equalTo(1));
+        assertThat(equal.getJsonObject(0).getInt(DOC_ID), equalTo(2));
+        final JsonArray range = target
+            .path(DOCUMENT_PATH + "_query")
+            .queryParam("field", "age")
+            .queryParam("from", 15)
+            .queryParam("to", 30)
+            .request(MediaType.APPLICATION_JSON)
+            .get(JsonObject.class)
+            .getJsonArray(DOCUMENTS);
+        assertThat(range.size(), equalTo(2));
+        assertThat(range.getJsonObject(1).getInt(DOC_ID), equalTo(3));
+
+        final Response unindexed = target
+            .path(DOCUMENT_PATH + "_query")
+            .queryParam("field", "name")
+            .queryParam("eq", "ann")
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(
+            unindexed.getStatus(),
+            equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    /**
+     * GET with the ETag of the current document returns 304 and no
+     * body.
+     */
+    @Test
+    public void notModifiedForMatchingETag() {
+        final Response put = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json("{\"key\":1}"));
+        final EntityTag tag = put.getEntityTag();
+        assertThat(tag, notNullValue());
+        final Response get = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.IF_NONE_MATCH, tag)
+            .get();
+        assertThat(
+            get.getStatus(),
+            equalTo(Response.Status.NOT_MODIFIED.getStatusCode()));
+
+        target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json("{\"key\":2}"));
+        final Response changed = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.IF_NONE_MATCH, tag)
+            .get();
+        assertThat(
+            changed.getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        assertThat(changed.getEntityTag(), not(equalTo(tag)));
+    }
+
+    /**
+     * PUT with If-Match only succeeds while the ETag is current.
+     */
+    @Test
+    public void preconditionFailedForStaleETag() {
+        final EntityTag tag = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json("{\"key\":1}"))
+            .getEntityTag();
+        final Response first = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.IF_MATCH, tag)
+            .put(Entity.json("{\"key\":2}"));
+        assertThat(
+            first.getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        // The second writer still has the old ETag.
+        final Response second = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.IF_MATCH, tag)
+            .put(Entity.json("{\"key\":3}"));
+        assertThat(
+            second.getStatus(),
+            equalTo(Response.Status.PRECONDITION_FAILED.getStatusCode()));
+
+        final Response create = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.IF_NONE_MATCH, "*")
+            .put(Entity.json("{\"key\":4}"));
+        assertThat(
+            create.getStatus(),
+            equalTo(Response.Status.PRECONDITION_FAILED.getStatusCode()));
+        final Response missing = target
+            .path(DOCUMENT_PATH + 1)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.IF_MATCH, tag)
+            .put(Entity.json("{\"key\":5}"));
+        assertThat(
+            missing.getStatus(),
+            equalTo(Response.Status.PRECONDITION_FAILED.getStatusCode()));
+    }
+
+    /**
+     * PATCH changes only the fields in the merge patch.
+     */
+    @Test
+    public void canPatch() {
+        target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json("{\"a\":1,\"b\":{\"c\":2,\"d\":3}}"));
+        final Response response = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .method("PATCH", Entity.entity("{\"a\":null,\"b\":{\"c\":4}}",
+                DocumentResource.MERGE_PATCH_JSON));
+        assertThat(
+            response.getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        final JsonObject patched = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get(JsonObject.class);
+        assertThat(patched.containsKey("a"), is(false));
+        assertThat(patched.getJsonObject("b").getInt("c"), equalTo(4));
+        assertThat(patched.getJsonObject("b").getInt("d"), equalTo(3));
+
+        final Response missing = target
+            .path(DOCUMENT_PATH + 1)
+            .request(MediaType.APPLICATION_JSON)
+            .method("PATCH", Entity.entity("{}", DocumentResource.MERGE_PATCH_JSON));
+        assertThat(
+            missing.getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
+    }
+
+    /**
+     * A patch to a document which changes every time it is about to be
+     * stored gives up with 409 rather than retrying forever.
+     */
+    @Test
+    public void conflictForPatchesWhichNeverApply() {
+        DocumentResource.setStore(new ConcurrentDocumentStore() {
+            @Override
+            public boolean patch(
+                    final int docId,
+                    final ByteBuffer expected,
+                    final ByteBuffer document,
+                    final ByteBuffer patch) {
+                return false;
+            }
+        });
+        target.path(DOCUMENT_PATH + 0).request().put(Entity.json(EMPTY));
+        final Response response = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .method("PATCH",
+                Entity.entity("{\"a\":1}", DocumentResource.MERGE_PATCH_JSON));
+        assertThat(
+            response.getStatus(),
+            equalTo(Response.Status.CONFLICT.getStatusCode()));
+    }
+
+    /**
+     * Subscribers to the change feed are told about changes, and can
+     * resume after the last one they saw.
+     */
+    @Test
+    public void streamsChanges() throws IOException {
+        final String id;
+        try (BufferedReader events = subscribe(null)) {
+            // The stream starts with a comment, sent so that the
+            // response headers arrive straight away.
+            assertThat(events.readLine(), equalTo(":"));
+            target
+                .path(DOCUMENT_PATH + 7)
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(EMPTY));
+            id = nextEvent(events, "put");
+        }
+        target
+            .path(DOCUMENT_PATH + 7)
+            .request()
+            .delete();
+        try (BufferedReader events = subscribe(id)) {
+            nextEvent(events, "remove");
+        }
+    }
+
+    /**
+     * A document stored with a TTL says when it expires, and a bad
+     * TTL is rejected.
+     */
+    @Test
+    public void acceptsTtl() {
+        final Response stored = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(DocumentResource.TTL_HEADER, "60")
+            .put(Entity.json(EMPTY));
+        assertThat(
+            stored.getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        final Response response = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(response.getHeaderString(HttpHeaders.EXPIRES), notNullValue());
+
+        final Response invalid = target
+            .path(COLLECTION_PATH)
+            .request(MediaType.APPLICATION_JSON)
+            .header(DocumentResource.TTL_HEADER, "soon")
+            .post(Entity.json(EMPTY));
+        assertThat(
+            invalid.getStatus(),
+            equalTo(Response.Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    /**
+     * With compression on, a large document is sent gzipped as it is
+     * stored to a client which accepts gzip. The gzip bytes have an
+     * ETag of their own, which If-Match accepts as well.
+     */
+    @Test
+    public void sendsGzippedDocuments() throws Exception {
+        Main.stopServer(server);
+        System.setProperty(Main.COMPRESS_PROPERTY, "256");
+        try {
+            server = Main.startServer();
+        } finally {
+            System.clearProperty(Main.COMPRESS_PROPERTY);
+        }
+        final StringBuilder large = new StringBuilder("{\"values\":[0");
+        for (int i = 1; i < 2000; i++) {
+            large.append(',').append(i % 10);
+        }
+        final String document = large.append("]}").toString();
+        final EntityTag tag = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json(document))
+            .getEntityTag();
+
+        final Response gzipped = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate")
+            .get();
+        assertThat(
+            gzipped.getHeaderString(HttpHeaders.CONTENT_ENCODING), equalTo("gzip"));
+        final EntityTag gzipTag = gzipped.getEntityTag();
+        assertThat(gzipTag, not(equalTo(tag)));
+        assertThat(gzipTag.getValue(), endsWith("-gzip"));
+        try (InputStream in =
+                new GZIPInputStream(gzipped.readEntity(InputStream.class))) {
+            assertThat(Json.createReader(in).readObject(),
+                equalTo(Json.createReader(new StringReader(document)).readObject()));
+        }
+
+        final Response plain = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .get();
+        assertThat(plain.getHeaderString(HttpHeaders.CONTENT_ENCODING), nullValue());
+        assertThat(plain.getEntityTag(), equalTo(tag));
+        assertThat(plain.readEntity(String.class), equalTo(document));
+
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request()
+                .header(HttpHeaders.IF_MATCH, gzipTag.toString())
+                .put(Entity.json(EMPTY)).getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request()
+                .header(HttpHeaders.IF_MATCH, gzipTag.toString())
+                .put(Entity.json(EMPTY)).getStatus(),
+            equalTo(Response.Status.PRECONDITION_FAILED.getStatusCode()));
+    }
+
+    /**
+     * An Accept-Encoding entry for gzip decides whether gzip is
+     * accepted, wherever it is in the header, and "*" only counts if
+     * gzip isn't listed.
+     */
+    @Test
+    public void gzipEntryOverridesWildcard() {
+        assertThat(DocumentResource.acceptsGzip("*;q=0.5, gzip;q=0"), is(false));
+        assertThat(DocumentResource.acceptsGzip("*;q=0, gzip"), is(true));
+        assertThat(DocumentResource.acceptsGzip("deflate, *"), is(true));
+        assertThat(DocumentResource.acceptsGzip("deflate, *;q=0"), is(false));
+        assertThat(DocumentResource.acceptsGzip("deflate"), is(false));
+    }
+
+    /**
+     * Documents can be sent and received as CBOR, and are stored as
+     * the same JSON either way.
+     */
+    @Test
+    public void exchangesCbor() {
+        final String json = "{\"name\":\"cbor\",\"values\":[1,2.5,true]}";
+        final byte[] cbor = bytes(Cbor.fromJson(
+            ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8))));
+        final Response put = target
+            .path(DOCUMENT_PATH + 0)
+            .request(DocumentResource.APPLICATION_CBOR)
+            .put(Entity.entity(cbor, DocumentResource.APPLICATION_CBOR));
+        assertThat(
+            put.getMediaType().toString(), equalTo(DocumentResource.APPLICATION_CBOR));
+        assertThat(put.readEntity(byte[].class), equalTo(cbor));
+
+        final Response get = target
+            .path(DOCUMENT_PATH + 0)
+            .request(DocumentResource.APPLICATION_CBOR)
+            .get();
+        assertThat(get.readEntity(byte[].class), equalTo(cbor));
+        assertThat(get.getEntityTag(), equalTo(put.getEntityTag()));
+        assertThat(get.getEntityTag().getValue(), endsWith("-cbor"));
+        final Response asJson = target.path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON).get();
+        assertThat(asJson.getEntityTag(), not(equalTo(get.getEntityTag())));
+        asJson.close();
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.IF_MATCH, get.getEntityTag().toString())
+                .put(Entity.json(json)).getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request(MediaType.APPLICATION_JSON)
+                .get(String.class),
+            equalTo(json));
+
+        final Response created = target
+            .path(COLLECTION_PATH)
+            .request(DocumentResource.APPLICATION_CBOR)
+            .post(Entity.entity(cbor, DocumentResource.APPLICATION_CBOR));
+        assertThat(
+            created.getMediaType().toString(),
+            equalTo(DocumentResource.APPLICATION_CBOR));
+    }
+
+    /**
+     * In async mode, writes are answered once the log has them on
+     * disk, just as in sync mode.
+     */
+    @Test
+    public void answersWritesAsynchronously() throws Exception {
+        Main.stopServer(server);
+        System.setProperty(Main.MODE_PROPERTY, "async");
+        System.setProperty(Main.WAL_PROPERTY, folder.getRoot().toString());
+        System.setProperty(Main.WORKERS_PROPERTY, "2");
+        try {
+            server = Main.startServer();
+        } finally {
+            System.clearProperty(Main.MODE_PROPERTY);
+            System.clearProperty(Main.WAL_PROPERTY);
+            System.clearProperty(Main.WORKERS_PROPERTY);
+        }
+        final Response put = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json(EMPTY));
+        assertThat(put.getStatus(), equalTo(Response.Status.OK.getStatusCode()));
+        assertThat(put.readEntity(String.class), equalTo(EMPTY));
+
+        final Response created = target
+            .path(COLLECTION_PATH)
+            .request(MediaType.APPLICATION_JSON)
+            .post(Entity.json(EMPTY));
+        assertThat(created.getStatus(), equalTo(Response.Status.OK.getStatusCode()));
+
+        final Response deleted = target
+            .path(DOCUMENT_PATH + 0)
+            .request()
+            .delete();
+        assertThat(
+            deleted.getStatus(), equalTo(Response.Status.NO_CONTENT.getStatusCode()));
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request().delete().getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
+    }
+
+    /**
+     * Writes beyond the write limit are refused with 503 and a
+     * Retry-After header, while reads carry on.
+     */
+    @Test
+    public void shedsWritesOverLimit() {
+        final ConcurrencyLimiter writes = AdmissionControl.getWriteLimiter();
+        while (writes.tryAcquire()) {
+            continue;
+        }
+        final Response refused = target
+            .path(DOCUMENT_PATH + 0)
+            .request(MediaType.APPLICATION_JSON)
+            .put(Entity.json(EMPTY));
+        assertThat(
+            refused.getStatus(),
+            equalTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+        assertThat(refused.getHeaderString(HttpHeaders.RETRY_AFTER), equalTo("1"));
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request().get().getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
+
+        writes.release(0);
+        assertThat(
+            target.path(DOCUMENT_PATH + 0).request().put(Entity.json(EMPTY)).getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+    }
+
+    /**
+     * Every write gives its permit back once it has been answered, so
+     * more writes than the limit can be made one after another.
+     */
+    @Test
+    public void releasesPermits() throws Exception {
+        Main.stopServer(server);
+        System.setProperty(Main.WRITE_LIMIT_PROPERTY, "2");
+        try {
+            server = Main.startServer();
+        } finally {
+            System.clearProperty(Main.WRITE_LIMIT_PROPERTY);
+        }
+        for (int docId = 0; docId < 10; docId++) {
+            assertThat(
+                target.path(DOCUMENT_PATH + docId).request()
+                    .put(Entity.json(EMPTY)).getStatus(),
+                equalTo(Response.Status.OK.getStatusCode()));
+        }
+    }
+
+    /**
+     * Latencies, statuses and the size of the store are exported in
+     * the Prometheus text format.
+     */
+    @Test
+    public void exportsMetrics() {
+        target.path(DOCUMENT_PATH + 0).request().put(Entity.json(EMPTY)).close();
+        target.path(DOCUMENT_PATH + 1).request().get().close();
+        target.path(DOCUMENT_PATH + 0).request().get().close();
+
+        final Response response = target.path("metrics").request().get();
+        assertThat(response.getMediaType().toString(), startsWith("text/plain"));
+        final String metrics = response.readEntity(String.class);
+        assertThat(metrics,
+            containsString("document_request_seconds_count{operation=\"set\"} 1\n"));
+        assertThat(metrics, containsString(
+            "document_request_seconds{operation=\"get\",quantile=\"0.5\"}"));
+        assertThat(metrics,
+            containsString("document_responses_total{status=\"404\"} 1\n"));
+        assertThat(metrics, containsString("document_documents 1\n"));
+        assertThat(metrics, containsString("document_bytes 2\n"));
+    }
+
+    /**
+     * A follower gets a copy of the leader's documents, drops what it
+     * had which the leader doesn't, and then applies every change.
+     */
+    @Test
+    public void replicatesToFollower() throws Exception {
+        final String first = "{\"n\":1}";
+        target.path(DOCUMENT_PATH + 1).request().put(Entity.json(first)).close();
+        target.path(DOCUMENT_PATH + 2).request().put(Entity.json(EMPTY)).close();
+        final DocumentStore copy = new ConcurrentDocumentStore();
+        copy.put(9, ByteBuffer.wrap(EMPTY.getBytes(StandardCharsets.UTF_8)));
+        final Follower follower = new Follower(URI.create(Main.BASE_URI), copy);
+        follower.start();
+        try {
+            assertTrue(follower.awaitApplied(0, TIMEOUT_MILLIS));
+            assertThat(copy.get(9), nullValue());
+            assertThat(copy.get(2), notNullValue());
+
+            final String third = "{\"n\":3}";
+            target.path(DOCUMENT_PATH + 3).request().put(Entity.json(third)).close();
+            final Response deleted = target.path(DOCUMENT_PATH + 2).request().delete();
+            final long seq =
+                Long.parseLong(deleted.getHeaderString(Replication.SEQ_HEADER));
+            assertTrue(follower.awaitApplied(seq, TIMEOUT_MILLIS));
+            assertThat(new String(bytes(copy.get(1)), StandardCharsets.UTF_8),
+                equalTo(first));
+            assertThat(copy.get(2), nullValue());
+            assertThat(new String(bytes(copy.get(3)), StandardCharsets.UTF_8),
+                equalTo(third));
+        } finally {
+            follower.close();
+        }
+    }
+
+    /**
+     * Only a few replication streams are sent at once, and a follower
+     * asking for another is refused with 503 and a Retry-After header.
+     */
+    @Test
+    public void refusesFollowersOverLimit() {
+        final Semaphore streams = Replication.getStreams();
+        final int permits = streams.drainPermits();
+        try {
+            final Response refused = target.path(COLLECTION_PATH + "/_replication")
+                .request(ReplicationStream.MEDIA_TYPE)
+                .get();
+            assertThat(refused.getStatus(),
+                equalTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+            assertThat(refused.getHeaderString(HttpHeaders.RETRY_AFTER), equalTo("1"));
+        } finally {
+            streams.release(permits);
+        }
+    }
+
+    /**
+     * A follower sends writes to the leader, and reads too when it
+     * hasn't caught up with the write the client last made.
+     */
+    @Test
+    public void followerRedirectsToLeader() throws Exception {
+        final String written = "{\"n\":5}";
+        target.path(DOCUMENT_PATH + 5).request().put(Entity.json(written)).close();
+        // This server follows itself, into a store of its own, so that
+        // it has a follower which is up to date.
+        final Follower follower = new Follower(
+            URI.create(Main.BASE_URI), new ConcurrentDocumentStore());
+        follower.start();
+        Replication.setFollower(follower, true, 0);
+        try {
+            assertTrue(follower.awaitApplied(0, TIMEOUT_MILLIS));
+            final Response write = target.path(DOCUMENT_PATH + 5)
+                .property(ClientProperties.FOLLOW_REDIRECTS, false)
+                .request().put(Entity.json(EMPTY));
+            assertThat(write.getStatus(),
+                equalTo(Response.Status.TEMPORARY_REDIRECT.getStatusCode()));
+            assertThat(write.getLocation().toString(),
+                equalTo(Main.BASE_URI + DOCUMENT_PATH + 5));
+
+            final Response current = target.path(DOCUMENT_PATH + 5).request()
+                .header(Replication.SEQ_HEADER, follower.applied()).get();
+            assertThat(current.readEntity(String.class), equalTo(written));
+            assertThat(Long.parseLong(current.getHeaderString(Replication.SEQ_HEADER)),
+                greaterThanOrEqualTo(follower.applied()));
+
+            final Response ahead = target.path(DOCUMENT_PATH + 5)
+                .property(ClientProperties.FOLLOW_REDIRECTS, false)
+                .request()
+                .header(Replication.SEQ_HEADER, follower.applied() + 1000000)
+                .get();
+            assertThat(ahead.getStatus(),
+                equalTo(Response.Status.TEMPORARY_REDIRECT.getStatusCode()));
+        } finally {
+            Replication.setFollower(null, true, 0);
+            follower.close();
+        }
+    }
+
+    /**
+     * A follower which hasn't copied the leader's documents yet
+     * refuses reads rather than answer that nothing exists.
+     */
+    @Test
+    public void unsyncedFollowerRefusesReads() throws Exception {
+        Main.stopServer(server);
+        // Nothing listens here, so the follower never gets a copy.
+        System.setProperty(Main.LEADER_PROPERTY, OTHER_NODE);
+        try {
+            server = Main.startServer();
+        } finally {
+            System.clearProperty(Main.LEADER_PROPERTY);
+        }
+        final Response read = target.path(DOCUMENT_PATH + 0).request().get();
+        assertThat(read.getStatus(),
+            equalTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode()));
+        final Response write = target.path(DOCUMENT_PATH + 0)
+            .property(ClientProperties.FOLLOW_REDIRECTS, false)
+            .request().put(Entity.json(EMPTY));
+        assertThat(write.getLocation().toString(),
+            equalTo(OTHER_NODE + DOCUMENT_PATH + 0));
+    }
+
+    /**
+     * Restarts the server as the first of two nodes of a cluster. The
+     * other node isn't running.
+     */
+    private void joinCluster(final String routing) throws IOException {
+        Main.stopServer(server);
+        System.setProperty(Main.CLUSTER_PROPERTY, Main.BASE_URI + "," + OTHER_NODE);
+        System.setProperty(Main.ROUTING_PROPERTY, routing);
+        try {
+            server = Main.startServer();
+        } finally {
+            System.clearProperty(Main.CLUSTER_PROPERTY);
+            System.clearProperty(Main.ROUTING_PROPERTY);
+        }
+    }
+
+    /**
+     * Returns the first docId owned by the node named owner.
+     */
+    private static int ownedBy(final String owner) {
+        final Cluster cluster = ClusterRouting.getCluster();
+        int docId = 0;
+        while (!cluster.owner(docId).equals(owner)) {
+            docId++;
+        }
+        return docId;
+    }
+
+    /**
+     * A node redirects requests for documents owned by another node,
+     * and only creates documents it owns.
+     */
+    @Test
+    public void redirectsToOwner() throws Exception {
+        joinCluster("redirect");
+        final int theirs = ownedBy(OTHER_NODE);
+        final Response redirected = target.path(DOCUMENT_PATH + theirs)
+            .property(ClientProperties.FOLLOW_REDIRECTS, false)
+            .request().put(Entity.json(EMPTY));
+        assertThat(redirected.getStatus(),
+            equalTo(Response.Status.TEMPORARY_REDIRECT.getStatusCode()));
+        assertThat(redirected.getLocation().toString(),
+            equalTo(OTHER_NODE + DOCUMENT_PATH + theirs));
+
+        final int ours = ownedBy(Main.BASE_URI);
+        assertThat(
+            target.path(DOCUMENT_PATH + ours).request()
+                .put(Entity.json(EMPTY)).getStatus(),
+            equalTo(Response.Status.OK.getStatusCode()));
+        for (int i = 0; i < 10; i++) {
+            final JsonObject created = target.path(COLLECTION_PATH).request()
+                .post(Entity.json(EMPTY), JsonObject.class);
+            assertThat(ClusterRouting.getCluster().owns(created.getInt(DOC_ID)),
+                equalTo(true));
+        }
+    }
+
+    /**
+     * A node forwards requests for documents owned by another node,
+     * and answers 502 Bad Gateway when the owner can't be reached. A
+     * document too large for the owner is refused without reading it
+     * all.
+     */
+    @Test
+    public void forwardsToOwner() throws Exception {
+        joinCluster("forward");
+        final int theirs = ownedBy(OTHER_NODE);
+        final Response response = target.path(DOCUMENT_PATH + theirs).request().get();
+        assertThat(response.getStatus(),
+            equalTo(Response.Status.BAD_GATEWAY.getStatusCode()));
+
+        DocumentResource.setMaxDocumentSize(16);
+        final Response tooLarge = target.path(DOCUMENT_PATH + theirs).request()
+            .put(Entity.json("{\"key\":\"a value which is far too long to fit\"}"));
+        assertThat(tooLarge.getStatus(),
+            equalTo(Response.Status.REQUEST_ENTITY_TOO_LARGE.getStatusCode()));
+    }
+
+    /**
+     * Documents handed off by another node are stored, unless the
+     * node already has a newer version written since the ring
+     * changed.
+     */
+    @Test
+    public void acceptsHandedOffDocuments() throws Exception {
+        joinCluster("forward");
+        final String newer = "{\"n\":2}";
+        target.path(DOCUMENT_PATH + 1).request().put(Entity.json(newer)).close();
+
+        final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(batch);
+        final byte[] older = "{\"n\":1}".getBytes(StandardCharsets.UTF_8);
+        out.writeInt(2);
+        for (final int docId : new int[] {1, 2}) {
+            out.writeInt(docId);
+            out.writeInt(older.length);
+            out.write(older);
+        }
+        final Response response = target.path("cluster/_handoff").request()
+            .post(Entity.entity(batch.toByteArray(), MediaType.APPLICATION_OCTET_STREAM));
+        assertThat(response.getStatus(),
+            equalTo(Response.Status.NO_CONTENT.getStatusCode()));
+        final DocumentStore store = DocumentResource.getStore();
+        assertThat(new String(bytes(store.get(1)), StandardCharsets.UTF_8),
+            equalTo(newer));
+        assertThat(bytes(store.get(2)), equalTo(older));
+    }
+
+    /**
+     * Documents which belong to a joining node stay where they are
+     * until it can take them.
+     */
+    @Test
+    public void holdsDocumentsUntilHandedOff() throws Exception {
+        Main.stopServer(server);
+        System.setProperty(Main.CLUSTER_PROPERTY, Main.BASE_URI);
+        try {
+            server = Main.startServer();
+        } finally {
+            System.clearProperty(Main.CLUSTER_PROPERTY);
+        }
+        for (int docId = 0; docId < 20; docId++) {
+            target.path(DOCUMENT_PATH + docId).request().put(Entity.json(EMPTY)).close();
+        }
+        final String nodes =
+            "{\"nodes\":[\"" + Main.BASE_URI + "\",\"" + OTHER_NODE + "\"]}";
+        final JsonObject state =
+            target.path("cluster").request().put(Entity.json(nodes), JsonObject.class);
+        assertThat(state.getJsonArray("unreachable").getString(0), equalTo(OTHER_NODE));
+        assertThat(state.getBoolean("rebalancing"), equalTo(true));
+        for (int docId = 0; docId < 20; docId++) {
+            assertThat(DocumentResource.getStore().get(docId), notNullValue());
+        }
+    }
+
+    /**
+     * A node which has left the ring and can't be reached isn't
+     * waited for, so its documents are just missing and the
+     * rebalancing ends.
+     */
+    @Test
+    public void forgetsDepartedNodes() throws Exception {
+        joinCluster("forward");
+        final int theirs = ownedBy(OTHER_NODE);
+        final String nodes = "{\"nodes\":[\"" + Main.BASE_URI + "\"]}";
+        target.path("cluster").request().put(Entity.json(nodes)).close();
+        assertThat(target.path(DOCUMENT_PATH + theirs).request().get().getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
+        assertThat(target.path(DOCUMENT_PATH + theirs).request().delete().getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (ClusterRouting.getCluster().isRebalancing()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(ClusterRouting.getCluster().isRebalancing(), equalTo(false));
+    }
+
+    /**
+     * Returns 404 when deleting an unknown document.
+     */
+    @Test
+    public void notFoundForDeletingUnknownDocuments() {
+        final Response response = target
+            .path(DOCUMENT_PATH + 999)
+            .request()
+            .delete();
+        assertThat(
+            response.getStatus(),
+            equalTo(Response.Status.NOT_FOUND.getStatusCode()));
     }
 }
@@ -0,0 +1,72 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static final int VIRTUAL_NODES = 128;
+    private static final int IDS = 100000;
+    private static final List<String> NODES = Arrays.asList(
+        "http://localhost:8080/", "http://localhost:8081/", "http://localhost:8082/");
+    private static final String JOINING = "http://localhost:8083/";
+
+    /**
+     * Every node owns about the same share of the ids.
+     */
+    @Test
+    public void spreadsIdsEvenly() {
+        final HashRing ring = new HashRing(NODES, VIRTUAL_NODES);
+        final Map<String, Integer> owned = new HashMap<>();
+        for (int docId = 0; docId < IDS; docId++) {
+            final String owner = ring.owner(docId);
+            final Integer count = owned.get(owner);
+            owned.put(owner, count == null ? 1 : count + 1);
+        }
+        assertThat(owned.keySet(), containsInAnyOrder(NODES.toArray()));
+        for (final int count : owned.values()) {
+            assertThat((double) count / IDS, closeTo(1.0 / NODES.size(), 0.06));
+        }
+    }
+
+    /**
+     * A joining node only takes ids from the others, about its share,
+     * and the rest stay where they were.
+     */
+    @Test
+    public void movesOnlyIdsOfJoiningNode() {
+        final HashRing before = new HashRing(NODES, VIRTUAL_NODES);
+        final List<String> joined = Arrays.asList(
+            NODES.get(0), NODES.get(1), NODES.get(2), JOINING);
+        final HashRing after = new HashRing(joined, VIRTUAL_NODES);
+        int moved = 0;
+        for (int docId = 0; docId < IDS; docId++) {
+            if (!before.owner(docId).equals(after.owner(docId))) {
+                assertThat(after.owner(docId), equalTo(JOINING));
+                moved++;
+            }
+        }
+        assertThat((double) moved / IDS, closeTo(1.0 / joined.size(), 0.06));
+    }
+
+    /**
+     * Nodes which list the others in a different order still agree on
+     * every owner.
+     */
+    @Test
+    public void ownersDontDependOnOrder() {
+        final HashRing ring = new HashRing(NODES, VIRTUAL_NODES);
+        final HashRing reversed = new HashRing(
+            Arrays.asList(NODES.get(2), NODES.get(1), NODES.get(0)), VIRTUAL_NODES);
+        for (int docId = 0; docId < IDS; docId++) {
+            assertThat(reversed.owner(docId), equalTo(ring.owner(docId)));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedDocumentStoreTest {
+
+    private static final String NAME = "name";
+    private static final String AGE = "age";
+    private static final String ANN = "ann";
+    private static final String BOB = "bob";
+    private static final int LIMIT = 100;
+
+    private Map<String, FieldIndex> indexes;
+    private DocumentStore store;
+
+    @Before
+    public void setUp() {
+        indexes = FieldIndex.parseAll("name, age:sorted");
+        store = new IndexedDocumentStore(new ConcurrentDocumentStore(), indexes);
+    }
+
+    /**
+     * The kinds are parsed from the spec.
+     */
+    @Test
+    public void parsesSpec() {
+        assertThat(indexes.get(NAME).kind(), equalTo(FieldIndex.Kind.HASH));
+        assertThat(indexes.get(AGE).kind(), equalTo(FieldIndex.Kind.SORTED));
+    }
+
+    /**
+     * Documents can be found by the value of a field.
+     */
+    @Test
+    public void findsByEquality() {
+        store.put(1, bytes("{\"name\":\"ann\",\"age\":30}"));
+        store.put(2, bytes("{\"name\":\"bob\",\"age\":30.0}"));
+        store.put(3, bytes("{\"name\":\"ann\",\"nested\":{\"name\":\"bob\"}}"));
+        assertThat(indexes.get(NAME).equal(ANN, LIMIT), equalTo(new int[] {1, 3}));
+        assertThat(indexes.get(NAME).equal(BOB, LIMIT), equalTo(new int[] {2}));
+        // 30 and 30.0 are the same number.
+        assertThat(indexes.get(AGE).equal(new BigDecimal(30), LIMIT),
+            equalTo(new int[] {1, 2}));
+        assertThat(indexes.get(NAME).equal(ANN, 1), equalTo(new int[] {1}));
+    }
+
+    /**
+     * A sorted index finds a range of values in order.
+     */
+    @Test
+    public void findsByRange() {
+        store.put(1, bytes("{\"age\":40}"));
+        store.put(2, bytes("{\"age\":20}"));
+        store.put(3, bytes("{\"age\":30}"));
+        store.put(4, bytes("{\"age\":\"old\"}"));
+        final FieldIndex age = indexes.get(AGE);
+        assertThat(age.range(FieldIndex.parseKey("25"), FieldIndex.parseKey("40"), LIMIT),
+            equalTo(new int[] {3, 1}));
+        assertThat(age.range(null, FieldIndex.parseKey("30"), LIMIT),
+            equalTo(new int[] {2, 3}));
+        // Strings sort after numbers.
+        assertThat(age.range(FieldIndex.parseKey("35"), null, LIMIT),
+            equalTo(new int[] {1, 4}));
+    }
+
+    /**
+     * Overwriting, removing and clearing documents update the indexes.
+     */
+    @Test
+    public void followsChanges() {
+        store.put(1, bytes("{\"name\":\"ann\"}"));
+        store.put(1, bytes("{\"name\":\"bob\"}"));
+        assertThat(indexes.get(NAME).equal(ANN, LIMIT), equalTo(new int[0]));
+        assertThat(indexes.get(NAME).equal(BOB, LIMIT), equalTo(new int[] {1}));
+        store.remove(1);
+        assertThat(indexes.get(NAME).equal(BOB, LIMIT), equalTo(new int[0]));
+        store.put(2, bytes("{\"name\":\"bob\"}"));
+        store.clear();
+        assertThat(indexes.get(NAME).equal(BOB, LIMIT), equalTo(new int[0]));
+    }
+
+    /**
+     * Documents already in the store are indexed up front.
+     */
+    @Test
+    public void indexesExistingDocuments() {
+        final DocumentStore existing = new ConcurrentDocumentStore();
+        existing.put(7, bytes("{\"name\":\"cy\"}"));
+        new IndexedDocumentStore(existing, indexes);
+        assertThat(indexes.get(NAME).equal("cy", LIMIT), equalTo(new int[] {7}));
+    }
+
+    private static ByteBuffer bytes(final String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,41 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Every value is counted in a bucket whose largest value is at
+     * most about 3% more than it.
+     */
+    @Test
+    public void bucketsWithinBoundedError() {
+        for (long value = 1; value < 1L << 40; value = value * 3 / 2 + 1) {
+            final long highest =
+                LatencyHistogram.highestValueIn(LatencyHistogram.bucketFor(value));
+            assertThat(highest, greaterThanOrEqualTo(value));
+            assertThat((double) highest, lessThanOrEqualTo(value * 1.0325));
+        }
+    }
+
+    /**
+     * Quantiles are read back from the counts.
+     */
+    @Test
+    public void readsQuantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.valuesAt(0.5)[0], equalTo(0L));
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        final long[] values = histogram.valuesAt(0.5, 0.99, 1);
+        assertThat((double) values[0], closeTo(500000, 500000 * 0.0325));
+        assertThat((double) values[1], closeTo(990000, 990000 * 0.0325));
+        assertThat((double) values[2], closeTo(1000000, 1000000 * 0.0325));
+        assertThat(histogram.count(), equalTo(1000L));
+        assertThat(histogram.sum(), equalTo(500500000L));
+    }
+}
@@ -0,0 +1,350 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.junit.Test;
+
+public class LsmDocumentStoreTest {
+
+    // Small enough that a few hundred documents make many tables and
+    // several levels.
+    private static final long MEMTABLE_BYTES = 2048;
+    private static final long TABLE_BYTES = 4096;
+    private static final long LEVEL_ONE_BYTES = 8192;
+    private static final int MANY = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path directory;
+    private LsmDocumentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("documents.lsm").toPath();
+        store = open(null);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    /**
+     * Documents can be read back whether they are in the memtable or
+     * in a table, and removing one hides older versions of it.
+     */
+    @Test
+    public void readsFromMemtableAndTables() {
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId, 1));
+        }
+        for (int docId = 0; docId < MANY; docId += 3) {
+            store.remove(docId);
+        }
+        assertThat(store.flushes(), greaterThan(0L));
+        assertThat(store.putIfAbsent(0, document(0, 2)), is(true));
+        assertThat(store.putIfAbsent(1, document(1, 2)), is(false));
+        assertThat(store.replace(2, document(2, 1), document(2, 2)), is(true));
+        for (int docId = 0; docId < MANY; docId++) {
+            if (docId % 3 == 0 && docId != 0) {
+                assertThat(store.get(docId), nullValue());
+            } else {
+                assertThat(store.get(docId),
+                    equalTo(document(docId, docId == 0 || docId == 2 ? 2 : 1)));
+            }
+        }
+    }
+
+    /**
+     * A read of a docId which was never written is answered by the
+     * bloom filters, without reading any blocks.
+     */
+    @Test
+    public void missingIdsSkipDisk() {
+        for (int docId = 0; docId < MANY; docId += 2) {
+            store.put(docId, document(docId, 1));
+        }
+        store.flush();
+        final long blockReads = store.blockReads();
+        for (int docId = 1; docId < MANY; docId += 2) {
+            assertThat(store.get(docId), nullValue());
+        }
+        // About 1% of the filters answer "maybe".
+        assertThat(store.blockReads() - blockReads, lessThan((long) MANY / 20));
+        assertThat(store.bloomSkips(), greaterThan((long) MANY / 4));
+    }
+
+    /**
+     * A scan merges the memtable and every table into docId order,
+     * with the newest version of each document.
+     */
+    @Test
+    public void scansInOrder() {
+        for (int docId = MANY - 1; docId >= 0; docId--) {
+            store.put(docId, document(docId, 1));
+        }
+        for (int docId = 0; docId < MANY; docId += 2) {
+            store.put(docId, document(docId, 2));
+        }
+        store.remove(MANY - 1);
+        store.remove(500);
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            store.scan(100, MANY + 10);
+        int expected = 100;
+        while (documents.hasNext()) {
+            final Map.Entry<Integer, ByteBuffer> entry = documents.next();
+            if (expected == 500) {
+                expected++;
+            }
+            assertThat(entry.getKey(), equalTo(expected));
+            assertThat(entry.getValue(),
+                equalTo(document(expected, expected % 2 == 0 ? 2 : 1)));
+            expected++;
+        }
+        assertThat(expected, equalTo(MANY - 1));
+        assertThat(store.lastDocId(), equalTo(MANY - 2));
+    }
+
+    /**
+     * Compaction merges the tables down into levels, keeps only the
+     * newest version of each document, and deletes the tables it
+     * replaces.
+     */
+    @Test
+    public void compactsIntoLevels() throws IOException {
+        for (int round = 1; round <= 3; round++) {
+            for (int docId = 0; docId < MANY; docId++) {
+                store.put(docId, document(docId, round));
+            }
+        }
+        for (int docId = 0; docId < MANY; docId += 2) {
+            store.remove(docId);
+        }
+        store.flush();
+        store.awaitCompaction();
+        assertThat(store.compactions(), greaterThan(0L));
+        assertThat(store.tables(0), lessThan(LsmDocumentStore.L0_TABLES));
+        assertThat(store.tables(2), greaterThan(0));
+        int tables = 0;
+        for (int level = 0; level < LsmDocumentStore.MAX_LEVELS; level++) {
+            tables += store.tables(level);
+        }
+        assertThat(tableFiles().size(), equalTo(tables));
+        for (int docId = 0; docId < MANY; docId++) {
+            if (docId % 2 == 0) {
+                assertThat(store.get(docId), nullValue());
+            } else {
+                assertThat(store.get(docId), equalTo(document(docId, 3)));
+            }
+        }
+    }
+
+    /**
+     * The tables are found again through the manifest when the store
+     * is reopened, along with the memtable written out by close.
+     */
+    @Test
+    public void reopens() throws IOException {
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId, 1));
+        }
+        store.remove(7);
+        store.close();
+        store = open(null);
+        for (int docId = 0; docId < MANY; docId++) {
+            if (docId == 7) {
+                assertThat(store.get(docId), nullValue());
+            } else {
+                assertThat(store.get(docId), equalTo(document(docId, 1)));
+            }
+        }
+    }
+
+    /**
+     * Compressed documents in the tables can still be read once the
+     * store is reopened with a new codec. Enough of them are written
+     * to train a dictionary, if one were used.
+     */
+    @Test
+    public void reopensCompressed() throws IOException {
+        CompressingDocumentStore compressed =
+            new CompressingDocumentStore(store, 64, false);
+        for (int docId = 0; docId < MANY; docId++) {
+            compressed.put(docId, items(docId));
+        }
+        assertThat(compressed.hasDictionary(), is(false));
+        assertThat(store.bytes(), lessThan(MANY * (long) items(0).remaining() / 2));
+        compressed.close();
+        store = open(null);
+        compressed = new CompressingDocumentStore(store, 64, false);
+        for (int docId = 0; docId < MANY; docId++) {
+            assertThat(compressed.get(docId), equalTo(items(docId)));
+        }
+    }
+
+    /**
+     * The store counts the documents in the memtables and the tables
+     * alike, and finds the counts again in the manifest.
+     */
+    @Test
+    public void countsDocuments() throws IOException {
+        long bytes = 0;
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId, 1));
+            bytes += document(docId, 1).remaining();
+        }
+        store.flush();
+        for (int docId = 0; docId < MANY; docId += 2) {
+            store.put(docId, document(docId, 10));
+            bytes += 1;
+        }
+        store.remove(1);
+        bytes -= document(1, 1).remaining();
+        store.remove(MANY);
+        assertThat(store.documents(), equalTo(MANY - 1L));
+        assertThat(store.bytes(), equalTo(bytes));
+        store.close();
+        store = open(null);
+        assertThat(store.documents(), equalTo(MANY - 1L));
+        assertThat(store.bytes(), equalTo(bytes));
+        store.clear();
+        assertThat(store.documents(), equalTo(0L));
+    }
+
+    /**
+     * After a crash, replaying the log from the store's generation
+     * brings back the memtable, and the log written before the last
+     * table has been deleted.
+     */
+    @Test
+    public void replaysLogAfterCrash() throws IOException {
+        store.close();
+        final Path logDirectory = folder.newFolder("documents.wal").toPath();
+        final WriteAheadLog log =
+            WriteAheadLog.open(logDirectory, Durability.ASYNC, 10);
+        final LsmDocumentStore crashed = open(log);
+        final DurableDocumentStore durable = new DurableDocumentStore(crashed, log);
+        durable.recover(crashed.generation());
+        for (int docId = 0; docId < MANY; docId++) {
+            durable.put(docId, document(docId, 1));
+        }
+        durable.remove(MANY - 1);
+        crashed.flush();
+        assertThat(crashed.generation(), greaterThan(0L));
+        durable.put(MANY, document(MANY, 1));
+        // A copy of the files as they are now is what a crash would
+        // leave behind, with the memtable never written out. Tables
+        // mustn't come and go while they are copied.
+        crashed.awaitCompaction();
+        log.close();
+        final Path crashedLog = copy(logDirectory, "crashed.wal");
+        directory = copy(directory, "crashed.lsm");
+        crashed.close();
+
+        final WriteAheadLog reopened =
+            WriteAheadLog.open(crashedLog, Durability.ASYNC, 10);
+        store = open(reopened);
+        final DurableDocumentStore recovered = new DurableDocumentStore(store, reopened);
+        recovered.recover(store.generation());
+        assertThat(logSegments(crashedLog), lessThanOrEqualTo(2));
+        for (int docId = 0; docId <= MANY; docId++) {
+            if (docId == MANY - 1) {
+                assertThat(recovered.get(docId), nullValue());
+            } else {
+                assertThat(recovered.get(docId), equalTo(document(docId, 1)));
+            }
+        }
+        reopened.close();
+    }
+
+    /**
+     * Clearing the store drops every table.
+     */
+    @Test
+    public void clearsTables() throws IOException {
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId, 1));
+        }
+        store.clear();
+        assertThat(store.get(0), nullValue());
+        assertThat(store.scan(0, Integer.MAX_VALUE).hasNext(), is(false));
+        assertThat(store.lastDocId(), equalTo(-1));
+        store.put(1, document(1, 2));
+        store.close();
+        store = open(null);
+        assertThat(store.get(0), nullValue());
+        assertThat(store.get(1), equalTo(document(1, 2)));
+    }
+
+    private LsmDocumentStore open(final WriteAheadLog log) throws IOException {
+        return LsmDocumentStore.open(
+            directory, MEMTABLE_BYTES, TABLE_BYTES, LEVEL_ONE_BYTES, log);
+    }
+
+    private List<Path> tableFiles() throws IOException {
+        final List<Path> tables = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.sst")) {
+            for (final Path file : files) {
+                tables.add(file);
+            }
+        }
+        return tables;
+    }
+
+    private Path copy(final Path from, final String name) throws IOException {
+        final Path to = folder.newFolder(name).toPath();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from)) {
+            for (final Path file : files) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+        return to;
+    }
+
+    private static int logSegments(final Path logDirectory) throws IOException {
+        final List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files =
+                 Files.newDirectoryStream(logDirectory, "*.log")) {
+            for (final Path file : files) {
+                segments.add(file);
+            }
+        }
+        return segments.size();
+    }
+
+    /**
+     * Returns a document of a few hundred bytes, with the same fields
+     * as the other documents.
+     */
+    private static ByteBuffer items(final int docId) {
+        final StringBuilder json = new StringBuilder("{\"id\":" + docId + ",\"items\":[");
+        for (int i = 0; i < 8; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"sku\":\"item-").append(docId + i)
+                .append("\",\"status\":\"in-stock\",\"warehouse\":\"north\"}");
+        }
+        json.append("]}");
+        return ByteBuffer.wrap(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer document(final int docId, final int version) {
+        return ByteBuffer.wrap(("{\"id\":" + docId + ",\"version\":" + version + "}")
+            .getBytes(StandardCharsets.UTF_8));
+    }
+}
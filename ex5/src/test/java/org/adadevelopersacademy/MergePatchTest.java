@@ -0,0 +1,64 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+
+import org.junit.Test;
+
+public class MergePatchTest {
+    private static final String AB = "{\"a\":\"b\"}";
+    private static final String AC = "{\"a\":\"c\"}";
+
+    /**
+     * The examples from appendix A of RFC 7386.
+     */
+    @Test
+    public void matchesRfcExamples() {
+        check(AB, AC, AC);
+        check(AB, "{\"b\":\"c\"}", "{\"a\":\"b\",\"b\":\"c\"}");
+        check(AB, "{\"a\":null}", "{}");
+        check("{\"a\":\"b\",\"b\":\"c\"}", "{\"a\":null}", "{\"b\":\"c\"}");
+        check("{\"a\":[\"b\"]}", AC, AC);
+        check(AC, "{\"a\":[\"b\"]}", "{\"a\":[\"b\"]}");
+        check("{\"a\":{\"b\":\"c\"}}", "{\"a\":{\"b\":\"d\",\"c\":null}}",
+            "{\"a\":{\"b\":\"d\"}}");
+        check("{\"a\":[{\"b\":\"c\"}]}", "{\"a\":[1]}", "{\"a\":[1]}");
+        check("[\"a\",\"b\"]", "[\"c\",\"d\"]", "[\"c\",\"d\"]");
+        check(AB, "[\"c\"]", "[\"c\"]");
+        check("{\"a\":\"foo\"}", "null", "null");
+        check("{\"a\":\"foo\"}", "\"bar\"", "\"bar\"");
+        check("{\"e\":null}", "{\"a\":1}", "{\"e\":null,\"a\":1}");
+        check("[1,2]", "{\"a\":\"b\",\"c\":null}", "{\"a\":\"b\"}");
+        check("{}", "{\"a\":{\"bb\":{\"ccc\":null}}}", "{\"a\":{\"bb\":{}}}");
+    }
+
+    /**
+     * Applying a patch again changes nothing, which makes replaying it
+     * safe.
+     */
+    @Test
+    public void isIdempotent() {
+        final JsonValue patch = json("{\"a\":{\"b\":null,\"c\":[1]},\"d\":2}");
+        final JsonValue once = MergePatch.apply(json("{\"a\":{\"b\":1},\"e\":3}"), patch);
+        assertThat(MergePatch.apply(once, patch), equalTo(once));
+    }
+
+    private static void check(
+            final String target, final String patch, final String expected) {
+        assertThat(MergePatch.apply(json(target), json(patch)), equalTo(json(expected)));
+    }
+
+    private static JsonValue json(final String text) {
+        // JSON-P 1.0 can only read an object or an array, so wrap the
+        // value in an array and take it back out.
+        try (JsonReader reader = Json.createReader(new StringReader("[" + text + "]"))) {
+            return reader.readArray().get(0);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapDocumentStoreTest {
+
+    // Tiny segments force new segments and compaction to happen after
+    // only a few writes.
+    private static final int SEGMENT_SIZE = 64;
+    private static final int MANY = 10000;
+
+    private OffHeapDocumentStore store;
+
+    @Before
+    public void setUp() {
+        store = new OffHeapDocumentStore(4, SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns null for unknown documents.
+     */
+    @Test
+    public void getUnknownIsNull() {
+        assertThat(store.get(42), nullValue());
+    }
+
+    /**
+     * Can round trip a document through direct memory.
+     */
+    @Test
+    public void canPutAndGet() {
+        store.put(1, bytes("{\"a\":1}"));
+        assertThat(string(store.get(1)), equalTo("{\"a\":1}"));
+    }
+
+    /**
+     * Overwriting replaces the old bytes.
+     */
+    @Test
+    public void canOverwrite() {
+        store.put(1, bytes("{\"a\":1}"));
+        store.put(1, bytes("{\"a\":\"longer\"}"));
+        assertThat(string(store.get(1)), equalTo("{\"a\":\"longer\"}"));
+    }
+
+    /**
+     * putIfAbsent leaves existing documents alone.
+     */
+    @Test
+    public void putIfAbsentKeepsExisting() {
+        assertThat(store.putIfAbsent(1, bytes("{}")), is(true));
+        assertThat(store.putIfAbsent(1, bytes("[]")), is(false));
+        assertThat(string(store.get(1)), equalTo("{}"));
+    }
+
+    /**
+     * replace only succeeds while the stored bytes are the expected
+     * ones.
+     */
+    @Test
+    public void replaceComparesBytes() {
+        final String old = "{\"old\":true}";
+        final String replacement = "{\"new\":true}";
+        store.put(1, bytes(old));
+        assertThat(store.replace(1, bytes(replacement), bytes(replacement)), is(false));
+        assertThat(store.replace(1, bytes(old), bytes(replacement)), is(true));
+        assertThat(string(store.get(1)), equalTo(replacement));
+        assertThat(store.replace(2, bytes(old), bytes(replacement)), is(false));
+    }
+
+    /**
+     * Removed documents are gone, and removing twice reports false.
+     */
+    @Test
+    public void canRemove() {
+        store.put(1, bytes("{}"));
+        assertThat(store.remove(1), is(true));
+        assertThat(store.remove(1), is(false));
+        assertThat(store.get(1), nullValue());
+    }
+
+    /**
+     * Storing many documents grows the index without losing any.
+     */
+    @Test
+    public void survivesRehash() {
+        for (int i = 0; i < MANY; i++) {
+            store.put(i, bytes(Integer.toString(i)));
+        }
+        for (int i = 0; i < MANY; i++) {
+            assertThat(string(store.get(i)), equalTo(Integer.toString(i)));
+        }
+        assertThat(store.lastDocId(), equalTo(MANY - 1));
+    }
+
+    /**
+     * Repeatedly overwriting and deleting documents triggers
+     * compaction, which must keep every live document intact.
+     */
+    @Test
+    public void survivesCompaction() {
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.put(i, bytes(round + ":" + i));
+            }
+            store.remove(round % 10);
+            store.put(round % 10, bytes("back:" + round));
+        }
+        for (int i = 0; i < 9; i++) {
+            assertThat(string(store.get(i)), equalTo("99:" + i));
+        }
+        assertThat(string(store.get(9)), equalTo("back:99"));
+    }
+
+    /**
+     * A document is read as a read-only view of the off-heap bytes,
+     * which stays the same after it is overwritten and compacted away.
+     */
+    @Test
+    public void readsWithoutCopying() {
+        store.put(1, bytes("first"));
+        final ByteBuffer first = store.get(1);
+        assertThat(first.isDirect(), is(true));
+        assertThat(first.isReadOnly(), is(true));
+        for (int round = 0; round < 1000; round++) {
+            store.put(1, bytes("round " + round));
+        }
+        assertThat(string(first), equalTo("first"));
+        assertThat(string(store.get(1)), equalTo("round 999"));
+    }
+
+    /**
+     * A scan returns the documents in range in docId order even
+     * though they are spread across shards.
+     */
+    @Test
+    public void scanIsOrdered() {
+        for (int i = 0; i < 100; i++) {
+            store.put(i, bytes(Integer.toString(i)));
+        }
+        store.remove(15);
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents = store.scan(10, 20);
+        for (int i = 10; i <= 20; i++) {
+            if (i == 15) {
+                continue;
+            }
+            final Map.Entry<Integer, ByteBuffer> entry = documents.next();
+            assertThat(entry.getKey(), equalTo(i));
+            assertThat(string(entry.getValue()), equalTo(Integer.toString(i)));
+        }
+        assertThat(documents.hasNext(), is(false));
+    }
+
+    /**
+     * A scan which runs over many chunks of ids, up to the largest
+     * docId, still returns every document once and in order.
+     */
+    @Test
+    public void scansInChunks() {
+        final int count = 20000;
+        for (int i = 0; i < count; i++) {
+            store.put(i * 3, bytes(Integer.toString(i * 3)));
+        }
+        store.put(Integer.MAX_VALUE, bytes("last"));
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            store.scan(1, Integer.MAX_VALUE);
+        for (int i = 1; i < count; i++) {
+            assertThat(documents.next().getKey(), equalTo(i * 3));
+        }
+        assertThat(string(documents.next().getValue()), equalTo("last"));
+        assertThat(documents.hasNext(), is(false));
+    }
+
+    private static ByteBuffer bytes(final String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
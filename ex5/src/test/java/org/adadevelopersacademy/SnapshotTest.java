@@ -0,0 +1,224 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.junit.Test;
+
+public class SnapshotTest {
+
+    // Small parts force a snapshot of a few documents to be split.
+    private static final int PART_SIZE = 64;
+    private static final int MANY = 100;
+    private static final long INTERVAL = 5;
+    private static final String TWO = "two";
+    private static final String FIVE = "five";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = folder.newFolder("documents.wal").toPath();
+    }
+
+    /**
+     * There's nothing to open before the first snapshot is written.
+     */
+    @Test
+    public void noSnapshotIsNull() throws IOException {
+        assertThat(Snapshot.openLatest(path), nullValue());
+    }
+
+    /**
+     * Every document written can be read back, across several parts.
+     */
+    @Test
+    public void canWriteAndRead() throws IOException {
+        Snapshot.write(path, 1, numbers().scan(0, Integer.MAX_VALUE), PART_SIZE);
+        final Snapshot snapshot = Snapshot.openLatest(path);
+        assertThat(snapshot.generation(), equalTo(1L));
+        for (int i = 0; i < MANY; i += 2) {
+            assertThat(string(snapshot.get(i)), equalTo(Integer.toString(i)));
+            assertThat(snapshot.get(i + 1), nullValue());
+        }
+        assertThat(snapshot.contains(MANY), is(false));
+        assertThat(snapshot.lastDocId(), equalTo(MANY - 2));
+    }
+
+    /**
+     * A scan crosses part boundaries in docId order.
+     */
+    @Test
+    public void canScan() throws IOException {
+        Snapshot.write(path, 1, numbers().scan(0, Integer.MAX_VALUE), PART_SIZE);
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            Snapshot.openLatest(path).scan(11, 41);
+        for (int i = 12; i <= 40; i += 2) {
+            assertThat(documents.next().getKey(), equalTo(i));
+        }
+        assertThat(documents.hasNext(), is(false));
+    }
+
+    /**
+     * An empty store makes an empty snapshot.
+     */
+    @Test
+    public void canWriteEmpty() throws IOException {
+        Snapshot.write(path, 3, new ConcurrentDocumentStore().scan(0, Integer.MAX_VALUE));
+        final Snapshot snapshot = Snapshot.openLatest(path);
+        assertThat(snapshot.lastDocId(), equalTo(-1));
+        assertThat(snapshot.scan(0, Integer.MAX_VALUE).hasNext(), is(false));
+    }
+
+    /**
+     * Changes made on top of a snapshot hide the documents in it.
+     */
+    @Test
+    public void overlayHidesSnapshot() throws IOException {
+        Snapshot.write(path, 1, numbers().scan(0, Integer.MAX_VALUE), PART_SIZE);
+        final DocumentStore store = new SnapshotDocumentStore(
+            new ConcurrentDocumentStore(), Snapshot.openLatest(path));
+        assertThat(store.putIfAbsent(0, bytes("new")), is(false));
+        store.put(2, bytes(TWO));
+        assertThat(store.remove(4), is(true));
+        assertThat(store.remove(4), is(false));
+        store.put(5, bytes(FIVE));
+
+        assertThat(string(store.get(2)), equalTo(TWO));
+        assertThat(store.get(4), nullValue());
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents = store.scan(0, 6);
+        assertThat(string(documents.next().getValue()), equalTo("0"));
+        assertThat(string(documents.next().getValue()), equalTo(TWO));
+        assertThat(string(documents.next().getValue()), equalTo(FIVE));
+        assertThat(string(documents.next().getValue()), equalTo("6"));
+        assertThat(documents.hasNext(), is(false));
+
+        store.clear();
+        assertThat(store.get(0), nullValue());
+        assertThat(store.lastDocId(), equalTo(-1));
+    }
+
+    /**
+     * Counts start from the snapshot and follow the changes made on
+     * top of it, without reading the replaced documents back.
+     */
+    @Test
+    public void countsOnTopOfSnapshot() throws IOException {
+        Snapshot.write(path, 1, numbers().scan(0, Integer.MAX_VALUE), PART_SIZE);
+        final Snapshot snapshot = Snapshot.openLatest(path);
+        final CountingDocumentStore store = new CountingDocumentStore(
+            new SnapshotDocumentStore(new ConcurrentDocumentStore(), snapshot), snapshot);
+        final long documents = snapshot.size();
+        final long bytes = snapshot.bytes();
+        assertThat(store.documents(), equalTo(documents));
+
+        store.put(2, bytes(TWO));
+        assertThat(store.remove(4), is(true));
+        assertThat(store.remove(4), is(false));
+        store.put(5, bytes(FIVE));
+        final List<Map.Entry<Integer, ByteBuffer>> changes = new ArrayList<>();
+        changes.add(new AbstractMap.SimpleImmutableEntry<Integer, ByteBuffer>(5, null));
+        changes.add(new AbstractMap.SimpleImmutableEntry<>(6, bytes("six")));
+        store.writeAll(changes);
+        // Enough new documents to make the table of sizes grow.
+        for (int i = 1; i < MANY * 4; i += 2) {
+            store.put(MANY + i, bytes(TWO));
+        }
+        for (int i = 1; i < MANY * 4; i += 2) {
+            store.remove(MANY + i);
+        }
+        assertThat(store.documents(), equalTo(documents - 1));
+        assertThat(store.bytes(), equalTo(bytes + 3));
+
+        store.clear();
+        assertThat(store.documents(), equalTo(0L));
+        store.put(0, bytes(TWO));
+        assertThat(store.documents(), equalTo(1L));
+        assertThat(store.bytes(), equalTo(3L));
+    }
+
+    /**
+     * A restart loads the latest snapshot and replays only the log
+     * written after it.
+     */
+    @Test
+    public void restartsFromSnapshotAndLog() throws IOException {
+        DurableDocumentStore store = open();
+        for (int i = 0; i < MANY; i++) {
+            store.put(i, bytes(Integer.toString(i)));
+        }
+        store.snapshot(path);
+        store.remove(1);
+        store.put(2, bytes(TWO));
+        store.put(MANY, bytes("last"));
+        store.close();
+
+        store = open();
+        assertThat(store.get(1), nullValue());
+        assertThat(string(store.get(2)), equalTo(TWO));
+        assertThat(string(store.get(3)), equalTo("3"));
+        assertThat(string(store.get(MANY)), equalTo("last"));
+
+        // A second snapshot replaces the first and the older log.
+        store.snapshot(path);
+        store.close();
+        store = open();
+        assertThat(store.get(1), nullValue());
+        assertThat(string(store.get(MANY)), equalTo("last"));
+        assertThat(path.toFile().list().length, equalTo(2));
+        store.close();
+    }
+
+    private DurableDocumentStore open() throws IOException {
+        final WriteAheadLog log = WriteAheadLog.open(path, Durability.SYNC, INTERVAL);
+        final Snapshot snapshot = Snapshot.openLatest(path);
+        final DurableDocumentStore store;
+        if (snapshot == null) {
+            store = new DurableDocumentStore(new ConcurrentDocumentStore(), log);
+            store.recover(0);
+        } else {
+            store = new DurableDocumentStore(
+                new SnapshotDocumentStore(new ConcurrentDocumentStore(), snapshot), log);
+            store.recoverInBackground(snapshot.generation());
+            store.awaitRecovery();
+        }
+        return store;
+    }
+
+    /**
+     * Returns a store holding the even numbers below MANY.
+     */
+    private static DocumentStore numbers() {
+        final DocumentStore store = new ConcurrentDocumentStore();
+        for (int i = 0; i < MANY; i += 2) {
+            store.put(i, bytes(Integer.toString(i)));
+        }
+        return store;
+    }
+
+    private static ByteBuffer bytes(final String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,111 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.junit.Test;
+
+public class TieredDocumentStoreTest {
+
+    // Room for about ten of the documents used here.
+    private static final long BUDGET = 200;
+    private static final int MANY = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TieredDocumentStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new TieredDocumentStore(new ConcurrentDocumentStore(), BUDGET,
+            folder.getRoot().toPath().resolve("documents.spill"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    /**
+     * Documents which don't fit in the budget are spilled, and can
+     * still be read.
+     */
+    @Test
+    public void spillsAndReadsBack() {
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId));
+        }
+        assertThat(store.memoryBytes(), lessThanOrEqualTo(BUDGET));
+        assertThat(store.spilledDocuments(), greaterThan(MANY / 2));
+        assertThat(store.spills(), greaterThan(0L));
+        for (int docId = 0; docId < MANY; docId++) {
+            assertThat(store.get(docId), equalTo(document(docId)));
+        }
+        assertThat(store.faults(), greaterThan(0L));
+        assertThat(store.memoryBytes(), lessThanOrEqualTo(BUDGET));
+    }
+
+    /**
+     * A document which is used often stays in memory while many
+     * documents are read once each.
+     */
+    @Test
+    public void keepsPopularDocuments() {
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId));
+        }
+        for (int i = 0; i < 10; i++) {
+            store.get(0);
+        }
+        for (int docId = 1; docId < MANY; docId++) {
+            store.get(docId);
+            store.get(0);
+        }
+        final long faults = store.faults();
+        store.get(0);
+        assertThat(store.faults(), equalTo(faults));
+    }
+
+    /**
+     * Spilled documents are found by every operation.
+     */
+    @Test
+    public void findsSpilledDocuments() {
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, document(docId));
+        }
+        assertThat(store.putIfAbsent(0, document(1)), is(false));
+        assertThat(store.replace(1, document(1), document(2)), is(true));
+        assertThat(store.get(1), equalTo(document(2)));
+        assertThat(store.lastDocId(), equalTo(MANY - 1));
+
+        final Iterator<Map.Entry<Integer, ByteBuffer>> documents =
+            store.scan(0, Integer.MAX_VALUE);
+        for (int docId = 0; docId < MANY; docId++) {
+            assertThat(documents.next().getKey(), equalTo(docId));
+        }
+        assertThat(documents.hasNext(), is(false));
+
+        for (int docId = 0; docId < MANY; docId++) {
+            assertThat(store.remove(docId), is(true));
+        }
+        assertThat(store.spilledDocuments(), equalTo(0));
+        assertThat(store.get(2), nullValue());
+    }
+
+    private static ByteBuffer document(final int docId) {
+        return ByteBuffer.wrap(
+            ("{\"docId\":" + docId + "}").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,156 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+    private static final long TICK = 10;
+    private static final int MANY = 1000;
+
+    /**
+     * Deadlines on every level of the wheel expire on time, and not
+     * before.
+     */
+    @Test
+    public void expiresOnTime() {
+        final TimerWheel wheel = new TimerWheel(TICK, 0);
+        // The first is on the bottom level, the last beyond the top.
+        final long[] deadlines = {25, 5000, 300000, 30000000, 3000000000L};
+        for (int docId = 0; docId < deadlines.length; docId++) {
+            wheel.schedule(docId, deadlines[docId]);
+        }
+        for (int docId = 0; docId < deadlines.length; docId++) {
+            wheel.advance(deadlines[docId] - TICK);
+            assertThat(poll(wheel), empty());
+            wheel.advance(deadlines[docId]);
+            assertThat(poll(wheel), contains(docId));
+        }
+    }
+
+    /**
+     * A deadline in the middle of a tick waits for the rest of the
+     * tick when the wheel is turned to the tick's start, and still
+     * expires afterwards.
+     */
+    @Test
+    public void expiresInTheMiddleOfATick() {
+        final TimerWheel wheel = new TimerWheel(TICK, 0);
+        wheel.schedule(1, TICK + TICK / 2);
+        wheel.advance(TICK + 2);
+        assertThat(poll(wheel), empty());
+        wheel.advance(TICK + TICK / 2);
+        assertThat(poll(wheel), contains(1));
+        wheel.advance(2 * TICK);
+        assertThat(poll(wheel), empty());
+
+        final DocumentStore documents = new ConcurrentDocumentStore();
+        final ExpiringDocumentStore store =
+            new ExpiringDocumentStore(documents, new TimerWheel(TICK, 0), null);
+        store.put(1, ByteBuffer.wrap(new byte[] {'{', '}'}), TICK + TICK / 2);
+        assertThat(store.reap(TICK + 2), equalTo(0));
+        assertThat(store.reap(TICK + TICK / 2), equalTo(1));
+        assertThat(documents.get(1), nullValue());
+    }
+
+    /**
+     * A cancelled deadline never expires, and a rescheduled one only
+     * expires at its new time.
+     */
+    @Test
+    public void cancels() {
+        final TimerWheel wheel = new TimerWheel(TICK, 0);
+        wheel.schedule(1, 100);
+        wheel.schedule(2, 100);
+        wheel.cancel(1);
+        wheel.schedule(2, 1000);
+        assertThat(wheel.deadline(1), equalTo(Long.MAX_VALUE));
+        assertThat(wheel.deadline(2), equalTo(1000L));
+        wheel.advance(500);
+        assertThat(poll(wheel), empty());
+        wheel.advance(1000);
+        assertThat(poll(wheel), contains(2));
+    }
+
+    /**
+     * Expired docIds are handed out in batches.
+     */
+    @Test
+    public void pollsInBatches() {
+        final TimerWheel wheel = new TimerWheel(TICK, 0);
+        for (int docId = 0; docId < MANY; docId++) {
+            wheel.schedule(docId, docId);
+        }
+        wheel.advance(MANY);
+        final List<Integer> batch = new ArrayList<>();
+        wheel.pollExpired(MANY / 2, batch);
+        assertThat(batch, hasSize(MANY / 2));
+        wheel.pollExpired(MANY, batch);
+        assertThat(batch, hasSize(MANY));
+    }
+
+    /**
+     * Expired documents are hidden straight away and removed by the
+     * reaper.
+     */
+    @Test
+    public void storeHidesAndRemovesExpired() throws InterruptedException {
+        final DocumentStore documents = new ConcurrentDocumentStore();
+        final ExpiringDocumentStore store = new ExpiringDocumentStore(documents, TICK);
+        final ByteBuffer document = ByteBuffer.wrap(new byte[] {'{', '}'});
+        final long now = System.currentTimeMillis();
+        store.put(1, document, now + TICK);
+        store.put(2, document, now + 60000);
+        store.put(3, document);
+        assertThat(store.get(1), notNullValue());
+        Thread.sleep(2 * TICK);
+        assertThat(store.get(1), nullValue());
+        assertThat(store.putIfAbsent(1, document), is(true));
+        store.put(1, document, now + TICK);
+        Thread.sleep(2 * TICK);
+        assertThat(store.reap(System.currentTimeMillis()), equalTo(1));
+        assertThat(documents.get(1), nullValue());
+        assertThat(store.get(2), notNullValue());
+        assertThat(store.get(3), notNullValue());
+    }
+
+    /**
+     * The reaper removes expired documents with one write of each
+     * batch, so that with a log it waits for the disk once a batch.
+     */
+    @Test
+    public void reapsInBatches() {
+        final int[] writes = new int[1];
+        final DocumentStore documents = new ConcurrentDocumentStore() {
+            @Override
+            public boolean[] writeAll(
+                    final List<Map.Entry<Integer, ByteBuffer>> changes) {
+                writes[0]++;
+                return super.writeAll(changes);
+            }
+        };
+        final ExpiringDocumentStore store =
+            new ExpiringDocumentStore(documents, new TimerWheel(TICK, 0), null);
+        for (int docId = 0; docId < MANY; docId++) {
+            store.put(docId, ByteBuffer.wrap(new byte[] {'{', '}'}), TICK);
+        }
+        store.put(0, ByteBuffer.wrap(new byte[] {'[', ']'}));
+        assertThat(store.reap(2 * TICK), equalTo(MANY - 1));
+        assertThat(writes[0], lessThanOrEqualTo(MANY / 100));
+        assertThat(documents.get(0), notNullValue());
+        assertThat(documents.get(1), nullValue());
+    }
+
+    private static List<Integer> poll(final TimerWheel wheel) {
+        final List<Integer> batch = new ArrayList<>();
+        wheel.pollExpired(MANY, batch);
+        return batch;
+    }
+}
@@ -0,0 +1,273 @@
+package org.adadevelopersacademy;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import org.junit.Test;
+
+public class WriteAheadLogTest {
+
+    private static final String ONE = "one";
+    private static final String TWO = "two";
+    private static final long INTERVAL = 5;
+    private static final String FIRST_SEGMENT = "0000000000000001.log";
+    private static final int THREADS = 4;
+    private static final int WRITES_PER_THREAD = 250;
+    // Far enough ahead that nothing expires during a test.
+    private static final long DEADLINE = Long.MAX_VALUE / 2;
+
+    // A JUnit "rule" wraps every test. TemporaryFolder creates a
+    // fresh directory before each test and deletes it afterwards.
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path path;
+
+    @Before
+    public void setUp() throws IOException {
+        path = folder.newFolder("documents.wal").toPath();
+    }
+
+    /**
+     * Every durability mode replays puts and removes after a restart.
+     */
+    @Test
+    public void replaysAfterReopen() throws IOException {
+        for (final Durability durability : Durability.values()) {
+            for (final File file : path.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            DocumentStore store = open(durability);
+            store.put(1, bytes(ONE));
+            store.put(2, bytes(TWO));
+            store.put(1, bytes("uno"));
+            store.remove(2);
+            store.putIfAbsent(3, bytes("three"));
+            store.close();
+
+            store = open(durability);
+            assertThat(string(store.get(1)), equalTo("uno"));
+            assertThat(store.get(2), nullValue());
+            assertThat(string(store.get(3)), equalTo("three"));
+            store.close();
+        }
+    }
+
+    /**
+     * A clear is replayed too.
+     */
+    @Test
+    public void replaysClear() throws IOException {
+        DocumentStore store = open(Durability.SYNC);
+        store.put(1, bytes(ONE));
+        store.clear();
+        store.put(2, bytes(TWO));
+        store.close();
+
+        store = open(Durability.SYNC);
+        assertThat(store.get(1), nullValue());
+        assertThat(string(store.get(2)), equalTo(TWO));
+        store.close();
+    }
+
+    /**
+     * A batch is logged like the changes made one at a time.
+     */
+    @Test
+    public void replaysBatch() throws IOException {
+        DocumentStore store = open(Durability.GROUP);
+        store.put(2, bytes(TWO));
+        final List<Map.Entry<Integer, ByteBuffer>> changes = new ArrayList<>();
+        changes.add(new AbstractMap.SimpleImmutableEntry<>(1, bytes(ONE)));
+        changes.add(new AbstractMap.SimpleImmutableEntry<Integer, ByteBuffer>(2, null));
+        changes.add(new AbstractMap.SimpleImmutableEntry<Integer, ByteBuffer>(3, null));
+        assertThat(store.writeAll(changes), equalTo(new boolean[] {true, true, false}));
+        store.close();
+
+        store = open(Durability.GROUP);
+        assertThat(string(store.get(1)), equalTo(ONE));
+        assertThat(store.get(2), nullValue());
+        store.close();
+    }
+
+    /**
+     * A patch is logged as just the patch and replayed onto the
+     * document.
+     */
+    @Test
+    public void replaysPatch() throws IOException {
+        DocumentStore store = open(Durability.SYNC);
+        final ByteBuffer original = bytes("{\"a\":1,\"b\":2}");
+        final ByteBuffer patch = bytes("{\"a\":null}");
+        store.put(1, original);
+        assertThat(store.patch(1, original, MergePatch.apply(original, patch), patch),
+            is(true));
+        store.close();
+
+        store = open(Durability.SYNC);
+        assertThat(string(store.get(1)), equalTo("{\"b\":2}"));
+        store.close();
+    }
+
+    /**
+     * A partially written record at the end of the log is ignored and
+     * cut off, and the log can be appended to afterwards.
+     */
+    @Test
+    public void truncatesTornTail() throws IOException {
+        DocumentStore store = open(Durability.SYNC);
+        store.put(1, bytes(ONE));
+        store.close();
+        final Path segment = path.resolve(FIRST_SEGMENT);
+        final long goodSize = Files.size(segment);
+        // This looks like the start of a 100 byte record which never
+        // made it to disk.
+        Files.write(segment, new byte[] {0, 0, 0, 100, 1, 2},
+            StandardOpenOption.APPEND);
+
+        store = open(Durability.SYNC);
+        assertThat(Files.size(segment), equalTo(goodSize));
+        assertThat(string(store.get(1)), equalTo(ONE));
+        store.put(2, bytes(TWO));
+        store.close();
+
+        store = open(Durability.SYNC);
+        assertThat(string(store.get(2)), equalTo(TWO));
+        store.close();
+    }
+
+    /**
+     * Concurrent writers sharing group commits don't lose records.
+     */
+    @Test
+    public void groupCommitKeepsConcurrentWrites()
+            throws IOException, InterruptedException {
+        final DocumentStore store = open(Durability.GROUP);
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t * WRITES_PER_THREAD;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = first; i < first + WRITES_PER_THREAD; i++) {
+                        store.put(i, bytes(Integer.toString(i)));
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        store.close();
+
+        final DocumentStore reopened = open(Durability.GROUP);
+        for (int i = 0; i < THREADS * WRITES_PER_THREAD; i++) {
+            assertThat(string(reopened.get(i)), equalTo(Integer.toString(i)));
+        }
+        reopened.close();
+    }
+
+    /**
+     * A write made while deferring waits for the log returns straight
+     * away, and the listener hears once the write is durable.
+     */
+    @Test
+    public void notifiesDeferredWrites() throws IOException, InterruptedException {
+        final DocumentStore store = open(Durability.GROUP);
+        final CountDownLatch durable = new CountDownLatch(1);
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final DeferredSync deferred = DeferredSync.begin();
+        try {
+            store.put(1, bytes(ONE));
+            deferred.whenDurable(new WriteAheadLog.Listener() {
+                @Override
+                public void durable(final IOException e) {
+                    failure.set(e);
+                    durable.countDown();
+                }
+            });
+        } finally {
+            DeferredSync.end();
+        }
+        assertThat(durable.await(1, TimeUnit.SECONDS), equalTo(true));
+        assertThat(failure.get(), nullValue());
+        store.close();
+
+        final DocumentStore reopened = open(Durability.GROUP);
+        assertThat(string(reopened.get(1)), equalTo(ONE));
+        reopened.close();
+    }
+
+    /**
+     * Deadlines are replayed, including those logged in segments which
+     * a snapshot has made unnecessary.
+     */
+    @Test
+    public void replaysDeadlines() throws IOException {
+        TimerWheel deadlines = new TimerWheel(INTERVAL, 0);
+        WriteAheadLog log = WriteAheadLog.open(path, Durability.SYNC, INTERVAL);
+        log.setDeadlines(deadlines);
+        DurableDocumentStore durable =
+            new DurableDocumentStore(new ConcurrentDocumentStore(), log);
+        durable.recover(0);
+        final ExpiringDocumentStore store =
+            new ExpiringDocumentStore(durable, deadlines, log);
+        store.put(1, bytes(ONE), DEADLINE);
+        store.put(2, bytes(TWO), DEADLINE);
+        durable.snapshot(path);
+        assertThat(Files.exists(path.resolve(FIRST_SEGMENT)), equalTo(false));
+        store.put(2, bytes(TWO));
+        store.putIfAbsent(3, bytes("three"), DEADLINE + 1);
+        store.close();
+
+        deadlines = new TimerWheel(INTERVAL, 0);
+        log = WriteAheadLog.open(path, Durability.SYNC, INTERVAL);
+        log.setDeadlines(deadlines);
+        final Snapshot snapshot = Snapshot.openLatest(path);
+        durable = new DurableDocumentStore(
+            new SnapshotDocumentStore(new ConcurrentDocumentStore(), snapshot), log);
+        durable.recover(snapshot.generation());
+        assertThat(deadlines.deadline(1), equalTo(DEADLINE));
+        assertThat(deadlines.deadline(2), equalTo(Long.MAX_VALUE));
+        assertThat(deadlines.deadline(3), equalTo(DEADLINE + 1));
+        durable.close();
+    }
+
+    private DocumentStore open(final Durability durability) throws IOException {
+        final DocumentStore store = new ConcurrentDocumentStore();
+        final WriteAheadLog log = WriteAheadLog.open(path, durability, INTERVAL);
+        final DurableDocumentStore durable = new DurableDocumentStore(store, log);
+        durable.recover(0);
+        return durable;
+    }
+
+    private static ByteBuffer bytes(final String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}